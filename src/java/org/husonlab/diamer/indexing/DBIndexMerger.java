@@ -0,0 +1,123 @@
+package org.husonlab.diamer.indexing;
+
+import org.husonlab.diamer.io.indexing.IndexManifest;
+import org.husonlab.diamer.io.taxonomy.TreeIO;
+import org.husonlab.diamer.taxonomy.Tree;
+import org.husonlab.diamer.util.logging.Logger;
+import org.husonlab.diamer.util.logging.Time;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Merges the slices of a DB index that were built for different ranges of buckets (option {@code --bucket-range}).
+ * <p>
+ *     The bucket files of the slices are copied to the output folder and the "kmers in database" of the trees of all
+ *     slices are summed up. The slices have to be built with the same settings and have to cover every bucket exactly
+ *     once. The slices are not modified (unless the output folder is one of them) and can be deleted after the
+ *     merge. Copies are used instead of hard links, since rebuilding a slice in place would otherwise also change
+ *     the merged index.
+ * </p>
+ */
+public class DBIndexMerger {
+    private final Logger logger;
+    private final Path[] slices;
+    private final Path output;
+
+    /**
+     * @param slices index folders of the slices
+     * @param output output folder for the merged index
+     */
+    public DBIndexMerger(Path[] slices, Path output) {
+        this.logger = new Logger("DBIndexMerger");
+        logger.addElement(new Time());
+        this.slices = slices;
+        this.output = output;
+    }
+
+    /**
+     * @return report with the size of each bucket
+     */
+    public String merge() {
+        // check that the slices fit together
+        IndexManifest[] manifests = new IndexManifest[slices.length];
+        for (int i = 0; i < slices.length; i++) {
+            if (!IndexManifest.exists(slices[i])) {
+                throw new RuntimeException("No index manifest in " + slices[i] + ", not a slice built with --bucket-range.");
+            }
+            manifests[i] = IndexManifest.read(slices[i]);
+            if (!manifests[i].isCompatible(manifests[0])) {
+                throw new RuntimeException("Slice " + slices[i] + " was built with different settings than slice " +
+                        slices[0] + ": " + manifests[i].getSettings() + " vs. " + manifests[0].getSettings());
+            }
+        }
+        int nrOfBuckets = manifests[0].getNrOfBuckets();
+        int[] owners = new int[nrOfBuckets];
+        for (int i = 0; i < manifests.length; i++) {
+            for (int bucket = manifests[i].getFirstBucket(); bucket < manifests[i].getLastBucket(); bucket++) {
+                if (owners[bucket] != 0) {
+                    throw new RuntimeException("Bucket " + bucket + " is contained in slice " + slices[owners[bucket] - 1] +
+                            " and in slice " + slices[i]);
+                }
+                owners[bucket] = i + 1;
+            }
+        }
+        for (int bucket = 0; bucket < nrOfBuckets; bucket++) {
+            if (owners[bucket] == 0) {
+                throw new RuntimeException("Bucket " + bucket + " is not contained in any slice.");
+            }
+        }
+
+        // sum up the kmer counts of all slices
+        logger.logInfo("Merging trees");
+        Tree tree = TreeIO.loadTree(slices[0].resolve("tree.txt"));
+        for (int i = 1; i < slices.length; i++) {
+            Tree sliceTree = TreeIO.loadTree(slices[i].resolve("tree.txt"));
+            for (int taxId : sliceTree.idMap.keySet()) {
+                if (!tree.hasNode(taxId)) {
+                    throw new RuntimeException("Taxon " + taxId + " of slice " + slices[i] + " is missing in slice " + slices[0]);
+                }
+                tree.addToProperty(taxId, "kmers in database", sliceTree.getLongProperty(taxId, "kmers in database"));
+            }
+        }
+
+        logger.logInfo("Copying bucket files");
+        for (int bucket = 0; bucket < nrOfBuckets; bucket++) {
+            // the bucket file, its Bloom filter and fence pointers (if the slice was built with them)
+            for (String fileName : new String[]{bucket + ".bin", bucket + ".filter", bucket + ".fence"}) {
+                Path source = slices[owners[bucket] - 1].resolve(fileName);
+                Path target = output.resolve(fileName);
+                if (source.toFile().exists() && !source.toAbsolutePath().equals(target.toAbsolutePath())) {
+                    try {
+                        Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+                    } catch (IOException e) {
+                        throw new RuntimeException("Could not copy bucket file " + source + " to " + target, e);
+                    }
+                }
+            }
+        }
+        TreeIO.saveTree(tree, output.resolve("tree.txt"));
+        long[] bucketSizes = new long[nrOfBuckets];
+        for (int bucket = 0; bucket < nrOfBuckets; bucket++) {
+            bucketSizes[bucket] = manifests[owners[bucket] - 1].getBucketSize(bucket);
+        }
+        new IndexManifest(manifests[0].getSettings(), 0, nrOfBuckets, bucketSizes).write(output);
+
+        StringBuilder report = new StringBuilder("output directory: ").append(output).append("\n");
+        for (int i = 0; i < slices.length; i++) {
+            report.append("slice: ").append(slices[i]).append("\tbuckets ").append(manifests[i].getFirstBucket())
+                    .append(" to ").append(manifests[i].getLastBucket() - 1).append("\n");
+        }
+        long totalKmers = 0;
+        StringBuilder bucketSizesString = new StringBuilder().append("bucket sizes:").append("\n");
+        for (int bucket = 0; bucket < nrOfBuckets; bucket++) {
+            bucketSizesString.append(bucket).append("\t").append(bucketSizes[bucket]).append("\n");
+            totalKmers += bucketSizes[bucket];
+        }
+        report.append("total extracted kmers:\t").append(totalKmers).append("\n");
+        report.append(bucketSizesString);
+        return report.toString();
+    }
+}
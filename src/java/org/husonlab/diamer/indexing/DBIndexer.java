@@ -1,8 +1,12 @@
 package org.husonlab.diamer.indexing;
 
 import org.husonlab.diamer.indexing.kmers.KmerExtractor;
+import org.husonlab.diamer.io.indexing.BlockBucketWriter;
 import org.husonlab.diamer.io.indexing.BucketIO;
 import org.husonlab.diamer.io.indexing.DBIndexIO;
+import org.husonlab.diamer.io.indexing.EliasFanoBucketWriter;
+import org.husonlab.diamer.io.indexing.IndexManifest;
+import org.husonlab.diamer.io.indexing.SpillIO;
 import org.husonlab.diamer.io.seq.FutureSequenceRecords;
 import org.husonlab.diamer.io.seq.SequenceSupplier;
 import org.husonlab.diamer.io.taxonomy.TreeIO;
@@ -10,15 +14,26 @@ import org.husonlab.diamer.main.GlobalSettings;
 import org.husonlab.diamer.main.encoders.Encoder;
 import org.husonlab.diamer.seq.SequenceRecord;
 import org.husonlab.diamer.taxonomy.Tree;
+import org.husonlab.diamer.util.BlockedBloomFilter;
+import org.husonlab.diamer.util.ConcurrentBucket;
 import org.husonlab.diamer.util.FlexibleBucket;
+import org.husonlab.diamer.util.OffHeapBucket;
 import org.husonlab.diamer.util.FlexibleIntArray;
 import org.husonlab.diamer.util.Pair;
 import org.husonlab.diamer.util.logging.*;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
 
 public class DBIndexer {
 
@@ -26,120 +41,149 @@ public class DBIndexer {
     /**
      * Expected size of Bucket because of multithreading.
      */
-    private final int expectedBucketSize;
+    private final long expectedBucketSize;
     private final static int contingentSizes = 1_024;
+    /**
+     * Size of the first contingent a thread reserves in a bucket, it is doubled with every further contingent up to
+     * {@link #contingentSizes}.
+     */
+    private final static int minContingentSize = 64;
+    /**
+     * Minimum number of entries per segment when a bucket is collapsed in parallel.
+     */
+    private final static long minCollapseSegmentSize = 1 << 16;
+    /**
+     * Maximum number of sets of taxa in the {@link #lcaCache}.
+     */
+    private final static int maxLcaCacheSize = 1 << 20;
     private final SequenceSupplier<Integer, byte[]> sup;
     private final Tree tree;
     private final Encoder encoder;
     private final GlobalSettings settings;
     BlockingQueue<FutureSequenceRecords<Integer, byte[]>[]> queue;
-    private final FlexibleBucket[] buckets;
+    private final ConcurrentBucket[] buckets;
     private AtomicBoolean readingFinished = new AtomicBoolean(false);
+    /**
+     * Plans the ranges of buckets per cycle if no number of buckets per cycle is given, null otherwise.
+     */
+    private final MemoryGovernor memoryGovernor;
+    /**
+     * Set if the buckets of the current cycle run out of memory, only used with the {@link #memoryGovernor}.
+     */
+    private final AtomicBoolean abortCycle = new AtomicBoolean(false);
     private final DBIndexIO dbIndexIO;
-    private final int[] bucketSizes;
+    private final long[] bucketSizes;
+    /**
+     * First and last (exclusive) bucket of the index that is built.
+     */
+    private final int firstBucket;
+    private final int lastBucket;
+    /**
+     * LCAs of sets of taxa that have already been collapsed.
+     */
+    private final ConcurrentHashMap<TaxonSet, Integer> lcaCache = new ConcurrentHashMap<>();
     private static final AtomicInteger processedSequences = new AtomicInteger(0);
     private static final AtomicInteger skippedSequences = new AtomicInteger(0);
 
     public DBIndexer(SequenceSupplier<Integer, byte[]> sup,
                         Tree tree,
                         long maxBucketSize,
+                        int[] estimatedBucketSizes,
                         Encoder encoder,
                         GlobalSettings settings) {
         logger = new Logger("DBIndexer");
         logger.addElement(new Time()).addElement(new RunningTime());
-        this.expectedBucketSize = (int) maxBucketSize + contingentSizes * settings.MAX_THREADS;
+        this.expectedBucketSize = settings.OFF_HEAP ?
+                maxBucketSize + (long) contingentSizes * settings.MAX_THREADS :
+                (int) maxBucketSize + contingentSizes * settings.MAX_THREADS;
         this.sup = sup;
         this.tree = tree;
         this.encoder = encoder;
         dbIndexIO = encoder.getDBIndexIO();
         this.settings = settings;
         queue = new ArrayBlockingQueue<>(settings.MAX_THREADS * 10, false);
-        logger.logInfo("Allocating memory for " + settings.BUCKETS_PER_CYCLE + " buckets of size " + expectedBucketSize);
-        buckets = new FlexibleBucket[settings.BUCKETS_PER_CYCLE];
-        for (int i = 0; i < settings.BUCKETS_PER_CYCLE; i++) {
-            buckets[i] = new FlexibleBucket(expectedBucketSize, 8_129, contingentSizes);
+        firstBucket = settings.FIRST_BUCKET;
+        lastBucket = settings.LAST_BUCKET < 0 ? encoder.getNrOfBuckets() : settings.LAST_BUCKET;
+        if (settings.SINGLE_PASS) {
+            // buckets are allocated per range with their exact size after the input has been spilled
+            buckets = null;
+            memoryGovernor = null;
+        } else if (settings.ADAPTIVE_CYCLES) {
+            // buckets are allocated per cycle for the range the memory governor plans
+            buckets = null;
+            memoryGovernor = new MemoryGovernor(estimatedBucketSizes, settings.OFF_HEAP, settings.MAX_THREADS, contingentSizes);
+        } else {
+            memoryGovernor = null;
+            int nrOfBuckets = Math.min(settings.BUCKETS_PER_CYCLE, lastBucket - firstBucket);
+            logger.logInfo("Allocating memory for " + nrOfBuckets + " buckets of size " + expectedBucketSize);
+            buckets = new ConcurrentBucket[nrOfBuckets];
+            for (int i = 0; i < nrOfBuckets; i++) {
+                buckets[i] = newBucket(expectedBucketSize);
+            }
         }
-        bucketSizes = new int[encoder.getNrOfBuckets()];
+        bucketSizes = new long[encoder.getNrOfBuckets()];
     }
 
     public String index() {
-        tree.addLongProperty("kmers in database", 0);
-        for (int i = 0; i < encoder.getNrOfBuckets(); i += settings.BUCKETS_PER_CYCLE) {
-            processedSequences.set(0);
-            skippedSequences.set(0);
-            int rangeStart = i;
-            int rangeEnd = Math.min(i + settings.BUCKETS_PER_CYCLE, encoder.getNrOfBuckets());
-            int indexStart = 0;
-            int indexEnd = rangeEnd - i;
-
-            logger.logInfo("Indexing buckets " + i + " to " + (rangeEnd - 1));
-            ProgressBar progressBar = new ProgressBar(sup.getFileSize(), 20);
-            new OneLineLogger("DBIndexer", 0).addElement(new RunningTime()).addElement(progressBar);
-
-            for (FlexibleBucket bucket : buckets) {
-                bucket.clear();
-                bucket.fill(Long.MAX_VALUE);
-            }
+        // an updated index keeps the kmer counts of the existing index
+        if (!settings.UPDATE_INDEX || !tree.hasLongProperty("kmers in database")) {
+            tree.addLongProperty("kmers in database", 0);
+        }
+        if (settings.SINGLE_PASS) {
+            indexSinglePass();
+        } else if (memoryGovernor != null) {
+            indexAdaptive();
+        } else {
+            for (int i = firstBucket; i < lastBucket; i += settings.BUCKETS_PER_CYCLE) {
+                processedSequences.set(0);
+                skippedSequences.set(0);
+                int rangeStart = i;
+                int rangeEnd = Math.min(i + settings.BUCKETS_PER_CYCLE, lastBucket);
 
-            readingFinished.set(false);
-            Thread readerThread = new Thread(() -> batchSupplier(sup, queue, settings.SEQUENCE_BATCH_SIZE));
-            readerThread.start();
+                logger.logInfo("Indexing buckets " + i + " to " + (rangeEnd - 1));
 
-            Thread[] processingThreads = new Thread[settings.MAX_THREADS];
-            for (int j = 0; j < settings.MAX_THREADS; j++) {
-                processingThreads[j] = new Thread(new BatchProcessor(queue, tree, buckets, encoder, readingFinished, i, settings.BUCKETS_PER_CYCLE));
-                processingThreads[j].start();
-            }
-
-            try {
-                while (readerThread.isAlive()) {
-                    readerThread.join(500);
-                    progressBar.setProgress(sup.getBytesRead());
+                for (ConcurrentBucket bucket : buckets) {
+                    bucket.clear();
+                    bucket.fill(Long.MAX_VALUE);
                 }
-                progressBar.finish();
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
-            }
-            readingFinished.set(true);
 
-            for (int j = 0; j < settings.MAX_THREADS; j++) {
-                try {
-                    processingThreads[j].join();
-                } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
+                BatchProcessor[] batchProcessors = new BatchProcessor[settings.MAX_THREADS];
+                for (int j = 0; j < settings.MAX_THREADS; j++) {
+                    batchProcessors[j] = new BatchProcessor(queue, tree, buckets, null, encoder, readingFinished, null, i, rangeEnd - i);
                 }
-            }
+                processInput(batchProcessors, null);
 
 //            for (int j = 0; j < buckets.length; j++) {
 //                logger.logInfo("Bucket " + (j + rangeStart) + " size: " + buckets[j].size());
 //            }
 
-            logger.logInfo("Sorting");
-            try (ForkJoinPool pool = new ForkJoinPool(settings.MAX_THREADS)) {
-                for (int j = indexStart; j < indexEnd; j++) {
-                    pool.submit(new Sorting.MsdRadixTaskFlexibleBucket(buckets[j]));
-                }
+                sortAndWrite(buckets, rangeStart, rangeEnd - rangeStart);
             }
-
-            logger.logInfo("Writing");
-
-            try (CustomThreadPoolExecutor executor = new CustomThreadPoolExecutor(
-                    settings.MAX_THREADS, settings.MAX_THREADS, indexEnd + 1, 3600, logger)) {
-                for (int j = indexStart; j < indexEnd; j++) {
-                    int finalJ = j;
-                    executor.submit(() -> writeBucket(buckets[finalJ], tree, encoder, dbIndexIO.getBucketIO(rangeStart + finalJ), bucketSizes));
-                }
+            for (ConcurrentBucket bucket : buckets) {
+                bucket.close();
             }
         }
 
+        // the filters of an updated index have to cover the added kmers
+        long filterSize = -1;
+        if (settings.BLOOM_FILTER || (settings.UPDATE_INDEX && dbIndexIO.hasFilters())) {
+            filterSize = writeFilters();
+        }
+
         // Export tree with number of kmers that map to each node
         TreeIO.saveTree(tree, dbIndexIO.getIndexFolder().resolve("tree.txt"));
+        // the settings in the manifest are checked when the index is updated or merged
+        IndexManifest.of(settings, encoder.getNrOfBuckets(), firstBucket, lastBucket, bucketSizes)
+                .write(dbIndexIO.getIndexFolder());
 
         StringBuilder report = new StringBuilder("input file: ").append(sup.getFile()).append("\n")
                 .append("output directory: ").append(dbIndexIO.getIndexFolder()).append("\n")
                 .append("processed sequence records: ").append(processedSequences).append("\n")
                 .append("skipped sequences because length < ").append(encoder.getK()).append(": ")
                 .append(skippedSequences).append("\n");
+        if (filterSize >= 0) {
+            report.append("bloom filter size: ").append(filterSize).append(" bytes\n");
+        }
         long totalKmers = 0;
         StringBuilder bucketSizesString = new StringBuilder().append("bucket sizes:").append("\n");
         for (int i = 0; i < bucketSizes.length; i++) {
@@ -151,68 +195,496 @@ public class DBIndexer {
         return report.toString();
     }
 
-    private static void writeBucket(FlexibleBucket bucket, Tree tree, Encoder encoder, BucketIO bucketIO, int[] bucketSizes) {
+    /**
+     * Reads the input only once and spills the index entries of all buckets (of the slice) to one file per range of
+     * {@link GlobalSettings#BUCKETS_PER_CYCLE} buckets. Afterward, each range is read back in, sorted and written.
+     */
+    private void indexSinglePass() {
+        processedSequences.set(0);
+        skippedSequences.set(0);
+        try (SpillIO spillIO = new SpillIO(settings.SPILL_FOLDER, firstBucket, lastBucket, settings.BUCKETS_PER_CYCLE, settings.OFF_HEAP)) {
+            logger.logInfo("Extracting kmers of all buckets (spilling to " + settings.SPILL_FOLDER + ")");
+            BatchProcessor[] batchProcessors = new BatchProcessor[settings.MAX_THREADS];
+            for (int j = 0; j < settings.MAX_THREADS; j++) {
+                batchProcessors[j] = new BatchProcessor(queue, tree, null, spillIO.getSpillWriter(), encoder, readingFinished, null, firstBucket, lastBucket - firstBucket);
+            }
+            processInput(batchProcessors, null);
+            spillIO.finishWriting();
 
-        // skip unused entries in the front (should not happen)
-        int i = 0;
-        while (i < bucket.size() && bucket.getValue(i) == Long.MAX_VALUE) {
-            i++;
+            for (int i = 0; i < spillIO.getNrOfRanges(); i++) {
+                Pair<Integer, Integer> range = spillIO.getRange(i);
+                logger.logInfo("Finalizing buckets " + range.first() + " to " + (range.last() - 1));
+                ConcurrentBucket[] rangeBuckets = spillIO.readRange(i);
+                spillIO.deleteRange(i);
+                sortAndWrite(rangeBuckets, range.first(), rangeBuckets.length);
+                for (ConcurrentBucket bucket : rangeBuckets) {
+                    bucket.close();
+                }
+            }
         }
-        if (i == bucket.size()) {
-            return;
+    }
+
+    /**
+     * Indexes the buckets in cycles of variable length that are planned by the {@link MemoryGovernor}. A cycle whose
+     * buckets outgrow the available memory is aborted and retried with a smaller range of buckets.
+     */
+    private void indexAdaptive() {
+        int rangeStart = firstBucket;
+        int maxRangeEnd = lastBucket;
+        while (rangeStart < lastBucket) {
+            processedSequences.set(0);
+            skippedSequences.set(0);
+            int rangeEnd = memoryGovernor.planRange(rangeStart, maxRangeEnd);
+
+            logger.logInfo("Indexing buckets " + rangeStart + " to " + (rangeEnd - 1));
+
+            ConcurrentBucket[] cycleBuckets = new ConcurrentBucket[rangeEnd - rangeStart];
+            boolean sorted = false;
+            try {
+                for (int j = 0; j < cycleBuckets.length; j++) {
+                    cycleBuckets[j] = newBucket(memoryGovernor.getPredictedSize(rangeStart + j));
+                    cycleBuckets[j].fill(Long.MAX_VALUE);
+                }
+                abortCycle.set(false);
+                BatchProcessor[] batchProcessors = new BatchProcessor[settings.MAX_THREADS];
+                for (int j = 0; j < settings.MAX_THREADS; j++) {
+                    batchProcessors[j] = new BatchProcessor(queue, tree, cycleBuckets, null, encoder, readingFinished, abortCycle, rangeStart, cycleBuckets.length);
+                }
+                processInput(batchProcessors, cycleBuckets);
+                if (!abortCycle.get()) {
+                    sort(cycleBuckets, cycleBuckets.length);
+                    sorted = true;
+                }
+            } catch (OutOfMemoryError e) {
+                logger.logWarning("Out of memory while indexing buckets " + rangeStart + " to " + (rangeEnd - 1));
+            }
+
+            if (sorted) {
+                // the tree and the index are changed from here on, the cycle can not be retried anymore
+                collapseAndWrite(cycleBuckets, rangeStart, cycleBuckets.length);
+                memoryGovernor.recordCycle(rangeStart, cycleBuckets);
+                settings.logFileWriter.writeLog("Indexed buckets " + rangeStart + " to " + (rangeEnd - 1));
+                rangeStart = rangeEnd;
+                maxRangeEnd = lastBucket;
+            } else {
+                maxRangeEnd = memoryGovernor.shrink(rangeStart, rangeEnd);
+                logger.logWarning("Not enough memory for buckets " + rangeStart + " to " + (rangeEnd - 1) +
+                        ", retrying with buckets " + rangeStart + " to " + (maxRangeEnd - 1));
+                settings.logFileWriter.writeLog("Not enough memory for buckets " + rangeStart + " to " + (rangeEnd - 1) +
+                        ", retrying with buckets " + rangeStart + " to " + (maxRangeEnd - 1));
+            }
+            for (ConcurrentBucket bucket : cycleBuckets) {
+                if (bucket != null) {
+                    bucket.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the input once and distributes the batches to the {@link BatchProcessor}s, one thread per processor.
+     * @param monitoredBuckets if not null, the cycle is aborted as soon as these buckets exceed the memory budget of
+     *                         the {@link #memoryGovernor}
+     */
+    private void processInput(BatchProcessor[] batchProcessors, ConcurrentBucket[] monitoredBuckets) {
+        ProgressBar progressBar = new ProgressBar(sup.getFileSize(), 20);
+        new OneLineLogger("DBIndexer", 0).addElement(new RunningTime()).addElement(progressBar);
+
+        readingFinished.set(false);
+        AtomicBoolean abort = monitoredBuckets == null ? null : abortCycle;
+        Thread readerThread = new Thread(() -> batchSupplier(sup, queue, settings.SEQUENCE_BATCH_SIZE, abort));
+        readerThread.start();
+
+        Thread[] processingThreads = new Thread[batchProcessors.length];
+        for (int j = 0; j < batchProcessors.length; j++) {
+            processingThreads[j] = new Thread(batchProcessors[j]);
+            processingThreads[j].start();
+        }
+
+        try {
+            while (readerThread.isAlive()) {
+                readerThread.join(500);
+                progressBar.setProgress(sup.getBytesRead());
+                if (monitoredBuckets != null && memoryGovernor.isOverBudget(monitoredBuckets)) {
+                    abortCycle.set(true);
+                }
+            }
+            progressBar.finish();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        readingFinished.set(true);
+
+        for (Thread processingThread : processingThreads) {
+            try {
+                processingThread.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * @return a new empty bucket, off-heap if {@link GlobalSettings#OFF_HEAP} is set
+     */
+    private ConcurrentBucket newBucket(long capacity) {
+        if (settings.OFF_HEAP) {
+            return new OffHeapBucket(capacity, 8_129, contingentSizes);
+        }
+        return new FlexibleBucket((int) capacity, 8_129, contingentSizes);
+    }
+
+    /**
+     * Sorts the buckets of one range, collapses the entries of each k-mer to one entry with the LCA of its taxa and
+     * writes them to the index.
+     * @param buckets buckets of the range
+     * @param rangeStart name of the first bucket in the range
+     * @param nrOfBuckets number of buckets in the range
+     */
+    private void sortAndWrite(ConcurrentBucket[] buckets, int rangeStart, int nrOfBuckets) {
+        sort(buckets, nrOfBuckets);
+        collapseAndWrite(buckets, rangeStart, nrOfBuckets);
+    }
+
+    /**
+     * Sorts the first nrOfBuckets buckets by their k-mers.
+     */
+    private void sort(ConcurrentBucket[] buckets, int nrOfBuckets) {
+        logger.logInfo("Sorting");
+        try (ForkJoinPool pool = new ForkJoinPool(settings.MAX_THREADS)) {
+            Sorting.sortBuckets(buckets, nrOfBuckets, encoder.getNrOfKmerBitsInBucketEntry(), pool);
+        }
+    }
+
+    /**
+     * Collapses the entries of each k-mer of the sorted buckets of one range to one entry with the LCA of its taxa and
+     * writes them to the index.
+     * @param buckets sorted buckets of the range
+     * @param rangeStart name of the first bucket in the range
+     * @param nrOfBuckets number of buckets in the range
+     */
+    private void collapseAndWrite(ConcurrentBucket[] buckets, int rangeStart, int nrOfBuckets) {
+        long[][] segmentStarts = new long[nrOfBuckets][];
+        long[][] segmentLengths = new long[nrOfBuckets][];
+        try (ForkJoinPool pool = new ForkJoinPool(settings.MAX_THREADS)) {
+            // large buckets are split into k-mer aligned segments that are collapsed in parallel
+            ArrayList<ForkJoinTask<?>> tasks = new ArrayList<>();
+            for (int j = 0; j < nrOfBuckets; j++) {
+                ConcurrentBucket bucket = buckets[j];
+                segmentStarts[j] = getSegmentStarts(bucket, (int) Math.min(
+                        settings.MAX_THREADS * 4L, Math.ceilDiv(bucket.size(), minCollapseSegmentSize)));
+                segmentLengths[j] = new long[segmentStarts[j].length - 1];
+                for (int s = 0; s < segmentLengths[j].length; s++) {
+                    long[] starts = segmentStarts[j];
+                    long[] lengths = segmentLengths[j];
+                    int segment = s;
+                    tasks.add(pool.submit(() -> {
+                        lengths[segment] = collapse(bucket, starts[segment], starts[segment + 1]);
+                    }));
+                }
+            }
+            tasks.forEach(ForkJoinTask::join);
+        }
+
+        logger.logInfo("Writing");
+
+        try (CustomThreadPoolExecutor executor = new CustomThreadPoolExecutor(
+                settings.MAX_THREADS, settings.MAX_THREADS, nrOfBuckets + 1, 3600, logger)) {
+            for (int j = 0; j < nrOfBuckets; j++) {
+                int finalJ = j;
+                BucketIO bucketIO = dbIndexIO.getBucketIO(rangeStart + finalJ);
+                if (settings.UPDATE_INDEX && bucketIO.exists()) {
+                    executor.submit(() -> mergeBucket(buckets[finalJ], segmentStarts[finalJ], segmentLengths[finalJ], bucketIO));
+                } else {
+                    executor.submit(() -> writeBucket(buckets[finalJ], segmentStarts[finalJ], segmentLengths[finalJ],
+                            bucketIO, bucketSizes, settings.FENCE_INTERVAL, settings.ELIAS_FANO, settings.BLOCK_SIZE,
+                            encoder.getBitsForIds()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a {@link BlockedBloomFilter} of the k-mers of each bucket (of the slice). The filters are built from the
+     * written bucket files, so they are sized by the number of collapsed k-mers and cover updated buckets completely.
+     * @return total size of the filters in bytes
+     */
+    private long writeFilters() {
+        logger.logInfo("Writing Bloom filters");
+        AtomicLong filterSize = new AtomicLong();
+        try (CustomThreadPoolExecutor executor = new CustomThreadPoolExecutor(
+                settings.MAX_THREADS, settings.MAX_THREADS, lastBucket - firstBucket + 1, 3600, logger)) {
+            for (int i = firstBucket; i < lastBucket; i++) {
+                int bucket = i;
+                executor.submit(() -> {
+                    BlockedBloomFilter filter;
+                    if (dbIndexIO.isBucketAvailable(bucket)) {
+                        try (BucketIO.EntryReader bucketReader = dbIndexIO.getBucketReader(bucket)) {
+                            filter = new BlockedBloomFilter(bucketReader.getLength());
+                            while (bucketReader.hasNext()) {
+                                filter.add(encoder.getKmerFromIndexEntry(bucketReader.next()));
+                            }
+                        } catch (Exception e) {
+                            throw new RuntimeException("Could not build the filter of bucket " + bucket, e);
+                        }
+                    } else {
+                        // empty buckets are not written
+                        filter = new BlockedBloomFilter(0);
+                    }
+                    dbIndexIO.writeFilter(bucket, filter);
+                    filterSize.addAndGet((long) filter.getWords().length * Long.BYTES);
+                });
+            }
+        }
+        return filterSize.get();
+    }
+
+    /**
+     * Splits a sorted bucket into about the given number of segments, each segment starts with a new k-mer.
+     * @return start indices of the segments followed by the size of the bucket
+     */
+    private long[] getSegmentStarts(ConcurrentBucket bucket, int nrOfSegments) {
+        long size = bucket.size();
+        nrOfSegments = Math.max(1, nrOfSegments);
+        long[] starts = new long[nrOfSegments + 1];
+        for (int i = 1; i < nrOfSegments; i++) {
+            long start = Math.max(starts[i - 1], size * i / nrOfSegments);
+            while (start > 0 && start < size && encoder.getKmerFromIndexEntry(bucket.getValue(start)) ==
+                    encoder.getKmerFromIndexEntry(bucket.getValue(start - 1))) {
+                start++;
+            }
+            starts[i] = start;
         }
+        starts[nrOfSegments] = size;
+        return starts;
+    }
 
-        long lastIndexEntry = bucket.getValue(i++);
-        long lastKmer = encoder.getKmerFromIndexEntry(lastIndexEntry);
-        int lastTaxId = encoder.getIdFromIndexEntry(lastIndexEntry);
-        FlexibleIntArray lastTaxIds = new FlexibleIntArray(10);
-        lastTaxIds.add(lastTaxId);
-        try (BucketIO.BucketWriter bucketWriter = bucketIO.getBucketWriter()) {
-            for ( ; i < bucket.size(); i++) {
-                long indexEntry = bucket.getValue(i);
+    /**
+     * Collapses all entries of a k-mer in a segment of a sorted bucket into one entry with the LCA of their taxa.
+     * <p>
+     *     The collapsed entries are written in place to the start of the segment. Unused entries
+     *     ({@link Long#MAX_VALUE}) are skipped. The "kmers in database" of the taxa are counted per segment and added to
+     *     the tree at the end.
+     * </p>
+     * @param start first index of the segment
+     * @param end end index (exclusive) of the segment
+     * @return number of collapsed entries
+     */
+    private long collapse(ConcurrentBucket bucket, long start, long end) {
+        HashMap<Integer, Long> kmersPerTaxon = new HashMap<>();
+        FlexibleIntArray taxIds = new FlexibleIntArray(10);
+        long[] block = new long[4096];
+        long outputIndex = start;
+        long firstIndexEntry = 0;
+        long lastKmer = 0;
+        for (long i = start; i < end; i += block.length) {
+            int length = (int) Math.min(block.length, end - i);
+            bucket.get(i, block, 0, length);
+            for (int j = 0; j < length; j++) {
+                long indexEntry = block[j];
+                if (indexEntry == Long.MAX_VALUE) {
+                    continue;
+                }
                 long kmer = encoder.getKmerFromIndexEntry(indexEntry);
                 int taxId = encoder.getIdFromIndexEntry(indexEntry);
-                if (indexEntry != Long.MAX_VALUE) {
-                    if (kmer != lastKmer) {
-                        if (lastTaxIds.size() == 1) {
-                            bucketWriter.write(lastIndexEntry);
-                            tree.addToProperty(lastTaxId, "kmers in database", 1);
-                            lastTaxIds.clear();
-                        } else if (lastTaxIds.size() > 1) {
-                            lastTaxId = tree.findLCA(lastTaxIds.toArray());
-                            bucketWriter.write(encoder.getIndexEntry(lastTaxId, lastKmer));
-                            tree.addToProperty(lastTaxId, "kmers in database", 1);
-                            lastTaxIds.clear();
+                if (taxIds.size() > 0 && kmer != lastKmer) {
+                    bucket.set(outputIndex++, collapseKmer(firstIndexEntry, lastKmer, taxIds, kmersPerTaxon));
+                    taxIds.clear();
+                }
+                if (taxIds.size() == 0) {
+                    firstIndexEntry = indexEntry;
+                    lastKmer = kmer;
+                    taxIds.add(taxId);
+                } else if (taxIds.get(taxIds.size() - 1) != taxId) {
+                    taxIds.add(taxId);
+                }
+            }
+        }
+        if (taxIds.size() > 0) {
+            bucket.set(outputIndex++, collapseKmer(firstIndexEntry, lastKmer, taxIds, kmersPerTaxon));
+        }
+        kmersPerTaxon.forEach((taxId, count) -> tree.addToProperty(taxId, "kmers in database", count));
+        return outputIndex - start;
+    }
+
+    /**
+     * @return the index entry of the k-mer with the LCA of all taxa
+     */
+    private long collapseKmer(long firstIndexEntry, long kmer, FlexibleIntArray taxIds, HashMap<Integer, Long> kmersPerTaxon) {
+        if (taxIds.size() == 1) {
+            kmersPerTaxon.merge(taxIds.get(0), 1L, Long::sum);
+            return firstIndexEntry;
+        }
+        int lca = findLCA(taxIds.toArray());
+        kmersPerTaxon.merge(lca, 1L, Long::sum);
+        return encoder.getIndexEntry(lca, kmer);
+    }
+
+    /**
+     * Finds the LCA of a set of taxa. The LCAs of recurring sets of taxa are taken from the {@link #lcaCache}.
+     */
+    private int findLCA(int[] taxIds) {
+        int[] sortedTaxIds = taxIds.clone();
+        Arrays.sort(sortedTaxIds);
+        int nrOfTaxa = 1;
+        for (int i = 1; i < sortedTaxIds.length; i++) {
+            if (sortedTaxIds[i] != sortedTaxIds[nrOfTaxa - 1]) {
+                sortedTaxIds[nrOfTaxa++] = sortedTaxIds[i];
+            }
+        }
+        if (nrOfTaxa == 1) {
+            return sortedTaxIds[0];
+        }
+        TaxonSet taxonSet = new TaxonSet(Arrays.copyOf(sortedTaxIds, nrOfTaxa));
+        Integer lca = lcaCache.get(taxonSet);
+        if (lca == null) {
+            lca = tree.findLCA(taxonSet.taxIds);
+            if (lcaCache.size() < maxLcaCacheSize) {
+                lcaCache.put(taxonSet, lca);
+            }
+        }
+        return lca;
+    }
+
+    /**
+     * Writes the collapsed segments of a bucket to the index.
+     * @param fenceInterval number of entries between two fence pointers, 0 to write no fence file
+     * @param eliasFano whether to write the bucket in the Elias-Fano format (without fence pointers)
+     * @param blockSize number of entries per block to write a block-structured bucket (without fence pointers), 0
+     *                  otherwise
+     * @param idBits number of bits of the IDs in the entries
+     */
+    private static void writeBucket(ConcurrentBucket bucket, long[] segmentStarts, long[] segmentLengths, BucketIO bucketIO,
+                                    long[] bucketSizes, int fenceInterval, boolean eliasFano, int blockSize, int idBits) {
+        long length = 0;
+        long lastEntry = 0;
+        for (int s = 0; s < segmentLengths.length; s++) {
+            length += segmentLengths[s];
+            if (segmentLengths[s] > 0) {
+                lastEntry = bucket.getValue(segmentStarts[s] + segmentLengths[s] - 1);
+            }
+        }
+        if (length == 0) {
+            return;
+        }
+        try (BucketIO.EntryWriter bucketWriter = eliasFano ?
+                bucketIO.getEliasFanoBucketWriter(length, lastEntry, idBits) : blockSize > 0 ?
+                bucketIO.getBlockBucketWriter(blockSize) :
+                bucketIO.getBucketWriter(length > Integer.MAX_VALUE, fenceInterval)) {
+            for (int s = 0; s < segmentLengths.length; s++) {
+                for (long i = segmentStarts[s]; i < segmentStarts[s] + segmentLengths[s]; i++) {
+                    bucketWriter.write(bucket.getValue(i));
+                }
+            }
+            bucketSizes[bucketIO.getName()] = bucketWriter.getLength();
+        }
+    }
+
+    /**
+     * Merges the collapsed segments of a bucket with the existing bucket file of the index.
+     * <p>
+     *     Both are sorted by k-mer and contain each k-mer only once. K-mers that are in both are collapsed to the LCA
+     *     of both taxa and the "kmers in database" of the taxa are corrected accordingly. The merged bucket is written
+     *     to a temporary file that replaces the existing file at the end.
+     * </p>
+     */
+    private void mergeBucket(ConcurrentBucket bucket, long[] segmentStarts, long[] segmentLengths, BucketIO bucketIO) {
+        long length = 0;
+        for (long segmentLength : segmentLengths) {
+            length += segmentLength;
+        }
+        Path mergedFile = bucketIO.getFile().resolveSibling(bucketIO.getFile().getFileName() + ".tmp");
+        // the format and the fence pointers of an existing bucket are kept up to date
+        boolean eliasFano = settings.ELIAS_FANO ||
+                settings.BLOCK_SIZE == 0 && BucketIO.isEliasFano(bucketIO.getFile());
+        int blockSize = eliasFano ? 0 :
+                settings.BLOCK_SIZE > 0 ? settings.BLOCK_SIZE : BucketIO.getBlockSize(bucketIO.getFile());
+        int fenceInterval = eliasFano || blockSize > 0 ? 0 :
+                settings.FENCE_INTERVAL > 0 ? settings.FENCE_INTERVAL : BucketIO.getFenceInterval(bucketIO.getFile());
+        HashMap<Integer, Long> kmersPerTaxon = new HashMap<>();
+        try (BucketIO.EntryReader bucketReader = bucketIO.getBucketReader()) {
+            if (length == 0) {
+                bucketSizes[bucketIO.getName()] = bucketReader.getLength();
+                return;
+            }
+            // the largest existing entry is not known in advance, the Elias-Fano writer is sized for any entry
+            try (BucketIO.EntryWriter bucketWriter = eliasFano ?
+                    new EliasFanoBucketWriter(mergedFile, bucketReader.getLength() + length, -1L, encoder.getBitsForIds()) :
+                    blockSize > 0 ? new BlockBucketWriter(mergedFile, blockSize) :
+                    new BucketIO.BucketWriter(mergedFile, bucketReader.getLength() + length > Integer.MAX_VALUE, fenceInterval)) {
+                boolean hasExisting = bucketReader.hasNext();
+                long existingEntry = hasExisting ? bucketReader.next() : 0;
+                for (int s = 0; s < segmentLengths.length; s++) {
+                    for (long i = segmentStarts[s]; i < segmentStarts[s] + segmentLengths[s]; i++) {
+                        long indexEntry = bucket.getValue(i);
+                        long kmer = encoder.getKmerFromIndexEntry(indexEntry);
+                        while (hasExisting && encoder.getKmerFromIndexEntry(existingEntry) < kmer) {
+                            bucketWriter.write(existingEntry);
+                            hasExisting = bucketReader.hasNext();
+                            existingEntry = hasExisting ? bucketReader.next() : 0;
                         }
-                        lastIndexEntry = indexEntry;
-                        lastKmer = kmer;
-                        lastTaxId = taxId;
-                        lastTaxIds.add(taxId);
-                    } else {
-                        if (lastTaxId != taxId) {
-                            lastTaxIds.add(taxId);
+                        if (hasExisting && encoder.getKmerFromIndexEntry(existingEntry) == kmer) {
+                            int existingTaxId = encoder.getIdFromIndexEntry(existingEntry);
+                            int taxId = encoder.getIdFromIndexEntry(indexEntry);
+                            if (existingTaxId != taxId) {
+                                int lca = findLCA(new int[]{existingTaxId, taxId});
+                                kmersPerTaxon.merge(existingTaxId, -1L, Long::sum);
+                                kmersPerTaxon.merge(taxId, -1L, Long::sum);
+                                kmersPerTaxon.merge(lca, 1L, Long::sum);
+                                indexEntry = encoder.getIndexEntry(lca, kmer);
+                            } else {
+                                // the k-mer was counted for the new sequences and already is in the index
+                                kmersPerTaxon.merge(taxId, -1L, Long::sum);
+                            }
+                            hasExisting = bucketReader.hasNext();
+                            existingEntry = hasExisting ? bucketReader.next() : 0;
                         }
+                        bucketWriter.write(indexEntry);
                     }
                 }
+                while (hasExisting) {
+                    bucketWriter.write(existingEntry);
+                    hasExisting = bucketReader.hasNext();
+                    existingEntry = hasExisting ? bucketReader.next() : 0;
+                }
+                bucketSizes[bucketIO.getName()] = bucketWriter.getLength();
             }
-            if (lastTaxIds.size() > 0 && lastIndexEntry != Long.MAX_VALUE) {
-                lastTaxId = tree.findLCA(lastTaxIds.toArray());
-                bucketWriter.write(encoder.getIndexEntry(lastTaxId, lastKmer));
-                tree.addToProperty(lastTaxId, "kmers in database", 1);
+        } catch (Exception e) {
+            throw new RuntimeException("Could not merge bucket " + bucketIO.getName() + " with the existing index.", e);
+        }
+        try {
+            Files.move(mergedFile, bucketIO.getFile(), StandardCopyOption.REPLACE_EXISTING);
+            if (eliasFano || blockSize > 0) {
+                Files.deleteIfExists(BucketIO.getFenceFile(bucketIO.getFile()));
+            } else if (fenceInterval > 0) {
+                Files.move(BucketIO.getFenceFile(mergedFile), BucketIO.getFenceFile(bucketIO.getFile()),
+                        StandardCopyOption.REPLACE_EXISTING);
             }
-            bucketSizes[bucketIO.getName()] = bucketWriter.getLength();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not replace bucket file " + bucketIO.getFile(), e);
         }
+        kmersPerTaxon.forEach((taxId, count) -> {
+            if (count != 0) {
+                tree.addToProperty(taxId, "kmers in database", count);
+            }
+        });
     }
 
+    /**
+     * @param abort if not null, reading stops as soon as it is set
+     */
     private static void batchSupplier(SequenceSupplier<Integer, byte[]> sup,
                                       BlockingQueue<FutureSequenceRecords<Integer, byte[]>[]> queue,
-                                      int batchSize) {
+                                      int batchSize, AtomicBoolean abort) {
         try {
             FutureSequenceRecords<Integer, byte[]>[] batch = new FutureSequenceRecords[batchSize];
             FutureSequenceRecords<Integer, byte[]> futureSequenceRecords;
             int batchIndex = 0;
             sup.reset();
             while ((futureSequenceRecords = sup.next()) != null) {
+                if (abort != null && abort.get()) {
+                    return;
+                }
                 batch[batchIndex++] = futureSequenceRecords;
                 if (batchIndex == batchSize) {
                     try {
@@ -231,6 +703,11 @@ public class DBIndexer {
             } catch (InterruptedException e) {
                 throw new RuntimeException(e);
             }
+        } catch (OutOfMemoryError e) {
+            if (abort == null) {
+                throw e;
+            }
+            abort.set(true);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -240,36 +717,52 @@ public class DBIndexer {
         private final Logger logger;
         private final BlockingQueue<FutureSequenceRecords<Integer, byte[]>[]> queue;
         private final Tree tree;
-        private final FlexibleBucket[] buckets;
+        private final ConcurrentBucket[] buckets;
+        private final SpillIO.SpillWriter spillWriter;
         private final Encoder encoder;
         private final AtomicBoolean finished;
+        private final AtomicBoolean abort;
         private final int startBucket;
         private final int bucketsPerCycel;
-        private final int[] bucketIndices;
-        private final int[] maxBucketIndices;
+        private final long[] bucketIndices;
+        private final long[] maxBucketIndices;
+        private final int[] nextContingentSizes;
         private final KmerExtractor kmerExtractor;
+        private final LongConsumer kmerSink = this::addKmer;
+        /**
+         * Taxonomic ID of the sequence whose kmers are extracted.
+         */
+        private int currentId;
         private int pollFailCount;
 
-        private BatchProcessor(BlockingQueue<FutureSequenceRecords<Integer, byte[]>[]> queue, Tree tree, FlexibleBucket[] buckets, Encoder encoder, AtomicBoolean finished, int startBucket, int bucketsPerCycel) {
+        /**
+         * @param buckets buckets of the current cycle, only used if no spillWriter is given
+         * @param spillWriter if not null, the index entries of all buckets in range are written to the spill files
+         *                    instead of the buckets
+         * @param abort if not null, the remaining batches are skipped as soon as it is set and it is set if the
+         *              buckets run out of memory
+         */
+        private BatchProcessor(BlockingQueue<FutureSequenceRecords<Integer, byte[]>[]> queue, Tree tree, ConcurrentBucket[] buckets, SpillIO.SpillWriter spillWriter, Encoder encoder, AtomicBoolean finished, AtomicBoolean abort, int startBucket, int bucketsPerCycel) {
             this.logger = new Logger("BatchProcessor");
             this.queue = queue;
             this.tree = tree;
             this.buckets = buckets;
+            this.spillWriter = spillWriter;
             this.encoder = encoder;
             this.finished = finished;
+            this.abort = abort;
             this.startBucket = startBucket;
             this.bucketsPerCycel = bucketsPerCycel;
-            bucketIndices = new int[bucketsPerCycel];
-            maxBucketIndices = new int[bucketsPerCycel];
+            bucketIndices = new long[bucketsPerCycel];
+            maxBucketIndices = new long[bucketsPerCycel];
+            nextContingentSizes = new int[bucketsPerCycel];
+            Arrays.fill(nextContingentSizes, minContingentSize);
             kmerExtractor = encoder.getKmerExtractor();
         }
 
         @Override
         public void run() {
             try {
-                long[] extractKmers;
-                int currentIndexOfMatchingBucket;
-                int nextFreeIndex;
                 while (true) {
                     // try to get batch for processing for 5 minutes
                     FutureSequenceRecords<Integer, byte[]>[] batch = queue.poll(100, TimeUnit.MILLISECONDS);
@@ -289,46 +782,76 @@ public class DBIndexer {
                     } else {
                         pollFailCount = 0;
                     }
-                    for (FutureSequenceRecords<Integer, byte[]> futureSequenceRecords : batch) {
-                        if (futureSequenceRecords == null) {
-                            break;
-                        }
-                        for (SequenceRecord<Integer, byte[]> sequenceRecord : futureSequenceRecords.getSequenceRecords()) {
-                            // sequence too short
-                            if (sequenceRecord.sequence().length < encoder.getK()) {
-                                skippedSequences.incrementAndGet();
-                                continue;
-                            }
-                            int id = sequenceRecord.id();
-                            // taxId not in the taxonomic tree
-                            if (!tree.hasNode(id)) {
-                                continue;
-                            }
-                            extractKmers = kmerExtractor.extractKmers(sequenceRecord.sequence());
-                            for (long kmer : extractKmers) {
-                                int bucketOfKmer = encoder.getBucketNameFromKmer(kmer);
-                                if (bucketInRange(bucketOfKmer)) {
-                                    currentIndexOfMatchingBucket = bucketOfKmer - startBucket;
-                                    nextFreeIndex = getNextIndexInBucket(currentIndexOfMatchingBucket);
-                                    buckets[currentIndexOfMatchingBucket].set(nextFreeIndex, encoder.getIndexEntry(id, encoder.getKmerWithoutBucketName(kmer)));
-                                }
-                            }
+                    if (abort != null && abort.get()) {
+                        // the cycle is retried, the remaining batches are only taken from the queue
+                        continue;
+                    }
+                    try {
+                        processBatch(batch);
+                    } catch (OutOfMemoryError e) {
+                        if (abort == null) {
+                            throw e;
                         }
+                        abort.set(true);
                     }
                 }
+                if (spillWriter != null) {
+                    spillWriter.close();
+                }
             } catch (InterruptedException e) {
                 System.out.println(e);
                 throw new RuntimeException(e);
             }
         }
 
+        private void processBatch(FutureSequenceRecords<Integer, byte[]>[] batch) {
+            for (FutureSequenceRecords<Integer, byte[]> futureSequenceRecords : batch) {
+                if (futureSequenceRecords == null) {
+                    break;
+                }
+                for (SequenceRecord<Integer, byte[]> sequenceRecord : futureSequenceRecords.getSequenceRecords()) {
+                    // sequence too short
+                    if (sequenceRecord.sequence().length < encoder.getK()) {
+                        skippedSequences.incrementAndGet();
+                        continue;
+                    }
+                    currentId = sequenceRecord.id();
+                    // taxId not in the taxonomic tree
+                    if (!tree.hasNode(currentId)) {
+                        continue;
+                    }
+                    kmerExtractor.extractKmers(sequenceRecord.sequence(), kmerSink);
+                }
+            }
+        }
+
+        /**
+         * Adds the index entry of the kmer and {@link #currentId} to its bucket, if the bucket is processed in this
+         * cycle.
+         */
+        private void addKmer(long kmer) {
+            int bucketOfKmer = encoder.getBucketNameFromKmer(kmer);
+            if (!bucketInRange(bucketOfKmer)) {
+                return;
+            }
+            if (spillWriter != null) {
+                spillWriter.write(bucketOfKmer, encoder.getIndexEntry(currentId, encoder.getKmerWithoutBucketName(kmer)));
+            } else {
+                int currentIndexOfMatchingBucket = bucketOfKmer - startBucket;
+                long nextFreeIndex = getNextIndexInBucket(currentIndexOfMatchingBucket);
+                buckets[currentIndexOfMatchingBucket].set(nextFreeIndex, encoder.getIndexEntry(currentId, encoder.getKmerWithoutBucketName(kmer)));
+            }
+        }
+
         private boolean bucketInRange(int bucket) {
             return bucket >= startBucket && bucket < startBucket + bucketsPerCycel;
         }
 
-        private int getNextIndexInBucket(int bucketIndex) {
+        private long getNextIndexInBucket(int bucketIndex) {
             if (bucketIndices[bucketIndex] >= maxBucketIndices[bucketIndex]) {
-                Pair<Integer, Integer> contingent = buckets[bucketIndex].getContingent();
+                Pair<Long, Long> contingent = buckets[bucketIndex].getContingent(nextContingentSizes[bucketIndex]);
+                // buckets this thread fills often get larger contingents, rarely hit buckets waste less space
+                nextContingentSizes[bucketIndex] = Math.min(2 * nextContingentSizes[bucketIndex], contingentSizes);
 //                System.out.println("[" + Thread.currentThread().getName() + "]" + "Got range " + contingent + " for bucket " + (startBucket + bucketIndex));
                 bucketIndices[bucketIndex] = contingent.first();
                 maxBucketIndices[bucketIndex] = contingent.last();
@@ -336,4 +859,27 @@ public class DBIndexer {
             return bucketIndices[bucketIndex]++;
         }
     }
+
+    /**
+     * Sorted set of taxonomic IDs, used as key of the {@link #lcaCache}.
+     */
+    private static final class TaxonSet {
+        private final int[] taxIds;
+        private final int hashCode;
+
+        private TaxonSet(int[] taxIds) {
+            this.taxIds = taxIds;
+            this.hashCode = Arrays.hashCode(taxIds);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TaxonSet taxonSet && Arrays.equals(taxIds, taxonSet.taxIds);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
 }
\ No newline at end of file
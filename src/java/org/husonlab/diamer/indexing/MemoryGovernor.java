@@ -0,0 +1,152 @@
+package org.husonlab.diamer.indexing;
+
+import org.husonlab.diamer.util.ConcurrentBucket;
+import org.husonlab.diamer.util.logging.Logger;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Plans the ranges of buckets that are indexed in one cycle from the available memory and the measured bucket sizes.
+ * <p>
+ *     The size of each bucket is predicted from the bucket sizes estimated by the {@link StatisticsEstimator}, corrected
+ *     by the ratio of the actual to the estimated size of all buckets of the finished cycles. Before each cycle, the
+ *     available memory (heap, or physical memory for off-heap buckets) is measured and as many buckets are added to the
+ *     range as fit into it, so ranges of small buckets get longer than ranges of large buckets.
+ * </p>
+ * <p>
+ *     While a cycle is running, the indexer checks with {@link #isOverBudget(ConcurrentBucket[])} whether the buckets
+ *     grow beyond the memory budget. In this case (or after an {@link OutOfMemoryError}) the cycle is aborted and retried
+ *     with a smaller range ({@link #shrink(int, int)}).
+ * </p>
+ */
+public class MemoryGovernor {
+    /**
+     * Part of the available memory that is not used for buckets (for the JVM, input batches, the tree, ...).
+     */
+    private static final double MEMORY_RESERVE = 0.2;
+    /**
+     * Factor to add to the predicted bucket sizes.
+     */
+    private static final double SAFETY_FACTOR = 1.1;
+    private final Logger logger;
+    private final int[] estimatedBucketSizes;
+    private final boolean offHeap;
+    /**
+     * Entries per bucket that may be reserved by the threads but stay unused.
+     */
+    private final long contingentsPerBucket;
+    /**
+     * Memory to sort the small buckets, which are sorted concurrently with one buffer per thread.
+     */
+    private final long sortingMemory;
+    private long estimatedEntries;
+    private long actualEntries;
+    private long budget;
+
+    /**
+     * @param estimatedBucketSizes estimated number of entries of each bucket
+     * @param offHeap whether the buckets are allocated off-heap
+     * @param threads number of threads that fill and sort the buckets
+     * @param contingentSize maximum number of entries a thread reserves in a bucket at once
+     */
+    public MemoryGovernor(int[] estimatedBucketSizes, boolean offHeap, int threads, int contingentSize) {
+        this.logger = new Logger("MemoryGovernor");
+        this.estimatedBucketSizes = estimatedBucketSizes;
+        this.offHeap = offHeap;
+        this.contingentsPerBucket = (long) threads * contingentSize;
+        this.sortingMemory = (long) threads * (1 << 18) * Long.BYTES;
+    }
+
+    /**
+     * Measures the available memory and determines the range of buckets for the next cycle.
+     * @param start first bucket of the range
+     * @param end last bucket (exclusive) the range may contain
+     * @return the last bucket (exclusive) of the range, the range contains at least one bucket
+     */
+    public int planRange(int start, int end) {
+        long available = getAvailableMemory();
+        budget = (long) (available * (1 - MEMORY_RESERVE));
+        long memory = sortingMemory;
+        long largestBucket = 0;
+        int rangeEnd = start;
+        while (rangeEnd < end) {
+            long size = getPredictedSize(rangeEnd);
+            // the largest bucket of the range additionally needs a buffer of its size for sorting
+            long required = memory + size * Long.BYTES + Math.max(largestBucket, size) * Long.BYTES;
+            if (rangeEnd > start && required > budget) {
+                break;
+            }
+            memory += size * Long.BYTES;
+            largestBucket = Math.max(largestBucket, size);
+            rangeEnd++;
+        }
+        logger.logInfo("Buckets " + start + " to " + (rangeEnd - 1) + " require about " + (memory >> 20) +
+                " MB of " + (budget >> 20) + " MB (" + (offHeap ? "off-heap" : "heap") + ")");
+        return rangeEnd;
+    }
+
+    /**
+     * @return the predicted number of entries of the bucket including unused entries in the contingents
+     */
+    public long getPredictedSize(int bucket) {
+        double ratio = estimatedEntries == 0 ? 1 : (double) actualEntries / estimatedEntries;
+        return (long) Math.ceil(Math.max(1, estimatedBucketSizes[bucket]) * ratio * SAFETY_FACTOR) + contingentsPerBucket;
+    }
+
+    /**
+     * @param buckets the buckets of the current cycle
+     * @return true if the buckets of the current cycle (including the sort buffer) grew beyond the memory budget of
+     *         the cycle, ranges of a single bucket are never over budget
+     */
+    public boolean isOverBudget(ConcurrentBucket[] buckets) {
+        if (buckets.length < 2) {
+            return false;
+        }
+        long memory = sortingMemory;
+        long largestBucket = 0;
+        for (ConcurrentBucket bucket : buckets) {
+            memory += bucket.size() * Long.BYTES;
+            largestBucket = Math.max(largestBucket, bucket.size());
+        }
+        return memory + largestBucket * Long.BYTES > budget;
+    }
+
+    /**
+     * Adds the actual sizes of the buckets of a finished cycle to the correction of the predicted sizes.
+     * @param start first bucket of the cycle
+     * @param buckets the buckets of the cycle
+     */
+    public void recordCycle(int start, ConcurrentBucket[] buckets) {
+        for (int i = 0; i < buckets.length; i++) {
+            estimatedEntries += Math.max(1, estimatedBucketSizes[start + i]);
+            actualEntries += buckets[i].size();
+        }
+    }
+
+    /**
+     * @param start first bucket of the aborted range
+     * @param end last bucket (exclusive) of the aborted range
+     * @return the last bucket (exclusive) of the smaller range to retry the cycle with
+     * @throws RuntimeException if the range only contains one bucket
+     */
+    public int shrink(int start, int end) {
+        if (end - start <= 1) {
+            throw new RuntimeException("Bucket " + start + " does not fit into the available memory, consider " +
+                    (offHeap ? "" : "using off-heap buckets or ") + "increasing the available memory.");
+        }
+        return start + (end - start) / 2;
+    }
+
+    /**
+     * @return the free heap memory after a garbage collection, or the free physical memory for off-heap buckets
+     */
+    private long getAvailableMemory() {
+        if (offHeap) {
+            return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean())
+                    .getFreeMemorySize();
+        }
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+    }
+}
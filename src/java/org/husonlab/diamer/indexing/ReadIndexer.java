@@ -1,39 +1,115 @@
 package org.husonlab.diamer.indexing;
 
 import org.husonlab.diamer.indexing.kmers.KmerExtractor;
+import org.husonlab.diamer.indexing.kmers.ReadKmerExtractor;
 import org.husonlab.diamer.io.indexing.BucketIO;
+import org.husonlab.diamer.io.indexing.DBIndexIO;
+import org.husonlab.diamer.io.indexing.IndexIO;
+import org.husonlab.diamer.io.indexing.IndexManifest;
 import org.husonlab.diamer.io.indexing.ReadIndexIO;
+import org.husonlab.diamer.io.indexing.SpillIO;
 import org.husonlab.diamer.io.seq.FastqIdReader;
 import org.husonlab.diamer.io.seq.FutureSequenceRecords;
 import org.husonlab.diamer.io.seq.SequenceSupplier;
 import org.husonlab.diamer.main.GlobalSettings;
 import org.husonlab.diamer.main.encoders.Encoder;
 import org.husonlab.diamer.seq.SequenceRecord;
+import org.husonlab.diamer.util.BlockedBloomFilter;
+import org.husonlab.diamer.util.ConcurrentBucket;
 import org.husonlab.diamer.util.FlexibleBucket;
+import org.husonlab.diamer.util.OffHeapBucket;
 import org.husonlab.diamer.util.Pair;
 import org.husonlab.diamer.util.logging.*;
 
+import java.util.Arrays;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
 
+/**
+ * Builds the index of a read file.
+ * <p>
+ *     If there are more reads than fit into the ID bits of an index entry ({@link GlobalSettings#BITS_FOR_IDS}), the
+ *     reads are split into partitions of consecutive read IDs (see {@link ReadIndexIO}). Each partition gets its own set
+ *     of buckets, which are indexed like additional buckets: bucket {@code b} of partition {@code p} is handled as bucket
+ *     {@code p * nrOfBuckets + b} in all cycles. The number of partitions is planned with an estimate of the number of
+ *     reads, the reads are counted while they are indexed. Partitions that remain empty are deleted at the end, if the
+ *     reads do not fit into the partitions, {@link #index()} stops after the first pass over the input and returns
+ *     null, so that the reads can be indexed again with {@link #getNrOfReads()}.
+ * </p>
+ * <p>
+ *     With {@link GlobalSettings#DB_FILTER}, only the k-mers that might be in the database according to the Bloom
+ *     filters of the database index are indexed. The filters are loaded per cycle for the buckets of the cycle.
+ * </p>
+ */
 public class ReadIndexer {
 
     private final Logger logger;
     /**
      * Expected size of Bucket because of multithreading.
      */
-    private final int expectedBucketSize;
+    private final long expectedBucketSize;
     private final static int contingentSizes = 1_024;
+    /**
+     * Size of the first contingent a thread reserves in a bucket, it is doubled with every further contingent up to
+     * {@link #contingentSizes}.
+     */
+    private final static int minContingentSize = 64;
     private final SequenceSupplier<Integer, byte[]> sup;
     private final FastqIdReader fastqIdReader;
     private final Encoder encoder;
     private final GlobalSettings settings;
     BlockingQueue<FutureSequenceRecords<Integer, byte[]>[]> queue;
-    private final FlexibleBucket[] buckets;
+    private final ConcurrentBucket[] buckets;
     private AtomicBoolean readingFinished = new AtomicBoolean(false);
+    /**
+     * Plans the ranges of buckets per cycle if no number of buckets per cycle is given, null otherwise.
+     */
+    private final MemoryGovernor memoryGovernor;
+    /**
+     * Set if the buckets of the current cycle run out of memory, only used with the {@link #memoryGovernor}.
+     */
+    private final AtomicBoolean abortCycle = new AtomicBoolean(false);
     private final ReadIndexIO readIndexIO;
-    private final int[] bucketSizes;
+    /**
+     * Number of read ID partitions.
+     */
+    private final int nrOfPartitions;
+    /**
+     * Number of buckets of all partitions.
+     */
+    private final int nrOfPartitionBuckets;
+    /**
+     * Number of buckets of all partitions that are indexed per cycle.
+     */
+    private final int bucketsPerCycle;
+    private final IndexIO[] partitionIOs;
+    /**
+     * Database index with the Bloom filters for the read k-mers, null if no filter is used.
+     */
+    private final DBIndexIO filterIndex;
+    /**
+     * Bloom filters of the buckets of the current cycle by bucket name, null if no filter is used.
+     */
+    private final BlockedBloomFilter[] filters;
+    /**
+     * Number of k-mers that were dropped by the {@link #filters}.
+     */
+    private long filteredKmers;
+    /**
+     * Number of entries per bucket of all partitions.
+     */
+    private final long[] bucketSizes;
+    /**
+     * Number of reads that fit into the partitions.
+     */
+    private final long maxNrOfReads;
+    /**
+     * Number of reads of the input, counted during the last pass over the input.
+     */
+    private final AtomicLong nrOfReads = new AtomicLong(0);
     private static final AtomicInteger processedReads = new AtomicInteger(0);
     private static final AtomicInteger processedTranslations = new AtomicInteger(0);
     private static final AtomicInteger skippedTranslations = new AtomicInteger(0);
@@ -41,25 +117,66 @@ public class ReadIndexer {
     public ReadIndexer(SequenceSupplier<Integer, byte[]> sup,
                        FastqIdReader fastqIdReader,
                        long maxBucketSize,
+                       int[] estimatedBucketSizes,
+                       int nrOfPartitions,
                        Encoder encoder,
                        GlobalSettings settings) {
         logger = new Logger("ReadIndexer");
         logger.addElement(new Time()).addElement(new RunningTime());
-        this.expectedBucketSize = (int) maxBucketSize + contingentSizes * settings.MAX_THREADS;
+        // the reads are distributed over the partitions
+        maxBucketSize = Math.ceilDiv(maxBucketSize, nrOfPartitions);
+        this.expectedBucketSize = settings.OFF_HEAP ?
+                maxBucketSize + (long) contingentSizes * settings.MAX_THREADS :
+                (int) maxBucketSize + contingentSizes * settings.MAX_THREADS;
+        this.nrOfPartitions = nrOfPartitions;
+        this.maxNrOfReads = (long) nrOfPartitions << encoder.getBitsForIds();
+        this.nrOfPartitionBuckets = nrOfPartitions * encoder.getNrOfBuckets();
+        this.bucketsPerCycle = nrOfPartitions * settings.BUCKETS_PER_CYCLE;
         this.sup = sup;
         this.fastqIdReader = fastqIdReader;
         this.encoder = encoder;
         readIndexIO = encoder.getReadIndexIO();
+        readIndexIO.deletePartitions(nrOfPartitions);
+        partitionIOs = new IndexIO[nrOfPartitions];
+        for (int p = 0; p < nrOfPartitions; p++) {
+            readIndexIO.createPartitionFolder(p);
+            partitionIOs[p] = readIndexIO.getPartition(p);
+        }
         this.settings = settings;
+        if (settings.DB_FILTER != null) {
+            filterIndex = new DBIndexIO(settings.DB_FILTER, encoder.getNrOfBuckets());
+            filters = new BlockedBloomFilter[encoder.getNrOfBuckets()];
+        } else {
+            filterIndex = null;
+            filters = null;
+        }
         queue = new ArrayBlockingQueue<>(settings.MAX_THREADS * 10, false);
-        logger.logInfo("Allocating memory for " + settings.BUCKETS_PER_CYCLE + " buckets of size " + expectedBucketSize);
-        buckets = new FlexibleBucket[settings.BUCKETS_PER_CYCLE];
-        for (int i = 0; i < settings.BUCKETS_PER_CYCLE; i++) {
-            buckets[i] = new FlexibleBucket(expectedBucketSize, 8_129, contingentSizes);
+        if (settings.SINGLE_PASS) {
+            // buckets are allocated per range with their exact size after the input has been spilled
+            buckets = null;
+            memoryGovernor = null;
+        } else if (settings.ADAPTIVE_CYCLES) {
+            // buckets are allocated per cycle for the range the memory governor plans
+            buckets = null;
+            int[] estimatedPartitionBucketSizes = new int[nrOfPartitionBuckets];
+            for (int i = 0; i < nrOfPartitionBuckets; i++) {
+                estimatedPartitionBucketSizes[i] = Math.ceilDiv(estimatedBucketSizes[i % encoder.getNrOfBuckets()], nrOfPartitions);
+            }
+            memoryGovernor = new MemoryGovernor(estimatedPartitionBucketSizes, settings.OFF_HEAP, settings.MAX_THREADS, contingentSizes);
+        } else {
+            memoryGovernor = null;
+            logger.logInfo("Allocating memory for " + bucketsPerCycle + " buckets of size " + expectedBucketSize);
+            buckets = new ConcurrentBucket[bucketsPerCycle];
+            for (int i = 0; i < bucketsPerCycle; i++) {
+                buckets[i] = newBucket(expectedBucketSize);
+            }
         }
-        bucketSizes = new int[encoder.getNrOfBuckets()];
+        bucketSizes = new long[nrOfPartitionBuckets];
     }
 
+    /**
+     * @return a report of the run or null if the reads do not fit into the partitions, nothing is indexed then
+     */
     public String index() {
         Thread headerMapThread = new Thread(() -> {
             try {
@@ -70,84 +187,74 @@ public class ReadIndexer {
                 throw new RuntimeException("Error writing read header map.", e);
             }
         });
-        for (int i = 0; i < encoder.getNrOfBuckets(); i += settings.BUCKETS_PER_CYCLE) {
-            processedReads.set(0);
-            processedTranslations.set(0);
-            skippedTranslations.set(0);
-            int rangeStart = i;
-            int rangeEnd = Math.min(i + settings.BUCKETS_PER_CYCLE, encoder.getNrOfBuckets());
-            int indexStart = 0;
-            int indexEnd = rangeEnd - i;
-
-            logger.logInfo("Indexing buckets " + i + " to " + (rangeEnd - 1));
-            ProgressBar progressBar = new ProgressBar(sup.getFileSize(), 20);
-            new OneLineLogger("ReadIndexer", 0).addElement(new RunningTime()).addElement(progressBar);
-
-            for (FlexibleBucket bucket : buckets) {
-                bucket.clear();
-                bucket.fill(Long.MAX_VALUE);
-            }
+        boolean readsFit;
+        if (settings.SINGLE_PASS) {
+            readsFit = indexSinglePass(headerMapThread);
+        } else if (memoryGovernor != null) {
+            readsFit = indexAdaptive(headerMapThread);
+        } else {
+            readsFit = true;
+            for (int i = 0; i < nrOfPartitionBuckets; i += bucketsPerCycle) {
+                processedReads.set(0);
+                processedTranslations.set(0);
+                skippedTranslations.set(0);
+                int rangeStart = i;
+                int rangeEnd = Math.min(i + bucketsPerCycle, nrOfPartitionBuckets);
 
-            readingFinished.set(false);
-            Thread readerThread = new Thread(() -> batchSupplier(sup, queue, settings.SEQUENCE_BATCH_SIZE));
-            readerThread.start();
-
-            Thread[] processingThreads = new Thread[settings.MAX_THREADS];
-            for (int j = 0; j < settings.MAX_THREADS; j++) {
-                processingThreads[j] = new Thread(new BatchProcessor(queue, buckets, encoder, readingFinished, i, settings.BUCKETS_PER_CYCLE));
-                processingThreads[j].start();
-            }
+                logger.logInfo("Indexing buckets " + i + " to " + (rangeEnd - 1));
+                loadFilters(rangeStart, rangeEnd);
 
-            try {
-                while (readerThread.isAlive()) {
-                    readerThread.join(500);
-                    progressBar.setProgress(sup.getBytesRead());
+                for (ConcurrentBucket bucket : buckets) {
+                    bucket.clear();
+                    bucket.fill(Long.MAX_VALUE);
                 }
-                progressBar.finish();
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
-            }
-            readingFinished.set(true);
-
-            // write a read header map during the first iteration
-            if (rangeStart == 0) {
-                logger.logInfo("Writing read header map");
-                headerMapThread.start();
-            }
 
-            for (int j = 0; j < settings.MAX_THREADS; j++) {
-                try {
-                    processingThreads[j].join();
-                } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
+                BatchProcessor[] batchProcessors = new BatchProcessor[settings.MAX_THREADS];
+                for (int j = 0; j < settings.MAX_THREADS; j++) {
+                    batchProcessors[j] = new BatchProcessor(queue, buckets, null, encoder, filters, readingFinished, null, i, bucketsPerCycle);
                 }
-            }
-
-            logger.logInfo("Sorting");
-            try (ForkJoinPool pool = new ForkJoinPool(settings.MAX_THREADS)) {
-                for (int j = indexStart; j < indexEnd; j++) {
-                    pool.submit(new Sorting.MsdRadixTaskFlexibleBucket(buckets[j]));
+                if (!processInput(batchProcessors, null, () -> {
+                    // write a read header map during the first iteration
+                    if (rangeStart == 0) {
+                        logger.logInfo("Writing read header map");
+                        headerMapThread.start();
+                    }
+                })) {
+                    readsFit = false;
+                    break;
                 }
-            }
 
-            logger.logInfo("Writing");
+                countFilteredKmers(batchProcessors);
+                sortAndWrite(buckets, rangeStart, rangeEnd - rangeStart);
 
-            try (CustomThreadPoolExecutor executor = new CustomThreadPoolExecutor(
-                    settings.MAX_THREADS, settings.MAX_THREADS, indexEnd + 1, 3600, logger)) {
-                for (int j = indexStart; j < indexEnd; j++) {
-                    int finalJ = j;
-                    executor.submit(() -> writeBucket(buckets[finalJ], encoder, readIndexIO.getBucketIO(rangeStart + finalJ), bucketSizes));
+                if (rangeStart == 0) {
+                    try {
+                        headerMapThread.join();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
                 }
             }
-
-            if (rangeStart == 0) {
-                try {
-                    headerMapThread.join();
-                } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
-                }
+            for (ConcurrentBucket bucket : buckets) {
+                bucket.close();
             }
         }
+        if (!readsFit) {
+            logger.logWarning(nrOfReads + " reads do not fit into " + nrOfPartitions + " read ID partitions");
+            return null;
+        }
+        // partitions behind the last read remain empty if the number of reads was overestimated
+        int usedPartitions = (int) Math.max(1, Math.ceilDiv(nrOfReads.get(), 1L << encoder.getBitsForIds()));
+        readIndexIO.deletePartitions(usedPartitions);
+
+        // sizes of the buckets summed over all partitions
+        long[] totalBucketSizes = new long[encoder.getNrOfBuckets()];
+        for (int i = 0; i < nrOfPartitionBuckets; i++) {
+            totalBucketSizes[i % encoder.getNrOfBuckets()] += bucketSizes[i];
+        }
+        // replaces the manifest of an earlier run in the same folder
+        IndexManifest.of(settings, encoder.getNrOfBuckets(), 0, encoder.getNrOfBuckets(), totalBucketSizes)
+                .write(readIndexIO.getIndexFolder());
 
         StringBuilder report = new StringBuilder("input file: ").append(sup.getFile()).append("\n")
                 .append("output directory: ").append(readIndexIO.getIndexFolder()).append("\n")
@@ -155,38 +262,325 @@ public class ReadIndexer {
                 .append("processed translations: ").append(processedTranslations).append("\n")
                 .append("skipped translations because length < ").append(encoder.getK()).append(": ")
                 .append(skippedTranslations).append("\n");
+        if (filters != null) {
+            report.append("kmers removed by the database filter: ").append(filteredKmers).append("\n");
+        }
+        if (usedPartitions > 1) {
+            report.append("read ID partitions: ").append(usedPartitions).append("\n");
+        }
         long totalKmers = 0;
         StringBuilder bucketSizesString = new StringBuilder().append("bucket sizes:").append("\n");
-        for (int i = 0; i < bucketSizes.length; i++) {
-            bucketSizesString.append(i).append("\t").append(bucketSizes[i]).append("\n");
-            totalKmers += bucketSizes[i];
+        for (int i = 0; i < totalBucketSizes.length; i++) {
+            bucketSizesString.append(i).append("\t").append(totalBucketSizes[i]).append("\n");
+            totalKmers += totalBucketSizes[i];
         }
         report.append("total extracted kmers:\t").append(totalKmers).append("\n");
         report.append(bucketSizesString);
         return report.toString();
     }
 
-    private static void writeBucket(FlexibleBucket bucket, Encoder encoder, BucketIO bucketIO, int[] bucketSizes) {
-        try (BucketIO.BucketWriter bucketWriter = bucketIO.getBucketWriter()) {
-            for (int i = 0; i < bucket.size(); i++) {
+    /**
+     * Reads the input only once and spills the index entries of all buckets to one file per range of
+     * {@link #bucketsPerCycle} buckets. Afterward, each range is read back in, sorted and written.
+     * @param headerMapThread thread that writes the read header map once all reads have been read
+     * @return false if the reads do not fit into the partitions
+     */
+    private boolean indexSinglePass(Thread headerMapThread) {
+        processedReads.set(0);
+        processedTranslations.set(0);
+        skippedTranslations.set(0);
+        try (SpillIO spillIO = new SpillIO(settings.SPILL_FOLDER, nrOfPartitionBuckets, bucketsPerCycle, settings.OFF_HEAP)) {
+            logger.logInfo("Extracting kmers of all buckets (spilling to " + settings.SPILL_FOLDER + ")");
+            loadFilters(0, nrOfPartitionBuckets);
+            BatchProcessor[] batchProcessors = new BatchProcessor[settings.MAX_THREADS];
+            for (int j = 0; j < settings.MAX_THREADS; j++) {
+                batchProcessors[j] = new BatchProcessor(queue, null, spillIO.getSpillWriter(), encoder, filters, readingFinished, null, 0, nrOfPartitionBuckets);
+            }
+            if (!processInput(batchProcessors, null, () -> {
+                logger.logInfo("Writing read header map");
+                headerMapThread.start();
+            })) {
+                return false;
+            }
+            spillIO.finishWriting();
+            countFilteredKmers(batchProcessors);
+
+            for (int i = 0; i < spillIO.getNrOfRanges(); i++) {
+                Pair<Integer, Integer> range = spillIO.getRange(i);
+                logger.logInfo("Finalizing buckets " + range.first() + " to " + (range.last() - 1));
+                ConcurrentBucket[] rangeBuckets = spillIO.readRange(i);
+                spillIO.deleteRange(i);
+                sortAndWrite(rangeBuckets, range.first(), rangeBuckets.length);
+                for (ConcurrentBucket bucket : rangeBuckets) {
+                    bucket.close();
+                }
+            }
+        }
+        try {
+            headerMapThread.join();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        return true;
+    }
+
+    /**
+     * Indexes the buckets in cycles of variable length that are planned by the {@link MemoryGovernor}. A cycle whose
+     * buckets outgrow the available memory is aborted and retried with a smaller range of buckets.
+     * @param headerMapThread thread that writes the read header map once all reads have been read
+     * @return false if the reads do not fit into the partitions
+     */
+    private boolean indexAdaptive(Thread headerMapThread) {
+        int rangeStart = 0;
+        int maxRangeEnd = nrOfPartitionBuckets;
+        while (rangeStart < nrOfPartitionBuckets) {
+            processedReads.set(0);
+            processedTranslations.set(0);
+            skippedTranslations.set(0);
+            int rangeEnd = memoryGovernor.planRange(rangeStart, maxRangeEnd);
+
+            logger.logInfo("Indexing buckets " + rangeStart + " to " + (rangeEnd - 1));
+            loadFilters(rangeStart, rangeEnd);
+
+            ConcurrentBucket[] cycleBuckets = new ConcurrentBucket[rangeEnd - rangeStart];
+            boolean sorted = false;
+            boolean readsFit = true;
+            try {
+                for (int j = 0; j < cycleBuckets.length; j++) {
+                    cycleBuckets[j] = newBucket(memoryGovernor.getPredictedSize(rangeStart + j));
+                    cycleBuckets[j].fill(Long.MAX_VALUE);
+                }
+                abortCycle.set(false);
+                BatchProcessor[] batchProcessors = new BatchProcessor[settings.MAX_THREADS];
+                for (int j = 0; j < settings.MAX_THREADS; j++) {
+                    batchProcessors[j] = new BatchProcessor(queue, cycleBuckets, null, encoder, filters, readingFinished, abortCycle, rangeStart, cycleBuckets.length);
+                }
+                readsFit = processInput(batchProcessors, cycleBuckets, () -> {
+                    // write the read header map after the first cycle that read all reads
+                    if (!abortCycle.get() && headerMapThread.getState() == Thread.State.NEW) {
+                        logger.logInfo("Writing read header map");
+                        headerMapThread.start();
+                    }
+                });
+                if (readsFit && !abortCycle.get()) {
+                    countFilteredKmers(batchProcessors);
+                    sort(cycleBuckets, cycleBuckets.length);
+                    sorted = true;
+                }
+            } catch (OutOfMemoryError e) {
+                logger.logWarning("Out of memory while indexing buckets " + rangeStart + " to " + (rangeEnd - 1));
+            }
+
+            if (!readsFit) {
+                for (ConcurrentBucket bucket : cycleBuckets) {
+                    bucket.close();
+                }
+                return false;
+            } else if (sorted) {
+                write(cycleBuckets, rangeStart, cycleBuckets.length);
+                memoryGovernor.recordCycle(rangeStart, cycleBuckets);
+                settings.logFileWriter.writeLog("Indexed buckets " + rangeStart + " to " + (rangeEnd - 1));
+                rangeStart = rangeEnd;
+                maxRangeEnd = nrOfPartitionBuckets;
+            } else {
+                maxRangeEnd = memoryGovernor.shrink(rangeStart, rangeEnd);
+                logger.logWarning("Not enough memory for buckets " + rangeStart + " to " + (rangeEnd - 1) +
+                        ", retrying with buckets " + rangeStart + " to " + (maxRangeEnd - 1));
+                settings.logFileWriter.writeLog("Not enough memory for buckets " + rangeStart + " to " + (rangeEnd - 1) +
+                        ", retrying with buckets " + rangeStart + " to " + (maxRangeEnd - 1));
+            }
+            for (ConcurrentBucket bucket : cycleBuckets) {
+                if (bucket != null) {
+                    bucket.close();
+                }
+            }
+        }
+        try {
+            headerMapThread.join();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of reads of the input, counted during the last pass over the input
+     */
+    public long getNrOfReads() {
+        return nrOfReads.get();
+    }
+
+    /**
+     * Reads the input once and distributes the batches to the {@link BatchProcessor}s, one thread per processor.
+     * @param monitoredBuckets if not null, the cycle is aborted as soon as these buckets exceed the memory budget of
+     *                         the {@link #memoryGovernor}
+     * @param onReadingFinished called after the input has been read completely but before all batches are processed,
+     *                          not called if the reads do not fit into the partitions
+     * @return false if the reads do not fit into the partitions, only the reads that fit are processed then
+     */
+    private boolean processInput(BatchProcessor[] batchProcessors, ConcurrentBucket[] monitoredBuckets, Runnable onReadingFinished) {
+        ProgressBar progressBar = new ProgressBar(sup.getFileSize(), 20);
+        new OneLineLogger("ReadIndexer", 0).addElement(new RunningTime()).addElement(progressBar);
+
+        readingFinished.set(false);
+        AtomicBoolean abort = monitoredBuckets == null ? null : abortCycle;
+        Thread readerThread = new Thread(() -> batchSupplier(sup, queue, settings.SEQUENCE_BATCH_SIZE, abort,
+                nrOfReads, maxNrOfReads));
+        readerThread.start();
+
+        Thread[] processingThreads = new Thread[batchProcessors.length];
+        for (int j = 0; j < batchProcessors.length; j++) {
+            processingThreads[j] = new Thread(batchProcessors[j]);
+            processingThreads[j].start();
+        }
+
+        try {
+            while (readerThread.isAlive()) {
+                readerThread.join(500);
+                progressBar.setProgress(sup.getBytesRead());
+                if (monitoredBuckets != null && memoryGovernor.isOverBudget(monitoredBuckets)) {
+                    abortCycle.set(true);
+                }
+            }
+            progressBar.finish();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        readingFinished.set(true);
+
+        boolean readsFit = nrOfReads.get() <= maxNrOfReads;
+        if (readsFit) {
+            onReadingFinished.run();
+        }
+
+        for (Thread processingThread : processingThreads) {
+            try {
+                processingThread.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return readsFit;
+    }
+
+    /**
+     * Loads the Bloom filters of the buckets of a range (counted over all partitions) and releases the other filters.
+     */
+    private void loadFilters(int rangeStart, int rangeEnd) {
+        if (filters == null) {
+            return;
+        }
+        boolean[] inRange = new boolean[filters.length];
+        for (int i = rangeStart; i < rangeEnd && i - rangeStart < filters.length; i++) {
+            inRange[i % filters.length] = true;
+        }
+        for (int bucket = 0; bucket < filters.length; bucket++) {
+            if (!inRange[bucket]) {
+                filters[bucket] = null;
+            } else if (filters[bucket] == null) {
+                filters[bucket] = filterIndex.readFilter(bucket);
+            }
+        }
+    }
+
+    /**
+     * Adds the k-mers that the processors of a completed cycle dropped to {@link #filteredKmers}.
+     */
+    private void countFilteredKmers(BatchProcessor[] batchProcessors) {
+        for (BatchProcessor batchProcessor : batchProcessors) {
+            filteredKmers += batchProcessor.filteredKmers;
+        }
+    }
+
+    /**
+     * @return a new empty bucket, off-heap if {@link GlobalSettings#OFF_HEAP} is set
+     */
+    private ConcurrentBucket newBucket(long capacity) {
+        if (settings.OFF_HEAP) {
+            return new OffHeapBucket(capacity, 8_129, contingentSizes);
+        }
+        return new FlexibleBucket((int) capacity, 8_129, contingentSizes);
+    }
+
+    /**
+     * Sorts the buckets of one range and writes them to the index.
+     * @param buckets buckets of the range
+     * @param rangeStart name of the first bucket in the range
+     * @param nrOfBuckets number of buckets in the range
+     */
+    private void sortAndWrite(ConcurrentBucket[] buckets, int rangeStart, int nrOfBuckets) {
+        sort(buckets, nrOfBuckets);
+        write(buckets, rangeStart, nrOfBuckets);
+    }
+
+    /**
+     * Sorts the first nrOfBuckets buckets.
+     */
+    private void sort(ConcurrentBucket[] buckets, int nrOfBuckets) {
+        logger.logInfo("Sorting");
+        try (ForkJoinPool pool = new ForkJoinPool(settings.MAX_THREADS)) {
+            Sorting.sortBuckets(buckets, nrOfBuckets, 64, pool);
+        }
+    }
+
+    /**
+     * Writes the sorted buckets of one range to the index.
+     * @param buckets sorted buckets of the range
+     * @param rangeStart name of the first bucket in the range
+     * @param nrOfBuckets number of buckets in the range
+     */
+    private void write(ConcurrentBucket[] buckets, int rangeStart, int nrOfBuckets) {
+        logger.logInfo("Writing");
+
+        try (CustomThreadPoolExecutor executor = new CustomThreadPoolExecutor(
+                settings.MAX_THREADS, settings.MAX_THREADS, nrOfBuckets + 1, 3600, logger)) {
+            for (int j = 0; j < nrOfBuckets; j++) {
+                int partitionBucket = rangeStart + j;
+                int finalJ = j;
+                BucketIO bucketIO = partitionIOs[partitionBucket / encoder.getNrOfBuckets()]
+                        .getBucketIO(partitionBucket % encoder.getNrOfBuckets());
+                executor.submit(() -> writeBucket(buckets[finalJ], bucketIO, bucketSizes, partitionBucket));
+            }
+        }
+    }
+
+    /**
+     * @param partitionBucket number of the bucket over all partitions, to store its size
+     */
+    private static void writeBucket(ConcurrentBucket bucket, BucketIO bucketIO, long[] bucketSizes, int partitionBucket) {
+        try (BucketIO.BucketWriter bucketWriter = bucketIO.getBucketWriter(bucket.size() > Integer.MAX_VALUE)) {
+            for (long i = 0; i < bucket.size(); i++) {
                 long indexEntry = bucket.getValue(i);
                 if (indexEntry != Long.MAX_VALUE) {
                     bucketWriter.write(indexEntry);
                 }
             }
-            bucketSizes[bucketIO.getName()] = bucketWriter.getLength();
+            bucketSizes[partitionBucket] = bucketWriter.getLength();
         }
     }
 
+    /**
+     * @param abort if not null, reading stops as soon as it is set
+     * @param nrOfReads counts the reads of the input
+     * @param maxNrOfReads reads behind this number are only counted, but not processed
+     */
     private static void batchSupplier(SequenceSupplier<Integer, byte[]> sup,
                                       BlockingQueue<FutureSequenceRecords<Integer, byte[]>[]> queue,
-                                      int batchSize) {
+                                      int batchSize, AtomicBoolean abort, AtomicLong nrOfReads, long maxNrOfReads) {
         try {
             FutureSequenceRecords<Integer, byte[]>[] batch = new FutureSequenceRecords[batchSize];
             FutureSequenceRecords<Integer, byte[]> futureSequenceRecords;
             int batchIndex = 0;
+            nrOfReads.set(0);
             sup.reset();
             while ((futureSequenceRecords = sup.next()) != null) {
+                if (abort != null && abort.get()) {
+                    return;
+                }
+                if (nrOfReads.incrementAndGet() > maxNrOfReads) {
+                    // the read IDs do not fit into the partitions
+                    continue;
+                }
                 batch[batchIndex++] = futureSequenceRecords;
                 if (batchIndex == batchSize) {
                     try {
@@ -205,6 +599,11 @@ public class ReadIndexer {
             } catch (InterruptedException e) {
                 throw new RuntimeException(e);
             }
+        } catch (OutOfMemoryError e) {
+            if (abort == null) {
+                throw e;
+            }
+            abort.set(true);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -213,35 +612,64 @@ public class ReadIndexer {
     private static class BatchProcessor implements Runnable {
         private final Logger logger;
         private final BlockingQueue<FutureSequenceRecords<Integer, byte[]>[]> queue;
-        private final FlexibleBucket[] buckets;
+        private final ConcurrentBucket[] buckets;
+        private final SpillIO.SpillWriter spillWriter;
         private final Encoder encoder;
+        private final BlockedBloomFilter[] filters;
         private final AtomicBoolean finished;
+        private final AtomicBoolean abort;
         private final int startBucket;
         private final int bucketsPerCycel;
-        private final int[] bucketIndices;
-        private final int[] maxBucketIndices;
+        /**
+         * Number of read IDs per partition.
+         */
+        private final long partitionSize;
+        private final long[] bucketIndices;
+        private final long[] maxBucketIndices;
+        private final int[] nextContingentSizes;
         private final KmerExtractor kmerExtractor;
+        private final ReadKmerExtractor readKmerExtractor;
+        private final LongConsumer kmerSink = this::addKmer;
+        /**
+         * Read ID (relative to its partition) and first bucket of the partition of the read whose kmers are extracted.
+         */
+        private int currentId;
+        private int currentFirstBucket;
         private int pollFailCount;
+        private long filteredKmers;
 
-        private BatchProcessor(BlockingQueue<FutureSequenceRecords<Integer, byte[]>[]> queue, FlexibleBucket[] buckets, Encoder encoder, AtomicBoolean finished, int startBucket, int bucketsPerCycel) {
+        /**
+         * @param buckets buckets of the current cycle, only used if no spillWriter is given
+         * @param filters if not null, only the k-mers that might be contained in the filter of their bucket are kept
+         * @param startBucket first bucket of the cycle, counted over the buckets of all partitions
+         * @param spillWriter if not null, the index entries of all buckets in range are written to the spill files
+         *                    instead of the buckets
+         * @param abort if not null, the remaining batches are skipped as soon as it is set and it is set if the
+         *              buckets run out of memory
+         */
+        private BatchProcessor(BlockingQueue<FutureSequenceRecords<Integer, byte[]>[]> queue, ConcurrentBucket[] buckets, SpillIO.SpillWriter spillWriter, Encoder encoder, BlockedBloomFilter[] filters, AtomicBoolean finished, AtomicBoolean abort, int startBucket, int bucketsPerCycel) {
             this.logger = new Logger("BatchProcessor");
             this.queue = queue;
             this.buckets = buckets;
+            this.spillWriter = spillWriter;
             this.encoder = encoder;
+            this.filters = filters;
             this.finished = finished;
+            this.abort = abort;
             this.startBucket = startBucket;
             this.bucketsPerCycel = bucketsPerCycel;
-            bucketIndices = new int[bucketsPerCycel];
-            maxBucketIndices = new int[bucketsPerCycel];
+            this.partitionSize = 1L << encoder.getBitsForIds();
+            bucketIndices = new long[bucketsPerCycel];
+            maxBucketIndices = new long[bucketsPerCycel];
+            nextContingentSizes = new int[bucketsPerCycel];
+            Arrays.fill(nextContingentSizes, minContingentSize);
             kmerExtractor = encoder.getKmerExtractor();
+            readKmerExtractor = new ReadKmerExtractor(encoder.getTargetAlphabet(), kmerExtractor, encoder.getK());
         }
 
         @Override
         public void run() {
             try {
-                long[] extractKmers;
-                int currentIndexOfMatchingBucket;
-                int nextFreeIndex;
                 while (true) {
                     FutureSequenceRecords<Integer, byte[]>[] batch = queue.poll(100, TimeUnit.MILLISECONDS);
                     if (batch == null) {
@@ -260,43 +688,102 @@ public class ReadIndexer {
                     } else {
                         pollFailCount = 0;
                     }
-                    for (FutureSequenceRecords<Integer, byte[]> futureSequenceRecords : batch) {
-                        if (futureSequenceRecords == null) {
-                            break;
-                        }
-                        for (SequenceRecord<Integer, byte[]> sequenceRecord : futureSequenceRecords.getSequenceRecords()) {
-                            if (sequenceRecord.sequence().length < encoder.getK()) {
-                                skippedTranslations.incrementAndGet();
-                                continue;
-                            } else {
-                                processedTranslations.incrementAndGet();
-                            }
-                            int id = sequenceRecord.id();
-                            extractKmers = kmerExtractor.extractKmers(sequenceRecord.sequence());
-                            for (long kmer : extractKmers) {
-                                int bucketOfKmer = encoder.getBucketNameFromKmer(kmer);
-                                if (bucketInRange(bucketOfKmer)) {
-                                    currentIndexOfMatchingBucket = bucketOfKmer - startBucket;
-                                    nextFreeIndex = getNextIndexInBucket(currentIndexOfMatchingBucket);
-                                    buckets[currentIndexOfMatchingBucket].set(nextFreeIndex, encoder.getIndexEntry(id, encoder.getKmerWithoutBucketName(kmer)));
-                                }
-                            }
+                    if (abort != null && abort.get()) {
+                        // the cycle is retried, the remaining batches are only taken from the queue
+                        continue;
+                    }
+                    try {
+                        processBatch(batch);
+                    } catch (OutOfMemoryError e) {
+                        if (abort == null) {
+                            throw e;
                         }
+                        abort.set(true);
                     }
                 }
+                if (spillWriter != null) {
+                    spillWriter.close();
+                }
             } catch (InterruptedException e) {
                 System.out.println(e);
                 throw new RuntimeException(e);
             }
         }
 
+        private void processBatch(FutureSequenceRecords<Integer, byte[]>[] batch) {
+            for (FutureSequenceRecords<Integer, byte[]> futureSequenceRecords : batch) {
+                if (futureSequenceRecords == null) {
+                    break;
+                }
+                SequenceRecord<Integer, char[]> read = futureSequenceRecords.getUnconvertedSequenceRecord();
+                if (read != null) {
+                    // translate the read and extract the kmers without intermediate sequence records
+                    setCurrentRead(read.id());
+                    int processed = readKmerExtractor.extractKmers(read.sequence(), kmerSink);
+                    if (processed > 0) {
+                        processedTranslations.addAndGet(processed);
+                    }
+                    if (readKmerExtractor.getNrOfFragments() > processed) {
+                        skippedTranslations.addAndGet(readKmerExtractor.getNrOfFragments() - processed);
+                    }
+                    continue;
+                }
+                for (SequenceRecord<Integer, byte[]> sequenceRecord : futureSequenceRecords.getSequenceRecords()) {
+                    if (sequenceRecord.sequence().length < encoder.getK()) {
+                        skippedTranslations.incrementAndGet();
+                        continue;
+                    } else {
+                        processedTranslations.incrementAndGet();
+                    }
+                    setCurrentRead(sequenceRecord.id());
+                    kmerExtractor.extractKmers(sequenceRecord.sequence(), kmerSink);
+                }
+            }
+        }
+
+        private void setCurrentRead(int readId) {
+            // the entries store the read ID relative to the partition
+            currentId = (int) (readId % partitionSize);
+            currentFirstBucket = (int) (readId / partitionSize) * encoder.getNrOfBuckets();
+        }
+
+        /**
+         * Adds the index entry of the kmer and {@link #currentId} to its bucket in the partition of the read.
+         */
+        private void addKmer(long kmer) {
+            int bucketName = encoder.getBucketNameFromKmer(kmer);
+            int bucketOfKmer = currentFirstBucket + bucketName;
+            if (spillWriter != null) {
+                if (mightBeInDB(bucketName, kmer)) {
+                    spillWriter.write(bucketOfKmer, encoder.getIndexEntry(currentId, encoder.getKmerWithoutBucketName(kmer)));
+                }
+            } else if (bucketInRange(bucketOfKmer) && mightBeInDB(bucketName, kmer)) {
+                int currentIndexOfMatchingBucket = bucketOfKmer - startBucket;
+                long nextFreeIndex = getNextIndexInBucket(currentIndexOfMatchingBucket);
+                buckets[currentIndexOfMatchingBucket].set(nextFreeIndex, encoder.getIndexEntry(currentId, encoder.getKmerWithoutBucketName(kmer)));
+            }
+        }
+
+        /**
+         * @return true if no filters are used or the k-mer might be contained in the filter of its bucket
+         */
+        private boolean mightBeInDB(int bucketName, long kmer) {
+            if (filters == null || filters[bucketName].mightContain(encoder.getKmerWithoutBucketName(kmer))) {
+                return true;
+            }
+            filteredKmers++;
+            return false;
+        }
+
         private boolean bucketInRange(int bucket) {
             return bucket >= startBucket && bucket < startBucket + bucketsPerCycel;
         }
 
-        private int getNextIndexInBucket(int bucketIndex) {
+        private long getNextIndexInBucket(int bucketIndex) {
             if (bucketIndices[bucketIndex] >= maxBucketIndices[bucketIndex]) {
-                Pair<Integer, Integer> contingent = buckets[bucketIndex].getContingent();
+                Pair<Long, Long> contingent = buckets[bucketIndex].getContingent(nextContingentSizes[bucketIndex]);
+                // buckets this thread fills often get larger contingents, rarely hit buckets waste less space
+                nextContingentSizes[bucketIndex] = Math.min(2 * nextContingentSizes[bucketIndex], contingentSizes);
 //                System.out.println("[" + Thread.currentThread().getName() + "]" + "Got range " + contingent + " for bucket " + (startBucket + bucketIndex));
                 bucketIndices[bucketIndex] = contingent.first();
                 maxBucketIndices[bucketIndex] = contingent.last();
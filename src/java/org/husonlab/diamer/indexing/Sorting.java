@@ -1,10 +1,14 @@
 package org.husonlab.diamer.indexing;
 
-import org.husonlab.diamer.util.FlexibleBucket;
+import org.husonlab.diamer.util.ConcurrentBucket;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
 
 /**
  * Class that provides methods for the sorting of kmer encodings within buckets.
@@ -140,52 +144,6 @@ public class Sorting {
     }
 
 
-    public static class MsdRadixTaskFlexibleBucket extends RecursiveAction {
-
-        private final FlexibleBucket bucket;
-        private final int begin;
-        private final int end;
-        private final int shift;
-
-        public MsdRadixTaskFlexibleBucket(FlexibleBucket bucket, int begin, int end, int shift) {
-            this.bucket = bucket;
-            this.begin = begin;
-            this.end = end;
-            this.shift = shift;
-        }
-
-        public MsdRadixTaskFlexibleBucket(FlexibleBucket bucket) {
-            this.bucket = bucket;
-            this.begin = 0;
-            this.end = bucket.size();
-            this.shift = 0;
-        }
-
-        @Override
-        protected void compute() {
-            if (end - begin < SEQUENTIAL_THRESHOLD || shift > 63) {
-                msdRadixFlexibleBucket(bucket, begin, end, shift);
-                return;
-            }
-            int zerosIndex = begin - 1;
-            int onesIndex = end;
-            while (onesIndex - zerosIndex > 1) {
-                if (getBit(bucket.getValue(zerosIndex + 1), shift)) {
-                    long temp = bucket.getValue(zerosIndex + 1);
-                    bucket.set(zerosIndex + 1, bucket.getValue(onesIndex - 1));
-                    bucket.set(onesIndex - 1, temp);
-                    onesIndex--;
-                } else {
-                    zerosIndex++;
-                }
-            }
-            MsdRadixTaskFlexibleBucket right = new MsdRadixTaskFlexibleBucket(bucket, onesIndex, end, shift + 1);
-            right.fork();
-            new MsdRadixTaskFlexibleBucket(bucket, begin, zerosIndex + 1, shift + 1).compute();
-            right.join();
-        }
-    }
-
     /**
      * Return weather the nth most significant bit is a 1.
      * @param n shift from the left.
@@ -223,23 +181,182 @@ public class Sorting {
         msdRadix(input, ids, onesIndex, end, shift + 1);
     }
 
-    private static void msdRadixFlexibleBucket(@NotNull FlexibleBucket bucket, int begin, int end, int shift) {
-        if (end - begin < 2 || shift > 63) {
-            return;
+    /**
+     * Number of bits of one digit of the LSD radix sort of buckets.
+     */
+    private static final int DIGIT_BITS = 11;
+    private static final int RADIX = 1 << DIGIT_BITS;
+    /**
+     * Buckets with fewer entries are sorted by one thread, several of them at the same time.
+     */
+    private static final long PARALLEL_SORT_THRESHOLD = 1 << 18;
+    /**
+     * Minimum number of entries a thread processes in one pass of a parallel sort.
+     */
+    private static final long MIN_SEGMENT_SIZE = 1 << 16;
+    /**
+     * Number of entries that are copied from a bucket at once.
+     */
+    private static final int BLOCK_SIZE = 4096;
+
+    /**
+     * Sorts the buckets by their most significant N bits (as unsigned values).
+     * <p>
+     *     Small buckets are sorted concurrently with one thread each. Large buckets are sorted one after another, each
+     *     with all threads of the pool, to limit the memory for the sort buffers.
+     * </p>
+     * @param buckets buckets to sort
+     * @param nrOfBuckets number of buckets (from the start of the array) to sort
+     * @param nBits number of most significant bits to sort by
+     * @param pool pool to sort the buckets with
+     */
+    public static void sortBuckets(ConcurrentBucket[] buckets, int nrOfBuckets, int nBits, ForkJoinPool pool) {
+        ArrayList<ForkJoinTask<?>> smallBuckets = new ArrayList<>();
+        for (int i = 0; i < nrOfBuckets; i++) {
+            if (buckets[i].size() < PARALLEL_SORT_THRESHOLD) {
+                smallBuckets.add(pool.submit(new LsdRadixTaskBucket(buckets[i], nBits)));
+            }
         }
-        int zerosIndex = begin - 1;
-        int onesIndex = end;
-        while (onesIndex - zerosIndex > 1) {
-            if (getBit(bucket.getValue(zerosIndex + 1), shift)) {
-                long temp = bucket.getValue(zerosIndex + 1);
-                bucket.set(zerosIndex + 1, bucket.getValue(onesIndex - 1));
-                bucket.set(onesIndex - 1, temp);
-                onesIndex--;
-            } else {
-                zerosIndex++;
+        for (int i = 0; i < nrOfBuckets; i++) {
+            if (buckets[i].size() >= PARALLEL_SORT_THRESHOLD) {
+                pool.invoke(new LsdRadixTaskBucket(buckets[i], nBits));
+            }
+        }
+        smallBuckets.forEach(ForkJoinTask::join);
+    }
+
+    /**
+     * LSD radix sort of a bucket by its most significant N bits with digits of {@link #DIGIT_BITS} bits.
+     * <p>
+     *     The entries are distributed between the bucket and a buffer of the same size. In each pass, the bucket is
+     *     split into contiguous segments. The histograms of the segments are computed in parallel, afterward each
+     *     segment scatters its entries to its own (stable) offsets in parallel. Passes in which all entries have the
+     *     same digit are skipped.
+     * </p>
+     */
+    public static class LsdRadixTaskBucket extends RecursiveAction {
+
+        private final ConcurrentBucket bucket;
+        private final int nBits;
+
+        public LsdRadixTaskBucket(ConcurrentBucket bucket, int nBits) {
+            this.bucket = bucket;
+            this.nBits = nBits;
+        }
+
+        @Override
+        protected void compute() {
+            long size = bucket.size();
+            if (size < 2) {
+                return;
+            }
+            int nrOfSegments = size < PARALLEL_SORT_THRESHOLD ? 1 :
+                    (int) Math.min(getPool().getParallelism() * 4L, Math.ceilDiv(size, MIN_SEGMENT_SIZE));
+            long[] segmentStarts = new long[nrOfSegments + 1];
+            for (int i = 0; i <= nrOfSegments; i++) {
+                segmentStarts[i] = size * i / nrOfSegments;
+            }
+            long[][] counts = new long[nrOfSegments][RADIX];
+
+            ConcurrentBucket buffer = bucket.newInstance(size);
+            buffer.reserve(size);
+            ConcurrentBucket source = bucket;
+            ConcurrentBucket target = buffer;
+            try {
+                for (int shift = 64 - nBits; shift < 64; shift += DIGIT_BITS) {
+                    int finalShift = shift;
+                    ConcurrentBucket finalSource = source;
+                    ConcurrentBucket finalTarget = target;
+                    runSegments(nrOfSegments, segment -> {
+                        Arrays.fill(counts[segment], 0);
+                        histogram(finalSource, segmentStarts[segment], segmentStarts[segment + 1], finalShift, counts[segment]);
+                    });
+                    if (!toOffsets(counts, size)) {
+                        continue;
+                    }
+                    runSegments(nrOfSegments, segment -> scatter(finalSource, finalTarget, segmentStarts[segment],
+                            segmentStarts[segment + 1], finalShift, counts[segment]));
+                    source = target;
+                    target = finalSource;
+                }
+                if (source != bucket) {
+                    ConcurrentBucket sorted = source;
+                    runSegments(nrOfSegments, segment -> copy(sorted, bucket, segmentStarts[segment], segmentStarts[segment + 1]));
+                }
+            } finally {
+                buffer.close();
+            }
+        }
+
+        private static void runSegments(int nrOfSegments, IntConsumer task) {
+            if (nrOfSegments == 1) {
+                task.accept(0);
+                return;
+            }
+            ArrayList<RecursiveAction> tasks = new ArrayList<>(nrOfSegments);
+            for (int i = 0; i < nrOfSegments; i++) {
+                int segment = i;
+                tasks.add(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        task.accept(segment);
+                    }
+                });
+            }
+            invokeAll(tasks);
+        }
+
+        /**
+         * Converts the digit counts of all segments into the start offsets of the segments in the target.
+         * @return false if all entries have the same digit (the pass can be skipped)
+         */
+        private static boolean toOffsets(long[][] counts, long size) {
+            long offset = 0;
+            for (int digit = 0; digit < RADIX; digit++) {
+                long digitStart = offset;
+                for (long[] segmentCounts : counts) {
+                    long count = segmentCounts[digit];
+                    segmentCounts[digit] = offset;
+                    offset += count;
+                }
+                if (offset - digitStart == size) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static void histogram(ConcurrentBucket source, long start, long end, int shift, long[] counts) {
+            long[] block = new long[BLOCK_SIZE];
+            for (long i = start; i < end; i += BLOCK_SIZE) {
+                int length = (int) Math.min(BLOCK_SIZE, end - i);
+                source.get(i, block, 0, length);
+                for (int j = 0; j < length; j++) {
+                    counts[(int) (block[j] >>> shift) & (RADIX - 1)]++;
+                }
+            }
+        }
+
+        private static void scatter(ConcurrentBucket source, ConcurrentBucket target, long start, long end, int shift,
+                                    long[] offsets) {
+            long[] block = new long[BLOCK_SIZE];
+            for (long i = start; i < end; i += BLOCK_SIZE) {
+                int length = (int) Math.min(BLOCK_SIZE, end - i);
+                source.get(i, block, 0, length);
+                for (int j = 0; j < length; j++) {
+                    long value = block[j];
+                    target.set(offsets[(int) (value >>> shift) & (RADIX - 1)]++, value);
+                }
+            }
+        }
+
+        private static void copy(ConcurrentBucket source, ConcurrentBucket target, long start, long end) {
+            long[] block = new long[BLOCK_SIZE];
+            for (long i = start; i < end; i += BLOCK_SIZE) {
+                int length = (int) Math.min(BLOCK_SIZE, end - i);
+                source.get(i, block, 0, length);
+                target.set(i, block, 0, length);
             }
         }
-        msdRadixFlexibleBucket(bucket, begin, zerosIndex + 1, shift + 1);
-        msdRadixFlexibleBucket(bucket, onesIndex, end, shift + 1);
     }
 }
\ No newline at end of file
@@ -10,71 +10,257 @@ import org.husonlab.diamer.util.Pair;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.HashMap;
+import java.util.Random;
 
 /**
  * Class to estimate some statistics and required memory.
+ * <p>
+ *     The statistics are estimated from a sample of the whole input file, as the order of the sequences (accessions in
+ *     NR, time in FASTQ files) is not random. Large uncompressed files are sampled at random byte positions (see
+ *     {@link SequenceSupplier#sample(long)}), each sampled sequence is weighted with the inverse of its size in bytes.
+ *     Other files are read from the start: the first sequences are counted completely, afterward only every n-th
+ *     sequence is counted, with n chosen such that the sample is spread over the whole file, or over the first
+ *     {@link #MAX_SEQUENTIAL_BYTES} bytes of larger gzipped files. The counts of the subsampled sequences are
+ *     extrapolated to all sequences after the first ones. Sequences that are not sampled are only read, but not
+ *     converted.
+ * </p>
+ * <p>
+ *     Besides the estimated size of each bucket, an upper bound of the size is estimated from the variance of the
+ *     k-mers per sequence in the sample, which is used to allocate the buckets.
+ * </p>
  */
 public class StatisticsEstimator {
-    private final int sampleSize;
+    /**
+     * Number of standard errors added to the estimated bucket sizes for the upper bounds.
+     */
+    private static final double Z = 3.0;
+    /**
+     * Larger uncompressed files are sampled at random positions, larger gzipped files are only read up to this size.
+     */
+    private static final long MAX_SEQUENTIAL_BYTES = 256L << 20;
     private final Path file;
+    private final int nrOfBuckets;
+    private int sampledSequences;
+    private int totalSequences;
+    private int totalSequencesUpperBound;
+    /**
+     * True if all sequences of the file have been read, so that their number is exact.
+     */
+    private boolean allSequencesRead;
     private final int[] estimatedBucketSizes;
+    private final int[] bucketSizeUpperBounds;
     private final int maxBucketSize;
+    private final int maxBucketSizeUpperBound;
     private final HashMap<Byte, Long> charCounts;
     private final double[] charFrequencies;
 
+    /**
+     * @param numberOfSequences number of sequences at the start of the file that are counted completely and number of
+     *                          sequences that are sampled from the rest of the file, twice as many sequences are
+     *                          sampled at random positions
+     */
     public StatisticsEstimator(SequenceSupplier<?, byte[]> sup, Encoder encoder, int numberOfSequences) {
-        this.sampleSize = numberOfSequences;
         this.file = sup.getFile();
-        Pair<int[], HashMap<Byte, Long>> kmersAncChars = countKmersAndChars(sup, encoder, numberOfSequences);
-        this.estimatedBucketSizes = kmersAncChars.first();
-        this.charCounts = kmersAncChars.last();
+        this.nrOfBuckets = encoder.getNrOfBuckets();
+        this.estimatedBucketSizes = new int[encoder.getNrOfBuckets()];
+        this.bucketSizeUpperBounds = new int[encoder.getNrOfBuckets()];
+        this.charCounts = new HashMap<>();
+        if (sup.isSeekable() && sup.getFileSize() > MAX_SEQUENTIAL_BYTES) {
+            sampleKmersAndChars(sup, encoder, 2 * numberOfSequences);
+        } else {
+            countKmersAndChars(sup, encoder, numberOfSequences);
+        }
         this.maxBucketSize = calculateMaxBucketSize(estimatedBucketSizes);
+        this.maxBucketSizeUpperBound = calculateMaxBucketSize(bucketSizeUpperBounds);
         this.charFrequencies = calculateCharFrequencies(charCounts, encoder);
     }
 
-    public static Pair<int[], HashMap<Byte, Long>> countKmersAndChars(SequenceSupplier<?, byte[]> sup, Encoder encoder, int numberOfSequences) {
-//        HashMap<Long, Integer> kmerCounts = new HashMap<>();
+    /**
+     * Counts the characters and the k-mers per bucket of the first numberOfSequences sequences and of every n-th of
+     * the remaining sequences (up to {@link #MAX_SEQUENTIAL_BYTES}) and extrapolates them to the whole file.
+     */
+    private void countKmersAndChars(SequenceSupplier<?, byte[]> sup, Encoder encoder, int numberOfSequences) {
+        int nrOfBuckets = encoder.getNrOfBuckets();
+        // counts of the first sequences
+        long[] headBucketSizes = new long[nrOfBuckets];
+        HashMap<Byte, Long> headCharCounts = new HashMap<>();
+        // counts, and sums of the squared counts per sequence, of the sampled sequences after the first ones
+        long[] sampleBucketSizes = new long[nrOfBuckets];
+        long[] sampleSquaredBucketSizes = new long[nrOfBuckets];
+        HashMap<Byte, Long> sampleCharCounts = new HashMap<>();
+        int[] sequenceBucketSizes = new int[nrOfBuckets];
+        int[] touchedBuckets = new int[nrOfBuckets];
 
-        HashMap<Byte, Long> charCounts = new HashMap<>();
-        int[] bucketSizes = new int[encoder.getNrOfBuckets()];
         KmerExtractor kmerExtractor = encoder.getKmerExtractor();
         FutureSequenceRecords<?, byte[]> sequenceRecords;
         int n = 0;
+        int tailSequences = 0;
+        int tailSamples = 0;
+        int stride = 1;
+        long headBytes = 0;
+        allSequencesRead = true;
         try {
-            while ((sequenceRecords = sup.next()) != null && n++ <= numberOfSequences) {
-                for (SequenceRecord<?, byte[]> sequenceRecord : sequenceRecords.getSequenceRecords()) {
-                    // Count characters
-                    for (byte b : sequenceRecord.sequence()) {
-                        charCounts.put(b, charCounts.getOrDefault(b, 0L) + 1);
+            while ((sequenceRecords = sup.next()) != null) {
+                if (n > numberOfSequences && sup.getBytesRead() > MAX_SEQUENTIAL_BYTES) {
+                    allSequencesRead = false;
+                    break;
+                }
+                if (n++ < numberOfSequences) {
+                    for (SequenceRecord<?, byte[]> sequenceRecord : sequenceRecords.getSequenceRecords()) {
+                        countChars(sequenceRecord.sequence(), headCharCounts);
+                        for (long kmer : kmerExtractor.extractKmers(sequenceRecord.sequence())) {
+                            headBucketSizes[encoder.getBucketNameFromKmer(kmer)]++;
+                        }
                     }
-                    // Count kmers
+                    if (n == numberOfSequences) {
+                        // spread the same number of samples over the rest of the file (or of the bytes that are read)
+                        headBytes = sup.getBytesRead();
+                        stride = (int) Math.max(1, Math.min(Integer.MAX_VALUE,
+                                (Math.min(sup.getFileSize(), MAX_SEQUENTIAL_BYTES) - headBytes) / Math.max(1, headBytes)));
+                    }
+                    continue;
+                }
+                if (tailSequences++ % stride != 0) {
+                    continue;
+                }
+                tailSamples++;
+                int nrOfTouchedBuckets = 0;
+                for (SequenceRecord<?, byte[]> sequenceRecord : sequenceRecords.getSequenceRecords()) {
+                    countChars(sequenceRecord.sequence(), sampleCharCounts);
                     for (long kmer : kmerExtractor.extractKmers(sequenceRecord.sequence())) {
                         int bucket = encoder.getBucketNameFromKmer(kmer);
-                        bucketSizes[bucket]++;
+                        if (sequenceBucketSizes[bucket]++ == 0) {
+                            touchedBuckets[nrOfTouchedBuckets++] = bucket;
+                        }
+                    }
+                }
+                for (int i = 0; i < nrOfTouchedBuckets; i++) {
+                    int bucket = touchedBuckets[i];
+                    long count = sequenceBucketSizes[bucket];
+                    sampleBucketSizes[bucket] += count;
+                    sampleSquaredBucketSizes[bucket] += count * count;
+                    sequenceBucketSizes[bucket] = 0;
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read input file.", e);
+        }
+        sampledSequences = Math.min(n, numberOfSequences) + tailSamples;
+        // the number of sequences after the first ones is extrapolated from the bytes read if the file is not read
+        // completely
+        double tailPopulation = allSequencesRead ? tailSequences :
+                tailSequences * (double) (sup.getFileSize() - headBytes) / Math.max(1, sup.getBytesRead() - headBytes);
+        totalSequences = (int) Math.min(Integer.MAX_VALUE, Math.round(Math.min(n, numberOfSequences) + tailPopulation));
+        totalSequencesUpperBound = totalSequences;
+
+        // extrapolate the sample to all sequences after the first ones
+        double weight = tailSamples == 0 ? 0 : tailPopulation / tailSamples;
+        double finitePopulationCorrection = tailPopulation == 0 ? 0 : 1 - tailSamples / tailPopulation;
+        for (int i = 0; i < nrOfBuckets; i++) {
+            double estimate = headBucketSizes[i] + weight * sampleBucketSizes[i];
+            double standardError = 0;
+            if (tailSamples > 1) {
+                double mean = (double) sampleBucketSizes[i] / tailSamples;
+                double variance = Math.max(0,
+                        (sampleSquaredBucketSizes[i] - tailSamples * mean * mean) / (tailSamples - 1));
+                standardError = tailPopulation * Math.sqrt(variance / tailSamples * finitePopulationCorrection);
+            }
+            estimatedBucketSizes[i] = (int) Math.min(Integer.MAX_VALUE, Math.round(estimate));
+            bucketSizeUpperBounds[i] = (int) Math.min(Integer.MAX_VALUE, Math.ceil(estimate + Z * standardError));
+        }
+        headCharCounts.forEach((c, count) -> charCounts.put(c, count));
+        sampleCharCounts.forEach((c, count) -> charCounts.merge(c, Math.round(weight * count), Long::sum));
+    }
+
+    /**
+     * Counts the characters and the k-mers per bucket of the sequences at random positions of the file and
+     * extrapolates them to the whole file.
+     * <p>
+     *     A sequence is sampled with a probability proportional to its size in bytes, so each sample estimates the
+     *     totals of the file as its counts times the file size divided by its size (Hansen-Hurwitz estimator). The
+     *     estimates are the means of these values over all samples, the upper bounds add {@link #Z} standard errors.
+     * </p>
+     */
+    private void sampleKmersAndChars(SequenceSupplier<?, byte[]> sup, Encoder encoder, int numberOfSamples) {
+        int nrOfBuckets = encoder.getNrOfBuckets();
+        double fileSize = sup.getFileSize();
+        // sums of the estimates of the samples and of their squares
+        double[] bucketSizeSums = new double[nrOfBuckets];
+        double[] squaredBucketSizeSums = new double[nrOfBuckets];
+        double sequenceSum = 0;
+        double squaredSequenceSum = 0;
+        HashMap<Byte, Double> charCountSums = new HashMap<>();
+        int[] sequenceBucketSizes = new int[nrOfBuckets];
+        int[] touchedBuckets = new int[nrOfBuckets];
 
-//                        if (bucket == 695) {
-//                            kmerCounts.put(kmer, kmerCounts.getOrDefault(kmer, 0) + 1);
-//                        }
+        KmerExtractor kmerExtractor = encoder.getKmerExtractor();
+        // sorted positions to read the file front to back, a fixed seed for reproducible bucket sizes
+        long[] positions = new Random(42).longs(numberOfSamples, 0, sup.getFileSize()).sorted().toArray();
+        try {
+            for (long position : positions) {
+                Pair<? extends FutureSequenceRecords<?, byte[]>, Long> sample = sup.sample(position);
+                if (sample == null) {
+                    // the position is before the first sequence, the sample counts nothing
+                    continue;
+                }
+                sampledSequences++;
+                double scale = fileSize / sample.last();
+                sequenceSum += scale;
+                squaredSequenceSum += scale * scale;
+                HashMap<Byte, Long> sequenceCharCounts = new HashMap<>();
+                int nrOfTouchedBuckets = 0;
+                for (SequenceRecord<?, byte[]> sequenceRecord : sample.first().getSequenceRecords()) {
+                    countChars(sequenceRecord.sequence(), sequenceCharCounts);
+                    for (long kmer : kmerExtractor.extractKmers(sequenceRecord.sequence())) {
+                        int bucket = encoder.getBucketNameFromKmer(kmer);
+                        if (sequenceBucketSizes[bucket]++ == 0) {
+                            touchedBuckets[nrOfTouchedBuckets++] = bucket;
+                        }
                     }
                 }
+                sequenceCharCounts.forEach((c, count) -> charCountSums.merge(c, scale * count, Double::sum));
+                for (int i = 0; i < nrOfTouchedBuckets; i++) {
+                    int bucket = touchedBuckets[i];
+                    double estimate = scale * sequenceBucketSizes[bucket];
+                    bucketSizeSums[bucket] += estimate;
+                    squaredBucketSizeSums[bucket] += estimate * estimate;
+                    sequenceBucketSizes[bucket] = 0;
+                }
             }
         } catch (IOException e) {
             throw new RuntimeException("Could not read input file.", e);
         }
 
-//        // Print the kmer counts for bucket 695 in sorted order
-//        kmerCounts.entrySet().stream()
-//                .sorted((e1, e2) -> Integer.compare(e2.getValue(), e1.getValue()))
-//                .forEach(entry -> System.out.println("Kmer: " + entry.getKey() + ", Count: " + entry.getValue()));
+        for (int i = 0; i < nrOfBuckets; i++) {
+            double estimate = bucketSizeSums[i] / numberOfSamples;
+            double upperBound = estimate + Z * standardError(bucketSizeSums[i], squaredBucketSizeSums[i], numberOfSamples);
+            estimatedBucketSizes[i] = (int) Math.min(Integer.MAX_VALUE, Math.round(estimate));
+            bucketSizeUpperBounds[i] = (int) Math.min(Integer.MAX_VALUE, Math.ceil(upperBound));
+        }
+        double sequences = sequenceSum / numberOfSamples;
+        totalSequences = (int) Math.min(Integer.MAX_VALUE, Math.round(sequences));
+        totalSequencesUpperBound = (int) Math.min(Integer.MAX_VALUE,
+                Math.ceil(sequences + Z * standardError(sequenceSum, squaredSequenceSum, numberOfSamples)));
+        allSequencesRead = false;
+        charCountSums.forEach((c, count) -> charCounts.put(c, Math.round(count / numberOfSamples)));
+    }
 
-        // estimate the total number of kmers
-        long bytesRead = sup.getBytesRead();
-        long totalBytes = sup.getFileSize();
-        for (int i = 0; i < bucketSizes.length; i++) {
-            bucketSizes[i] = (int) (bucketSizes[i] * (totalBytes / bytesRead));
+    /**
+     * @return the standard error of the mean of the samples
+     */
+    private static double standardError(double sum, double squaredSum, int numberOfSamples) {
+        if (numberOfSamples < 2) {
+            return 0;
         }
+        double mean = sum / numberOfSamples;
+        double variance = Math.max(0, (squaredSum - numberOfSamples * mean * mean) / (numberOfSamples - 1));
+        return Math.sqrt(variance / numberOfSamples);
+    }
 
-        return new Pair<>(bucketSizes, charCounts);
+    private static void countChars(byte[] sequence, HashMap<Byte, Long> charCounts) {
+        for (byte b : sequence) {
+            charCounts.put(b, charCounts.getOrDefault(b, 0L) + 1);
+        }
     }
 
     private static int calculateMaxBucketSize(int[] bucketSizes) {
@@ -104,12 +290,12 @@ public class StatisticsEstimator {
         long freeMemory = (runtime.maxMemory() - runtime.totalMemory()) + runtime.freeMemory();
         freeMemory -= (long) (freeMemory * 0.2); // 20 % for the JVM
         // each bucket entry = 8 byte (kmer + id) (in practice its more 12 byte for some reason)
-        long memoryPerBucket = 12 * (long)maxBucketSize;
+        long memoryPerBucket = 12 * (long)maxBucketSizeUpperBound;
         int numberOfBuckets = (int) (freeMemory / memoryPerBucket);
         // round down to next power of 2
 //        return (int) Math.pow(2, Math.floor(Math.log(numberOfBuckets) / Math.log(2)));
-        // round down to the next divisor of 1024
-        return Math.ceilDiv(1024, Math.ceilDiv(1024, numberOfBuckets));
+        // round down to the next divisor of the number of buckets
+        return Math.ceilDiv(nrOfBuckets, Math.ceilDiv(nrOfBuckets, numberOfBuckets));
 //        return numberOfBuckets;
     }
 
@@ -117,10 +303,39 @@ public class StatisticsEstimator {
         return estimatedBucketSizes;
     }
 
+    /**
+     * @return upper bounds of the bucket sizes, the estimated sizes plus {@link #Z} standard errors of the sample
+     */
+    public int[] getBucketSizeUpperBounds() {
+        return bucketSizeUpperBounds;
+    }
+
+    /**
+     * @return the number of sequences in the input, only exact if all sequences have been read
+     */
+    public int getNrOfSequences() {
+        return totalSequences;
+    }
+
+    /**
+     * @return an upper bound of the number of sequences in the input, the estimate plus {@link #Z} standard errors if
+     * the sequences were sampled at random positions
+     */
+    public int getNrOfSequencesUpperBound() {
+        return totalSequencesUpperBound;
+    }
+
     public int getMaxBucketSize() {
         return maxBucketSize;
     }
 
+    /**
+     * @return the maximum of the upper bounds of the bucket sizes, to allocate buckets that are large enough
+     */
+    public int getMaxBucketSizeUpperBound() {
+        return maxBucketSizeUpperBound;
+    }
+
     public HashMap<Byte, Long> getCharCounts() {
         return charCounts;
     }
@@ -132,7 +347,8 @@ public class StatisticsEstimator {
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
-        sb.append("\nStatistics on the first ").append(sampleSize)
+        sb.append("\nStatistics on a sample of ").append(sampledSequences).append(" of ").append(totalSequences)
+                .append(allSequencesRead ? "" : " (estimated)")
                 .append(" sequences of the input file: ").append(file).append("\n");
         sb.append("Character counts:\n");
         for (int i = 0; i < charFrequencies.length; i++) {
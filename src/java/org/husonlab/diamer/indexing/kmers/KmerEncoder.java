@@ -10,6 +10,11 @@ import java.util.Arrays;
  * the sum of the elements in the array that lie in the mask.</p>
  * <p>The class is most efficient when all kmers of a sequence must be extracted and the individual characters are
  * added one by one to one side of the kmer.</p>
+ * <p>The letters are kept in a circular buffer. For masks with spaces, the encoding is updated incrementally from the
+ * previous one: the mask is split into runs of consecutive set bits, and shifting the kmer by one letter multiplies
+ * the encoding by the base except at the borders of the runs, where one letter enters and one letter leaves each run.
+ * The new encoding is therefore the old one times the base plus a precomputed coefficient for each letter at a run
+ * border, which costs at most two lookups per run instead of one lookup per set bit of the mask.</p>
  */
 public class KmerEncoder {
     // base of the target system to encode the kmer in
@@ -20,14 +25,19 @@ public class KmerEncoder {
     private final int s;
     // bitmask, most significant bit is the first (leftmost) bit of the mask
     private final boolean[] mask;
-    // array with the indices of true values in the mask
-    private final int[] maskIndices;
-    // array to store the individual letters that are part of the kmer (before multiplication)
+    // circular buffer with the individual letters that are part of the kmer (before multiplication), each letter is
+    // stored at index i and i + k, so that the letters of the kmer are kmerLetters[head] to kmerLetters[head + k - 1]
     private final byte[] kmerLetters;
+    // index of the first letter of the kmer in the circular buffer
+    private int head;
     // array to store whether a letter is part of the kmer to count the number of different letters
     private final boolean[] letterInKmer;
-    // array to precalculate and store the letters with base^n
-    private final long[][] letterMultiples;
+    // positions in the kmer of the letters at the borders of the runs of set bits of the mask
+    private final int[] borderPositions;
+    // coefficients of the letters at the border positions in the update of the encoding
+    private final long[] borderCoefficients;
+    // coefficient of the letter that leaves the kmer in the update of the encoding
+    private final long removedLetterCoefficient;
     // array to store the likelihood of each letter of the alphabet in the kmer
     private final double[] letterLikelihoods;
     // flag to indicate wether the mask has spaces or not
@@ -62,20 +72,39 @@ public class KmerEncoder {
                 sTemp++;
             }
         }
-        this.maskIndices = new int[k - sTemp];
-        for (int i = 0, j = 0; i < k; i++) {
-            if (mask[i]) {
-                maskIndices[j] = i;
-                j++;
-            }
-        }
         this.s = sTemp;
-        kmerLetters = new byte[k];
         letterInKmer = new boolean[base];
-        letterMultiples = new long[base][k - s];
-        for (int i = 0; i < base; i++) {
-            for (int j = 0; j < k - s; j++) {
-                letterMultiples[i][j] = (long) (i * Math.pow(base, j));
+        kmerLetters = new byte[2 * k];
+        // a run of length l at positions a to a + l - 1 is updated with letter(a + l - 1) - base^l * letter(a - 1),
+        // weighted with base^(number of set bits behind the run)
+        long[] coefficients = new long[k + 1];
+        int setBitsBehind = k - sTemp;
+        for (int i = 0; i < k; i++) {
+            if (mask[i] && (i == 0 || !mask[i - 1])) {
+                int length = 0;
+                while (i + length < k && mask[i + length]) {
+                    length++;
+                }
+                setBitsBehind -= length;
+                long weight = (long) Math.pow(base, setBitsBehind);
+                // index 0 is the letter that leaves the kmer (position -1)
+                coefficients[i + length] += weight;
+                coefficients[i] -= weight * (long) Math.pow(base, length);
+            }
+        }
+        removedLetterCoefficient = coefficients[0];
+        int nrOfBorders = 0;
+        for (int i = 1; i <= k; i++) {
+            if (coefficients[i] != 0) {
+                nrOfBorders++;
+            }
+        }
+        borderPositions = new int[nrOfBorders];
+        borderCoefficients = new long[nrOfBorders];
+        for (int i = 1, j = 0; i <= k; i++) {
+            if (coefficients[i] != 0) {
+                borderPositions[j] = i - 1;
+                borderCoefficients[j++] = coefficients[i];
             }
         }
         letterLikelihoods = new double[base];
@@ -91,112 +120,40 @@ public class KmerEncoder {
      * @return the new encoding of the kmer
      */
     public long add(byte value) {
-        byte removedLetter = kmerLetters[0];
-        System.arraycopy(kmerLetters, 1, kmerLetters, 0, k - 1);
-        kmerLetters[k - 1] = value;
+        byte removedLetter = kmerLetters[head];
+        kmerLetters[head] = value;
+        kmerLetters[head + k] = value;
+        head = head + 1 == k ? 0 : head + 1;
         if (hasSpaces) {
-            encoding = encodeSpaced();
+            encoding = encodeSpaced(removedLetter);
         } else {
-            encoding = encode(removedLetter);
+            encoding = encode(removedLetter, value);
         }
         return encoding;
     }
 
     /**
-     * Adds all masked elements of the kmer array to get the encoding of the kmer.
+     * Updates the encoding with the letters at the borders of the runs of the mask.
      * @return the encoding of the kmer
      */
-    private long encodeSpaced() {
-        if (k - s == 15) {
-            return letterMultiples[kmerLetters[maskIndices[0]]][14]
-                   + letterMultiples[kmerLetters[maskIndices[1]]][13]
-                   + letterMultiples[kmerLetters[maskIndices[2]]][12]
-                   + letterMultiples[kmerLetters[maskIndices[3]]][11]
-                   + letterMultiples[kmerLetters[maskIndices[4]]][10]
-                   + letterMultiples[kmerLetters[maskIndices[5]]][9]
-                   + letterMultiples[kmerLetters[maskIndices[6]]][8]
-                   + letterMultiples[kmerLetters[maskIndices[7]]][7]
-                   + letterMultiples[kmerLetters[maskIndices[8]]][6]
-                   + letterMultiples[kmerLetters[maskIndices[9]]][5]
-                   + letterMultiples[kmerLetters[maskIndices[10]]][4]
-                   + letterMultiples[kmerLetters[maskIndices[11]]][3]
-                   + letterMultiples[kmerLetters[maskIndices[12]]][2]
-                   + letterMultiples[kmerLetters[maskIndices[13]]][1]
-                   + letterMultiples[kmerLetters[maskIndices[14]]][0];
-        } else if (k - s == 14) {
-            return letterMultiples[kmerLetters[maskIndices[0]]][13]
-                   + letterMultiples[kmerLetters[maskIndices[1]]][12]
-                   + letterMultiples[kmerLetters[maskIndices[2]]][11]
-                   + letterMultiples[kmerLetters[maskIndices[3]]][10]
-                   + letterMultiples[kmerLetters[maskIndices[4]]][9]
-                   + letterMultiples[kmerLetters[maskIndices[5]]][8]
-                   + letterMultiples[kmerLetters[maskIndices[6]]][7]
-                   + letterMultiples[kmerLetters[maskIndices[7]]][6]
-                   + letterMultiples[kmerLetters[maskIndices[8]]][5]
-                   + letterMultiples[kmerLetters[maskIndices[9]]][4]
-                   + letterMultiples[kmerLetters[maskIndices[10]]][3]
-                   + letterMultiples[kmerLetters[maskIndices[11]]][2]
-                   + letterMultiples[kmerLetters[maskIndices[12]]][1]
-                   + letterMultiples[kmerLetters[maskIndices[13]]][0];
-        } else if (k - s == 13) {
-            return letterMultiples[kmerLetters[maskIndices[0]]][12]
-                   + letterMultiples[kmerLetters[maskIndices[1]]][11]
-                   + letterMultiples[kmerLetters[maskIndices[2]]][10]
-                   + letterMultiples[kmerLetters[maskIndices[3]]][9]
-                   + letterMultiples[kmerLetters[maskIndices[4]]][8]
-                   + letterMultiples[kmerLetters[maskIndices[5]]][7]
-                   + letterMultiples[kmerLetters[maskIndices[6]]][6]
-                   + letterMultiples[kmerLetters[maskIndices[7]]][5]
-                   + letterMultiples[kmerLetters[maskIndices[8]]][4]
-                   + letterMultiples[kmerLetters[maskIndices[9]]][3]
-                   + letterMultiples[kmerLetters[maskIndices[10]]][2]
-                   + letterMultiples[kmerLetters[maskIndices[11]]][1]
-                   + letterMultiples[kmerLetters[maskIndices[12]]][0];
-        } else if (k - s == 12) {
-            return letterMultiples[kmerLetters[maskIndices[0]]][11]
-                   + letterMultiples[kmerLetters[maskIndices[1]]][10]
-                   + letterMultiples[kmerLetters[maskIndices[2]]][9]
-                   + letterMultiples[kmerLetters[maskIndices[3]]][8]
-                   + letterMultiples[kmerLetters[maskIndices[4]]][7]
-                   + letterMultiples[kmerLetters[maskIndices[5]]][6]
-                   + letterMultiples[kmerLetters[maskIndices[6]]][5]
-                   + letterMultiples[kmerLetters[maskIndices[7]]][4]
-                   + letterMultiples[kmerLetters[maskIndices[8]]][3]
-                   + letterMultiples[kmerLetters[maskIndices[9]]][2]
-                   + letterMultiples[kmerLetters[maskIndices[10]]][1]
-                   + letterMultiples[kmerLetters[maskIndices[11]]][0];
-        } else if (k - s == 11) {
-            return letterMultiples[kmerLetters[maskIndices[0]]][10]
-                   + letterMultiples[kmerLetters[maskIndices[1]]][9]
-                   + letterMultiples[kmerLetters[maskIndices[2]]][8]
-                   + letterMultiples[kmerLetters[maskIndices[3]]][7]
-                   + letterMultiples[kmerLetters[maskIndices[4]]][6]
-                   + letterMultiples[kmerLetters[maskIndices[5]]][5]
-                   + letterMultiples[kmerLetters[maskIndices[6]]][4]
-                   + letterMultiples[kmerLetters[maskIndices[7]]][3]
-                   + letterMultiples[kmerLetters[maskIndices[8]]][2]
-                   + letterMultiples[kmerLetters[maskIndices[9]]][1]
-                   + letterMultiples[kmerLetters[maskIndices[10]]][0];
-        } else {
-            long result = 0;
-            for (int i = 0, j = maskIndices.length - 1; i < maskIndices.length; i++, j--) {
-                result += letterMultiples[kmerLetters[maskIndices[i]]][j];
-            }
-            return result;
+    private long encodeSpaced(byte removedLetter) {
+        long result = encoding * base + removedLetter * removedLetterCoefficient;
+        for (int i = 0; i < borderPositions.length; i++) {
+            result += kmerLetters[head + borderPositions[i]] * borderCoefficients[i];
         }
+        return result;
     }
 
-    private long encode(byte removedLetter) {
-        return (encoding - removedLetter * multiplicator) * base + kmerLetters[k - 1];
+    private long encode(byte removedLetter, byte addedLetter) {
+        return (encoding - removedLetter * multiplicator) * base + addedLetter;
     }
 
     /**
      * Resets the kmer and the encoding to zero.
      */
     public void reset() {
-        for (int i = 0; i < k; i++) {
-            kmerLetters[i] = 0;
-        }
+        Arrays.fill(kmerLetters, (byte) 0);
+        head = 0;
         encoding = 0;
     }
 
@@ -239,7 +196,7 @@ public class KmerEncoder {
         double likelihood = 1;
         for (int i = 0; i < k; i++) {
             if (mask[i]) {
-                likelihood *= letterLikelihoods[kmerLetters[i]];
+                likelihood *= letterLikelihoods[kmerLetters[head + i]];
             }
         }
         return likelihood;
@@ -248,9 +205,9 @@ public class KmerEncoder {
     public int getComplexity() {
         int complexity = 0;
         Arrays.fill(letterInKmer, false);
-        for (short kmerLetter : kmerLetters) {
-            if (!letterInKmer[kmerLetter]) {
-                letterInKmer[kmerLetter] = true;
+        for (int i = 0; i < k; i++) {
+            if (!letterInKmer[kmerLetters[i]]) {
+                letterInKmer[kmerLetters[i]] = true;
                 complexity++;
             }
         }
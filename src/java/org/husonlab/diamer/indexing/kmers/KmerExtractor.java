@@ -1,6 +1,7 @@
 package org.husonlab.diamer.indexing.kmers;
 
 import java.util.Arrays;
+import java.util.function.LongConsumer;
 
 /**
  * Class to extract and encode of kmers from a sequence.
@@ -8,6 +9,10 @@ import java.util.Arrays;
 public class KmerExtractor {
     protected final KmerEncoder kmerEncoder;
     protected final int k;
+    // reused buffer of extractKmers(byte[])
+    private long[] buffer = new long[0];
+    private int bufferSize;
+    private final LongConsumer bufferSink = this::addToBuffer;
 
     /**
      * Creates a new KmerExtractor with the given encoder.
@@ -38,27 +43,59 @@ public class KmerExtractor {
      * <p>Together with the provided {@link KmerEncoder} the mask will be shifted over the sequence and all kmers will
      * be extracted and converted to a number. The most significant bit mask position will correspond to the most
      * significant position in the kmer to number conversion.</p>
+     * <p>The kmers are collected in a buffer of the extractor that is reused for the next sequence, only the returned
+     * array is allocated. Use {@link #extractKmers(byte[], LongConsumer)} to process the kmers without allocation.</p>
      * @param sequence the sequence to extract the kmers from
      * @return the extracted kmers
      */
     public long[] extractKmers(byte[] sequence) {
-        int seqLength = sequence.length;
+        int maxNrOfKmers = Math.max(0, sequence.length - k + 1);
+        if (buffer.length < maxNrOfKmers) {
+            buffer = new long[maxNrOfKmers];
+        }
+        bufferSize = 0;
+        extractKmers(sequence, bufferSink);
+        return Arrays.copyOf(buffer, bufferSize);
+    }
+
+    private void addToBuffer(long kmer) {
+        // subclasses may extract more than one kmer per position
+        if (bufferSize == buffer.length) {
+            buffer = Arrays.copyOf(buffer, 2 * buffer.length + 16);
+        }
+        buffer[bufferSize++] = kmer;
+    }
+
+    /**
+     * Extracts the kmers from the given sequence like {@link #extractKmers(byte[])} and passes them to the sink in
+     * the order of extraction.
+     * @param sequence the sequence to extract the kmers from
+     * @param sink consumer of the extracted kmers
+     * @return the number of extracted kmers
+     */
+    public int extractKmers(byte[] sequence, LongConsumer sink) {
+        return extractKmers(sequence, 0, sequence.length, sink);
+    }
+
+    /**
+     * Extracts the kmers from the part of the sequence between {@code from} (inclusive) and {@code to} (exclusive)
+     * like {@link #extractKmers(byte[], LongConsumer)}.
+     * @return the number of extracted kmers
+     */
+    public int extractKmers(byte[] sequence, int from, int to, LongConsumer sink) {
+        int seqLength = to - from;
         if (seqLength < k) {
-            return new long[0];
+            return 0;
         }
         kmerEncoder.reset();
         // add the first k-1 characters to the encoder
         for (int i = 0; i < k - 1; i++) {
-            kmerEncoder.add(sequence[i]);
+            kmerEncoder.add(sequence[from + i]);
         }
-        // add the remaining characters to the encoder and store the resulting encoding
-        long kmerEncoding;
-        long[] kmers = new long[seqLength - k + 1];
-        int kmersIndex = 0;
+        // add the remaining characters to the encoder and pass on the resulting encoding
         for (int i = k - 1; i < seqLength; i++) {
-            kmerEncoding = kmerEncoder.add(sequence[i]);
-            kmers[kmersIndex++] = kmerEncoding;
+            sink.accept(kmerEncoder.add(sequence[from + i]));
         }
-        return Arrays.copyOf(kmers, kmersIndex);
+        return seqLength - k + 1;
     }
-}
\ No newline at end of file
+}
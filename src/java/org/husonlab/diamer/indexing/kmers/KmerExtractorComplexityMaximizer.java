@@ -1,14 +1,15 @@
 package org.husonlab.diamer.indexing.kmers;
 
-import java.util.Arrays;
+import java.util.function.LongConsumer;
 
+/**
+ * Extracts the kmer with the highest complexity of each window of {@code windowSize} letters. Consecutive windows with
+ * the same maximizer yield it only once.
+ */
 public class KmerExtractorComplexityMaximizer extends KmerExtractor {
 
     private final int windowSize;
-    private final long[] windowKmers;
-    private final int[] windowComplexities;
-    private int windowMaximizerComplexity;
-    private int windowMaximizerIndex;
+    private final MonotoneWindow window;
 
     /**
      * Creates a new KmerExtractor with the given encoder.
@@ -17,24 +18,20 @@ public class KmerExtractorComplexityMaximizer extends KmerExtractor {
     public KmerExtractorComplexityMaximizer(KmerEncoder kmerEncoder, int windowSize) {
         super(kmerEncoder);
         this.windowSize = windowSize;
-        this.windowKmers = new long[windowSize - k + 1];
-        this.windowComplexities = new int[windowSize - k + 1];
-        this.windowMaximizerComplexity = 0;
-        this.windowMaximizerIndex = 0;
+        this.window = new MonotoneWindow(windowSize - k + 1, true);
     }
 
     @Override
-    public long[] extractKmers(byte[] sequence) {
-        int seqLength = sequence.length;
+    public int extractKmers(byte[] sequence, int from, int to, LongConsumer sink) {
+        int seqLength = to - from;
         if (seqLength < windowSize) {
-            return new long[0];
+            return 0;
         }
         kmerEncoder.reset();
-        windowMaximizerIndex = 0;
-        windowMaximizerComplexity = Integer.MAX_VALUE;
+        window.reset();
         // add the first k-1 characters to the encoder
         for (int i = 0; i < k - 1; i++) {
-            kmerEncoder.add(sequence[i]);
+            kmerEncoder.add(sequence[from + i]);
         }
 
         long kmerEncoding;
@@ -42,56 +39,39 @@ public class KmerExtractorComplexityMaximizer extends KmerExtractor {
 
         // fill first maximizer window
         for (int i = k - 1; i < windowSize - 1; i++) {
-            kmerEncoding = kmerEncoder.add(sequence[i]);
-            kmerComplexity = kmerEncoder.getComplexity();
-            windowKmers[i - k + 2] = kmerEncoding; // fill positions 1 to window - k + 1 (0 stays empty)
-            windowComplexities[i - k + 2] = kmerComplexity;
+            kmerEncoding = kmerEncoder.add(sequence[from + i]);
+            window.add(kmerEncoding, kmerEncoder.getComplexity());
         }
 
         // add the remaining characters to the encoder and store the resulting encoding
-        long[] kmers = new long[seqLength - windowSize + 1]; // maximal number of maximizers that can be extracted
-        int kmersIndex = 0; // position in the kmers array
+        int windowLength = windowSize - k + 1;
+        int maximizerPosition = -1;
+        int maximizerComplexity = Integer.MAX_VALUE;
+        long lastKmer = 0;
+        int nrOfKmers = 0;
         for (int i = windowSize - 1; i < seqLength; i++) {
-            kmerEncoding = kmerEncoder.add(sequence[i]);
+            kmerEncoding = kmerEncoder.add(sequence[from + i]);
             kmerComplexity = kmerEncoder.getComplexity();
-            // shift all entries to the left and loose the first entry (index 0)
-            System.arraycopy(windowKmers, 1, windowKmers, 0, windowKmers.length - 1);
-            // replace with the new kmer
-            windowKmers[windowKmers.length - 1] = kmerEncoding;
-            System.arraycopy(windowComplexities, 1, windowComplexities, 0, windowComplexities.length - 1);
-            windowComplexities[windowComplexities.length - 1] = kmerComplexity;
-            windowMaximizerIndex--;
+            int position = window.add(kmerEncoding, kmerComplexity);
             // case current kmer is the new maximizer
-            if (kmerComplexity > windowMaximizerComplexity) {
-                windowMaximizerComplexity = kmerComplexity;
-                windowMaximizerIndex = windowKmers.length - 1;
-            }
-            // case old maximizer is out of the window (will be triggered for the first iteration)
-            if (windowMaximizerIndex < 0) {
-                findComplexityMaximizerIndex();
-                windowMaximizerComplexity = windowComplexities[windowMaximizerIndex];
+            if (kmerComplexity > maximizerComplexity) {
+                maximizerComplexity = kmerComplexity;
+                maximizerPosition = position;
+            } else if (maximizerPosition <= position - windowLength) {
+                // case old maximizer is out of the window (will be triggered for the first iteration): take the
+                // rightmost of the most complex kmers, so that it stays in the window as long as possible
+                maximizerPosition = window.getBestPosition();
+                maximizerComplexity = (int) window.getValue(maximizerPosition);
             }
             // add maximizer if it is the first or different from the last one.
             // in a constructed dataset, it might be possible that only one maximizer is extracted independent of the
             // input sequence length, but in real data this should not happen
-            if (kmersIndex == 0 || windowKmers[windowMaximizerIndex] != kmers[kmersIndex - 1]) {
-                kmers[kmersIndex++] = windowKmers[windowMaximizerIndex];
-            }
-        }
-        return Arrays.copyOf(kmers, kmersIndex);
-    }
-
-    /**
-     * Finds the highest index of the most complex kmer in the window.
-     * Using the highest index ensures that the kmer stays in the window as long as possible.
-     */
-    private void findComplexityMaximizerIndex() {
-        windowMaximizerComplexity = 0;
-        for (int i = 0; i < windowKmers.length; i++) {
-            if (windowComplexities[i] >= windowMaximizerComplexity) {
-                windowMaximizerComplexity = windowComplexities[i];
-                windowMaximizerIndex = i;
+            if (nrOfKmers == 0 || window.getKmer(maximizerPosition) != lastKmer) {
+                lastKmer = window.getKmer(maximizerPosition);
+                sink.accept(lastKmer);
+                nrOfKmers++;
             }
         }
+        return nrOfKmers;
     }
 }
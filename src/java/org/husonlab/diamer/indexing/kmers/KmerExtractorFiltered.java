@@ -1,6 +1,6 @@
 package org.husonlab.diamer.indexing.kmers;
 
-import java.util.Arrays;
+import java.util.function.LongConsumer;
 
 public abstract class KmerExtractorFiltered extends KmerExtractor {
     public KmerExtractorFiltered(KmerEncoder kmerEncoder) {
@@ -8,27 +8,27 @@ public abstract class KmerExtractorFiltered extends KmerExtractor {
     }
 
     @Override
-    public long[] extractKmers(byte[] sequence) {
-        int seqLength = sequence.length;
+    public int extractKmers(byte[] sequence, int from, int to, LongConsumer sink) {
+        int seqLength = to - from;
         if (seqLength < k) {
-            return new long[0];
+            return 0;
         }
         kmerEncoder.reset();
         // add the first k-1 characters to the encoder
         for (int i = 0; i < k - 1; i++) {
-            kmerEncoder.add(sequence[i]);
+            kmerEncoder.add(sequence[from + i]);
         }
-        // add the remaining characters to the encoder and store the resulting encoding
+        // add the remaining characters to the encoder and pass on the resulting encoding
         long kmerEncoding;
-        long[] kmers = new long[seqLength - k + 1];
-        int kmersIndex = 0;
+        int nrOfKmers = 0;
         for (int i = k - 1; i < seqLength; i++) {
-            kmerEncoding = kmerEncoder.add(sequence[i]);
+            kmerEncoding = kmerEncoder.add(sequence[from + i]);
             if (keep(kmerEncoding)) {
-                kmers[kmersIndex++] = kmerEncoding;
+                sink.accept(kmerEncoding);
+                nrOfKmers++;
             }
         }
-        return Arrays.copyOf(kmers, kmersIndex);
+        return nrOfKmers;
     }
 
     public abstract boolean keep(long kmer);
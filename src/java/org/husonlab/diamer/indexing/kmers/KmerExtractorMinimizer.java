@@ -1,14 +1,15 @@
 package org.husonlab.diamer.indexing.kmers;
 
-import java.util.Arrays;
+import java.util.function.LongConsumer;
 
+/**
+ * Extracts the kmer with the smallest hash of each window of {@code windowSize} letters. Consecutive windows with the
+ * same minimizer yield it only once.
+ */
 public class KmerExtractorMinimizer extends KmerExtractor {
 
     private final int windowSize;
-    private final long[] windowKmers;
-    private final long[] windowHashes;
-    private long windowMinimizerHash;
-    private int windowMinimizerIndex;
+    private final MonotoneWindow window;
 
     /**
      * Creates a new KmerExtractor with the given encoder.
@@ -17,27 +18,26 @@ public class KmerExtractorMinimizer extends KmerExtractor {
     public KmerExtractorMinimizer(KmerEncoder kmerEncoder, int windowSize) {
         super(kmerEncoder);
         this.windowSize = windowSize;
-        this.windowKmers = new long[windowSize - k + 1];
-        this.windowHashes = new long[windowSize - k + 1];
-        this.windowMinimizerHash = Long.MAX_VALUE;
-        this.windowMinimizerIndex = 0;
+        this.window = new MonotoneWindow(windowSize - k + 1, false);
     }
 
     /**
      * Extracts the minimizers from the given sequence.
+     * <p>The minimizer is only replaced by a kmer with a strictly smaller hash or, when it leaves the window, by the
+     * rightmost kmer with the smallest hash in the window. The first minimizer is the last kmer of the first
+     * window.</p>
      */
     @Override
-    public long[] extractKmers(byte[] sequence) {
-        int seqLength = sequence.length;
+    public int extractKmers(byte[] sequence, int from, int to, LongConsumer sink) {
+        int seqLength = to - from;
         if (seqLength < windowSize) {
-            return new long[0];
+            return 0;
         }
         kmerEncoder.reset();
-        windowMinimizerIndex = 0;
-        windowMinimizerHash = Long.MAX_VALUE;
+        window.reset();
         // add the first k-1 characters to the encoder
         for (int i = 0; i < k - 1; i++) {
-            kmerEncoder.add(sequence[i]);
+            kmerEncoder.add(sequence[from + i]);
         }
 
         long kmerEncoding;
@@ -45,35 +45,35 @@ public class KmerExtractorMinimizer extends KmerExtractor {
 
         // fill first minimizer window
         for (int i = k - 1; i < windowSize - 1; i++) {
-            kmerEncoding = kmerEncoder.add(sequence[i]);
-            windowKmers[i - k + 2] = kmerEncoding;
-            windowHashes[i - k + 2] = hashFunction(kmerEncoding);
+            kmerEncoding = kmerEncoder.add(sequence[from + i]);
+            window.add(kmerEncoding, hashFunction(kmerEncoding));
         }
 
         // add the remaining characters to the encoder and store the resulting encoding
-        long[] kmers = new long[seqLength - windowSize + 1];
-        int kmersIndex = 0;
+        int windowLength = windowSize - k + 1;
+        int minimizerPosition = -1;
+        long minimizerHash = Long.MAX_VALUE;
+        long lastKmer = 0;
+        int nrOfKmers = 0;
         for (int i = windowSize - 1; i < seqLength; i++) {
-            kmerEncoding = kmerEncoder.add(sequence[i]);
+            kmerEncoding = kmerEncoder.add(sequence[from + i]);
             kmerHash = hashFunction(kmerEncoding);
-            System.arraycopy(windowKmers, 1, windowKmers, 0, windowKmers.length - 1);
-            windowKmers[windowKmers.length - 1] = kmerEncoding;
-            System.arraycopy(windowHashes, 1, windowHashes, 0, windowHashes.length - 1);
-            windowHashes[windowHashes.length - 1] = kmerHash;
-            windowMinimizerIndex--;
-            if (kmerHash < windowMinimizerHash) {
-                windowMinimizerHash = kmerHash;
-                windowMinimizerIndex = windowKmers.length - 1;
+            int position = window.add(kmerEncoding, kmerHash);
+            if (kmerHash < minimizerHash) {
+                minimizerHash = kmerHash;
+                minimizerPosition = position;
+            } else if (minimizerPosition <= position - windowLength) {
+                // the old minimizer is out of the window
+                minimizerPosition = window.getBestPosition();
+                minimizerHash = (long) window.getValue(minimizerPosition);
             }
-            if (windowMinimizerIndex < 0) {
-                findMinimizer();
-                windowMinimizerHash = windowHashes[windowMinimizerIndex];
-            }
-            if (kmersIndex == 0 || windowKmers[windowMinimizerIndex] != kmers[kmersIndex - 1]) {
-                kmers[kmersIndex++] = windowKmers[windowMinimizerIndex];
+            if (nrOfKmers == 0 || window.getKmer(minimizerPosition) != lastKmer) {
+                lastKmer = window.getKmer(minimizerPosition);
+                sink.accept(lastKmer);
+                nrOfKmers++;
             }
         }
-        return Arrays.copyOf(kmers, kmersIndex);
+        return nrOfKmers;
     }
 
     private static int hashFunction(long value) {
@@ -81,14 +81,4 @@ public class KmerExtractorMinimizer extends KmerExtractor {
         value = (value ^ (value >>> 33)) * 0xc4ceb9fe1a85ec53L;
         return (int) (value ^ (value >>> 33));
     }
-
-    private void findMinimizer() {
-        windowMinimizerHash = Long.MAX_VALUE;
-        for (int i = 0; i < windowHashes.length; i++) {
-            if (windowHashes[i] <= windowMinimizerHash) {
-                windowMinimizerHash = windowHashes[i];
-                windowMinimizerIndex = i;
-            }
-        }
-    }
 }
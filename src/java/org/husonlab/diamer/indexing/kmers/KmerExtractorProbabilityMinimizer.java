@@ -1,14 +1,15 @@
 package org.husonlab.diamer.indexing.kmers;
 
-import java.util.Arrays;
+import java.util.function.LongConsumer;
 
+/**
+ * Extracts the kmer with the lowest probability of each window of {@code windowSize} letters. Consecutive windows with
+ * the same minimizer yield it only once.
+ */
 public class KmerExtractorProbabilityMinimizer extends KmerExtractor {
 
     private final int windowSize;
-    private final long[] windowKmers;
-    private final double[] windowProbabilities;
-    private double windowMinimizerProbability;
-    private int windowMinimizerIndex;
+    private final MonotoneWindow window;
 
     /**
      * Creates a new KmerExtractor with the given encoder.
@@ -18,27 +19,25 @@ public class KmerExtractorProbabilityMinimizer extends KmerExtractor {
     public KmerExtractorProbabilityMinimizer(KmerEncoder kmerEncoder, int windowSize) {
         super(kmerEncoder);
         this.windowSize = windowSize;
-        this.windowKmers = new long[windowSize - k + 1];
-        this.windowProbabilities = new double[windowSize - k + 1];
-        this.windowMinimizerProbability = Double.MAX_VALUE;
-        this.windowMinimizerIndex = 0;
+        this.window = new MonotoneWindow(windowSize - k + 1, false);
     }
 
     /**
      * Extracts the minimizers from the given sequence.
+     * <p>The minimizer is only replaced by a kmer with a strictly lower probability or, when it leaves the window, by
+     * the rightmost kmer with the lowest probability in the window.</p>
      */
     @Override
-    public long[] extractKmers(byte[] sequence) {
-        int seqLength = sequence.length;
+    public int extractKmers(byte[] sequence, int from, int to, LongConsumer sink) {
+        int seqLength = to - from;
         if (seqLength < windowSize) {
-            return new long[0];
+            return 0;
         }
         kmerEncoder.reset();
-        windowMinimizerIndex = 0;
-        windowMinimizerProbability = 0;
+        window.reset();
         // add the first k-1 characters to the encoder
         for (int i = 0; i < k - 1; i++) {
-            kmerEncoder.add(sequence[i]);
+            kmerEncoder.add(sequence[from + i]);
         }
 
         long kmerEncoding;
@@ -46,45 +45,34 @@ public class KmerExtractorProbabilityMinimizer extends KmerExtractor {
 
         // fill first minimizer window
         for (int i = k - 1; i < windowSize - 1; i++) {
-            kmerEncoding = kmerEncoder.add(sequence[i]);
-            kmerProbability = kmerEncoder.getProbability();
-            windowKmers[i - k + 2] = kmerEncoding;
-            windowProbabilities[i - k + 2] = kmerProbability;
+            kmerEncoding = kmerEncoder.add(sequence[from + i]);
+            window.add(kmerEncoding, kmerEncoder.getProbability());
         }
 
         // add the remaining characters to the encoder and store the resulting encoding
-        long[] kmers = new long[seqLength - windowSize + 1];
-        int kmersIndex = 0;
+        int windowLength = windowSize - k + 1;
+        int minimizerPosition = -1;
+        double minimizerProbability = 0;
+        long lastKmer = 0;
+        int nrOfKmers = 0;
         for (int i = windowSize - 1; i < seqLength; i++) {
-            kmerEncoding = kmerEncoder.add(sequence[i]);
+            kmerEncoding = kmerEncoder.add(sequence[from + i]);
             kmerProbability = kmerEncoder.getProbability();
-            System.arraycopy(windowKmers, 1, windowKmers, 0, windowKmers.length - 1);
-            windowKmers[windowKmers.length - 1] = kmerEncoding;
-            System.arraycopy(windowProbabilities, 1, windowProbabilities, 0, windowProbabilities.length - 1);
-            windowProbabilities[windowProbabilities.length - 1] = kmerProbability;
-            windowMinimizerIndex--;
-            if (kmerProbability < windowMinimizerProbability) {
-                windowMinimizerProbability = kmerProbability;
-                windowMinimizerIndex = windowKmers.length - 1;
-            }
-            if (windowMinimizerIndex < 0) {
-                findProbabilityMinimizerIndex();
-                windowMinimizerProbability = windowProbabilities[windowMinimizerIndex];
-            }
-            if (kmersIndex == 0 || windowKmers[windowMinimizerIndex] != kmers[kmersIndex - 1]) {
-                kmers[kmersIndex++] = windowKmers[windowMinimizerIndex];
+            int position = window.add(kmerEncoding, kmerProbability);
+            if (kmerProbability < minimizerProbability) {
+                minimizerProbability = kmerProbability;
+                minimizerPosition = position;
+            } else if (minimizerPosition <= position - windowLength) {
+                // the old minimizer is out of the window (always the case in the first iteration)
+                minimizerPosition = window.getBestPosition();
+                minimizerProbability = window.getValue(minimizerPosition);
             }
-        }
-        return Arrays.copyOf(kmers, kmersIndex);
-    }
-
-    private void findProbabilityMinimizerIndex() {
-        windowMinimizerProbability = Double.MAX_VALUE;
-        for (int i = 0; i < windowKmers.length; i++) {
-            if (windowProbabilities[i] <= windowMinimizerProbability) {
-                windowMinimizerProbability = windowProbabilities[i];
-                windowMinimizerIndex = i;
+            if (nrOfKmers == 0 || window.getKmer(minimizerPosition) != lastKmer) {
+                lastKmer = window.getKmer(minimizerPosition);
+                sink.accept(lastKmer);
+                nrOfKmers++;
             }
         }
+        return nrOfKmers;
     }
 }
@@ -0,0 +1,95 @@
+package org.husonlab.diamer.indexing.kmers;
+
+import java.util.function.LongConsumer;
+
+/**
+ * Extracts the open or closed syncmers of a sequence.
+ * <p>
+ *     The k letters of a kmer (including the spaces of the mask) contain {@code k - s + 1} s-mers of consecutive
+ *     letters. A kmer is a closed syncmer if its s-mer with the smallest hash is the first or the last one and an open
+ *     syncmer if it is the one in the middle (offset {@code (k - s) / 2}). Ties are resolved in favour of the last
+ *     s-mer.
+ * </p>
+ * <p>
+ *     In contrast to window minimizers, the selection of a kmer only depends on its own letters. The same kmers are
+ *     selected in the database and in the reads, even close to the ends of the sequences, which are frequent in
+ *     translations split at stop codons. Open syncmers keep about {@code 1 / (k - s + 1)} of the kmers, closed
+ *     syncmers about {@code 2 / (k - s + 1)}.
+ * </p>
+ */
+public class KmerExtractorSyncmer extends KmerExtractor {
+
+    private final int smerLength;
+    private final boolean closed;
+    private final int base;
+    /**
+     * base^(s-1), the factor of the first letter of an s-mer
+     */
+    private final long firstLetterFactor;
+    private final MonotoneWindow smerWindow;
+
+    /**
+     * @param kmerEncoder the encoder to use
+     * @param smerLength length s of the s-mers, smaller than the length of the mask
+     * @param closed true to extract closed syncmers, false to extract open syncmers
+     */
+    public KmerExtractorSyncmer(KmerEncoder kmerEncoder, int smerLength, boolean closed) {
+        super(kmerEncoder);
+        this.base = kmerEncoder.getBase();
+        if (smerLength < 1 || smerLength >= k || smerLength * Math.log(base) / Math.log(2) > 62) {
+            throw new IllegalArgumentException("Invalid s-mer length: " + smerLength);
+        }
+        this.smerLength = smerLength;
+        this.closed = closed;
+        long factor = 1;
+        for (int i = 1; i < smerLength; i++) {
+            factor *= base;
+        }
+        this.firstLetterFactor = factor;
+        this.smerWindow = new MonotoneWindow(k - smerLength + 1, false);
+    }
+
+    @Override
+    public int extractKmers(byte[] sequence, int from, int to, LongConsumer sink) {
+        int seqLength = to - from;
+        if (seqLength < k) {
+            return 0;
+        }
+        kmerEncoder.reset();
+        smerWindow.reset();
+        int nrOfSmers = k - smerLength + 1;
+        int offset = (k - smerLength) / 2;
+        long smer = 0;
+        int nrOfKmers = 0;
+        for (int i = 0; i < seqLength; i++) {
+            byte letter = sequence[from + i];
+            long kmerEncoding = kmerEncoder.add(letter);
+            if (i >= smerLength) {
+                smer -= sequence[from + i - smerLength] * firstLetterFactor;
+            }
+            smer = smer * base + letter;
+            if (i >= smerLength - 1) {
+                // the position of the s-mer in the window is the position of its first letter
+                smerWindow.add(smer, hashFunction(smer));
+            }
+            if (i >= k - 1) {
+                int firstSmer = i - k + 1;
+                int minimalSmer = smerWindow.getBestPosition();
+                boolean syncmer = closed ?
+                        minimalSmer == firstSmer || minimalSmer == firstSmer + nrOfSmers - 1 :
+                        minimalSmer == firstSmer + offset;
+                if (syncmer) {
+                    sink.accept(kmerEncoding);
+                    nrOfKmers++;
+                }
+            }
+        }
+        return nrOfKmers;
+    }
+
+    private static int hashFunction(long value) {
+        value = (value ^ (value >>> 33)) * 0xff51afd7ed558ccdL;
+        value = (value ^ (value >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return (int) (value ^ (value >>> 33));
+    }
+}
@@ -0,0 +1,98 @@
+package org.husonlab.diamer.indexing.kmers;
+
+/**
+ * Sliding window over the last {@code size} kmers of a sequence that knows the kmer with the best value.
+ * <p>
+ *     The kmers and their values are stored in ring buffers. A monotone deque holds the positions of all kmers that
+ *     can still become the best kmer of a later window: a new kmer removes all kmers from the back of the deque that
+ *     are not better and the front of the deque leaves the window after {@code size} kmers. The front of the deque is
+ *     always the best kmer of the window and the rightmost of all kmers with the best value, so that it stays in the
+ *     window as long as possible. Each kmer enters and leaves the deque once, so adding a kmer takes amortized
+ *     constant time independent of the window size.
+ * </p>
+ * <p>
+ *     Positions count the kmers added since the last {@link #reset()}, starting at 0. Integer values (hashes,
+ *     complexities) are stored as doubles, which represents them exactly.
+ * </p>
+ */
+class MonotoneWindow {
+    private final int size;
+    private final boolean maximize;
+    private final int mask;
+    private final long[] kmers;
+    private final double[] values;
+    /**
+     * Positions of the deque, {@link #head} and {@link #tail} are increasing counters (modulo the capacity).
+     */
+    private final int[] deque;
+    private int head;
+    private int tail;
+    private int position;
+
+    /**
+     * @param size number of kmers in the window
+     * @param maximize true if the kmer with the largest value is the best, false if it is the one with the smallest
+     */
+    MonotoneWindow(int size, boolean maximize) {
+        this.size = size;
+        this.maximize = maximize;
+        int capacity = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+        this.mask = capacity - 1;
+        this.kmers = new long[capacity];
+        this.values = new double[capacity];
+        this.deque = new int[capacity];
+    }
+
+    /**
+     * Empties the window.
+     */
+    void reset() {
+        head = 0;
+        tail = 0;
+        position = 0;
+    }
+
+    /**
+     * Adds the kmer as the last kmer of the window, the first kmer leaves the window if it is full.
+     * @return the position of the added kmer
+     */
+    int add(long kmer, double value) {
+        int p = position++;
+        // only the front can leave the window, since one kmer is added at a time
+        if (head != tail && deque[head & mask] <= p - size) {
+            head++;
+        }
+        while (head != tail && !isBetter(values[deque[(tail - 1) & mask] & mask], value)) {
+            tail--;
+        }
+        kmers[p & mask] = kmer;
+        values[p & mask] = value;
+        deque[tail++ & mask] = p;
+        return p;
+    }
+
+    private boolean isBetter(double value, double than) {
+        return maximize ? value > than : value < than;
+    }
+
+    /**
+     * @return the position of the rightmost kmer with the best value in the window
+     */
+    int getBestPosition() {
+        return deque[head & mask];
+    }
+
+    /**
+     * @param position position of a kmer in the window
+     */
+    long getKmer(int position) {
+        return kmers[position & mask];
+    }
+
+    /**
+     * @param position position of a kmer in the window
+     */
+    double getValue(int position) {
+        return values[position & mask];
+    }
+}
@@ -0,0 +1,52 @@
+package org.husonlab.diamer.indexing.kmers;
+
+import java.util.function.LongConsumer;
+
+/**
+ * Extracts the kmers of several masks (seeds) of the same length from a sequence.
+ * <p>
+ *     Each seed has its own {@link KmerExtractor} (with its own filtering), all of them are run over the same part of
+ *     the sequence. The kmers of seed {@code i} are tagged with {@code i} in the bits above the kmer bits, so that
+ *     the kmers of different seeds never match and one index can store the kmers of all seeds. As the tag is in the
+ *     most significant bits, the sorted entries of a bucket are grouped by seed.
+ * </p>
+ */
+public class MultiSeedKmerExtractor extends KmerExtractor {
+    private final KmerExtractor[] seedExtractors;
+    private final LongConsumer[] seedSinks;
+    private LongConsumer sink;
+
+    /**
+     * @param seedExtractors extractors of the seeds, the seed ID is the index in the array
+     * @param seedShift position of the lowest bit of the seed ID in the tagged kmers
+     */
+    public MultiSeedKmerExtractor(KmerExtractor[] seedExtractors, int seedShift) {
+        super(seedExtractors[0].kmerEncoder);
+        this.seedExtractors = seedExtractors;
+        this.seedSinks = new LongConsumer[seedExtractors.length];
+        for (int i = 0; i < seedExtractors.length; i++) {
+            if (seedExtractors[i].getK() != k) {
+                throw new IllegalArgumentException("All masks must have the same length.");
+            }
+            long seedTag = (long) i << seedShift;
+            seedSinks[i] = kmer -> sink.accept(kmer | seedTag);
+        }
+    }
+
+    /**
+     * Extracts the kmers of all seeds, first all kmers of seed 0, then all kmers of seed 1 and so on.
+     */
+    @Override
+    public int extractKmers(byte[] sequence, int from, int to, LongConsumer sink) {
+        this.sink = sink;
+        int nrOfKmers = 0;
+        for (int i = 0; i < seedExtractors.length; i++) {
+            nrOfKmers += seedExtractors[i].extractKmers(sequence, from, to, seedSinks[i]);
+        }
+        return nrOfKmers;
+    }
+
+    public int getNrOfSeeds() {
+        return seedExtractors.length;
+    }
+}
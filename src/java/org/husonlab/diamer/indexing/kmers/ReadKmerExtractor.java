@@ -0,0 +1,80 @@
+package org.husonlab.diamer.indexing.kmers;
+
+import org.husonlab.diamer.seq.alphabet.ReducedAlphabet;
+
+import java.util.function.LongConsumer;
+
+/**
+ * Translates DNA reads in all six reading frames and extracts the kmers of the translations in one step.
+ * <p>
+ *     The result is the same as extracting the kmers of all sequences returned by
+ *     {@link ReducedAlphabet#translateRead(char[])} in the same order, but the read is translated with the codon table
+ *     of the alphabet into frame buffers that are reused for the next read and the fragments between stop codons are
+ *     passed to the {@link KmerExtractor} without being copied. An instance must only be used by one thread.
+ * </p>
+ */
+public class ReadKmerExtractor {
+    private final KmerExtractor kmerExtractor;
+    private final byte[] codonTable;
+    private final int minLength;
+    private final byte[][] frames = new byte[6][0];
+    private int nrOfFragments;
+
+    /**
+     * @param alphabet alphabet to translate the reads into
+     * @param kmerExtractor extractor of the kmers of the translated fragments
+     * @param minLength fragments shorter than this are skipped
+     */
+    public ReadKmerExtractor(ReducedAlphabet alphabet, KmerExtractor kmerExtractor, int minLength) {
+        this.kmerExtractor = kmerExtractor;
+        this.codonTable = alphabet.getCodonTable();
+        this.minLength = minLength;
+    }
+
+    /**
+     * Translates the read and passes the kmers of all fragments with at least {@code minLength} amino acids to the
+     * sink.
+     * @param dna DNA sequence of the read (upper case)
+     * @param sink consumer of the extracted kmers
+     * @return the number of fragments whose kmers have been extracted
+     */
+    public int extractKmers(char[] dna, LongConsumer sink) {
+        nrOfFragments = 0;
+        if (dna.length < 3) {
+            return 0;
+        }
+        int maxFrameLength = dna.length / 3;
+        if (frames[0].length < maxFrameLength) {
+            for (int i = 0; i < 6; i++) {
+                frames[i] = new byte[maxFrameLength];
+            }
+        }
+        ReducedAlphabet.translateFrames(dna, codonTable, frames);
+        int processedFragments = 0;
+        for (int i = 0; i < 6; i++) {
+            byte[] frame = frames[i];
+            int frameLength = (dna.length - i / 2) / 3;
+            int start = 0;
+            for (int j = 0; j <= frameLength; j++) {
+                if (j == frameLength || frame[j] == -1) {
+                    if (j > start) {
+                        nrOfFragments++;
+                        if (j - start >= minLength) {
+                            kmerExtractor.extractKmers(frame, start, j, sink);
+                            processedFragments++;
+                        }
+                    }
+                    start = j + 1;
+                }
+            }
+        }
+        return processedFragments;
+    }
+
+    /**
+     * @return the number of (non-empty) fragments of the last read, including the ones that were too short
+     */
+    public int getNrOfFragments() {
+        return nrOfFragments;
+    }
+}
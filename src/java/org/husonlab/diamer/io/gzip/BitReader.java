@@ -0,0 +1,165 @@
+package org.husonlab.diamer.io.gzip;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a file bit by bit in the order used by deflate (least significant bit first).
+ * <p>
+ *     The reader can be positioned at any bit offset of the file, which is required to start decoding at a deflate
+ *     block boundary in the middle of a gzip member.
+ * </p>
+ */
+final class BitReader {
+    private static final VarHandle LONG_LE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final int BUFFER_SIZE = 1 << 20;
+    /**
+     * Number of zero bytes that may be read past the end of the file before an {@link EOFException} is thrown.
+     * Padding is required since the decoder refills the bit buffer before it knows how many bits it needs.
+     */
+    private static final int MAX_PADDING = 16;
+
+    private final FileChannel channel;
+    private final long fileSize;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private long bufferStart;
+    private int bufferLength;
+    private int position;
+    private int padding;
+    private long bitBuffer;
+    private int bitCount;
+
+    BitReader(FileChannel channel, long fileSize) {
+        this.channel = channel;
+        this.fileSize = fileSize;
+    }
+
+    /**
+     * Positions the reader at the given bit offset of the file.
+     */
+    void seek(long bitOffset) throws IOException {
+        long byteOffset = bitOffset >>> 3;
+        if (byteOffset >= bufferStart && byteOffset < bufferStart + bufferLength) {
+            position = (int) (byteOffset - bufferStart);
+        } else {
+            load(byteOffset);
+        }
+        bitBuffer = 0;
+        bitCount = 0;
+        padding = 0;
+        refill();
+        skip((int) (bitOffset & 7));
+    }
+
+    /**
+     * @return the current bit offset in the file
+     */
+    long position() {
+        return (bufferStart + position + padding) * 8 - bitCount;
+    }
+
+    /**
+     * @return the size of the file in bytes
+     */
+    long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * @return true if all bits of the file have been consumed
+     */
+    boolean isAtEnd() {
+        return position() >= fileSize * 8;
+    }
+
+    /**
+     * Ensures that at least 56 bits are available in the bit buffer.
+     */
+    void refill() throws IOException {
+        if (position + 8 <= bufferLength) {
+            bitBuffer |= (long) LONG_LE.get(buffer, position) << bitCount;
+            position += (63 - bitCount) >>> 3;
+            bitCount |= 56;
+            return;
+        }
+        while (bitCount <= 56) {
+            if (position >= bufferLength && !load(bufferStart + position)) {
+                if (++padding > MAX_PADDING) {
+                    throw new EOFException("Unexpected end of compressed file.");
+                }
+                bitCount += 8;
+                continue;
+            }
+            bitBuffer |= (buffer[position++] & 0xFFL) << bitCount;
+            bitCount += 8;
+        }
+    }
+
+    /**
+     * @return the next n (&lt;= 56) bits without consuming them, {@link #refill()} has to be called beforehand
+     */
+    long peek(int n) {
+        return bitBuffer & ((1L << n) - 1);
+    }
+
+    /**
+     * Consumes n bits, {@link #refill()} has to be called beforehand.
+     */
+    void skip(int n) {
+        bitBuffer >>>= n;
+        bitCount -= n;
+    }
+
+    /**
+     * @return the next n (&lt;= 56) bits
+     */
+    int bits(int n) throws IOException {
+        if (bitCount < n) {
+            refill();
+        }
+        int bits = (int) (bitBuffer & ((1L << n) - 1));
+        bitBuffer >>>= n;
+        bitCount -= n;
+        return bits;
+    }
+
+    /**
+     * Discards the remaining bits of the current byte.
+     */
+    void alignToByte() {
+        skip(bitCount & 7);
+    }
+
+    /**
+     * Reads the next byte, the reader has to be aligned to a byte boundary.
+     */
+    int readByte() throws IOException {
+        return bits(8);
+    }
+
+    /**
+     * Loads the file content starting at the given byte offset into the buffer.
+     * @return false if the offset is at or behind the end of the file
+     */
+    private boolean load(long byteOffset) throws IOException {
+        bufferStart = byteOffset;
+        position = 0;
+        bufferLength = 0;
+        if (byteOffset >= fileSize) {
+            return false;
+        }
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+        while (byteBuffer.hasRemaining() && byteOffset + byteBuffer.position() < fileSize) {
+            if (channel.read(byteBuffer, byteOffset + byteBuffer.position()) < 0) {
+                break;
+            }
+        }
+        bufferLength = byteBuffer.position();
+        return bufferLength > 0;
+    }
+}
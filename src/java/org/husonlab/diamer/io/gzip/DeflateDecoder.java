@@ -0,0 +1,610 @@
+package org.husonlab.diamer.io.gzip;
+
+import org.husonlab.diamer.util.FlexibleLongArray;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+/**
+ * Deflate decoder that can start decoding at any block boundary of a gzip file, even without knowing the preceding
+ * 32 KiB of uncompressed data (the window).
+ * <p>
+ *     Back-references into the unknown window are decoded as markers that point to a position in the window. The
+ *     output is kept as chars until the last 32 KiB of decoded data are free of markers, from there on no marker can
+ *     occur anymore and the output is stored as bytes. The markers are replaced with the actual data by
+ *     {@link Chunk#resolve(byte[], int)} as soon as the preceding data is known.
+ * </p>
+ * <p>
+ *     Block boundaries are found by testing every bit offset for a valid dynamic Huffman block header (like
+ *     <a href="https://github.com/mxmlnkn/rapidgzip">rapidgzip</a> and pugz do). Chunks always end at the first dynamic
+ *     block that starts at or behind the end bit of the chunk, so that the decoder of the previous chunk stops exactly
+ *     where the block finder of the next chunk starts. If the two do not match (false positive of the block finder),
+ *     the chunk has to be decoded again from the correct position.
+ * </p>
+ */
+final class DeflateDecoder {
+    static final int WINDOW_SIZE = 32_768;
+    /**
+     * Output values from this value onward are markers for the position (value - MARKER_OFFSET) in the window.
+     */
+    static final int MARKER_OFFSET = 256;
+
+    private static final int[] LENGTH_BASE = {
+            3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31, 35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195,
+            227, 258};
+    private static final int[] LENGTH_EXTRA = {
+            0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0};
+    private static final int[] DISTANCE_BASE = {
+            1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193, 257, 385, 513, 769, 1025, 1537, 2049, 3073,
+            4097, 6145, 8193, 12289, 16385, 24577};
+    private static final int[] DISTANCE_EXTRA = {
+            0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13};
+    private static final int[] CODE_LENGTH_ORDER = {16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15};
+    private static final HuffmanTable FIXED_LITERALS = new HuffmanTable();
+    private static final HuffmanTable FIXED_DISTANCES = new HuffmanTable();
+    /**
+     * Whether the first 13 bits of a block can be the start of a dynamic Huffman block header.
+     */
+    private static final boolean[] CANDIDATE_HEADERS = new boolean[1 << 13];
+
+    static {
+        byte[] lengths = new byte[288 + 32];
+        Arrays.fill(lengths, 0, 144, (byte) 8);
+        Arrays.fill(lengths, 144, 256, (byte) 9);
+        Arrays.fill(lengths, 256, 280, (byte) 7);
+        Arrays.fill(lengths, 280, 288, (byte) 8);
+        Arrays.fill(lengths, 288, 320, (byte) 5);
+        FIXED_LITERALS.build(lengths, 0, 288, false);
+        FIXED_DISTANCES.build(lengths, 288, 32, false);
+        for (int header = 0; header < CANDIDATE_HEADERS.length; header++) {
+            CANDIDATE_HEADERS[header] = (header >>> 1 & 3) == 2 && (header >>> 3 & 31) <= 29 && (header >>> 8 & 31) <= 29;
+        }
+    }
+
+    private final BitReader reader;
+    private final HuffmanTable codeLengths = new HuffmanTable();
+    private final HuffmanTable literals = new HuffmanTable();
+    private final HuffmanTable distances = new HuffmanTable();
+    private final byte[] lengths = new byte[286 + 30];
+    private final byte[] codeLengthLengths = new byte[19];
+
+    // state of the chunk that is currently decoded
+    private char[] markerOutput;
+    private int markerLength;
+    private int lastMarkerEnd;
+    private byte[] output;
+    private int outputStart;
+    private int outputLength;
+    private boolean byteMode;
+
+    DeflateDecoder(FileChannel channel, long fileSize) {
+        this.reader = new BitReader(channel, fileSize);
+    }
+
+    /**
+     * @return the bit reader of this decoder, e.g. to parse a gzip header
+     */
+    BitReader getReader() {
+        return reader;
+    }
+
+    /**
+     * Searches for a chunk start in [fromBit, untilBit) and decodes the chunk from there.
+     * @return the decoded chunk or null if no valid block start was found
+     */
+    Chunk decodeSpeculatively(long fromBit, long untilBit) throws IOException {
+        long candidate = fromBit;
+        while ((candidate = findBlockStart(candidate, untilBit)) >= 0) {
+            try {
+                return decode(candidate, untilBit, null, 0);
+            } catch (DataFormatException | EOFException e) {
+                // false positive of the block finder
+                candidate++;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the first bit offset in [fromBit, untilBit) at which a valid dynamic Huffman block header starts.
+     * @return the bit offset or -1 if there is none
+     */
+    long findBlockStart(long fromBit, long untilBit) throws IOException {
+        untilBit = Math.min(untilBit, reader.getFileSize() * 8);
+        for (long byteStart = fromBit & ~7L; byteStart < untilBit; byteStart += 8) {
+            reader.seek(byteStart);
+            long bits = reader.peek(20);
+            for (int shift = 0; shift < 8; shift++) {
+                long bit = byteStart + shift;
+                // quick check of BTYPE (BFINAL is ignored) and the number of literal and distance codes
+                if (bit < fromBit || bit >= untilBit || !CANDIDATE_HEADERS[(int) (bits >>> shift) & 0x1FFF]) {
+                    continue;
+                }
+                reader.seek(bit + 3);
+                try {
+                    if (readDynamicTables()) {
+                        return bit;
+                    }
+                } catch (EOFException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Decodes the deflate stream from a block boundary until the first dynamic Huffman block that starts at or behind
+     * stopBit or until the end of the gzip file.
+     * <p>
+     *     Following gzip members are decoded as well, their trailers are recorded in the returned chunk.
+     * </p>
+     * @param startBit bit offset of the first block
+     * @param stopBit bit offset from which on the decoding stops at the next dynamic block
+     * @param window the uncompressed data preceding the chunk or null if unknown
+     * @param windowLength number of valid bytes at the end of the window array
+     */
+    Chunk decode(long startBit, long stopBit, byte[] window, int windowLength) throws IOException, DataFormatException {
+        Chunk chunk = new Chunk(startBit);
+        if (window == null) {
+            byteMode = false;
+            markerOutput = new char[1 << 16];
+            markerLength = 0;
+            lastMarkerEnd = 0;
+            output = null;
+            outputStart = 0;
+            outputLength = 0;
+        } else {
+            byteMode = true;
+            markerOutput = new char[0];
+            markerLength = 0;
+            output = new byte[1 << 20];
+            System.arraycopy(window, window.length - windowLength, output, 0, windowLength);
+            outputStart = windowLength;
+            outputLength = windowLength;
+        }
+
+        reader.seek(startBit);
+        while (true) {
+            long blockStart = reader.position();
+            if (reader.isAtEnd()) {
+                throw new EOFException("Unexpected end of compressed file.");
+            }
+            int header = reader.bits(3);
+            int type = header >>> 1;
+            if (type == 2 && blockStart >= stopBit) {
+                chunk.endBit = blockStart;
+                break;
+            }
+            switch (type) {
+                case 0 -> copyStoredBlock();
+                case 1 -> decodeBlock(FIXED_LITERALS, FIXED_DISTANCES);
+                case 2 -> {
+                    if (!readDynamicTables()) {
+                        throw new DataFormatException("Invalid dynamic Huffman block header.");
+                    }
+                    decodeBlock(literals, distances);
+                }
+                default -> throw new DataFormatException("Invalid block type.");
+            }
+            if (!byteMode && markerLength - lastMarkerEnd >= WINDOW_SIZE) {
+                switchToByteMode();
+            }
+            if ((header & 1) == 1) {
+                // last block of the gzip member: read the trailer
+                reader.alignToByte();
+                long crc = readIntLE();
+                long size = readIntLE();
+                chunk.addMemberEnd(markerLength + (byteMode ? outputLength - outputStart : 0), crc, size);
+                if (reader.isAtEnd() || !GzipHeader.skipIfPresent(reader)) {
+                    chunk.endBit = reader.position();
+                    chunk.endOfStream = true;
+                    break;
+                }
+            }
+        }
+        chunk.markers = markerOutput;
+        chunk.markersLength = markerLength;
+        chunk.data = output;
+        chunk.dataStart = byteMode ? outputStart : 0;
+        chunk.dataLength = byteMode ? outputLength : 0;
+        markerOutput = null;
+        output = null;
+        return chunk;
+    }
+
+    private long readIntLE() throws IOException {
+        return reader.bits(16) | ((long) reader.bits(16) << 16);
+    }
+
+    /**
+     * Continues the chunk in byte mode once the last 32 KiB of the output are free of markers.
+     */
+    private void switchToByteMode() {
+        output = new byte[Math.max(1 << 20, 2 * WINDOW_SIZE)];
+        for (int i = 0; i < WINDOW_SIZE; i++) {
+            output[i] = (byte) markerOutput[markerLength - WINDOW_SIZE + i];
+        }
+        // the window at the start of the byte output duplicates the end of the marker output
+        outputStart = WINDOW_SIZE;
+        outputLength = WINDOW_SIZE;
+        byteMode = true;
+    }
+
+    private void copyStoredBlock() throws IOException, DataFormatException {
+        reader.alignToByte();
+        int length = reader.bits(16);
+        int inverted = reader.bits(16);
+        if ((length ^ 0xFFFF) != inverted) {
+            throw new DataFormatException("Invalid stored block length.");
+        }
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            int b = reader.readByte();
+            if (byteMode) {
+                output[outputLength++] = (byte) b;
+            } else {
+                markerOutput[markerLength++] = (char) b;
+            }
+        }
+    }
+
+    private void ensureCapacity(int additional) {
+        if (byteMode) {
+            if (outputLength + additional > output.length) {
+                output = Arrays.copyOf(output, Math.max(output.length * 2, outputLength + additional));
+            }
+        } else if (markerLength + additional > markerOutput.length) {
+            markerOutput = Arrays.copyOf(markerOutput, Math.max(markerOutput.length * 2, markerLength + additional));
+        }
+    }
+
+    private void decodeBlock(HuffmanTable literals, HuffmanTable distances) throws IOException, DataFormatException {
+        if (byteMode) {
+            decodeBlockBytes(literals, distances);
+        } else {
+            decodeBlockMarkers(literals, distances);
+        }
+    }
+
+    private void decodeBlockBytes(HuffmanTable literals, HuffmanTable distances) throws IOException, DataFormatException {
+        byte[] out = output;
+        int position = outputLength;
+        int[] literalTable = literals.table;
+        int literalMask = literals.mask;
+        int[] distanceTable = distances.table;
+        int distanceMask = distances.mask;
+        try {
+            while (true) {
+                reader.refill();
+                int entry = literalTable[(int) reader.peek(15) & literalMask];
+                int length = entry & 15;
+                if (length == 0) {
+                    throw new DataFormatException("Invalid literal/length code.");
+                }
+                reader.skip(length);
+                int symbol = entry >>> 4;
+                if (symbol < 256) {
+                    if (position == out.length) {
+                        out = output = Arrays.copyOf(out, out.length * 2);
+                    }
+                    out[position++] = (byte) symbol;
+                    continue;
+                }
+                if (symbol == 256) {
+                    break;
+                }
+                symbol -= 257;
+                if (symbol >= 29) {
+                    throw new DataFormatException("Invalid length symbol.");
+                }
+                int matchLength = LENGTH_BASE[symbol] + (int) reader.peek(LENGTH_EXTRA[symbol]);
+                reader.skip(LENGTH_EXTRA[symbol]);
+                entry = distanceTable[(int) reader.peek(15) & distanceMask];
+                length = entry & 15;
+                if (length == 0) {
+                    throw new DataFormatException("Invalid distance code.");
+                }
+                reader.skip(length);
+                symbol = entry >>> 4;
+                if (symbol >= 30) {
+                    throw new DataFormatException("Invalid distance symbol.");
+                }
+                reader.refill();
+                int distance = DISTANCE_BASE[symbol] + (int) reader.peek(DISTANCE_EXTRA[symbol]);
+                reader.skip(DISTANCE_EXTRA[symbol]);
+                if (distance > position) {
+                    throw new DataFormatException("Invalid distance: too far back.");
+                }
+                if (position + matchLength > out.length) {
+                    out = output = Arrays.copyOf(out, Math.max(out.length * 2, position + matchLength));
+                }
+                if (distance >= matchLength) {
+                    System.arraycopy(out, position - distance, out, position, matchLength);
+                    position += matchLength;
+                } else {
+                    for (int i = 0; i < matchLength; i++, position++) {
+                        out[position] = out[position - distance];
+                    }
+                }
+            }
+        } finally {
+            outputLength = position;
+        }
+    }
+
+    private void decodeBlockMarkers(HuffmanTable literals, HuffmanTable distances) throws IOException, DataFormatException {
+        char[] out = markerOutput;
+        int position = markerLength;
+        int lastMarker = lastMarkerEnd;
+        int[] literalTable = literals.table;
+        int literalMask = literals.mask;
+        int[] distanceTable = distances.table;
+        int distanceMask = distances.mask;
+        try {
+            while (true) {
+                reader.refill();
+                int entry = literalTable[(int) reader.peek(15) & literalMask];
+                int length = entry & 15;
+                if (length == 0) {
+                    throw new DataFormatException("Invalid literal/length code.");
+                }
+                reader.skip(length);
+                int symbol = entry >>> 4;
+                if (symbol < 256) {
+                    if (position == out.length) {
+                        out = markerOutput = Arrays.copyOf(out, out.length * 2);
+                    }
+                    out[position++] = (char) symbol;
+                    continue;
+                }
+                if (symbol == 256) {
+                    break;
+                }
+                symbol -= 257;
+                if (symbol >= 29) {
+                    throw new DataFormatException("Invalid length symbol.");
+                }
+                int matchLength = LENGTH_BASE[symbol] + (int) reader.peek(LENGTH_EXTRA[symbol]);
+                reader.skip(LENGTH_EXTRA[symbol]);
+                entry = distanceTable[(int) reader.peek(15) & distanceMask];
+                length = entry & 15;
+                if (length == 0) {
+                    throw new DataFormatException("Invalid distance code.");
+                }
+                reader.skip(length);
+                symbol = entry >>> 4;
+                if (symbol >= 30) {
+                    throw new DataFormatException("Invalid distance symbol.");
+                }
+                reader.refill();
+                int distance = DISTANCE_BASE[symbol] + (int) reader.peek(DISTANCE_EXTRA[symbol]);
+                reader.skip(DISTANCE_EXTRA[symbol]);
+                if (distance > position + WINDOW_SIZE) {
+                    throw new DataFormatException("Invalid distance: too far back.");
+                }
+                if (position + matchLength > out.length) {
+                    out = markerOutput = Arrays.copyOf(out, Math.max(out.length * 2, position + matchLength));
+                }
+                for (int i = 0; i < matchLength; i++, position++) {
+                    int source = position - distance;
+                    char value = source >= 0 ? out[source] : (char) (MARKER_OFFSET + WINDOW_SIZE + source);
+                    if (value >= MARKER_OFFSET) {
+                        lastMarker = position + 1;
+                    }
+                    out[position] = value;
+                }
+            }
+        } finally {
+            markerLength = position;
+            lastMarkerEnd = lastMarker;
+        }
+    }
+
+    /**
+     * Reads the code lengths of a dynamic Huffman block and builds the literal/length and distance tables.
+     * @return false if the header is invalid
+     */
+    private boolean readDynamicTables() throws IOException {
+        reader.refill();
+        int nrOfLiterals = (int) reader.peek(5) + 257;
+        reader.skip(5);
+        int nrOfDistances = (int) reader.peek(5) + 1;
+        reader.skip(5);
+        int nrOfCodeLengths = (int) reader.peek(4) + 4;
+        reader.skip(4);
+        if (nrOfLiterals > 286 || nrOfDistances > 30) {
+            return false;
+        }
+        Arrays.fill(codeLengthLengths, (byte) 0);
+        reader.refill();
+        for (int i = 0; i < nrOfCodeLengths; i++) {
+            codeLengthLengths[CODE_LENGTH_ORDER[i]] = (byte) reader.peek(3);
+            reader.skip(3);
+            if (i == 13) {
+                reader.refill();
+            }
+        }
+        // cheap completeness check of the code length code before the table is built
+        int kraftSum = 0;
+        for (byte length : codeLengthLengths) {
+            kraftSum += length == 0 ? 0 : 1 << (7 - length);
+        }
+        if (kraftSum != 1 << 7 || !codeLengths.build(codeLengthLengths, 0, 19, true)) {
+            return false;
+        }
+        int total = nrOfLiterals + nrOfDistances;
+        int i = 0;
+        while (i < total) {
+            reader.refill();
+            int entry = codeLengths.table[(int) reader.peek(7) & codeLengths.mask];
+            int length = entry & 15;
+            if (length == 0) {
+                return false;
+            }
+            reader.skip(length);
+            int symbol = entry >>> 4;
+            if (symbol < 16) {
+                lengths[i++] = (byte) symbol;
+                continue;
+            }
+            int repeat;
+            byte value = 0;
+            if (symbol == 16) {
+                if (i == 0) {
+                    return false;
+                }
+                value = lengths[i - 1];
+                repeat = 3 + (int) reader.peek(2);
+                reader.skip(2);
+            } else if (symbol == 17) {
+                repeat = 3 + (int) reader.peek(3);
+                reader.skip(3);
+            } else {
+                repeat = 11 + (int) reader.peek(7);
+                reader.skip(7);
+            }
+            if (i + repeat > total) {
+                return false;
+            }
+            Arrays.fill(lengths, i, i + repeat, value);
+            i += repeat;
+        }
+        // the end of block symbol is required
+        if (lengths[256] == 0) {
+            return false;
+        }
+        return literals.build(lengths, 0, nrOfLiterals, false) &&
+                distances.build(lengths, nrOfLiterals, nrOfDistances, false);
+    }
+
+    /**
+     * Single level lookup table for a canonical Huffman code. Each entry holds the symbol (upper bits) and the length of
+     * its code (lowest 4 bits); entries with length 0 are invalid codes.
+     */
+    private static final class HuffmanTable {
+        private final int[] table = new int[1 << 15];
+        private final int[] count = new int[16];
+        private final int[] nextCode = new int[16];
+        private int mask;
+
+        /**
+         * Builds the table with the same restrictions zlib applies to the codes.
+         * @param complete whether the code has to be complete (required for the code length code)
+         * @return false if the code lengths do not describe a valid code
+         */
+        boolean build(byte[] lengths, int offset, int nrOfSymbols, boolean complete) {
+            Arrays.fill(count, 0);
+            int maxLength = 0;
+            for (int i = 0; i < nrOfSymbols; i++) {
+                int length = lengths[offset + i];
+                count[length]++;
+                maxLength = Math.max(maxLength, length);
+            }
+            if (maxLength == 0) {
+                // no codes at all, only allowed for distance codes of blocks without matches
+                if (complete) {
+                    return false;
+                }
+                mask = 1;
+                table[0] = table[1] = 0;
+                return true;
+            }
+            int left = 1;
+            for (int length = 1; length <= 15; length++) {
+                left <<= 1;
+                left -= count[length];
+                if (left < 0) {
+                    return false; // over-subscribed
+                }
+            }
+            if (left > 0 && (complete || maxLength != 1)) {
+                return false; // incomplete
+            }
+            int size = 1 << maxLength;
+            mask = size - 1;
+            Arrays.fill(table, 0, size, 0);
+            int code = 0;
+            count[0] = 0;
+            for (int length = 1; length <= 15; length++) {
+                code = (code + count[length - 1]) << 1;
+                nextCode[length] = code;
+            }
+            for (int symbol = 0; symbol < nrOfSymbols; symbol++) {
+                int length = lengths[offset + symbol];
+                if (length == 0) {
+                    continue;
+                }
+                int reversed = Integer.reverse(nextCode[length]++) >>> (32 - length);
+                int entry = (symbol << 4) | length;
+                for (int i = reversed; i < size; i += 1 << length) {
+                    table[i] = entry;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Decoded part of a gzip file between two block boundaries.
+     */
+    static final class Chunk {
+        final long startBit;
+        long endBit;
+        boolean endOfStream;
+        char[] markers;
+        int markersLength;
+        byte[] data;
+        int dataStart;
+        int dataLength;
+        final FlexibleLongArray memberEnds = new FlexibleLongArray(2);
+        final FlexibleLongArray memberTrailers = new FlexibleLongArray(2);
+
+        private Chunk(long startBit) {
+            this.startBit = startBit;
+        }
+
+        private void addMemberEnd(long outputOffset, long crc, long size) {
+            memberEnds.add(outputOffset);
+            memberTrailers.add(crc << 32 | size);
+        }
+
+        /**
+         * @return the number of decoded bytes in this chunk
+         */
+        int length() {
+            return markersLength + dataLength - dataStart;
+        }
+
+        /**
+         * Replaces the markers with the data of the window and merges the output into one array.
+         * @param window array that ends with the uncompressed data that precedes the chunk
+         * @param windowLength number of valid bytes at the end of the window array
+         * @return the uncompressed data of the chunk
+         */
+        byte[] resolve(byte[] window, int windowLength) throws DataFormatException {
+            byte[] result = new byte[length()];
+            int windowOffset = window.length - WINDOW_SIZE;
+            for (int i = 0; i < markersLength; i++) {
+                int value = markers[i];
+                if (value >= MARKER_OFFSET) {
+                    int windowPosition = value - MARKER_OFFSET;
+                    if (windowPosition < WINDOW_SIZE - windowLength) {
+                        throw new DataFormatException("Invalid distance: too far back.");
+                    }
+                    value = window[windowOffset + windowPosition];
+                }
+                result[i] = (byte) value;
+            }
+            if (dataLength > dataStart) {
+                System.arraycopy(data, dataStart, result, markersLength, dataLength - dataStart);
+            }
+            markers = null;
+            data = null;
+            return result;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package org.husonlab.diamer.io.gzip;
+
+import java.io.IOException;
+import java.util.zip.ZipException;
+
+/**
+ * Parses gzip member headers (RFC 1952).
+ */
+final class GzipHeader {
+    private static final int MAGIC = 0x8b1f;
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private GzipHeader() {}
+
+    /**
+     * Skips the gzip header at the current (byte aligned) position of the reader.
+     * @return false if there is no gzip header at the current position
+     */
+    static boolean skipIfPresent(BitReader reader) throws IOException {
+        reader.refill();
+        if (reader.peek(24) != (8 << 16 | MAGIC)) {
+            return false;
+        }
+        reader.skip(24);
+        int flags = reader.readByte();
+        // modification time, extra flags, operating system
+        for (int i = 0; i < 6; i++) {
+            reader.readByte();
+        }
+        if ((flags & FEXTRA) != 0) {
+            int extraLength = reader.bits(16);
+            for (int i = 0; i < extraLength; i++) {
+                reader.readByte();
+            }
+        }
+        if ((flags & FNAME) != 0) {
+            while (reader.readByte() != 0) {
+                // skip file name
+            }
+        }
+        if ((flags & FCOMMENT) != 0) {
+            while (reader.readByte() != 0) {
+                // skip comment
+            }
+        }
+        if ((flags & FHCRC) != 0) {
+            reader.bits(16);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the size of a BGZF block if the header at the given offset is a BGZF header
+     * (a gzip header with an extra subfield "BC" that contains the size of the block).
+     * @param bytes bytes of the file containing the header
+     * @param offset offset of the header in the array
+     * @param length number of valid bytes from the offset on
+     * @return the total size of the block (header, compressed data and trailer) or -1 if the header is no BGZF header
+     * @throws ZipException if the bytes are not a gzip header at all
+     */
+    static int getBgzfBlockSize(byte[] bytes, int offset, int length) throws ZipException {
+        if (length < 12 || (bytes[offset] & 0xFF | (bytes[offset + 1] & 0xFF) << 8) != MAGIC || bytes[offset + 2] != 8) {
+            throw new ZipException("Not in GZIP format");
+        }
+        if ((bytes[offset + 3] & FEXTRA) == 0) {
+            return -1;
+        }
+        int extraLength = bytes[offset + 10] & 0xFF | (bytes[offset + 11] & 0xFF) << 8;
+        int end = offset + Math.min(12 + extraLength, length);
+        int position = offset + 12;
+        while (position + 4 <= end) {
+            int subfieldLength = bytes[position + 2] & 0xFF | (bytes[position + 3] & 0xFF) << 8;
+            if (bytes[position] == 'B' && bytes[position + 1] == 'C' && subfieldLength == 2 && position + 6 <= end) {
+                return (bytes[position + 4] & 0xFF | (bytes[position + 5] & 0xFF) << 8) + 1;
+            }
+            position += 4 + subfieldLength;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the length of the BGZF header (fixed part and extra field)
+     */
+    static int getBgzfHeaderLength(byte[] block, int offset) {
+        return 12 + (block[offset + 10] & 0xFF | (block[offset + 11] & 0xFF) << 8);
+    }
+}
@@ -0,0 +1,363 @@
+package org.husonlab.diamer.io.gzip;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * {@link InputStream} that decompresses a gzip file with multiple threads.
+ * <p>
+ *     BGZF files (and other files with the block size in the "BC" extra field of each member) are split into groups of
+ *     members that are inflated independently. All other gzip files (single or multiple members) are split into chunks
+ *     of {@link #CHUNK_SIZE} compressed bytes that are decoded speculatively by the {@link DeflateDecoder}, starting at
+ *     the first deflate block that can be found in the chunk.
+ * </p>
+ * <p>
+ *     The decompressed chunks are returned in the original order. CRC32 and size of each gzip member are checked.
+ * </p>
+ */
+public class ParallelGZIPInputStream extends InputStream {
+    /**
+     * Number of compressed bytes per chunk.
+     */
+    static final int CHUNK_SIZE = 1 << 20;
+
+    private final FileChannel channel;
+    private final long fileSize;
+    private final ExecutorService executor;
+    private final ThreadLocal<DeflateDecoder> decoders;
+    private final ArrayDeque<Future<Result>> pending;
+    private final int maxPending;
+    private final boolean bgzf;
+    // next chunk to submit
+    private long nextOffset;
+    private int nextChunk;
+    private final int nrOfChunks;
+
+    // state of the speculative decoding
+    private long expectedStart;
+    private final byte[] window = new byte[DeflateDecoder.WINDOW_SIZE];
+    private int windowLength;
+    private final CRC32 crc = new CRC32();
+    private long memberSize;
+    private boolean finished;
+
+    // current output
+    private byte[] current = new byte[0];
+    private int currentPosition;
+    private volatile long compressedBytesRead;
+
+    /**
+     * @param file gzip file
+     * @param threads number of threads used for decompression
+     */
+    public ParallelGZIPInputStream(Path file, int threads) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.fileSize = channel.size();
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "ParallelGZIPInputStream");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.decoders = ThreadLocal.withInitial(() -> new DeflateDecoder(channel, fileSize));
+        this.pending = new ArrayDeque<>();
+        this.maxPending = 2 * threads;
+        this.nrOfChunks = (int) Math.max(1, Math.ceilDiv(fileSize, CHUNK_SIZE));
+
+        byte[] header = new byte[1024];
+        int headerLength = readFully(0, header);
+        this.bgzf = GzipHeader.getBgzfBlockSize(header, 0, headerLength) > 0;
+        if (!bgzf) {
+            BitReader reader = decoders.get().getReader();
+            reader.seek(0);
+            GzipHeader.skipIfPresent(reader);
+            expectedStart = reader.position();
+        }
+        fillPending();
+    }
+
+    /**
+     * @return the number of compressed bytes that have been decompressed and returned
+     */
+    public long getCompressedBytesRead() {
+        return compressedBytesRead;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (currentPosition == current.length && !nextOutput()) {
+            return -1;
+        }
+        return current[currentPosition++] & 0xFF;
+    }
+
+    @Override
+    public int read(@NotNull byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (currentPosition == current.length) {
+            if (!nextOutput()) {
+                return -1;
+            }
+        }
+        int n = Math.min(len, current.length - currentPosition);
+        System.arraycopy(current, currentPosition, b, off, n);
+        currentPosition += n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        channel.close();
+    }
+
+    /**
+     * Submits new tasks until {@link #maxPending} tasks are pending.
+     */
+    private void fillPending() throws IOException {
+        while (pending.size() < maxPending) {
+            if (bgzf) {
+                if (nextOffset >= fileSize) {
+                    return;
+                }
+                long start = nextOffset;
+                long end = findBgzfGroupEnd(start);
+                nextOffset = end;
+                pending.add(executor.submit(() -> inflateBgzfGroup(start, end)));
+            } else {
+                if (nextChunk >= nrOfChunks) {
+                    return;
+                }
+                int chunk = nextChunk++;
+                long from = (long) chunk * CHUNK_SIZE * 8;
+                long until = chunk == nrOfChunks - 1 ? Long.MAX_VALUE : (long) (chunk + 1) * CHUNK_SIZE * 8;
+                if (chunk == 0) {
+                    long start = expectedStart;
+                    pending.add(executor.submit(() -> new Result(
+                            decoders.get().decode(start, until, window, 0), until)));
+                } else {
+                    pending.add(executor.submit(() -> new Result(
+                            decoders.get().decodeSpeculatively(from, until), until)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes the output of the next task the current output.
+     * @return false if the end of the file is reached
+     */
+    private boolean nextOutput() throws IOException {
+        while (!finished) {
+            Future<Result> future = pending.poll();
+            if (future == null) {
+                finished = true;
+                if (!bgzf) {
+                    throw new EOFException("Unexpected end of compressed file.");
+                }
+                break;
+            }
+            Result result;
+            try {
+                result = future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while decompressing.", e);
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ioException ? ioException :
+                        new IOException("Could not decompress file.", e.getCause());
+            }
+            fillPending();
+            if (bgzf) {
+                current = result.output;
+                compressedBytesRead = result.compressedEnd;
+            } else {
+                current = processChunk(result);
+                // a chunk can end behind its stop bit (e.g. stored blocks are decoded until the next dynamic block)
+                compressedBytesRead = Math.min(fileSize, expectedStart / 8);
+            }
+            currentPosition = 0;
+            if (current.length > 0) {
+                return true;
+            }
+        }
+        current = new byte[0];
+        currentPosition = 0;
+        return false;
+    }
+
+    /**
+     * Verifies that the speculatively decoded chunk starts where the previous one ended (otherwise the chunk is
+     * decoded again), resolves its markers and checks the gzip trailers.
+     */
+    private byte[] processChunk(Result result) throws IOException {
+        DeflateDecoder.Chunk chunk = result.chunk;
+        byte[] output;
+        try {
+            if (chunk == null || chunk.startBit != expectedStart) {
+                chunk = decoders.get().decode(expectedStart, result.stopBit, window, windowLength);
+            }
+            output = chunk.resolve(window, windowLength);
+        } catch (DataFormatException e) {
+            throw new ZipException("Invalid deflate data: " + e.getMessage());
+        }
+        expectedStart = chunk.endBit;
+        if (chunk.endOfStream) {
+            finished = true;
+            for (Future<Result> future : pending) {
+                future.cancel(false);
+            }
+            pending.clear();
+        }
+
+        // check trailers of the gzip members that end in this chunk
+        int position = 0;
+        for (int i = 0; i < chunk.memberEnds.size(); i++) {
+            int end = (int) chunk.memberEnds.get(i);
+            crc.update(output, position, end - position);
+            memberSize += end - position;
+            long trailer = chunk.memberTrailers.get(i);
+            if (crc.getValue() != trailer >>> 32 || (memberSize & 0xFFFFFFFFL) != (trailer & 0xFFFFFFFFL)) {
+                throw new ZipException("Corrupt GZIP trailer");
+            }
+            crc.reset();
+            memberSize = 0;
+            position = end;
+        }
+        crc.update(output, position, output.length - position);
+        memberSize += output.length - position;
+
+        // keep the last 32 KiB as window for the next chunk
+        if (output.length >= window.length) {
+            System.arraycopy(output, output.length - window.length, window, 0, window.length);
+            windowLength = window.length;
+        } else {
+            System.arraycopy(window, output.length, window, 0, window.length - output.length);
+            System.arraycopy(output, 0, window, window.length - output.length, output.length);
+            windowLength = Math.min(window.length, windowLength + output.length);
+        }
+        return output;
+    }
+
+    /**
+     * Collects BGZF blocks starting at the given offset until about {@link #CHUNK_SIZE} compressed bytes are reached.
+     * @return the end offset of the last collected block
+     */
+    private long findBgzfGroupEnd(long start) throws IOException {
+        byte[] header = new byte[1024];
+        long end = start;
+        while (end < fileSize && end - start < CHUNK_SIZE) {
+            int length = readFully(end, header);
+            int blockSize = GzipHeader.getBgzfBlockSize(header, 0, length);
+            if (blockSize < 0) {
+                throw new ZipException("Gzip member without BGZF block size at offset " + end);
+            }
+            end += blockSize;
+        }
+        return Math.min(end, fileSize);
+    }
+
+    /**
+     * Inflates all BGZF blocks in the given range of the file and checks their trailers.
+     */
+    private Result inflateBgzfGroup(long start, long end) throws IOException {
+        byte[] compressed = new byte[(int) (end - start)];
+        if (readFully(start, compressed) != compressed.length) {
+            throw new EOFException("Unexpected end of compressed file.");
+        }
+        // the uncompressed size of each block is stored in its trailer
+        int totalSize = 0;
+        for (int offset = 0; offset < compressed.length; ) {
+            int blockSize = GzipHeader.getBgzfBlockSize(compressed, offset, compressed.length - offset);
+            totalSize += readIntLE(compressed, offset + blockSize - 4);
+            offset += blockSize;
+        }
+        byte[] output = new byte[totalSize];
+        Inflater inflater = new Inflater(true);
+        CRC32 blockCrc = new CRC32();
+        try {
+            int outputPosition = 0;
+            for (int offset = 0; offset < compressed.length; ) {
+                int blockSize = GzipHeader.getBgzfBlockSize(compressed, offset, compressed.length - offset);
+                int headerLength = GzipHeader.getBgzfHeaderLength(compressed, offset);
+                int size = readIntLE(compressed, offset + blockSize - 4);
+                inflater.reset();
+                inflater.setInput(compressed, offset + headerLength, blockSize - headerLength - 8);
+                int inflated = 0;
+                while (inflated < size) {
+                    int n = inflater.inflate(output, outputPosition + inflated, size - inflated);
+                    if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                        break;
+                    }
+                    inflated += n;
+                }
+                blockCrc.reset();
+                blockCrc.update(output, outputPosition, inflated);
+                if (inflated != size || blockCrc.getValue() != (readIntLE(compressed, offset + blockSize - 8) & 0xFFFFFFFFL)) {
+                    throw new ZipException("Corrupt GZIP trailer");
+                }
+                outputPosition += size;
+                offset += blockSize;
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException("Invalid deflate data: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        return new Result(output, end);
+    }
+
+    private static int readIntLE(byte[] bytes, int offset) {
+        return bytes[offset] & 0xFF | (bytes[offset + 1] & 0xFF) << 8 |
+                (bytes[offset + 2] & 0xFF) << 16 | (bytes[offset + 3] & 0xFF) << 24;
+    }
+
+    /**
+     * Reads bytes from the given position of the file until the array is full or the end of the file is reached.
+     * @return the number of bytes read
+     */
+    private int readFully(long position, byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+        return buffer.position();
+    }
+
+    /**
+     * Output of one decompression task, either a speculatively decoded chunk or the inflated BGZF blocks.
+     */
+    private static class Result {
+        private final DeflateDecoder.Chunk chunk;
+        private final long stopBit;
+        private final byte[] output;
+        private final long compressedEnd;
+
+        private Result(DeflateDecoder.Chunk chunk, long stopBit) {
+            this.chunk = chunk;
+            this.stopBit = stopBit;
+            this.output = null;
+            this.compressedEnd = 0;
+        }
+
+        private Result(byte[] output, long compressedEnd) {
+            this.chunk = null;
+            this.stopBit = 0;
+            this.output = output;
+            this.compressedEnd = compressedEnd;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package org.husonlab.diamer.io.indexing;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reader of a memory-mapped block-structured bucket file (see {@link BlockBucketWriter}).
+ * <p>
+ *     {@link #seekBlock(int)} positions the reader at the start of any block, so several readers of the same file can
+ *     decode disjoint ranges of blocks in parallel. {@link #skipTo(long)} skips the blocks that only contain smaller
+ *     entries with a binary search in the block directory. The mapping is released with {@link #close()}, the reader
+ *     must only be used by the thread that created it.
+ * </p>
+ */
+public class BlockBucketReader implements BucketIO.EntryReader {
+    private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+    private static final ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+    private final Arena arena;
+    private final MemorySegment segment;
+    private final long length;
+    private final int blockSize;
+    private final long[] blockFirstEntries;
+    private final long[] blockOffsets;
+    private long position;
+    private long offset = BlockBucketWriter.HEADER_SIZE;
+    private long previous;
+
+    public BlockBucketReader(Path file) {
+        arena = Arena.ofConfined();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+        } catch (IOException e) {
+            arena.close();
+            throw new RuntimeException("Could not map bucket file " + file.toFile().getName(), e);
+        }
+        if (segment.get(INT, 0) != BucketIO.BLOCK_MARKER) {
+            arena.close();
+            throw new RuntimeException("Bucket file " + file.toFile().getName() + " is not block-structured.");
+        }
+        length = segment.get(LONG, 4);
+        blockSize = segment.get(INT, 12);
+        int nrOfBlocks = Math.toIntExact(segment.get(LONG, segment.byteSize() - BlockBucketWriter.TRAILER_SIZE));
+        long directoryOffset = segment.get(LONG, segment.byteSize() - 8);
+        blockFirstEntries = new long[nrOfBlocks];
+        blockOffsets = new long[nrOfBlocks];
+        for (int i = 0; i < nrOfBlocks; i++) {
+            blockFirstEntries[i] = segment.get(LONG, directoryOffset + i * 16L);
+            blockOffsets[i] = segment.get(LONG, directoryOffset + i * 16L + 8);
+        }
+    }
+
+    @Override
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return position < length;
+    }
+
+    @Override
+    public long next() {
+        if (position >= length) {
+            throw new RuntimeException("BlockBucketReader: end of bucket reached");
+        }
+        if (position % blockSize == 0) {
+            // the blocks follow each other, the offset points to the header of the next block
+            previous = segment.get(LONG, offset);
+            offset += BlockBucketWriter.BLOCK_HEADER_SIZE;
+        } else {
+            long l = 0;
+            int i = 0;
+            byte b;
+            do {
+                b = segment.get(ValueLayout.JAVA_BYTE, offset++);
+                l |= ((long) (b & 0b01111111)) << (i * 7);
+                i++;
+            } while (b < 0);
+            previous += l;
+        }
+        position++;
+        return previous;
+    }
+
+    /**
+     * Jumps to the last block whose first entry is (unsigned) smaller than the given entry, if it starts behind the
+     * current position. The entries of that block before the given entry still have to be read.
+     */
+    @Override
+    public void skipTo(long minEntry) {
+        int low = (int) Math.min(position / blockSize, blockFirstEntries.length);
+        int high = blockFirstEntries.length - 1;
+        if (low >= high || Long.compareUnsigned(blockFirstEntries[low + 1], minEntry) >= 0) {
+            return;
+        }
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (Long.compareUnsigned(blockFirstEntries[mid], minEntry) < 0) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        seekBlock(low);
+    }
+
+    /**
+     * Positions the reader at the first entry of the block.
+     */
+    public void seekBlock(int block) {
+        position = (long) block * blockSize;
+        offset = blockOffsets[block];
+    }
+
+    /**
+     * @return the number of entries per block
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getNrOfBlocks() {
+        return blockFirstEntries.length;
+    }
+
+    /**
+     * @return the number of entries that have been read or skipped
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    @Override
+    public void close() {
+        arena.close();
+    }
+}
@@ -0,0 +1,120 @@
+package org.husonlab.diamer.io.indexing;
+
+import org.husonlab.diamer.util.FlexibleLongArray;
+
+import java.io.*;
+import java.nio.file.Path;
+
+/**
+ * Writes a block-structured bucket file.
+ * <p>
+ *     The entries are split into blocks of {@code blockSize} entries. Each block starts with its first entry as
+ *     absolute value (long) and the number of bytes of the rest of the block (int), followed by the other entries as
+ *     variable length encoded differences to the previous entry. Because a block does not depend on the blocks before
+ *     it, several threads can decode the blocks of one bucket and a reader can skip whole blocks.
+ * </p>
+ * <p>
+ *     File format (big endian): {@link BucketIO#BLOCK_MARKER} (int), number of entries (long), block size (int), the
+ *     blocks, the block directory with the first entry and the byte offset of each block (2 longs per block) and the
+ *     number of blocks and the byte offset of the directory (2 longs).
+ * </p>
+ */
+public class BlockBucketWriter implements BucketIO.EntryWriter {
+    static final int HEADER_SIZE = 16;
+    static final int BLOCK_HEADER_SIZE = 12;
+    static final int TRAILER_SIZE = 16;
+    private final Path file;
+    private final int blockSize;
+    private final DataOutputStream dos;
+    /**
+     * Varint encoded differences of the current block (without its first entry).
+     */
+    private final ByteArrayOutputStream blockBytes = new ByteArrayOutputStream(65_536);
+    /**
+     * Block directory as pairs of first entry and byte offset.
+     */
+    private final FlexibleLongArray directory = new FlexibleLongArray(2 * 16);
+    private long length;
+    private long offset = HEADER_SIZE;
+    private long previous;
+
+    /**
+     * @param blockSize number of entries per block
+     */
+    public BlockBucketWriter(Path file, int blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Invalid block size: " + blockSize);
+        }
+        this.file = file;
+        this.blockSize = blockSize;
+        try {
+            dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file.toFile()), 65_536));
+            dos.writeInt(BucketIO.BLOCK_MARKER);
+            dos.writeLong(0);
+            dos.writeInt(blockSize);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not open bucket file " + file.toFile().getName(), e);
+        }
+    }
+
+    @Override
+    public void write(long entry) {
+        if (length % blockSize == 0) {
+            if (length > 0) {
+                writeBlock();
+            }
+            directory.add(entry);
+            directory.add(offset);
+        } else {
+            long l = entry - previous;
+            while ((l & ~0b01111111) != 0) {
+                blockBytes.write((byte) ((l & 0b01111111) | 0b10000000));
+                l >>>= 7;
+            }
+            blockBytes.write((byte) l);
+        }
+        previous = entry;
+        length++;
+    }
+
+    /**
+     * Writes the header and the differences of the current block.
+     */
+    private void writeBlock() {
+        try {
+            dos.writeLong(directory.get(directory.size() - 2));
+            dos.writeInt(blockBytes.size());
+            blockBytes.writeTo(dos);
+            offset += BLOCK_HEADER_SIZE + blockBytes.size();
+            blockBytes.reset();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write block to bucket file " + file.toFile().getName(), e);
+        }
+    }
+
+    @Override
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (length > 0) {
+                writeBlock();
+            }
+            for (int i = 0; i < directory.size(); i++) {
+                dos.writeLong(directory.get(i));
+            }
+            dos.writeLong(directory.size() / 2);
+            dos.writeLong(offset);
+            dos.close();
+            try (RandomAccessFile raf = new RandomAccessFile(file.toString(), "rw")) {
+                raf.seek(4);
+                raf.writeLong(length);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not close bucket file " + file.toFile().getName(), e);
+        }
+    }
+}
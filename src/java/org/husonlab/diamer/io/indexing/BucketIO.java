@@ -1,14 +1,72 @@
 package org.husonlab.diamer.io.indexing;
 
 import org.husonlab.diamer.indexing.Bucket;
+import org.husonlab.diamer.util.FlexibleLongArray;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Class to handle IO operations on bucket files / objects.
+ * <p>
+ *     A bucket file starts with the number of entries as 4 byte int. Buckets with more than {@link Integer#MAX_VALUE}
+ *     entries start with the int {@link #LONG_LENGTH_MARKER} followed by the number of entries as 8 byte long.
+ *     The entries follow as variable length encoded differences to the previous entry.
+ * </p>
+ * <p>
+ *     Optionally, a bucket has a fence file ({@code <bucket>.fence}) with a fence pointer every {@code interval}
+ *     entries. A fence pointer consists of the index of the entry, the value of the previous entry (the state of the
+ *     delta decoding) and the byte offset of the entry in the bucket file. With the fence pointers, a
+ *     {@link MappedBucketReader} can skip to a k-mer without decoding the bucket up to it. The fence file starts with the
+ *     interval (int) and the number of fence pointers (long), followed by the fence pointers as three longs each.
+ * </p>
+ * <p>
+ *     Alternatively, a database bucket can be stored in the Elias-Fano format (see {@link EliasFanoBucketWriter}). These
+ *     files start with the int {@link #ELIAS_FANO_MARKER}, {@link #getBucketReader()} detects the format by it.
+ * </p>
+ * <p>
+ *     Block-structured bucket files (see {@link BlockBucketWriter}) start with the int {@link #BLOCK_MARKER}. They split
+ *     the varint-delta stream into blocks that can be decoded independently and skipped with a block directory.
+ * </p>
  */
 public class BucketIO {
+    /**
+     * Value of the 4 byte length field that indicates that an 8 byte length field follows.
+     */
+    public static final int LONG_LENGTH_MARKER = -1;
+    /**
+     * Value of the 4 byte length field that indicates a bucket file in the Elias-Fano format.
+     */
+    public static final int ELIAS_FANO_MARKER = -2;
+    /**
+     * Value of the 4 byte length field that indicates a block-structured bucket file.
+     */
+    public static final int BLOCK_MARKER = -3;
+    /**
+     * Default number of entries per block of block-structured bucket files.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 65_536;
+    /**
+     * Size of the chunks that are read ahead by the {@link BucketReader} and written behind by the
+     * {@link BucketWriter}.
+     */
+    static final int CHUNK_SIZE = 1 << 20;
+    /**
+     * Daemon threads for the read-ahead and write-behind of bucket files.
+     */
+    private static final ExecutorService IO_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "BucketIO");
+        thread.setDaemon(true);
+        return thread;
+    });
     private final Path file;
     private final int name;
 
@@ -26,9 +84,12 @@ public class BucketIO {
             throw new FileNotFoundException("Tried to read non-existing bucket file: " + file.toFile().getName());
         }
         long[] content;
-        try (BucketReader reader = getBucketReader()) {
-            int length = reader.getLength();
-            content = new long[length];
+        try (EntryReader reader = getBucketReader()) {
+            long length = reader.getLength();
+            if (length > Integer.MAX_VALUE - 8) {
+                throw new RuntimeException("Bucket " + name + " is too large to be read into an array: " + length);
+            }
+            content = new long[(int) length];
             for (int i = 0; i < length; i++) {
                 content[i] = reader.next();
             }
@@ -55,6 +116,74 @@ public class BucketIO {
         return name;
     }
 
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * @return the path of the fence file of a bucket file, {@code <bucket>.fence} for {@code <bucket>.bin}
+     */
+    public static Path getFenceFile(Path bucketFile) {
+        String fileName = bucketFile.getFileName().toString();
+        return bucketFile.resolveSibling(fileName.endsWith(".bin") ?
+                fileName.substring(0, fileName.length() - 4) + ".fence" : fileName + ".fence");
+    }
+
+    /**
+     * @return the interval of the fence pointers of a bucket file, 0 if it has no fence file
+     */
+    public static int getFenceInterval(Path bucketFile) {
+        Path fenceFile = getFenceFile(bucketFile);
+        if (!fenceFile.toFile().exists()) {
+            return 0;
+        }
+        try (DataInputStream dis = new DataInputStream(new FileInputStream(fenceFile.toFile()))) {
+            return dis.readInt();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read fence file " + fenceFile, e);
+        }
+    }
+
+    /**
+     * @return whether the bucket file is stored in the Elias-Fano format
+     */
+    public static boolean isEliasFano(Path bucketFile) {
+        return readLengthField(bucketFile) == ELIAS_FANO_MARKER;
+    }
+
+    /**
+     * @return whether the bucket file is block-structured
+     */
+    public static boolean isBlockStructured(Path bucketFile) {
+        return readLengthField(bucketFile) == BLOCK_MARKER;
+    }
+
+    /**
+     * @return the number of entries per block of a block-structured bucket file, 0 if it is not block-structured
+     */
+    public static int getBlockSize(Path bucketFile) {
+        try (DataInputStream dis = new DataInputStream(new FileInputStream(bucketFile.toFile()))) {
+            if (dis.readInt() != BLOCK_MARKER) {
+                return 0;
+            }
+            dis.readLong();
+            return dis.readInt();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read bucket file " + bucketFile.toFile().getName(), e);
+        }
+    }
+
+    /**
+     * @return the first 4 bytes of the bucket file, the length or a format marker
+     */
+    private static int readLengthField(Path bucketFile) {
+        try (DataInputStream dis = new DataInputStream(new FileInputStream(bucketFile.toFile()))) {
+            return dis.readInt();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read bucket file " + bucketFile.toFile().getName(), e);
+        }
+    }
+
     /**
      * Checks if the bucket file exists.
      */
@@ -63,9 +192,16 @@ public class BucketIO {
     }
 
     /**
-     * Returns a new {@link BucketReader} object for reading the content of the bucket.
+     * Returns a new reader for the content of the bucket, an {@link EliasFanoBucketReader} for buckets in the
+     * Elias-Fano format, a {@link BlockBucketReader} for block-structured buckets and a {@link BucketReader} otherwise.
      */
-    public BucketReader getBucketReader() {
+    public EntryReader getBucketReader() {
+        int lengthField = readLengthField(file);
+        if (lengthField == ELIAS_FANO_MARKER) {
+            return new EliasFanoBucketReader(file);
+        } else if (lengthField == BLOCK_MARKER) {
+            return new BlockBucketReader(file);
+        }
         return new BucketReader(file);
     }
 
@@ -73,35 +209,166 @@ public class BucketIO {
      * Returns a new {@link BucketWriter} object for writing the content of the bucket vale by value.
      */
     public BucketWriter getBucketWriter() {
-        return new BucketWriter(file);
+        return new BucketWriter(file, false);
     }
 
     /**
-     * Reader to read a bucket file long by long.
+     * Returns a new {@link BucketWriter} object for writing the content of the bucket vale by value.
+     * @param longLength whether to use the 8 byte length field (required for more than {@link Integer#MAX_VALUE}
+     *                   entries)
+     */
+    public BucketWriter getBucketWriter(boolean longLength) {
+        return new BucketWriter(file, longLength);
+    }
+
+    /**
+     * Returns a new {@link BucketWriter} object that also writes fence pointers.
+     * @param longLength whether to use the 8 byte length field
+     * @param fenceInterval number of entries between two fence pointers, 0 to write no fence file
+     */
+    public BucketWriter getBucketWriter(boolean longLength, int fenceInterval) {
+        return new BucketWriter(file, longLength, fenceInterval);
+    }
+
+    /**
+     * Returns a new {@link EliasFanoBucketWriter} for writing the content of the bucket in the Elias-Fano format. An
+     * existing fence file of the bucket is deleted.
+     * @param maxLength maximum number of entries
+     * @param maxEntry largest entry (unsigned)
+     * @param idBits number of bits of the IDs in the entries
+     */
+    public EliasFanoBucketWriter getEliasFanoBucketWriter(long maxLength, long maxEntry, int idBits) {
+        try {
+            Files.deleteIfExists(getFenceFile(file));
+        } catch (IOException e) {
+            throw new RuntimeException("Could not delete fence file of bucket " + name, e);
+        }
+        return new EliasFanoBucketWriter(file, maxLength, maxEntry, idBits);
+    }
+
+    /**
+     * Returns a new {@link BlockBucketWriter} for writing the content of the bucket in blocks. An existing fence file
+     * of the bucket is deleted.
+     * @param blockSize number of entries per block
+     */
+    public BlockBucketWriter getBlockBucketWriter(int blockSize) {
+        try {
+            Files.deleteIfExists(getFenceFile(file));
+        } catch (IOException e) {
+            throw new RuntimeException("Could not delete fence file of bucket " + name, e);
+        }
+        return new BlockBucketWriter(file, blockSize);
+    }
+
+    /**
+     * Sequential writer of the entries of a bucket.
      */
-    public static class BucketReader implements AutoCloseable {
+    public interface EntryWriter extends AutoCloseable {
+        void write(long entry);
+
+        /**
+         * @return the number of entries written so far
+         */
+        long getLength();
+
+        @Override
+        void close();
+    }
+
+    /**
+     * Sequential reader of the entries of a bucket.
+     */
+    public interface EntryReader extends AutoCloseable {
+        /**
+         * @return the number of entries in the bucket
+         */
+        long getLength();
+
+        boolean hasNext();
+
+        /**
+         * @return the next entry
+         */
+        long next();
+
+        /**
+         * Skips entries that are (unsigned) smaller than the given entry, the next entry can still be smaller. Readers
+         * of continuous varint buckets without fence pointers do not skip.
+         */
+        default void skipTo(long minEntry) {
+        }
+
+        @Override
+        void close();
+    }
 
-        private final FileInputStream fis;
-        private final int length;
-        private int position = 0;
+    /**
+     * Reader to read a bucket file long by long.
+     * <p>
+     *     The file is read through a {@link FileChannel} in chunks of up to {@link #CHUNK_SIZE} bytes. While a chunk is
+     *     decoded, the next chunk is read ahead by a thread of {@link #IO_EXECUTOR}. The differences are decoded in
+     *     blocks of up to {@link #DECODE_BLOCK_SIZE} values by a {@link VarintDecoder} (vectorized if the Vector API
+     *     is available) and prefix-summed to the entries.
+     * </p>
+     */
+    public static class BucketReader implements EntryReader {
+        private static final int DECODE_BLOCK_SIZE = 1024;
+        /**
+         * Space in front of a chunk for the undecoded bytes of the previous chunk.
+         */
+        private static final int CARRY_SIZE = DECODE_BLOCK_SIZE * 10;
+        private final FileChannel channel;
+        private final long length;
+        private long position = 0;
         private long previous;
-        byte[] buffer = new byte[65_536];
-        private int bufferPosition = 0;
-        private int bufferLength = 0;
+        private final int chunkSize;
+        private byte[] buffer;
+        private byte[] spareBuffer;
+        private int bufferPosition = CARRY_SIZE;
+        private int bufferLength = CARRY_SIZE;
+        /**
+         * Position in the file of the next chunk.
+         */
+        private long filePosition;
+        /**
+         * Read-ahead of the next chunk into the spare buffer, null if none was started.
+         */
+        private Future<Integer> readAhead;
+        private boolean endOfFile = false;
+        private final VarintDecoder decoder = VarintDecoder.create();
+        private final long[] decoded = new long[DECODE_BLOCK_SIZE];
+        private int decodedPosition = 0;
+        private int decodedLength = 0;
 
         public BucketReader(Path file) {
             try {
-                fis = new FileInputStream(file.toString());
+                channel = FileChannel.open(file, StandardOpenOption.READ);
             } catch (Exception e) {
                 throw new RuntimeException("Could not open bucket file " + file.toFile().getName(), e);
             }
             try {
-                byte[] lengthBytes = fis.readNBytes(4);
-                length = ((lengthBytes[0] & 0xFF) << 24) | ((lengthBytes[1] & 0xFF) << 16) |
-                        ((lengthBytes[2] & 0xFF) << 8) | (lengthBytes[3] & 0xFF);
+                ByteBuffer header = ByteBuffer.allocate(12);
+                while (header.hasRemaining() && channel.read(header) != -1) {
+                    // the header is read completely unless the file is shorter
+                }
+                int intLength = header.getInt(0);
+                if (intLength == LONG_LENGTH_MARKER) {
+                    length = header.getLong(4);
+                    filePosition = 12;
+                } else {
+                    length = intLength;
+                    filePosition = 4;
+                }
+                chunkSize = (int) Math.max(1, Math.min(CHUNK_SIZE, channel.size() - filePosition));
             } catch (Exception e) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
                 throw new RuntimeException("Could not read length of bucket file " + file.toFile().getName(), e);
             }
+            buffer = new byte[CARRY_SIZE + chunkSize + VarintDecoder.PADDING];
+            spareBuffer = new byte[CARRY_SIZE + chunkSize + VarintDecoder.PADDING];
         }
 
         public boolean hasNext() {
@@ -117,112 +384,290 @@ public class BucketIO {
             if (position >= length) {
                 throw new RuntimeException("BucketReader: end of bucket reached");
             }
+            if (decodedPosition == decodedLength) {
+                decodeBlock();
+            }
             position++;
-            previous += readNextLong();
-            return previous;
+            return decoded[decodedPosition++];
         }
 
-        public long readNextLong() {
-            long l = 0;
-            int i = 0;
-            byte b;
-            do {
-                b = getNextByte();
-                l |= ((long) (b & 0b01111111)) << (i * 7);
-                i++;
-            } while (b < 0);
-            return l;
-        }
-
-        private byte getNextByte() {
-            if (bufferPosition >= bufferLength) {
+        /**
+         * Decodes the next block of differences and prefix-sums them to entries.
+         */
+        private void decodeBlock() {
+            int count = (int) Math.min(DECODE_BLOCK_SIZE, length - position);
+            if (bufferLength - bufferPosition < count * 10L && !endOfFile) {
+                // enough bytes for the whole block, so that the decoder does not stop early
                 fillBuffer();
             }
-            return buffer[bufferPosition++];
+            decodedLength = decoder.decode(buffer, bufferPosition, bufferLength, decoded, count);
+            bufferPosition = decoder.getPosition();
+            while (decodedLength == 0) {
+                if (endOfFile) {
+                    throw new RuntimeException("Could not read from bucket file", new EOFException());
+                }
+                fillBuffer();
+                decodedLength = decoder.decode(buffer, bufferPosition, bufferLength, decoded, count);
+                bufferPosition = decoder.getPosition();
+            }
+            for (int i = 0; i < decodedLength; i++) {
+                previous += decoded[i];
+                decoded[i] = previous;
+            }
+            decodedPosition = 0;
         }
 
+        /**
+         * Switches to the chunk that was read ahead, moves the undecoded bytes in front of it and starts reading the
+         * following chunk.
+         */
         private void fillBuffer() {
+            if (readAhead == null) {
+                startReadAhead();
+            }
+            int read;
             try {
-                bufferPosition = 0;
-                bufferLength = fis.read(buffer);
-                if (bufferLength == -1) {
-                    throw new EOFException();
-                }
-            } catch (IOException e) {
-                throw new RuntimeException("Could not read from bucket file", e);
+                read = readAhead.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while reading from bucket file", e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Could not read from bucket file", e.getCause());
+            }
+            int remaining = bufferLength - bufferPosition;
+            System.arraycopy(buffer, bufferPosition, spareBuffer, CARRY_SIZE - remaining, remaining);
+            byte[] previousBuffer = buffer;
+            buffer = spareBuffer;
+            spareBuffer = previousBuffer;
+            bufferPosition = CARRY_SIZE - remaining;
+            bufferLength = CARRY_SIZE + read;
+            filePosition += read;
+            if (read < chunkSize) {
+                endOfFile = true;
+            } else {
+                startReadAhead();
             }
         }
 
+        /**
+         * Reads the chunk at {@link #filePosition} into the spare buffer in the background.
+         */
+        private void startReadAhead() {
+            byte[] target = spareBuffer;
+            long start = filePosition;
+            readAhead = IO_EXECUTOR.submit(() -> {
+                ByteBuffer byteBuffer = ByteBuffer.wrap(target, CARRY_SIZE, chunkSize);
+                while (byteBuffer.hasRemaining()) {
+                    if (channel.read(byteBuffer, start + byteBuffer.position() - CARRY_SIZE) == -1) {
+                        break;
+                    }
+                }
+                return byteBuffer.position() - CARRY_SIZE;
+            });
+        }
+
         @Override
-        public void close() throws Exception {
-            fis.close();
+        public void close() {
+            if (readAhead != null) {
+                readAhead.cancel(true);
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                throw new RuntimeException("Could not close bucket file", e);
+            }
         }
 
         /**
          * @return the number of longs in the bucket.
          */
-        public int getLength() {
+        public long getLength() {
             return length;
         }
     }
 
-    public static class BucketWriter implements AutoCloseable {
+    /**
+     * Writer to write a bucket file long by long.
+     * <p>
+     *     The entries are encoded into a buffer of {@link #CHUNK_SIZE} bytes. Full buffers are written by a thread of
+     *     {@link #IO_EXECUTOR} through a {@link FileChannel} while the next buffer is filled. The length field is
+     *     written in place when the writer is closed.
+     * </p>
+     */
+    public static class BucketWriter implements EntryWriter {
         private final Path file;
-        private final FileOutputStream fos;
-        private final DataOutputStream dos;
-        private int length = 0;
+        private final FileChannel channel;
+        private final boolean longLength;
+        private long length = 0;
         private long previous;
+        /**
+         * Number of entries between two fence pointers, 0 if no fence pointers are written.
+         */
+        private final int fenceInterval;
+        /**
+         * Fence pointers as triples of entry index, previous entry and byte offset.
+         */
+        private final FlexibleLongArray fences;
+        private long offset;
+        private byte[] buffer = new byte[CHUNK_SIZE];
+        /**
+         * Buffer that is written in the background, allocated when the first buffer is full.
+         */
+        private byte[] spareBuffer;
+        private int bufferPosition = 0;
+        /**
+         * Position in the file of the buffer.
+         */
+        private long filePosition;
+        /**
+         * Write of the spare buffer, null if none was started.
+         */
+        private Future<?> writeBehind;
 
         public BucketWriter(Path file) {
+            this(file, false);
+        }
+
+        /**
+         * @param longLength whether to use the 8 byte length field (required for more than
+         *                   {@link Integer#MAX_VALUE} entries)
+         */
+        public BucketWriter(Path file, boolean longLength) {
+            this(file, longLength, 0);
+        }
+
+        /**
+         * @param longLength whether to use the 8 byte length field (required for more than
+         *                   {@link Integer#MAX_VALUE} entries)
+         * @param fenceInterval number of entries between two fence pointers, 0 to write no fence file (an existing
+         *                      fence file of the bucket is deleted)
+         */
+        public BucketWriter(Path file, boolean longLength, int fenceInterval) {
             this.file = file;
+            this.longLength = longLength;
+            this.fenceInterval = fenceInterval;
+            this.fences = fenceInterval > 0 ? new FlexibleLongArray(3 * 16) : null;
+            this.offset = longLength ? 12 : 4;
+            // the length field is written when the writer is closed
+            this.filePosition = offset;
             try {
-                fos = new FileOutputStream(file.toString());
-                dos = new DataOutputStream(new BufferedOutputStream(fos, 65_536));
-                dos.writeInt(0);
+                if (fenceInterval == 0) {
+                    Files.deleteIfExists(getFenceFile(file));
+                }
+                channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
             } catch (Exception e) {
                 throw new RuntimeException("Could not open bucket file " + file.toFile().getName(), e);
             }
         }
 
         public void write(long l) {
-            try {
-                l -= previous;
-                previous += l;
-                writeLong(l);
-                length++;
-            } catch (Exception e) {
-                throw new RuntimeException("Could not write long to bucket file", e);
+            if (fences != null && length > 0 && length % fenceInterval == 0) {
+                fences.add(length);
+                fences.add(previous);
+                fences.add(offset);
             }
+            l -= previous;
+            previous += l;
+            writeLong(l);
+            length++;
         }
 
         private void writeLong(long l) {
+            if (bufferPosition > CHUNK_SIZE - 10) {
+                writeBuffer();
+            }
+            int start = bufferPosition;
+            while ((l & ~0b01111111) != 0) {
+                buffer[bufferPosition++] = (byte) ((l & 0b01111111) | 0b10000000);
+                l >>>= 7;
+            }
+            buffer[bufferPosition++] = (byte) l;
+            offset += bufferPosition - start;
+        }
+
+        /**
+         * Hands the buffer over to a thread of {@link #IO_EXECUTOR} and continues with the spare buffer.
+         */
+        private void writeBuffer() {
+            awaitWriteBehind();
+            byte[] target = buffer;
+            int targetLength = bufferPosition;
+            long start = filePosition;
+            writeBehind = IO_EXECUTOR.submit(() -> {
+                writeFully(ByteBuffer.wrap(target, 0, targetLength), start);
+                return null;
+            });
+            filePosition += targetLength;
+            buffer = spareBuffer != null ? spareBuffer : new byte[CHUNK_SIZE];
+            spareBuffer = target;
+            bufferPosition = 0;
+        }
+
+        private void awaitWriteBehind() {
+            if (writeBehind == null) {
+                return;
+            }
             try {
-                while ((l & ~0b01111111) != 0) {
-                    dos.writeByte((byte) ((l & 0b01111111) | 0b10000000));
-                    l >>>= 7;
-                }
-                dos.writeByte((byte) l);
-            } catch (Exception e) {
-                throw new RuntimeException("Could not write long to bucket file", e);
+                writeBehind.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while writing bucket file " + file.toFile().getName(), e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Could not write to bucket file " + file.toFile().getName(), e.getCause());
+            }
+            writeBehind = null;
+        }
+
+        private void writeFully(ByteBuffer byteBuffer, long start) throws IOException {
+            long position = start;
+            while (byteBuffer.hasRemaining()) {
+                position += channel.write(byteBuffer, position);
             }
         }
 
         @Override
         public void close() {
             try {
-                dos.flush();
-                dos.close();
-                fos.close();
-                try (RandomAccessFile raf = new RandomAccessFile(file.toString(), "rw")) {
-                    raf.writeInt(length);
+                awaitWriteBehind();
+                writeFully(ByteBuffer.wrap(buffer, 0, bufferPosition), filePosition);
+                if (!longLength && length > Integer.MAX_VALUE) {
+                    throw new RuntimeException("Bucket file " + file.toFile().getName() + " has more than " +
+                            Integer.MAX_VALUE + " entries and requires an 8 byte length field.");
+                }
+                ByteBuffer header = ByteBuffer.allocate(longLength ? 12 : 4);
+                if (longLength) {
+                    header.putInt(LONG_LENGTH_MARKER);
+                    header.putLong(length);
+                } else {
+                    header.putInt((int) length);
                 }
+                writeFully(header.flip(), 0);
+                channel.close();
+                if (fences != null) {
+                    writeFences();
+                }
+            } catch (RuntimeException e) {
+                throw e;
             } catch (Exception e) {
                 throw new RuntimeException("Could not close bucket file", e);
             }
         }
 
-        public int getLength() {
+        public long getLength() {
             return length;
         }
+
+        private void writeFences() throws IOException {
+            Path fenceFile = getFenceFile(file);
+            try (DataOutputStream fenceStream = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(fenceFile.toFile()), 65_536))) {
+                fenceStream.writeInt(fenceInterval);
+                fenceStream.writeLong(fences.size() / 3);
+                for (int i = 0; i < fences.size(); i++) {
+                    fenceStream.writeLong(fences.get(i));
+                }
+            }
+        }
     }
 }
@@ -2,9 +2,19 @@ package org.husonlab.diamer.io.indexing;
 
 import org.husonlab.diamer.io.taxonomy.TreeIO;
 import org.husonlab.diamer.taxonomy.Tree;
+import org.husonlab.diamer.util.BlockedBloomFilter;
 
+import java.io.*;
 import java.nio.file.Path;
 
+/**
+ * Represents a database index folder with one binary file per bucket and the taxonomic tree.
+ * <p>
+ *     Optionally, the folder contains a {@link BlockedBloomFilter} of the k-mers of each bucket
+ *     ({@code <bucket>.filter}), which is used to drop read k-mers that are not in the database during read indexing.
+ *     A filter file consists of the number of words followed by the words of the filter.
+ * </p>
+ */
 public class DBIndexIO extends IndexIO {
 
     private final Path tree;
@@ -37,4 +47,81 @@ public class DBIndexIO extends IndexIO {
         }
         return TreeIO.loadTree(tree);
     }
+
+    /**
+     * @return a {@link MappedBucketReader} for the bucket if it has fence pointers, the reader of
+     * {@link BucketIO#getBucketReader()} otherwise (Elias-Fano and block-structured buckets can always skip)
+     */
+    public BucketIO.EntryReader getSeekableBucketReader(int bucketName) {
+        if (!bucketIOs[bucketName].exists()) {
+            throw new RuntimeException("Bucket " + bucketName + " is missing.");
+        }
+        if (BucketIO.getFenceFile(bucketIOs[bucketName].getFile()).toFile().exists()) {
+            return new MappedBucketReader(bucketIOs[bucketName].getFile());
+        }
+        return bucketIOs[bucketName].getBucketReader();
+    }
+
+    /**
+     * @return the path of the filter file of the bucket
+     */
+    public Path getFilterFile(int bucketName) {
+        return indexFolder.resolve(bucketName + ".filter");
+    }
+
+    /**
+     * Checks if the filters of all buckets are available.
+     */
+    public boolean filtersComplete() {
+        for (int i = 0; i < nrOfBuckets; i++) {
+            if (!getFilterFile(i).toFile().exists()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks if the filter of at least one bucket exists in the index folder.
+     */
+    public boolean hasFilters() {
+        for (int i = 0; i < nrOfBuckets; i++) {
+            if (getFilterFile(i).toFile().exists()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads the filter of a bucket.
+     */
+    public BlockedBloomFilter readFilter(int bucketName) {
+        Path file = getFilterFile(bucketName);
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file.toFile()), 65_536))) {
+            long[] words = new long[dis.readInt()];
+            for (int i = 0; i < words.length; i++) {
+                words[i] = dis.readLong();
+            }
+            return new BlockedBloomFilter(words);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read filter file " + file, e);
+        }
+    }
+
+    /**
+     * Writes the filter of a bucket.
+     */
+    public void writeFilter(int bucketName, BlockedBloomFilter filter) {
+        Path file = getFilterFile(bucketName);
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file.toFile()), 65_536))) {
+            long[] words = filter.getWords();
+            dos.writeInt(words.length);
+            for (long word : words) {
+                dos.writeLong(word);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write filter file " + file, e);
+        }
+    }
 }
@@ -0,0 +1,184 @@
+package org.husonlab.diamer.io.indexing;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reader of a memory-mapped bucket file in the Elias-Fano format (see {@link EliasFanoBucketWriter}).
+ * <p>
+ *     The entries are read sequentially by scanning the set bits of the upper bit array. {@link #skipTo(long)} finds
+ *     the first entry with the high bits of the given entry with a select on the zeros of the upper bit array, which
+ *     is sampled every {@link #ZERO_SAMPLE_RATE} zeros when the reader is opened. The mapping is released with
+ *     {@link #close()}, the reader must only be used by the thread that created it.
+ * </p>
+ */
+public class EliasFanoBucketReader implements BucketIO.EntryReader {
+    private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+    private static final ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+    private static final int ZERO_SAMPLE_RATE = 512;
+    private final Arena arena;
+    private final MemorySegment segment;
+    private final long length;
+    private final int idBits;
+    private final int lowBits;
+    private final long nrOfUpperWords;
+    private final long upperOffset;
+    private final long lowOffset;
+    private final long idOffset;
+    /**
+     * Word index and number of zeros before the word for every {@link #ZERO_SAMPLE_RATE}-th zero of the upper bits.
+     */
+    private final long[] zeroSampleWords;
+    private final long[] zeroSampleCounts;
+    private long position;
+    private long upperWordIndex;
+    /**
+     * Remaining set bits of the current word of the upper bits.
+     */
+    private long upperWord;
+
+    public EliasFanoBucketReader(Path file) {
+        arena = Arena.ofConfined();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+        } catch (IOException e) {
+            arena.close();
+            throw new RuntimeException("Could not map bucket file " + file.toFile().getName(), e);
+        }
+        if (segment.get(INT, 0) != BucketIO.ELIAS_FANO_MARKER) {
+            arena.close();
+            throw new RuntimeException("Bucket file " + file.toFile().getName() + " is not in the Elias-Fano format.");
+        }
+        length = segment.get(LONG, 4);
+        idBits = segment.get(INT, 12);
+        lowBits = segment.get(INT, 16);
+        nrOfUpperWords = segment.get(LONG, 20);
+        long nrOfLowWords = segment.get(LONG, 28);
+        upperOffset = EliasFanoBucketWriter.HEADER_SIZE;
+        lowOffset = upperOffset + nrOfUpperWords * 8;
+        idOffset = lowOffset + nrOfLowWords * 8;
+
+        long nrOfZeros = nrOfUpperWords * 64 - length;
+        int nrOfSamples = Math.toIntExact(Math.ceilDiv(nrOfZeros, ZERO_SAMPLE_RATE));
+        zeroSampleWords = new long[nrOfSamples];
+        zeroSampleCounts = new long[nrOfSamples];
+        long zeros = 0;
+        int sample = 0;
+        for (long w = 0; w < nrOfUpperWords && sample < nrOfSamples; w++) {
+            long zerosInWord = 64 - Long.bitCount(getUpperWord(w));
+            while (sample < nrOfSamples && (long) sample * ZERO_SAMPLE_RATE < zeros + zerosInWord) {
+                zeroSampleWords[sample] = w;
+                zeroSampleCounts[sample] = zeros;
+                sample++;
+            }
+            zeros += zerosInWord;
+        }
+        upperWord = nrOfUpperWords > 0 ? getUpperWord(0) : 0;
+    }
+
+    private long getUpperWord(long index) {
+        return segment.get(LONG, upperOffset + index * 8);
+    }
+
+    /**
+     * @return the {@code width} bits at the bit position of the words starting at the byte offset
+     */
+    private long getBits(long offset, long bitPosition, int width) {
+        if (width == 0) {
+            return 0;
+        }
+        long word = bitPosition >>> 6;
+        int shift = (int) (bitPosition & 63);
+        long bits = segment.get(LONG, offset + word * 8) >>> shift;
+        if (shift + width > 64) {
+            bits |= segment.get(LONG, offset + (word + 1) * 8) << (64 - shift);
+        }
+        return width == 64 ? bits : bits & ((1L << width) - 1);
+    }
+
+    @Override
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return position < length;
+    }
+
+    @Override
+    public long next() {
+        if (position >= length) {
+            throw new RuntimeException("EliasFanoBucketReader: end of bucket reached");
+        }
+        while (upperWord == 0) {
+            upperWord = getUpperWord(++upperWordIndex);
+        }
+        long high = upperWordIndex * 64 + Long.numberOfTrailingZeros(upperWord) - position;
+        upperWord &= upperWord - 1;
+        long kmer = (high << lowBits) | getBits(lowOffset, position * lowBits, lowBits);
+        long id = getBits(idOffset, position * idBits, idBits);
+        position++;
+        return (kmer << idBits) | id;
+    }
+
+    /**
+     * Jumps to the first entry whose high bits are at least the high bits of the given entry, if it is behind the
+     * current position. The entries with the same high bits but smaller low bits still have to be read.
+     */
+    @Override
+    public void skipTo(long minEntry) {
+        long high = (minEntry >>> idBits) >>> lowBits;
+        if (high == 0 || position >= length) {
+            return;
+        }
+        // the entries with smaller high bits end at the high-th zero of the upper bits
+        long rank = high - 1;
+        int sample = (int) (rank / ZERO_SAMPLE_RATE);
+        if (sample >= zeroSampleWords.length) {
+            position = length;
+            return;
+        }
+        long w = zeroSampleWords[sample];
+        long zeros = zeroSampleCounts[sample];
+        long word = getUpperWord(w);
+        while (zeros + 64 - Long.bitCount(word) <= rank) {
+            zeros += 64 - Long.bitCount(word);
+            if (++w >= nrOfUpperWords) {
+                position = length;
+                return;
+            }
+            word = getUpperWord(w);
+        }
+        long inverted = ~word;
+        for (long i = zeros; i < rank; i++) {
+            inverted &= inverted - 1;
+        }
+        int bit = Long.numberOfTrailingZeros(inverted);
+        long index = w * 64 + bit - rank;
+        if (index <= position) {
+            return;
+        }
+        position = index;
+        upperWordIndex = w;
+        upperWord = word & (-2L << bit);
+    }
+
+    /**
+     * @return the number of entries that have been read or skipped
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    @Override
+    public void close() {
+        arena.close();
+    }
+}
@@ -0,0 +1,115 @@
+package org.husonlab.diamer.io.indexing;
+
+import java.io.*;
+import java.nio.file.Path;
+
+/**
+ * Writes a database bucket in the Elias-Fano format.
+ * <p>
+ *     The k-mers of the entries (the entries shifted by the number of ID bits) have to be non-decreasing. They are
+ *     split into {@code lowBits} low bits, which are stored bit-packed, and the high bits, which are stored as unary
+ *     coded gaps in the upper bit array: the k-mer with index {@code i} sets bit {@code (kmer >>> lowBits) + i}. The
+ *     IDs are stored bit-packed in a parallel array. With {@code lowBits = floor(log2(maxKmer / length))} a k-mer takes
+ *     about {@code 2 + lowBits} bits.
+ * </p>
+ * <p>
+ *     File format (big endian): {@link BucketIO#ELIAS_FANO_MARKER} (int), number of entries (long), ID bits (int),
+ *     low bits (int), number of words of the upper bits, the low bits and the IDs (3 longs), followed by the words of
+ *     the three arrays.
+ * </p>
+ */
+public class EliasFanoBucketWriter implements BucketIO.EntryWriter {
+    static final int HEADER_SIZE = 44;
+    private final Path file;
+    private final int idBits;
+    private final int lowBits;
+    private final long maxLength;
+    private final long[] upperWords;
+    private final long[] lowWords;
+    private final long[] idWords;
+    private long length;
+    private long lastKmer;
+
+    /**
+     * @param maxLength maximum number of entries that are written
+     * @param maxEntry maximum entry that is written (unsigned)
+     * @param idBits number of bits of the IDs in the entries
+     */
+    public EliasFanoBucketWriter(Path file, long maxLength, long maxEntry, int idBits) {
+        this.file = file;
+        this.idBits = idBits;
+        this.maxLength = maxLength;
+        long maxKmer = maxEntry >>> idBits;
+        this.lowBits = maxLength == 0 || maxKmer / maxLength == 0 ? 0 : 63 - Long.numberOfLeadingZeros(maxKmer / maxLength);
+        // an empty bucket has no upper bits, even if it is sized for any entry
+        upperWords = new long[maxLength == 0 ? 0 : Math.toIntExact(Math.ceilDiv(maxLength + (maxKmer >>> lowBits) + 1, 64))];
+        lowWords = new long[Math.toIntExact(Math.ceilDiv(maxLength * lowBits, 64))];
+        idWords = new long[Math.toIntExact(Math.ceilDiv(maxLength * idBits, 64))];
+    }
+
+    @Override
+    public void write(long entry) {
+        long kmer = entry >>> idBits;
+        if (length == maxLength) {
+            throw new RuntimeException("Elias-Fano bucket " + file.getFileName() + " is full (" + maxLength + " entries).");
+        }
+        if (length > 0 && Long.compareUnsigned(kmer, lastKmer) < 0) {
+            throw new RuntimeException("The k-mers of Elias-Fano bucket " + file.getFileName() + " are not sorted.");
+        }
+        long upperBit = (kmer >>> lowBits) + length;
+        upperWords[(int) (upperBit >>> 6)] |= 1L << upperBit;
+        setBits(lowWords, length * lowBits, lowBits, kmer);
+        setBits(idWords, length * idBits, idBits, entry);
+        lastKmer = kmer;
+        length++;
+    }
+
+    /**
+     * Sets the lowest {@code width} bits of the value at the bit position, the bits have to be unset.
+     */
+    private static void setBits(long[] words, long position, int width, long value) {
+        if (width == 0) {
+            return;
+        }
+        value &= width == 64 ? -1L : (1L << width) - 1;
+        int word = (int) (position >>> 6);
+        int shift = (int) (position & 63);
+        words[word] |= value << shift;
+        if (shift + width > 64) {
+            words[word + 1] |= value >>> (64 - shift);
+        }
+    }
+
+    @Override
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public void close() {
+        // only the words of the written entries are stored
+        long usedUpperWords = length == 0 ? 0 : Math.ceilDiv((lastKmer >>> lowBits) + length, 64);
+        long usedLowWords = Math.ceilDiv(length * lowBits, 64);
+        long usedIdWords = Math.ceilDiv(length * idBits, 64);
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file.toFile()), 65_536))) {
+            dos.writeInt(BucketIO.ELIAS_FANO_MARKER);
+            dos.writeLong(length);
+            dos.writeInt(idBits);
+            dos.writeInt(lowBits);
+            dos.writeLong(usedUpperWords);
+            dos.writeLong(usedLowWords);
+            dos.writeLong(usedIdWords);
+            for (int i = 0; i < usedUpperWords; i++) {
+                dos.writeLong(upperWords[i]);
+            }
+            for (int i = 0; i < usedLowWords; i++) {
+                dos.writeLong(lowWords[i]);
+            }
+            for (int i = 0; i < usedIdWords; i++) {
+                dos.writeLong(idWords[i]);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write Elias-Fano bucket file " + file.getFileName(), e);
+        }
+    }
+}
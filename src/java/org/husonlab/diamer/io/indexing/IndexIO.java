@@ -43,9 +43,9 @@ public class IndexIO {
     }
 
     /**
-     * @return a {@link BucketIO.BucketReader} for the specified bucket
+     * @return a reader for the specified bucket (see {@link BucketIO#getBucketReader()})
      */
-    public BucketIO.BucketReader getBucketReader(int bucketName) {
+    public BucketIO.EntryReader getBucketReader(int bucketName) {
         if (bucketIOs[bucketName].exists()) {
             return bucketIOs[bucketName].getBucketReader();
         } else {
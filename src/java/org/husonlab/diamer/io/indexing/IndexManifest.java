@@ -0,0 +1,200 @@
+package org.husonlab.diamer.io.indexing;
+
+import org.husonlab.diamer.main.GlobalSettings;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Manifest of a database or reads index, or of a slice of a database index that was built for a range of buckets
+ * (option {@code --bucket-range}).
+ * <p>
+ *     The manifest is a tab separated text file in the index folder. It records the settings that determine the
+ *     content of the bucket files, the range of buckets the slice owns and the number of entries per owned bucket.
+ *     The settings are checked before an index is updated or slices are merged. Indexes without a manifest (built by
+ *     earlier versions) are complete indexes of all {@code 2^}{@link GlobalSettings#DEFAULT_BUCKET_BITS} buckets.
+ * </p>
+ * <pre>
+ * setting    value
+ * ...
+ * bucket range    first    last (exclusive)
+ * bucket    size
+ * ...
+ * </pre>
+ */
+public class IndexManifest {
+    public static final String FILE_NAME = "manifest.txt";
+    private static final String BUCKET_RANGE = "bucket range";
+    private static final String BUCKET_HEADER = "bucket";
+    private static final String ALPHABET = "alphabet";
+    private static final String MASK = "mask";
+    private static final String BITS_FOR_IDS = "bits for ids";
+
+    private final LinkedHashMap<String, String> settings;
+    private final int firstBucket;
+    private final int lastBucket;
+    private final long[] bucketSizes;
+
+    /**
+     * @param settings settings that determine the content of the bucket files
+     * @param firstBucket first bucket of the slice
+     * @param lastBucket last bucket (exclusive) of the slice
+     * @param bucketSizes number of entries of the buckets of the slice
+     */
+    public IndexManifest(LinkedHashMap<String, String> settings, int firstBucket, int lastBucket, long[] bucketSizes) {
+        this.settings = settings;
+        this.firstBucket = firstBucket;
+        this.lastBucket = lastBucket;
+        this.bucketSizes = bucketSizes;
+    }
+
+    /**
+     * Creates the manifest of an index or a slice from the global settings.
+     * @param nrOfBuckets total number of buckets of the index
+     * @param bucketSizes number of entries of all buckets of the index, only the entries of the slice are used
+     */
+    public static IndexManifest of(GlobalSettings globalSettings, int nrOfBuckets, int firstBucket, int lastBucket,
+                                   long[] bucketSizes) {
+        StringBuilder mask = new StringBuilder();
+        for (boolean[] seed : globalSettings.MASKS) {
+            if (!mask.isEmpty()) {
+                mask.append(",");
+            }
+            for (boolean b : seed) {
+                mask.append(b ? "1" : "0");
+            }
+        }
+        LinkedHashMap<String, String> settings = new LinkedHashMap<>();
+        settings.put("version", GlobalSettings.VERSION);
+        settings.put(ALPHABET, globalSettings.ALPHABET.toString());
+        settings.put(MASK, mask.toString());
+        settings.put("filtering", globalSettings.FILTERING);
+        settings.put(BITS_FOR_IDS, String.valueOf(globalSettings.BITS_FOR_IDS));
+        settings.put("number of buckets", String.valueOf(nrOfBuckets));
+        long[] sliceSizes = new long[lastBucket - firstBucket];
+        System.arraycopy(bucketSizes, firstBucket, sliceSizes, 0, sliceSizes.length);
+        return new IndexManifest(settings, firstBucket, lastBucket, sliceSizes);
+    }
+
+    /**
+     * Checks if a manifest exists in the index folder.
+     */
+    public static boolean exists(Path indexFolder) {
+        return indexFolder.resolve(FILE_NAME).toFile().exists();
+    }
+
+    /**
+     * @return the number of bucket bits of the index in the folder, the default if it has no manifest
+     */
+    public static int getBucketBits(Path indexFolder) {
+        if (!exists(indexFolder)) {
+            return GlobalSettings.DEFAULT_BUCKET_BITS;
+        }
+        return Integer.numberOfTrailingZeros(read(indexFolder).getNrOfBuckets());
+    }
+
+    /**
+     * Reads the manifest of an index folder.
+     */
+    public static IndexManifest read(Path indexFolder) {
+        Path file = indexFolder.resolve(FILE_NAME);
+        LinkedHashMap<String, String> settings = new LinkedHashMap<>();
+        int firstBucket = -1;
+        int lastBucket = -1;
+        long[] bucketSizes = null;
+        try (BufferedReader br = Files.newBufferedReader(file)) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] values = line.split("\t");
+                if (values[0].equals(BUCKET_RANGE)) {
+                    firstBucket = Integer.parseInt(values[1]);
+                    lastBucket = Integer.parseInt(values[2]);
+                    bucketSizes = new long[lastBucket - firstBucket];
+                } else if (values[0].equals(BUCKET_HEADER)) {
+                    continue;
+                } else if (bucketSizes != null) {
+                    bucketSizes[Integer.parseInt(values[0]) - firstBucket] = Long.parseLong(values[1]);
+                } else {
+                    settings.put(values[0], values.length > 1 ? values[1] : "");
+                }
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("Could not read index manifest " + file, e);
+        }
+        if (bucketSizes == null) {
+            throw new RuntimeException("Index manifest " + file + " does not contain a bucket range.");
+        }
+        return new IndexManifest(settings, firstBucket, lastBucket, bucketSizes);
+    }
+
+    /**
+     * Writes the manifest to the index folder.
+     */
+    public void write(Path indexFolder) {
+        Path file = indexFolder.resolve(FILE_NAME);
+        try (BufferedWriter bw = Files.newBufferedWriter(file)) {
+            for (Map.Entry<String, String> setting : settings.entrySet()) {
+                bw.write(setting.getKey() + "\t" + setting.getValue() + "\n");
+            }
+            bw.write(BUCKET_RANGE + "\t" + firstBucket + "\t" + lastBucket + "\n");
+            bw.write(BUCKET_HEADER + "\tsize\n");
+            for (int i = 0; i < bucketSizes.length; i++) {
+                bw.write((firstBucket + i) + "\t" + bucketSizes[i] + "\n");
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write index manifest " + file, e);
+        }
+    }
+
+    /**
+     * @return true if both indexes were built with the same settings and can be merged or updated
+     */
+    public boolean isCompatible(IndexManifest other) {
+        return settings.equals(other.settings);
+    }
+
+    /**
+     * @return true if both indexes encode their kmers and IDs the same way, so that the kmers of one index can be
+     * searched in the other (the filtering may differ)
+     */
+    public boolean hasSameEncoding(IndexManifest other) {
+        return Objects.equals(settings.get(ALPHABET), other.settings.get(ALPHABET)) &&
+                Objects.equals(settings.get(MASK), other.settings.get(MASK)) &&
+                Objects.equals(settings.get(BITS_FOR_IDS), other.settings.get(BITS_FOR_IDS));
+    }
+
+    /**
+     * @return the settings that determine the content of the bucket files
+     */
+    public LinkedHashMap<String, String> getSettings() {
+        return settings;
+    }
+
+    public int getNrOfBuckets() {
+        return Integer.parseInt(settings.get("number of buckets"));
+    }
+
+    public int getFirstBucket() {
+        return firstBucket;
+    }
+
+    /**
+     * @return the last bucket (exclusive) of the slice
+     */
+    public int getLastBucket() {
+        return lastBucket;
+    }
+
+    /**
+     * @return the number of entries of a bucket of the slice
+     */
+    public long getBucketSize(int bucket) {
+        return bucketSizes[bucket - firstBucket];
+    }
+}
@@ -0,0 +1,150 @@
+package org.husonlab.diamer.io.indexing;
+
+import java.io.*;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reader of a memory-mapped bucket file that can skip to an entry with the fence pointers of the bucket.
+ * <p>
+ *     The entries are decoded like with the {@link BucketIO.BucketReader}. {@link #skipTo(long)} jumps to the last
+ *     fence pointer before the given entry, so at most one interval of entries has to be decoded to reach any entry.
+ *     The mapping is not limited to 2 GB and is released with {@link #close()}, the reader must only be used by the
+ *     thread that created it.
+ * </p>
+ */
+public class MappedBucketReader implements BucketIO.EntryReader {
+    private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+    private static final ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+    private final Arena arena;
+    private final MemorySegment segment;
+    private final long length;
+    private final long[] fenceIndices;
+    private final long[] fencePreviousEntries;
+    private final long[] fenceOffsets;
+    /**
+     * First fence pointer behind the current position.
+     */
+    private int nextFence;
+    private long position;
+    private long offset;
+    private long previous;
+
+    /**
+     * @param file bucket file, the fence file is used if it exists
+     */
+    public MappedBucketReader(Path file) {
+        arena = Arena.ofConfined();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+        } catch (IOException e) {
+            arena.close();
+            throw new RuntimeException("Could not map bucket file " + file.toFile().getName(), e);
+        }
+        int intLength = segment.get(INT, 0);
+        if (intLength == BucketIO.LONG_LENGTH_MARKER) {
+            length = segment.get(LONG, 4);
+            offset = 12;
+        } else {
+            length = intLength;
+            offset = 4;
+        }
+
+        Path fenceFile = BucketIO.getFenceFile(file);
+        if (fenceFile.toFile().exists()) {
+            try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(fenceFile.toFile()), 65_536))) {
+                dis.readInt();
+                int nrOfFences = Math.toIntExact(dis.readLong());
+                fenceIndices = new long[nrOfFences];
+                fencePreviousEntries = new long[nrOfFences];
+                fenceOffsets = new long[nrOfFences];
+                for (int i = 0; i < nrOfFences; i++) {
+                    fenceIndices[i] = dis.readLong();
+                    fencePreviousEntries[i] = dis.readLong();
+                    fenceOffsets[i] = dis.readLong();
+                }
+            } catch (IOException e) {
+                arena.close();
+                throw new RuntimeException("Could not read fence file " + fenceFile, e);
+            }
+        } else {
+            fenceIndices = new long[0];
+            fencePreviousEntries = new long[0];
+            fenceOffsets = new long[0];
+        }
+    }
+
+    @Override
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return position < length;
+    }
+
+    @Override
+    public long next() {
+        if (position >= length) {
+            throw new RuntimeException("MappedBucketReader: end of bucket reached");
+        }
+        position++;
+        long l = 0;
+        int i = 0;
+        byte b;
+        do {
+            b = segment.get(ValueLayout.JAVA_BYTE, offset++);
+            l |= ((long) (b & 0b01111111)) << (i * 7);
+            i++;
+        } while (b < 0);
+        previous += l;
+        return previous;
+    }
+
+    /**
+     * Jumps to the last fence pointer whose previous entry is (unsigned) smaller than the given entry, if it is behind
+     * the current position. The entries between the fence pointer and the given entry still have to be read.
+     */
+    @Override
+    public void skipTo(long minEntry) {
+        while (nextFence < fenceIndices.length && fenceIndices[nextFence] <= position) {
+            nextFence++;
+        }
+        if (nextFence >= fenceIndices.length || Long.compareUnsigned(fencePreviousEntries[nextFence], minEntry) >= 0) {
+            return;
+        }
+        // binary search of the last fence pointer before the entry
+        int low = nextFence;
+        int high = fenceIndices.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (Long.compareUnsigned(fencePreviousEntries[mid], minEntry) < 0) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        position = fenceIndices[low];
+        previous = fencePreviousEntries[low];
+        offset = fenceOffsets[low];
+        nextFence = low + 1;
+    }
+
+    /**
+     * @return the number of entries that have been read or skipped
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    @Override
+    public void close() {
+        arena.close();
+    }
+}
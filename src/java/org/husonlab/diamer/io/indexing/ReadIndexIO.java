@@ -7,8 +7,15 @@ import java.util.List;
 /**
  * Represents a read index folder with one binary file per bucket and a header mapping file that contains a mapping from
  * internal read IDs to read headers.
+ * <p>
+ *     If there are more reads than fit into the ID bits of an index entry, the reads are split into partitions of
+ *     {@code 2^bitsForIds} consecutive read IDs. The buckets of the first partition are stored in the index folder, the
+ *     buckets of every further partition {@code p} in the subfolder {@code partition_<p>}. The index entries of all
+ *     partitions store the read ID relative to the first read of the partition.
+ * </p>
  */
 public class ReadIndexIO extends IndexIO {
+    private static final String PARTITION_FOLDER_PREFIX = "partition_";
 
     private final Path readHeaderMappingFile;
 
@@ -22,6 +29,63 @@ public class ReadIndexIO extends IndexIO {
         readHeaderMappingFile = indexFolder.resolve("header_index.txt");
     }
 
+    /**
+     * @param partition number of the partition
+     * @return an {@link IndexIO} for the buckets of the partition, the first partition is the index folder itself
+     */
+    public IndexIO getPartition(int partition) {
+        if (partition == 0) {
+            return this;
+        }
+        return new IndexIO(indexFolder.resolve(PARTITION_FOLDER_PREFIX + partition), nrOfBuckets);
+    }
+
+    /**
+     * @return the number of partitions of the index, determined by the consecutive partition folders
+     */
+    public int getNrOfPartitions() {
+        int nrOfPartitions = 1;
+        while (indexFolder.resolve(PARTITION_FOLDER_PREFIX + nrOfPartitions).toFile().isDirectory()) {
+            nrOfPartitions++;
+        }
+        return nrOfPartitions;
+    }
+
+    /**
+     * Creates the folder of a partition if it does not exist.
+     */
+    public void createPartitionFolder(int partition) {
+        if (partition == 0) {
+            return;
+        }
+        Path folder = indexFolder.resolve(PARTITION_FOLDER_PREFIX + partition);
+        if (!folder.toFile().isDirectory() && !folder.toFile().mkdirs()) {
+            throw new RuntimeException("Could not create partition folder: " + folder);
+        }
+    }
+
+    /**
+     * Deletes the partition folders of a previous index with more partitions.
+     * @param nrOfPartitions number of partitions to keep
+     */
+    public void deletePartitions(int nrOfPartitions) {
+        for (int partition = Math.max(1, nrOfPartitions); ; partition++) {
+            File folder = indexFolder.resolve(PARTITION_FOLDER_PREFIX + partition).toFile();
+            if (!folder.isDirectory()) {
+                break;
+            }
+            File[] files = folder.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            if (!folder.delete()) {
+                throw new RuntimeException("Could not delete partition folder: " + folder);
+            }
+        }
+    }
+
     /**
      * Checks if a file containing the read header mapping exists in the index folder.
      */
@@ -0,0 +1,383 @@
+package org.husonlab.diamer.io.indexing;
+
+import org.husonlab.diamer.util.ConcurrentBucket;
+import org.husonlab.diamer.util.FlexibleBucket;
+import org.husonlab.diamer.util.OffHeapBucket;
+import org.husonlab.diamer.util.Pair;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Handles the spill files of a single pass indexing run.
+ * <p>
+ *     During the single pass over the input, the index entries of all buckets are appended to one spill file per range
+ *     of buckets (one range corresponds to the buckets that are processed in one cycle). Each thread collects the
+ *     entries in a {@link SpillWriter} and appends them as a run to the spill file once its buffer for the range is
+ *     full. A run consists of the number of bytes of the run followed by one group per bucket of the run, the buckets
+ *     are identified by their offset within the range, so a range holds at most {@link #MAX_BUCKETS_PER_RANGE}
+ *     buckets. A group starts with the varint difference of its bucket offset to the offset of the previous group
+ *     and the varint of the number of entries shifted by one bit. The lowest bit tells whether the sorted entries
+ *     follow as varint differences (like in the buckets of the index) or as longs, whichever is smaller. As the
+ *     buffer of a thread only holds a few entries per bucket, the entries are usually too far apart for the varints
+ *     and the groups mainly save the bucket offsets. Spilling requires up to about 10 bytes of disk space per index
+ *     entry, less if a range has few buckets.
+ * </p>
+ * <p>
+ *     The number of entries per bucket is counted while spilling, so that the buckets of a range can be allocated
+ *     with their exact size when the range is read back in.
+ * </p>
+ */
+public class SpillIO implements AutoCloseable {
+    private static final int RUN_BUFFER_SIZE = 65_536;
+    private static final int BYTES_PER_ENTRY = Short.BYTES + Long.BYTES;
+    /**
+     * Number of entries a {@link SpillWriter} buffers per range, as many as fit into {@link #RUN_BUFFER_SIZE} bytes.
+     */
+    private static final int RUN_ENTRIES = RUN_BUFFER_SIZE / BYTES_PER_ENTRY;
+    /**
+     * Maximal number of bytes of a run: each entry in its own group with a header of two varints.
+     */
+    private static final int MAX_RUN_BYTES = RUN_ENTRIES * (Long.BYTES + 2 * 3);
+    /**
+     * Maximal number of buckets per range, larger ranges are split.
+     */
+    public static final int MAX_BUCKETS_PER_RANGE = 1 << Short.SIZE;
+    private final Path spillFolder;
+    private final int firstBucket;
+    private final int nrOfBuckets;
+    private final int bucketsPerRange;
+    private final int nrOfRanges;
+    private final Path[] rangeFiles;
+    private final DataOutputStream[] rangeStreams;
+    private final AtomicLongArray bucketSizes;
+    private final boolean offHeap;
+
+    /**
+     * Creates a new temporary spill folder in the given folder and opens one spill file per range of buckets.
+     * @param folder folder to create the spill files in
+     * @param nrOfBuckets total number of buckets
+     * @param bucketsPerRange number of buckets that are processed together in one range
+     * @param offHeap whether the buckets of a range are read into {@link OffHeapBucket}s
+     */
+    public SpillIO(Path folder, int nrOfBuckets, int bucketsPerRange, boolean offHeap) {
+        this(folder, 0, nrOfBuckets, bucketsPerRange, offHeap);
+    }
+
+    /**
+     * Creates a new temporary spill folder in the given folder and opens one spill file per range of the buckets
+     * firstBucket to lastBucket.
+     * @param folder folder to create the spill files in
+     * @param firstBucket first bucket that is spilled
+     * @param lastBucket last bucket (exclusive) that is spilled
+     * @param bucketsPerRange number of buckets that are processed together in one range (larger values are
+     *                        reduced to {@link #MAX_BUCKETS_PER_RANGE})
+     * @param offHeap whether the buckets of a range are read into {@link OffHeapBucket}s
+     */
+    public SpillIO(Path folder, int firstBucket, int lastBucket, int bucketsPerRange, boolean offHeap) {
+        this.offHeap = offHeap;
+        this.firstBucket = firstBucket;
+        this.nrOfBuckets = lastBucket - firstBucket;
+        // the bucket offsets within a range are stored as unsigned shorts
+        this.bucketsPerRange = Math.min(bucketsPerRange, MAX_BUCKETS_PER_RANGE);
+        this.nrOfRanges = Math.ceilDiv(nrOfBuckets, this.bucketsPerRange);
+        this.rangeFiles = new Path[nrOfRanges];
+        this.rangeStreams = new DataOutputStream[nrOfRanges];
+        this.bucketSizes = new AtomicLongArray(nrOfBuckets);
+        try {
+            Files.createDirectories(folder);
+            spillFolder = Files.createTempDirectory(folder, "spill");
+            for (int i = 0; i < nrOfRanges; i++) {
+                rangeFiles[i] = spillFolder.resolve(i + ".spill");
+                rangeStreams[i] = new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(rangeFiles[i].toFile()), RUN_BUFFER_SIZE));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not create spill files in " + folder, e);
+        }
+    }
+
+    /**
+     * @return a new {@link SpillWriter} to collect the index entries of one thread
+     */
+    public SpillWriter getSpillWriter() {
+        return new SpillWriter();
+    }
+
+    /**
+     * @return the number of ranges the buckets are split into
+     */
+    public int getNrOfRanges() {
+        return nrOfRanges;
+    }
+
+    /**
+     * @return the first and the last (exclusive) bucket of the range
+     */
+    public Pair<Integer, Integer> getRange(int range) {
+        return new Pair<>(firstBucket + range * bucketsPerRange,
+                firstBucket + Math.min((range + 1) * bucketsPerRange, nrOfBuckets));
+    }
+
+    /**
+     * @return the number of entries that were spilled for the bucket
+     */
+    public long getBucketSize(int bucket) {
+        return bucketSizes.get(bucket - firstBucket);
+    }
+
+    /**
+     * Reads the spill file of a range back into memory.
+     * <p>
+     *     Must only be called after all {@link SpillWriter}s have been closed and {@link #finishWriting()} was called.
+     * </p>
+     * @param range the range to read
+     * @return one bucket per bucket in the range, each with exactly the number of spilled entries
+     */
+    public ConcurrentBucket[] readRange(int range) {
+        Pair<Integer, Integer> bucketRange = getRange(range);
+        ConcurrentBucket[] buckets = new ConcurrentBucket[bucketRange.last() - bucketRange.first()];
+        long[] positions = new long[buckets.length];
+        for (int i = 0; i < buckets.length; i++) {
+            long size = bucketSizes.get(bucketRange.first() - firstBucket + i);
+            if (offHeap) {
+                buckets[i] = new OffHeapBucket(size, 8_129, 0);
+            } else if (size > Integer.MAX_VALUE) {
+                throw new RuntimeException("Bucket " + (bucketRange.first() + i) + " is too large (" + size +
+                        " entries), consider using more buckets per cycle or off-heap buckets.");
+            } else {
+                buckets[i] = new FlexibleBucket((int) size, 8_129, 0);
+            }
+            // the whole bucket is reserved at once, the entries are written sequentially
+            buckets[i].reserve(size);
+        }
+        try (DataInputStream dis = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(rangeFiles[range].toFile()), RUN_BUFFER_SIZE))) {
+            byte[] run = new byte[MAX_RUN_BYTES];
+            ByteBuffer runBuffer = ByteBuffer.wrap(run);
+            while (true) {
+                int runLength;
+                try {
+                    runLength = dis.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                dis.readFully(run, 0, runLength);
+                runBuffer.clear().limit(runLength);
+                int bucket = 0;
+                while (runBuffer.hasRemaining()) {
+                    bucket += (int) readVarint(runBuffer);
+                    long header = readVarint(runBuffer);
+                    ConcurrentBucket concurrentBucket = buckets[bucket];
+                    long entry = 0;
+                    for (long i = header >>> 1; i > 0; i--) {
+                        entry = (header & 1) == 1 ? entry + readVarint(runBuffer) : runBuffer.getLong();
+                        concurrentBucket.set(positions[bucket]++, entry);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read spill file " + rangeFiles[range], e);
+        }
+        return buckets;
+    }
+
+    private static long readVarint(ByteBuffer buffer) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    private static void writeVarint(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static int varintSize(long value) {
+        return value == 0 ? 1 : (Long.SIZE - Long.numberOfLeadingZeros(value) + 6) / 7;
+    }
+
+    /**
+     * Flushes and closes all spill files. Has to be called after all {@link SpillWriter}s have been closed.
+     */
+    public void finishWriting() {
+        for (int i = 0; i < nrOfRanges; i++) {
+            try {
+                rangeStreams[i].close();
+            } catch (IOException e) {
+                throw new RuntimeException("Could not close spill file " + rangeFiles[i], e);
+            }
+        }
+    }
+
+    /**
+     * Deletes the spill file of a range that is no longer needed.
+     */
+    public void deleteRange(int range) {
+        try {
+            Files.deleteIfExists(rangeFiles[range]);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not delete spill file " + rangeFiles[range], e);
+        }
+    }
+
+    /**
+     * Closes and deletes all remaining spill files and the spill folder.
+     */
+    @Override
+    public void close() {
+        finishWriting();
+        for (int i = 0; i < nrOfRanges; i++) {
+            deleteRange(i);
+        }
+        try {
+            Files.deleteIfExists(spillFolder);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not delete spill folder " + spillFolder, e);
+        }
+    }
+
+    /**
+     * Thread local buffer that collects index entries per range and appends them as runs to the spill files.
+     */
+    public class SpillWriter implements AutoCloseable {
+        /**
+         * Buffered entries and their bucket offsets within the range per range.
+         */
+        private final long[][] entries;
+        private final char[][] bucketOffsets;
+        private final int[] lengths;
+        private final long[] sizes;
+        // buffers to group the entries of a run by bucket and to encode the run
+        private final long[] sortedEntries;
+        private final int[] groupStarts;
+        private final ByteBuffer run;
+
+        private SpillWriter() {
+            entries = new long[nrOfRanges][];
+            bucketOffsets = new char[nrOfRanges][];
+            lengths = new int[nrOfRanges];
+            sizes = new long[nrOfBuckets];
+            sortedEntries = new long[RUN_ENTRIES];
+            groupStarts = new int[bucketsPerRange + 1];
+            run = ByteBuffer.allocate(MAX_RUN_BYTES);
+        }
+
+        /**
+         * Adds an index entry to the spill file of the range the bucket belongs to.
+         * @param bucket bucket of the entry, has to be one of the spilled buckets
+         * @param indexEntry the index entry
+         */
+        public void write(int bucket, long indexEntry) {
+            bucket -= firstBucket;
+            int range = bucket / bucketsPerRange;
+            if (entries[range] == null) {
+                entries[range] = new long[RUN_ENTRIES];
+                bucketOffsets[range] = new char[RUN_ENTRIES];
+            }
+            int length = lengths[range];
+            entries[range][length] = indexEntry;
+            bucketOffsets[range][length] = (char) (bucket - range * bucketsPerRange);
+            lengths[range] = ++length;
+            sizes[bucket]++;
+            if (length == RUN_ENTRIES) {
+                flush(range);
+            }
+        }
+
+        /**
+         * Groups the buffered entries of a range by bucket, sorts the entries of each bucket and appends them as a run
+         * to the spill file of the range.
+         */
+        private void flush(int range) {
+            int length = lengths[range];
+            if (length == 0) {
+                return;
+            }
+            long[] rangeEntries = entries[range];
+            char[] rangeBucketOffsets = bucketOffsets[range];
+            Arrays.fill(groupStarts, 0);
+            for (int i = 0; i < length; i++) {
+                groupStarts[rangeBucketOffsets[i] + 1]++;
+            }
+            for (int i = 1; i < groupStarts.length; i++) {
+                groupStarts[i] += groupStarts[i - 1];
+            }
+            // the sign bit is flipped, so that the signed sort orders the entries unsigned
+            for (int i = 0; i < length; i++) {
+                sortedEntries[groupStarts[rangeBucketOffsets[i]]++] = rangeEntries[i] ^ Long.MIN_VALUE;
+            }
+            run.clear();
+            int previousBucket = 0;
+            int groupStart = 0;
+            for (int bucket = 0; bucket < bucketsPerRange && groupStart < length; bucket++) {
+                // after the distribution, the start of each group points to the start of the next group
+                int groupEnd = groupStarts[bucket];
+                if (groupEnd == groupStart) {
+                    continue;
+                }
+                Arrays.sort(sortedEntries, groupStart, groupEnd);
+                long varintBytes = 0;
+                long previousEntry = 0;
+                for (int i = groupStart; i < groupEnd; i++) {
+                    long entry = sortedEntries[i] ^ Long.MIN_VALUE;
+                    varintBytes += varintSize(entry - previousEntry);
+                    previousEntry = entry;
+                }
+                boolean varints = varintBytes < (long) (groupEnd - groupStart) * Long.BYTES;
+                writeVarint(run, bucket - previousBucket);
+                writeVarint(run, (long) (groupEnd - groupStart) << 1 | (varints ? 1 : 0));
+                previousEntry = 0;
+                for (int i = groupStart; i < groupEnd; i++) {
+                    long entry = sortedEntries[i] ^ Long.MIN_VALUE;
+                    if (varints) {
+                        writeVarint(run, entry - previousEntry);
+                    } else {
+                        run.putLong(entry);
+                    }
+                    previousEntry = entry;
+                }
+                previousBucket = bucket;
+                groupStart = groupEnd;
+            }
+            DataOutputStream stream = rangeStreams[range];
+            try {
+                synchronized (stream) {
+                    stream.writeInt(run.position());
+                    stream.write(run.array(), 0, run.position());
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Could not write to spill file " + rangeFiles[range], e);
+            }
+            lengths[range] = 0;
+        }
+
+        /**
+         * Writes all remaining entries to the spill files and adds the counted entries to the bucket sizes.
+         */
+        @Override
+        public void close() {
+            for (int i = 0; i < nrOfRanges; i++) {
+                flush(i);
+            }
+            for (int i = 0; i < nrOfBuckets; i++) {
+                if (sizes[i] > 0) {
+                    bucketSizes.addAndGet(i, sizes[i]);
+                }
+            }
+        }
+    }
+}
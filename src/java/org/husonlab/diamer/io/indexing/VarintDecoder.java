@@ -0,0 +1,77 @@
+package org.husonlab.diamer.io.indexing;
+
+/**
+ * Bulk decoder of variable length encoded longs (7 bits per byte, the highest bit marks that another byte follows).
+ * <p>
+ *     This class decodes byte by byte and is the fallback for {@link VectorVarintDecoder}, which is only used if the
+ *     module {@code jdk.incubator.vector} is available (JVM option {@code --add-modules jdk.incubator.vector}).
+ * </p>
+ */
+class VarintDecoder {
+    /**
+     * Number of bytes behind the end of the input that decoders may read (but not use).
+     */
+    static final int PADDING = 32;
+    /**
+     * Position in the input behind the last decoded value.
+     */
+    protected int position;
+
+    /**
+     * @return a {@link VectorVarintDecoder} if the Vector API is available, a scalar {@link VarintDecoder} otherwise
+     */
+    static VarintDecoder create() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            try {
+                return new VectorVarintDecoder();
+            } catch (LinkageError e) {
+                // fall back to the scalar decoder
+            }
+        }
+        return new VarintDecoder();
+    }
+
+    /**
+     * Decodes the complete values in the input, an incomplete value at the end of the input is not decoded. The
+     * position behind the last decoded value is returned by {@link #getPosition()}.
+     * @param in input, must have {@link #PADDING} bytes behind {@code end}
+     * @param start position of the first value in the input
+     * @param end end of the valid bytes of the input
+     * @param out array for the decoded values
+     * @param maxCount maximum number of values to decode
+     * @return the number of decoded values
+     */
+    int decode(byte[] in, int start, int end, long[] out, int maxCount) {
+        position = start;
+        return decodeScalar(in, end, out, 0, maxCount);
+    }
+
+    /**
+     * Decodes byte by byte from {@link #position} on.
+     * @param count number of values in the output before the first value decoded by this method
+     * @return the number of values in the output
+     */
+    protected int decodeScalar(byte[] in, int end, long[] out, int count, int maxCount) {
+        while (count < maxCount) {
+            long l = 0;
+            int shift = 0;
+            int p = position;
+            byte b;
+            do {
+                if (p >= end) {
+                    return count;
+                }
+                b = in[p++];
+                l |= ((long) (b & 0b01111111)) << shift;
+                shift += 7;
+            } while (b < 0);
+            out[count++] = l;
+            position = p;
+        }
+        return count;
+    }
+
+    int getPosition() {
+        return position;
+    }
+}
@@ -0,0 +1,56 @@
+package org.husonlab.diamer.io.indexing;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * Decoder of variable length encoded longs with the Vector API (masked VByte).
+ * <p>
+ *     The highest bits of 16 bytes are collected into a mask with one vector comparison. Every unset bit of the mask
+ *     ends a value, so the lengths of all values in the 16 bytes are known without a branch per byte. Values of up to
+ *     8 bytes are extracted from an unaligned little endian long with {@link Long#compress(long, long)}, longer values
+ *     (only values of 2^56 and more) and the last bytes of the input are decoded byte by byte.
+ * </p>
+ */
+class VectorVarintDecoder extends VarintDecoder {
+    private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_128;
+    private static final int VECTOR_BYTES = 16;
+    private static final VarHandle LONG_LE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    @Override
+    int decode(byte[] in, int start, int end, long[] out, int maxCount) {
+        position = start;
+        int count = 0;
+        while (count < maxCount && end - position >= VECTOR_BYTES) {
+            // bit i is set if byte i ends a value
+            long ends = ~ByteVector.fromArray(SPECIES, in, position).lt((byte) 0).toLong() & 0xFFFF;
+            int valueStart = 0;
+            while (ends != 0 && count < maxCount) {
+                int valueEnd = Long.numberOfTrailingZeros(ends);
+                ends &= ends - 1;
+                int length = valueEnd - valueStart + 1;
+                if (length <= 8) {
+                    long word = (long) LONG_LE.get(in, position + valueStart);
+                    out[count++] = Long.compress(word, 0x7F7F7F7F7F7F7F7FL >>> (64 - 8 * length));
+                } else {
+                    long l = 0;
+                    for (int i = 0; i < length; i++) {
+                        l |= ((long) (in[position + valueStart + i] & 0b01111111)) << (7 * i);
+                    }
+                    out[count++] = l;
+                }
+                valueStart = valueEnd + 1;
+            }
+            if (valueStart == 0) {
+                // no value ends in the 16 bytes, the input is corrupt
+                throw new RuntimeException("Invalid variable length encoded value at position " + position);
+            }
+            position += valueStart;
+        }
+        return decodeScalar(in, end, out, count, maxCount);
+    }
+}
@@ -81,6 +81,31 @@ public class FastaIdReader extends SequenceReader<Integer, char[]> {
         line = br.readLine();
     }
 
+    @Override
+    public boolean isSeekable() {
+        return !isCompressed();
+    }
+
+    @Override
+    protected int isSequenceStart(byte[] bytes, int i, boolean endOfFile) {
+        return bytes[i] == '>' ? 1 : 0;
+    }
+
+    @Override
+    protected SequenceRecord<Integer, char[]> parseSequence(String sequence) {
+        String[] lines = sequence.split("\r?\n");
+        StringBuilder sb = new StringBuilder("*");
+        for (int i = 1; i < lines.length; i++) {
+            sb.append(lines[i]);
+        }
+        sb.append('*');
+        try {
+            return new SequenceRecord<>(Integer.parseInt(lines[0].substring(1)), sb.toString().toCharArray());
+        } catch (NumberFormatException e) {
+            throw new RuntimeException("Invalid sequence ID format");
+        }
+    }
+
     @Override
     public int approximateNumberOfSequences() {
         return Utilities.approximateNumberOfSequences(file, "\n>");
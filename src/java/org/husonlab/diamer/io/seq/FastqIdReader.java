@@ -92,6 +92,40 @@ public class FastqIdReader extends SequenceReader<Integer, char[]> implements He
         headers.clear();
     }
 
+    @Override
+    public boolean isSeekable() {
+        return !isCompressed();
+    }
+
+    /**
+     * Quality lines can also start with '@', a header is followed by the sequence and a line that starts with '+'.
+     */
+    @Override
+    protected int isSequenceStart(byte[] bytes, int i, boolean endOfFile) {
+        if (bytes[i] != '@') {
+            return 0;
+        }
+        int lines = 0;
+        for (int j = i; j < bytes.length; j++) {
+            if (bytes[j] == '\n' && ++lines == 2) {
+                if (j + 1 < bytes.length) {
+                    return bytes[j + 1] == '+' ? 1 : 0;
+                }
+                break;
+            }
+        }
+        return endOfFile ? 0 : -1;
+    }
+
+    /**
+     * The sampled sequences get the ID -1, their headers are not collected.
+     */
+    @Override
+    protected SequenceRecord<Integer, char[]> parseSequence(String sequence) {
+        String[] lines = sequence.split("\r?\n");
+        return new SequenceRecord<>(-1, lines[1].toCharArray());
+    }
+
     @Override
     public int approximateNumberOfSequences() {
         return Utilities.approximateNumberOfSequences(file, "\n@");
@@ -21,4 +21,14 @@ public interface FutureSequenceRecords<H, S> {
      * </p>
      */
     Iterable<SequenceRecord<H, S>> getSequenceRecords();
+
+    /**
+     * Gets the sequence record before the conversion, so that the caller can process it directly instead of calling
+     * {@link #getSequenceRecords()}.
+     * @return the unconverted sequence record or {@code null} if it is not available or the converted sequence records
+     *         are kept in memory and must be computed with {@link #getSequenceRecords()}
+     */
+    default SequenceRecord<H, char[]> getUnconvertedSequenceRecord() {
+        return null;
+    }
 }
@@ -1,9 +1,12 @@
 package org.husonlab.diamer.io.seq;
 
 import org.husonlab.diamer.io.CountingInputStream;
+import org.husonlab.diamer.io.gzip.ParallelGZIPInputStream;
 import org.husonlab.diamer.seq.SequenceRecord;
+import org.husonlab.diamer.util.Pair;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -20,13 +23,28 @@ import java.util.zip.GZIPInputStream;
  */
 public abstract class SequenceReader<H, S> implements AutoCloseable {
 
+    /**
+     * Gzipped files smaller than this are decompressed with a single thread.
+     */
+    private static final long MIN_PARALLEL_GZIP_SIZE = 8L << 20;
+    /**
+     * Number of bytes around a sampled position that are read first to find the sequence at the position.
+     */
+    private static final int SAMPLE_WINDOW = 1 << 16;
+    private static int decompressionThreads = 1;
+
     protected final Path file;
     protected long fileSize;
     protected H id;
     protected StringBuilder sequence;
     private CountingInputStream cis;
+    private ParallelGZIPInputStream pgis;
     protected BufferedReader br;
     protected int sequencesRead;
+    /**
+     * Opened with the first call of {@link #sample(long)}.
+     */
+    private RandomAccessFile sampleFile;
 
     /**
      * @param file Path to the file (gzipped or not) to read from
@@ -62,18 +80,127 @@ public abstract class SequenceReader<H, S> implements AutoCloseable {
         return sequenceRecords;
     }
 
+    /**
+     * @return true if sequences can be read at random positions of the file with {@link #sample(long)}
+     */
+    public boolean isSeekable() {
+        return false;
+    }
+
+    /**
+     * @return true if the file is gzipped
+     */
+    protected boolean isCompressed() {
+        return file.toFile().getName().endsWith(".gz");
+    }
+
+    /**
+     * Reads the sequence that contains a byte position of the file, without changing the position of {@link #next()}.
+     * <p>
+     *     The bytes around the position are searched for the start of the sequence and the start of the following
+     *     sequence, the search window is doubled until both are found. A sequence is sampled with a probability
+     *     proportional to its size in bytes, which is returned with the sequence to weight the sample.
+     * </p>
+     * @param position byte position in the (uncompressed) file
+     * @return the sequence record and its size in bytes, or {@code null} if no sequence starts before the position
+     */
+    public Pair<SequenceRecord<H, S>, Long> sample(long position) throws IOException {
+        if (!isSeekable()) {
+            throw new UnsupportedOperationException("Sequences of " + file + " can not be sampled.");
+        }
+        if (sampleFile == null) {
+            sampleFile = new RandomAccessFile(file.toFile(), "r");
+        }
+        for (long window = SAMPLE_WINDOW; ; window *= 2) {
+            long from = Math.max(0, position - window);
+            long to = Math.min(fileSize, position + window);
+            boolean endOfFile = to == fileSize;
+            byte[] bytes = new byte[Math.toIntExact(to - from)];
+            sampleFile.seek(from);
+            sampleFile.readFully(bytes);
+            long start = -1;
+            long end = endOfFile ? fileSize : -1;
+            boolean decided = true;
+            for (int i = 0; i < bytes.length; i++) {
+                // only the starts of lines can start a sequence, the first byte is only known to start a line at 0
+                if (i == 0 ? from > 0 : bytes[i - 1] != '\n') {
+                    continue;
+                }
+                int sequenceStart = isSequenceStart(bytes, i, endOfFile);
+                if (sequenceStart < 0) {
+                    decided = false;
+                    break;
+                } else if (sequenceStart > 0 && from + i <= position) {
+                    start = from + i;
+                } else if (sequenceStart > 0) {
+                    end = from + i;
+                    break;
+                }
+            }
+            if (decided && start < 0 && from == 0) {
+                return null;
+            }
+            if (decided && start >= 0 && end >= 0) {
+                SequenceRecord<H, S> sequenceRecord = parseSequence(
+                        new String(bytes, (int) (start - from), (int) (end - start), StandardCharsets.US_ASCII));
+                return new Pair<>(sequenceRecord, end - start);
+            }
+        }
+    }
+
+    /**
+     * Checks if a sequence starts at the beginning of a line, only used by readers that are {@link #isSeekable()}.
+     * @param bytes bytes of the file around the line
+     * @param i index of the first byte of the line
+     * @param endOfFile true if the bytes reach to the end of the file
+     * @return 1 if a sequence starts at the line, 0 if not and -1 if more bytes after the line are needed to decide
+     */
+    protected int isSequenceStart(byte[] bytes, int i, boolean endOfFile) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Parses a single sequence, only used by readers that are {@link #isSeekable()}.
+     * @param sequence the lines of the sequence in the file, including its header
+     */
+    protected SequenceRecord<H, S> parseSequence(String sequence) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Sets the number of threads that are used to decompress gzipped sequence files.
+     * @param threads number of threads, 1 to use a single {@link GZIPInputStream}
+     */
+    public static void setDecompressionThreads(int threads) {
+        decompressionThreads = Math.max(1, threads);
+    }
+
     /**
      * (Re)opens the sequence file for reading.
+     * <p>
+     *     Large gzipped files are decompressed with a {@link ParallelGZIPInputStream} if more than one decompression
+     *     thread is set.
+     * </p>
      */
     public void open() {
         try {
-            this.cis = new CountingInputStream(new FileInputStream(file.toString()));
-            if (file.toFile().getName().endsWith(".gz")) {
+            if (pgis != null) {
+                // stops the decompression threads of the previous stream
+                pgis.close();
+            }
+            this.fileSize = Files.size(Paths.get(file.toString()));
+            this.cis = null;
+            this.pgis = null;
+            if (file.toFile().getName().endsWith(".gz") && decompressionThreads > 1 && fileSize >= MIN_PARALLEL_GZIP_SIZE) {
+                this.pgis = new ParallelGZIPInputStream(file, decompressionThreads);
+                this.br = new BufferedReader(new InputStreamReader(pgis), 131072);
+            } else if (file.toFile().getName().endsWith(".gz")) {
+                this.cis = new CountingInputStream(new FileInputStream(file.toString()));
                 this.br = new BufferedReader(new InputStreamReader(new GZIPInputStream(cis, 131072)), 131072);
             } else {
+                this.cis = new CountingInputStream(new FileInputStream(file.toString()));
                 this.br = new BufferedReader(new InputStreamReader(cis), 131072);
             }
-            this.fileSize = Files.size(Paths.get(file.toString()));
         } catch (IOException e) {
             throw new RuntimeException("Could not find sequence file: " + file);
         }
@@ -90,7 +217,7 @@ public abstract class SequenceReader<H, S> implements AutoCloseable {
      * @return The number of bytes read from the file since it was opened or reset.
      */
     public long getBytesRead() {
-        return cis.getBytesRead();
+        return pgis != null ? pgis.getCompressedBytesRead() : cis.getBytesRead();
     }
 
     /**
@@ -115,6 +242,9 @@ public abstract class SequenceReader<H, S> implements AutoCloseable {
     @Override
     public void close() throws IOException {
         br.close();
+        if (sampleFile != null) {
+            sampleFile.close();
+        }
     }
 
     /**
@@ -1,6 +1,7 @@
 package org.husonlab.diamer.io.seq;
 
 import org.husonlab.diamer.seq.SequenceRecord;
+import org.husonlab.diamer.util.Pair;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
@@ -142,6 +143,11 @@ public class SequenceSupplier<H, S> implements AutoCloseable {
                 }
                 return sequenceRecords;
             }
+
+            @Override
+            public SequenceRecord<H, char[]> getUnconvertedSequenceRecord() {
+                return entry == null ? sequenceRecord : null;
+            }
         };
     }
 
@@ -183,6 +189,23 @@ public class SequenceSupplier<H, S> implements AutoCloseable {
         return bytesRead;
     }
 
+    /**
+     * @return true if sequences can be sampled at random positions of the file with {@link #sample(long)}.
+     */
+    public boolean isSeekable() {
+        return sequenceReader.isSeekable();
+    }
+
+    /**
+     * Reads the sequence that contains a byte position of the file, without changing the position of {@link #next()}.
+     * @return the (future) converted sequence records and the size of the sequence in the file in bytes, or
+     *         {@code null} if no sequence starts before the position. See {@link SequenceReader#sample(long)}.
+     */
+    public Pair<FutureSequenceRecords<H, S>, Long> sample(long position) throws IOException {
+        Pair<SequenceRecord<H, char[]>, Long> sample = sequenceReader.sample(position);
+        return sample == null ? null : new Pair<>(getFutureSequenceRecords(converter, sample.first(), null), sample.last());
+    }
+
     /**
      * @return the file that is read by the {@link SequenceReader}.
      */
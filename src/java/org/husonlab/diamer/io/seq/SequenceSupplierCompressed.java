@@ -44,6 +44,11 @@ public class SequenceSupplierCompressed extends SequenceSupplier<Integer, byte[]
                 }
                 return sequenceRecords;
             }
+
+            @Override
+            public SequenceRecord<Integer, char[]> getUnconvertedSequenceRecord() {
+                return entry == null ? sequenceRecord : null;
+            }
         };
     }
 
@@ -59,10 +59,16 @@ public class CliUtils {
     /**
      * @param cli           command line arguments
      * @param defaultMask   default mask
-     * @return mask from cli or default mask
+     * @return the comma separated masks from cli or the default mask
      */
-    public static boolean[] getMask(CommandLine cli, String defaultMask) {
-        return !Objects.isNull(cli) && cli.hasOption("mask") ? parseMask(cli.getOptionValue("mask")) : parseMask(defaultMask);
+    public static boolean[][] getMasks(CommandLine cli, String defaultMask) {
+        String[] masks = (!Objects.isNull(cli) && cli.hasOption("mask") ? cli.getOptionValue("mask") : defaultMask)
+                .split(",");
+        boolean[][] result = new boolean[masks.length][];
+        for (int i = 0; i < masks.length; i++) {
+            result[i] = parseMask(masks[i]);
+        }
+        return result;
     }
 
     /**
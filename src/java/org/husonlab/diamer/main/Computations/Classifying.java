@@ -0,0 +1,52 @@
+package org.husonlab.diamer.main.Computations;
+
+import org.apache.commons.cli.CommandLine;
+import org.husonlab.diamer.io.indexing.IndexManifest;
+import org.husonlab.diamer.io.seq.FastqIdReader;
+import org.husonlab.diamer.io.seq.SequenceSupplierCompressed;
+import org.husonlab.diamer.main.CliUtils;
+import org.husonlab.diamer.main.GlobalSettings;
+import org.husonlab.diamer.main.encoders.Encoder;
+import org.husonlab.diamer.readAssignment.ReadAssignment;
+import org.husonlab.diamer.readAssignment.ReadClassifier;
+
+import static org.husonlab.diamer.io.Utilities.getFile;
+import static org.husonlab.diamer.io.Utilities.getFolder;
+import static org.husonlab.diamer.main.Computations.DBIndexing.checkDBIndexEncoding;
+import static org.husonlab.diamer.main.Computations.DBIndexing.setupEncoder;
+
+public class Classifying {
+    /**
+     * Classifies reads directly against a database index without building a reads index.
+     */
+    public static void classify(CommandLine cli, GlobalSettings settings) {
+        // database index, reads, output folder
+        CliUtils.checkNumberOfPositionalArguments(cli, 3);
+        settings.DB_INDEX = getFolder(cli.getArgs()[0], true);
+        settings.INPUT = getFile(cli.getArgs()[1], true);
+        // the kmers are encoded like the kmers of the database index, with its number of buckets
+        checkDBIndexEncoding(settings.DB_INDEX, settings);
+        settings.BUCKET_BITS = IndexManifest.getBucketBits(settings.DB_INDEX);
+
+        settings.logFileWriter.writeSettings(settings);
+        settings.logFileWriter.writeTimeStamp("Classification started");
+
+        // setup kmer extractor and encoder with filtering options:
+        Encoder encoder = setupEncoder(new FastqIdReader(settings.INPUT), settings.ALPHABET::translateRead, cli, settings);
+
+        ReadAssignment readAssignment;
+        try (FastqIdReader fastqIdReader = new FastqIdReader(settings.INPUT);
+             SequenceSupplierCompressed sup = new SequenceSupplierCompressed(
+                     fastqIdReader, settings.ALPHABET::translateRead, settings.KEEP_IN_MEMORY)) {
+            ReadClassifier readClassifier = new ReadClassifier(sup, fastqIdReader, encoder, settings);
+            String runInfo = readClassifier.classify();
+            settings.logFileWriter.writeTimeStamp("Classification finished");
+            settings.logFileWriter.writeLog(runInfo);
+            readAssignment = readClassifier.getReadAssignment();
+        } catch (Exception e) {
+            settings.logFileWriter.writeLog("Classification failed: " + e.getMessage());
+            throw new RuntimeException(e);
+        }
+        ReadAssigning.writeResults(readAssignment, settings);
+    }
+}
@@ -1,6 +1,7 @@
 package org.husonlab.diamer.main.Computations;
 
 import org.apache.commons.cli.CommandLine;
+import org.husonlab.diamer.io.indexing.IndexManifest;
 import org.husonlab.diamer.main.CliUtils;
 import org.husonlab.diamer.main.GlobalSettings;
 import org.husonlab.diamer.main.encoders.Encoder;
@@ -14,6 +15,7 @@ public class DBIndexAnalyzing {
         // db index, output folder
         CliUtils.checkNumberOfPositionalArguments(cli, 2);
         settings.DB_INDEX = getFolder(cli.getArgs()[0], true);
+        settings.BUCKET_BITS = IndexManifest.getBucketBits(settings.DB_INDEX);
         settings.logFileWriter.writeSettings(settings);
 
         Encoder encoder = new EncoderWithoutKmerExtractor(settings);
@@ -0,0 +1,38 @@
+package org.husonlab.diamer.main.Computations;
+
+import org.apache.commons.cli.CommandLine;
+import org.husonlab.diamer.indexing.DBIndexMerger;
+import org.husonlab.diamer.main.CliUtils;
+import org.husonlab.diamer.main.GlobalSettings;
+
+import java.nio.file.Path;
+
+import static org.husonlab.diamer.io.Utilities.getFolder;
+
+public class DBIndexMerging {
+    /**
+     * Merges the slices of a DB index that were built with --bucket-range.
+     */
+    public static void mergeIndex(CommandLine cli, GlobalSettings settings) {
+        // slice folders, output folder
+        CliUtils.checkNumberOfPositionalArguments(cli, 2);
+        String[] args = cli.getArgs();
+        Path[] slices = new Path[args.length - 1];
+        for (int i = 0; i < slices.length; i++) {
+            slices[i] = getFolder(args[i], true);
+        }
+        settings.DB_INDEX = settings.OUTPUT;
+        settings.logFileWriter.writeSettings(settings);
+        settings.logFileWriter.writeTimeStamp("Merging started");
+
+        try {
+            DBIndexMerger dbIndexMerger = new DBIndexMerger(slices, settings.OUTPUT);
+            String runInfo = dbIndexMerger.merge();
+            settings.logFileWriter.writeTimeStamp("Merging finished");
+            settings.logFileWriter.writeLog(runInfo);
+        } catch (Exception e) {
+            settings.logFileWriter.writeLog("Merging failed: " + e.getMessage());
+            throw new RuntimeException(e);
+        }
+    }
+}
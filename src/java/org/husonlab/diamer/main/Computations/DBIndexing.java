@@ -4,12 +4,15 @@ import org.apache.commons.cli.CommandLine;
 import org.husonlab.diamer.indexing.DBIndexer;
 import org.husonlab.diamer.indexing.StatisticsEstimator;
 import org.husonlab.diamer.indexing.kmers.*;
+import org.husonlab.diamer.io.indexing.DBIndexIO;
+import org.husonlab.diamer.io.indexing.IndexManifest;
 import org.husonlab.diamer.io.seq.*;
 import org.husonlab.diamer.main.GlobalSettings;
 import org.husonlab.diamer.main.encoders.Encoder;
 import org.husonlab.diamer.main.encoders.EncoderWithoutKmerExtractor;
 import org.husonlab.diamer.taxonomy.Tree;
 
+import java.nio.file.Path;
 import java.util.Objects;
 
 import static org.husonlab.diamer.io.Utilities.getFile;
@@ -25,20 +28,34 @@ public class DBIndexing {
         // input database fasta file, output folder
         checkNumberOfPositionalArguments(cli, 2);
         settings.INPUT = getFile(cli.getArgs()[0], true);
-        settings.DB_INDEX = getFolder(cli.getArgs()[1], false);
+        settings.DB_INDEX = getFolder(cli.getArgs()[1], settings.UPDATE_INDEX);
+        if (settings.UPDATE_INDEX) {
+            checkUpdatedIndex(cli, settings);
+        }
 
         settings.logFileWriter.writeSettings(settings);
         settings.logFileWriter.writeTimeStamp("Indexing started");
 
-        // parse tree
-        Tree tree = readTree(cli);
-
         // setup kmer extractor and encoder with filtering options:
         Encoder encoder = setupEncoder(new FastaIdReader(settings.INPUT), settings.ALPHABET::translateDBSequence, cli, settings);
 
+        // parse tree, an existing index is updated with the tree (and kmer counts) of the index
+        Tree tree;
+        if (settings.UPDATE_INDEX) {
+            DBIndexIO dbIndexIO = encoder.getDBIndexIO();
+            if (!dbIndexIO.treeExists()) {
+                settings.logFileWriter.writeLog("No existing index to update in " + settings.DB_INDEX);
+                throw new RuntimeException("No existing index to update in " + settings.DB_INDEX);
+            }
+            settings.logFileWriter.writeLog("Updating existing index in " + settings.DB_INDEX);
+            tree = dbIndexIO.getTree();
+        } else {
+            tree = readTree(cli);
+        }
+
         try (SequenceSupplierCompressed sup = new SequenceSupplierCompressed(
                 new FastaIdReader(settings.INPUT), settings.ALPHABET::translateDBSequence, settings.KEEP_IN_MEMORY)) {
-            // estimate bucket sizes with first 10,000 sequences
+            // estimate bucket sizes with the first 10,000 sequences and 10,000 sequences sampled from the rest of the file
             StatisticsEstimator statisticsEstimator = new StatisticsEstimator(sup, encoder, 10_000);
             int estimatedBucketSize = statisticsEstimator.getMaxBucketSize();
             if (estimatedBucketSize < 1) {
@@ -54,8 +71,24 @@ public class DBIndexing {
                 settings.logFileWriter.writeLog("Suggested number of buckets: " + suggestedNrOfBuckets);
                 settings.BUCKETS_PER_CYCLE = suggestedNrOfBuckets;
             }
+            if (settings.LAST_BUCKET >= 0) {
+                if (settings.LAST_BUCKET > encoder.getNrOfBuckets()) {
+                    settings.logFileWriter.writeLog("Bucket range exceeds the number of buckets: " + encoder.getNrOfBuckets());
+                    throw new RuntimeException("Bucket range exceeds the number of buckets: " + encoder.getNrOfBuckets());
+                }
+                settings.logFileWriter.writeLog("Building buckets " + settings.FIRST_BUCKET + " to " + (settings.LAST_BUCKET - 1));
+            }
+            if (settings.SINGLE_PASS) {
+                settings.logFileWriter.writeLog("Single pass indexing with spill files in " + settings.SPILL_FOLDER);
+            } else if (settings.ADAPTIVE_CYCLES) {
+                settings.logFileWriter.writeLog("Buckets per cycle are adapted to the available memory");
+            }
+            if (settings.OFF_HEAP) {
+                settings.logFileWriter.writeLog("Using off-heap buckets");
+            }
             // starting indexing
-            DBIndexer dbIndexer = new DBIndexer(sup, tree, estimatedBucketSize, encoder, settings);
+            DBIndexer dbIndexer = new DBIndexer(sup, tree, statisticsEstimator.getMaxBucketSizeUpperBound(),
+                    statisticsEstimator.getBucketSizeUpperBounds(), encoder, settings);
             String runInfo = dbIndexer.index();
             settings.logFileWriter.writeTimeStamp("Indexing finished");
             settings.logFileWriter.writeLog(runInfo);
@@ -65,12 +98,63 @@ public class DBIndexing {
         }
     }
 
+    /**
+     * Checks that the existing index has a manifest and was built with the same settings and bucket range as the
+     * update. The updated index keeps the number of buckets of the existing index.
+     */
+    private static void checkUpdatedIndex(CommandLine cli, GlobalSettings settings) {
+        if (!IndexManifest.exists(settings.DB_INDEX)) {
+            settings.logFileWriter.writeLog("No index manifest in " + settings.DB_INDEX + ", the index can not be updated.");
+            throw new RuntimeException("No index manifest in " + settings.DB_INDEX + ", the index can not be updated.");
+        }
+        IndexManifest existing = IndexManifest.read(settings.DB_INDEX);
+        int bucketBits = Integer.numberOfTrailingZeros(existing.getNrOfBuckets());
+        if (cli.hasOption("bucket-bits") && bucketBits != settings.BUCKET_BITS) {
+            settings.logFileWriter.writeLog("The existing index uses " + bucketBits + " bucket bits, not " + settings.BUCKET_BITS);
+            throw new RuntimeException("The existing index uses " + bucketBits + " bucket bits, not " + settings.BUCKET_BITS);
+        }
+        settings.BUCKET_BITS = bucketBits;
+        int lastBucket = settings.LAST_BUCKET < 0 ? existing.getNrOfBuckets() : settings.LAST_BUCKET;
+        IndexManifest update = IndexManifest.of(settings, existing.getNrOfBuckets(), 0, 0, new long[0]);
+        if (!existing.isCompatible(update)) {
+            settings.logFileWriter.writeLog("The existing index was built with different settings: " +
+                    existing.getSettings() + " vs. " + update.getSettings());
+            throw new RuntimeException("The existing index was built with different settings: " +
+                    existing.getSettings() + " vs. " + update.getSettings());
+        }
+        if (existing.getFirstBucket() != settings.FIRST_BUCKET || existing.getLastBucket() != lastBucket) {
+            settings.logFileWriter.writeLog("The existing index contains the buckets " + existing.getFirstBucket() +
+                    " to " + (existing.getLastBucket() - 1) + ", not " + settings.FIRST_BUCKET + " to " + (lastBucket - 1));
+            throw new RuntimeException("The existing index contains the buckets " + existing.getFirstBucket() +
+                    " to " + (existing.getLastBucket() - 1) + ", not " + settings.FIRST_BUCKET + " to " + (lastBucket - 1));
+        }
+    }
+
+    /**
+     * Checks that a database index encodes its kmers like the current run (alphabet, mask and bits for IDs), so that
+     * kmers of the reads can be searched in it.
+     */
+    static void checkDBIndexEncoding(Path dbIndex, GlobalSettings settings) {
+        if (!IndexManifest.exists(dbIndex)) {
+            settings.logFileWriter.writeLog("No index manifest in " + dbIndex + ", the settings of the index can not be checked.");
+            throw new RuntimeException("No index manifest in " + dbIndex + ", the settings of the index can not be checked.");
+        }
+        IndexManifest existing = IndexManifest.read(dbIndex);
+        IndexManifest current = IndexManifest.of(settings, existing.getNrOfBuckets(), 0, 0, new long[0]);
+        if (!existing.hasSameEncoding(current)) {
+            settings.logFileWriter.writeLog("The database index " + dbIndex + " was built with different settings: " +
+                    existing.getSettings() + " vs. " + current.getSettings());
+            throw new RuntimeException("The database index " + dbIndex + " was built with different settings: " +
+                    existing.getSettings() + " vs. " + current.getSettings());
+        }
+    }
+
     private static double[] estimateProbabilities(SequenceReader<Integer, char[]> reader, SequenceSupplier.Converter<byte[]> converter, GlobalSettings settings) {
         // setup encoder without filtering to estimate AA probabilities
         Encoder encoder = new Encoder(settings) {
             @Override
-            public KmerExtractor getKmerExtractor() {
-                return new KmerExtractor(new KmerEncoder(settings.ALPHABET.getBase(), settings.MASK));
+            protected KmerExtractor getKmerExtractor(boolean[] mask) {
+                return new KmerExtractor(new KmerEncoder(settings.ALPHABET.getBase(), mask));
             }
         };
         try (SequenceSupplier<Integer, byte[]> sup = new SequenceSupplier<>(
@@ -106,9 +190,9 @@ public class DBIndexing {
                     settings.logger.logInfo("Filtering: c > " + threshold);
                     return new Encoder(settings) {
                         @Override
-                        public KmerExtractor getKmerExtractor() {
+                        protected KmerExtractor getKmerExtractor(boolean[] mask) {
                             // setup default encoder with complexity filtering
-                            KmerEncoder kmerEncoder = new KmerEncoder(settings.ALPHABET.getBase(), settings.MASK);
+                            KmerEncoder kmerEncoder = new KmerEncoder(settings.ALPHABET.getBase(), mask);
                             return new KmerExtractorFiltered(kmerEncoder) {
                                 @Override
                                 public boolean keep(long kmer) {
@@ -123,8 +207,8 @@ public class DBIndexing {
                     settings.logger.logInfo("No filtering.");
                     return new Encoder(settings) {
                         @Override
-                        public KmerExtractor getKmerExtractor() {
-                            return new KmerExtractor(new KmerEncoder(settings.ALPHABET.getBase(), settings.MASK));
+                        protected KmerExtractor getKmerExtractor(boolean[] mask) {
+                            return new KmerExtractor(new KmerEncoder(settings.ALPHABET.getBase(), mask));
                         }
                     };
                 }
@@ -150,8 +234,8 @@ public class DBIndexing {
                     settings.logFileWriter.writeLog("Filtering: p < " + threshold);
                     return new Encoder(settings) {
                         @Override
-                        public KmerExtractor getKmerExtractor() {
-                            KmerEncoder kmerEncoder = new KmerEncoder(settings.ALPHABET.getBase(), settings.MASK, letterLikelihoods);
+                        protected KmerExtractor getKmerExtractor(boolean[] mask) {
+                            KmerEncoder kmerEncoder = new KmerEncoder(settings.ALPHABET.getBase(), mask, letterLikelihoods);
                             return new KmerExtractorFiltered(kmerEncoder) {
                                 @Override
                                 public boolean keep(long kmer) {
@@ -166,8 +250,8 @@ public class DBIndexing {
                     settings.logger.logInfo("No filtering.");
                     return new Encoder(settings) {
                         @Override
-                        public KmerExtractor getKmerExtractor() {
-                            return new KmerExtractor(new KmerEncoder(settings.ALPHABET.getBase(), settings.MASK));
+                        protected KmerExtractor getKmerExtractor(boolean[] mask) {
+                            return new KmerExtractor(new KmerEncoder(settings.ALPHABET.getBase(), mask));
                         }
                     };
                 }
@@ -189,8 +273,8 @@ public class DBIndexing {
                     settings.logger.logInfo("Filtering: w=" + windowSize + " (complexity maximizer)");
                     return new Encoder(settings) {
                         @Override
-                        public KmerExtractor getKmerExtractor() {
-                            KmerEncoder kmerEncoder = new KmerEncoder(settings.ALPHABET.getBase(), settings.MASK);
+                        protected KmerExtractor getKmerExtractor(boolean[] mask) {
+                            KmerEncoder kmerEncoder = new KmerEncoder(settings.ALPHABET.getBase(), mask);
                             return new KmerExtractorComplexityMaximizer(kmerEncoder, windowSize);
                         }
                     };
@@ -202,12 +286,35 @@ public class DBIndexing {
                     settings.logger.logInfo("Filtering: w=" + windowSize + " (probability minimizer)");
                     return new Encoder(settings) {
                         @Override
-                        public KmerExtractor getKmerExtractor() {
-                            KmerEncoder finalKmerEncoder = new KmerEncoder(settings.ALPHABET.getBase(), settings.MASK, letterLikelihoods);
+                        protected KmerExtractor getKmerExtractor(boolean[] mask) {
+                            KmerEncoder finalKmerEncoder = new KmerEncoder(settings.ALPHABET.getBase(), mask, letterLikelihoods);
                             return new KmerExtractorProbabilityMinimizer(finalKmerEncoder, windowSize);
                         }
                     };
                 }
+            } else if (Objects.equals(options[0], "os") || Objects.equals(options[0], "cs")) {
+                // parse s-mer length
+                int smerLength;
+                try {
+                    smerLength = Integer.parseInt(options[1]);
+                } catch (NumberFormatException e) {
+                    settings.logFileWriter.writeLog("Invalid s-mer length: " + options[1]);
+                    throw new RuntimeException("Invalid s-mer length: " + options[1]);
+                }
+                if (smerLength < 1 || smerLength >= settings.MASK.length) {
+                    settings.logFileWriter.writeLog("Invalid s-mer length: " + smerLength);
+                    throw new RuntimeException("Invalid s-mer length: " + smerLength);
+                }
+                boolean closed = Objects.equals(options[0], "cs");
+                String syncmers = (closed ? "closed" : "open") + " syncmers";
+                settings.logFileWriter.writeLog("Filtering: s=" + smerLength + " (" + syncmers + ")");
+                settings.logger.logInfo("Filtering: s=" + smerLength + " (" + syncmers + ")");
+                return new Encoder(settings) {
+                    @Override
+                    protected KmerExtractor getKmerExtractor(boolean[] mask) {
+                        return new KmerExtractorSyncmer(new KmerEncoder(settings.ALPHABET.getBase(), mask), smerLength, closed);
+                    }
+                };
             }
         }
 
@@ -215,8 +322,8 @@ public class DBIndexing {
         settings.logger.logInfo("Filtering: c > 3 (default)");
         return new Encoder(settings) {
             @Override
-            public KmerExtractor getKmerExtractor() {
-                KmerEncoder kmerEncoder = new KmerEncoder(settings.ALPHABET.getBase(), settings.MASK);
+            protected KmerExtractor getKmerExtractor(boolean[] mask) {
+                KmerEncoder kmerEncoder = new KmerEncoder(settings.ALPHABET.getBase(), mask);
                 return new KmerExtractorFiltered(kmerEncoder) {
                     @Override
                     public boolean keep(long kmer) {
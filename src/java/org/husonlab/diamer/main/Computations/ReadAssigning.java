@@ -2,6 +2,7 @@ package org.husonlab.diamer.main.Computations;
 
 import org.apache.commons.cli.CommandLine;
 import org.husonlab.diamer.io.ReadAssignmentIO;
+import org.husonlab.diamer.io.indexing.IndexManifest;
 import org.husonlab.diamer.io.taxonomy.TreeIO;
 import org.husonlab.diamer.main.CliUtils;
 import org.husonlab.diamer.main.GlobalSettings;
@@ -21,6 +22,14 @@ public class ReadAssigning {
         CliUtils.checkNumberOfPositionalArguments(cli, 3);
         settings.DB_INDEX = getFolder(cli.getArgs()[0], true);
         settings.READS_INDEX = getFolder(cli.getArgs()[1], true);
+        // both indexes have to be built with the same number of buckets
+        settings.BUCKET_BITS = IndexManifest.getBucketBits(settings.DB_INDEX);
+        if (IndexManifest.getBucketBits(settings.READS_INDEX) != settings.BUCKET_BITS) {
+            settings.logFileWriter.writeLog("The database index and the reads index have a different number of buckets.");
+            throw new RuntimeException("The database index (" + (1 << settings.BUCKET_BITS) + " buckets) and the " +
+                    "reads index (" + (1 << IndexManifest.getBucketBits(settings.READS_INDEX)) + " buckets) have a " +
+                    "different number of buckets.");
+        }
 
         settings.logFileWriter.writeSettings(settings);
         settings.logFileWriter.writeTimeStamp("Read assignment started");
@@ -40,7 +49,13 @@ public class ReadAssigning {
             settings.logFileWriter.writeLog("Read assignment failed: " + e.getMessage());
             throw new RuntimeException(e);
         }
+        writeResults(readAssignment, settings);
+    }
 
+    /**
+     * Runs the classification algorithms on the kmer matches and writes the per read and per taxon assignments.
+     */
+    static void writeResults(ReadAssignment readAssignment, GlobalSettings settings) {
         // write raw kmer matches per read
         ReadAssignmentIO.writeRawAssignment(readAssignment, settings.OUTPUT.resolve("raw_assignments.tsv"));
         // add k-mer counts to the taxonomic nodes to use them for the assignment algorithms
@@ -3,6 +3,8 @@ package org.husonlab.diamer.main.Computations;
 import org.apache.commons.cli.CommandLine;
 import org.husonlab.diamer.indexing.ReadIndexer;
 import org.husonlab.diamer.indexing.StatisticsEstimator;
+import org.husonlab.diamer.io.indexing.DBIndexIO;
+import org.husonlab.diamer.io.indexing.IndexManifest;
 import org.husonlab.diamer.io.seq.FastqIdReader;
 import org.husonlab.diamer.io.seq.SequenceSupplierCompressed;
 import org.husonlab.diamer.main.GlobalSettings;
@@ -11,6 +13,7 @@ import org.husonlab.diamer.main.encoders.Encoder;
 import static org.husonlab.diamer.io.Utilities.getFile;
 import static org.husonlab.diamer.io.Utilities.getFolder;
 import static org.husonlab.diamer.main.CliUtils.*;
+import static org.husonlab.diamer.main.Computations.DBIndexing.checkDBIndexEncoding;
 import static org.husonlab.diamer.main.Computations.DBIndexing.setupEncoder;
 
 public class ReadIndexing {
@@ -22,6 +25,10 @@ public class ReadIndexing {
 
         settings.logFileWriter.writeSettings(settings);
         settings.logFileWriter.writeTimeStamp("Indexing started");
+        if (settings.DB_FILTER != null) {
+            // the kmers of the reads are looked up in the Bloom filters of the database index
+            checkDBIndexEncoding(settings.DB_FILTER, settings);
+        }
 
         // setup kmer extractor and encoder with filtering options:
         Encoder encoder = setupEncoder(new FastqIdReader(settings.INPUT), settings.ALPHABET::translateRead, cli, settings);
@@ -29,7 +36,7 @@ public class ReadIndexing {
         try (FastqIdReader fastqIdReader = new FastqIdReader(settings.INPUT);
                 SequenceSupplierCompressed sup = new SequenceSupplierCompressed(
                         fastqIdReader, settings.ALPHABET::translateRead, settings.KEEP_IN_MEMORY)) {
-            // estimate bucket sizes with first 10,000 sequences
+            // estimate bucket sizes with the first 1,000 reads and 1,000 reads sampled from the rest of the file
             StatisticsEstimator statisticsEstimator = new StatisticsEstimator(sup, encoder, 1_000);
             int estimatedBucketSize = statisticsEstimator.getMaxBucketSize();
             if (estimatedBucketSize < 1) {
@@ -45,9 +52,48 @@ public class ReadIndexing {
                 settings.logFileWriter.writeLog("Suggested number of buckets: " + suggestedNrOfBuckets);
                 settings.BUCKETS_PER_CYCLE = suggestedNrOfBuckets;
             }
+            if (settings.SINGLE_PASS) {
+                settings.logFileWriter.writeLog("Single pass indexing with spill files in " + settings.SPILL_FOLDER);
+            } else if (settings.ADAPTIVE_CYCLES) {
+                settings.logFileWriter.writeLog("Buckets per cycle are adapted to the available memory");
+            }
+            if (settings.OFF_HEAP) {
+                settings.logFileWriter.writeLog("Using off-heap buckets");
+            }
+            if (settings.DB_FILTER != null) {
+                DBIndexIO filterIndex = new DBIndexIO(settings.DB_FILTER, encoder.getNrOfBuckets());
+                if (IndexManifest.getBucketBits(settings.DB_FILTER) != encoder.getNrOfBitsBucketNames()) {
+                    settings.logFileWriter.writeLog("The database index " + settings.DB_FILTER + " has " +
+                            IndexManifest.getBucketBits(settings.DB_FILTER) + " bucket bits, the reads index " +
+                            encoder.getNrOfBitsBucketNames() + ".");
+                    throw new RuntimeException("The database index " + settings.DB_FILTER + " has " +
+                            IndexManifest.getBucketBits(settings.DB_FILTER) + " bucket bits, the reads index " +
+                            encoder.getNrOfBitsBucketNames() + ".");
+                }
+                if (!filterIndex.filtersComplete()) {
+                    settings.logFileWriter.writeLog("The database index " + settings.DB_FILTER +
+                            " has no Bloom filters, build it with --bloom-filter.");
+                    throw new RuntimeException("The database index " + settings.DB_FILTER +
+                            " has no Bloom filters, build it with --bloom-filter.");
+                }
+                settings.logFileWriter.writeLog("Keeping only kmers that pass the Bloom filters of " + settings.DB_FILTER);
+            }
+            // split the reads into partitions if their IDs do not fit into the index entries, unused partitions are
+            // removed after indexing
+            int nrOfPartitions = getNrOfPartitions(statisticsEstimator.getNrOfSequencesUpperBound(), settings);
             // starting indexing
-            ReadIndexer readIndexer = new ReadIndexer(sup, fastqIdReader, estimatedBucketSize, encoder, settings);
+            ReadIndexer readIndexer = new ReadIndexer(sup, fastqIdReader, statisticsEstimator.getMaxBucketSizeUpperBound(),
+                    statisticsEstimator.getBucketSizeUpperBounds(), nrOfPartitions, encoder, settings);
             String runInfo = readIndexer.index();
+            if (runInfo == null) {
+                // the reads have been counted during the first pass over the input
+                settings.logFileWriter.writeLog("The number of reads was underestimated, indexing " +
+                        readIndexer.getNrOfReads() + " reads again.");
+                nrOfPartitions = getNrOfPartitions(readIndexer.getNrOfReads(), settings);
+                readIndexer = new ReadIndexer(sup, fastqIdReader, statisticsEstimator.getMaxBucketSizeUpperBound(),
+                        statisticsEstimator.getBucketSizeUpperBounds(), nrOfPartitions, encoder, settings);
+                runInfo = readIndexer.index();
+            }
             settings.logFileWriter.writeTimeStamp("Indexing finished");
             settings.logFileWriter.writeLog(runInfo);
         } catch (Exception e) {
@@ -55,4 +101,16 @@ public class ReadIndexing {
             throw new RuntimeException(e);
         }
     }
+
+    /**
+     * @return the number of read ID partitions that are required for the number of reads
+     */
+    private static int getNrOfPartitions(long nrOfReads, GlobalSettings settings) {
+        int nrOfPartitions = (int) Math.max(1, Math.ceilDiv(nrOfReads, 1L << settings.BITS_FOR_IDS));
+        if (nrOfPartitions > 1) {
+            settings.logFileWriter.writeLog("Reads are split into up to " + nrOfPartitions + " partitions of " +
+                    (1L << settings.BITS_FOR_IDS) + " read IDs");
+        }
+        return nrOfPartitions;
+    }
 }
@@ -3,6 +3,8 @@ package org.husonlab.diamer.main;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
+import org.husonlab.diamer.io.indexing.BucketIO;
+import org.husonlab.diamer.io.seq.SequenceReader;
 import org.husonlab.diamer.readAssignment.algorithms.ClassificationAlgorithm;
 import org.husonlab.diamer.seq.alphabet.ReducedAlphabet;
 import org.husonlab.diamer.util.logging.LogFileWriter;
@@ -42,6 +44,15 @@ public class GlobalSettings {
      * How many bits of the index are reserved for the ids of the sequences
      */
     public final int BITS_FOR_IDS = 22;
+    /**
+     * Default number of bits of the k-mers that are encoded in the bucket names (1024 buckets)
+     */
+    public final static int DEFAULT_BUCKET_BITS = 10;
+    /**
+     * Number of bits of the k-mers that are encoded in the bucket names, an index consists of 2^BUCKET_BITS buckets.
+     * Taken from the index when an existing index is read.
+     */
+    public int BUCKET_BITS;
     /**
      * How many sequences to process in a batch in one thread
      */
@@ -50,6 +61,54 @@ public class GlobalSettings {
      * Buckets to process in one cycle
      */
     public int BUCKETS_PER_CYCLE;
+    /**
+     * Whether the buckets per cycle are chosen for each cycle from the available memory (no -b given)
+     */
+    public final boolean ADAPTIVE_CYCLES;
+    /**
+     * Whether to read the input only once during indexing and spill the extracted kmers to disk
+     */
+    public final boolean SINGLE_PASS;
+    /**
+     * Folder for the spill files of single pass indexing (should be on a fast local disk)
+     */
+    public final Path SPILL_FOLDER;
+    /**
+     * Whether to keep the buckets during indexing in native memory outside the Java heap
+     */
+    public final boolean OFF_HEAP;
+    /**
+     * First bucket of the slice of the index that is built (option --bucket-range)
+     */
+    public final int FIRST_BUCKET;
+    /**
+     * Last bucket (exclusive) of the slice of the index that is built, -1 if all buckets up to the last one are built
+     */
+    public final int LAST_BUCKET;
+    /**
+     * Whether to add the input to an existing database index instead of building a new one
+     */
+    public final boolean UPDATE_INDEX;
+    /**
+     * Whether to write a Bloom filter of the k-mers of each bucket to the database index
+     */
+    public final boolean BLOOM_FILTER;
+    /**
+     * Number of entries between two fence pointers of the database buckets, 0 if no fence pointers are written
+     */
+    public final int FENCE_INTERVAL;
+    /**
+     * Whether to write the database buckets in the Elias-Fano format instead of the varint-delta format
+     */
+    public final boolean ELIAS_FANO;
+    /**
+     * Number of entries per block of block-structured database buckets, 0 if the buckets are not block-structured
+     */
+    public final int BLOCK_SIZE;
+    /**
+     * Database index whose Bloom filters are used to drop read k-mers that are not in the database, null if not used
+     */
+    public final Path DB_FILTER;
     /**
      * How large the queues for thread pools should be
      */
@@ -69,6 +128,14 @@ public class GlobalSettings {
 
     public ReducedAlphabet ALPHABET;
     public boolean[] MASK;
+    /**
+     * Masks (seeds) whose kmers are stored in one index, the first one is {@link #MASK}.
+     */
+    public boolean[][] MASKS;
+    /**
+     * Filtering option as given on the command line
+     */
+    public final String FILTERING;
     public List<ClassificationAlgorithm> ALGORITHMS;
 
     public Path INPUT;
@@ -96,6 +163,7 @@ public class GlobalSettings {
         }
 
         MAX_THREADS = maxThreads;
+        SequenceReader.setDecompressionThreads(Math.min(MAX_THREADS, MAX_IO_THREADS));
         KEEP_IN_MEMORY = !Objects.isNull(cli) && cli.hasOption("keep-in-memory");
         if (!Objects.isNull(cli) && cli.hasOption("b")) {
             try {
@@ -106,13 +174,94 @@ public class GlobalSettings {
                 System.exit(1);
             }
         }
+        ADAPTIVE_CYCLES = !Objects.isNull(cli) && !cli.hasOption("b");
+        int bucketBits = DEFAULT_BUCKET_BITS;
+        if (!Objects.isNull(cli) && cli.hasOption("bucket-bits")) {
+            try {
+                bucketBits = Integer.parseInt(cli.getOptionValue("bucket-bits"));
+                if (bucketBits < 6 || bucketBits > 16) {
+                    throw new NumberFormatException();
+                }
+            } catch (NumberFormatException e) {
+                System.err.printf("Invalid number of bucket bits (6-16): \"%s\"\n", cli.getOptionValue("bucket-bits"));
+                printHelp(options);
+                System.exit(1);
+            }
+        }
+        BUCKET_BITS = bucketBits;
+        SINGLE_PASS = !Objects.isNull(cli) && cli.hasOption("single-pass");
+        SPILL_FOLDER = !Objects.isNull(cli) && cli.hasOption("spill-folder") ?
+                getFolder(cli.getOptionValue("spill-folder"), false) : output;
+        OFF_HEAP = !Objects.isNull(cli) && cli.hasOption("off-heap");
+        int firstBucket = 0;
+        int lastBucket = -1;
+        if (!Objects.isNull(cli) && cli.hasOption("bucket-range")) {
+            try {
+                String[] range = cli.getOptionValue("bucket-range").split("-");
+                firstBucket = Integer.parseInt(range[0]);
+                lastBucket = Integer.parseInt(range[1]) + 1;
+                if (range.length != 2 || firstBucket < 0 || lastBucket <= firstBucket) {
+                    throw new NumberFormatException();
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                System.err.printf("Invalid bucket range: \"%s\"\n", cli.getOptionValue("bucket-range"));
+                printHelp(options);
+                System.exit(1);
+            }
+        }
+        FIRST_BUCKET = firstBucket;
+        LAST_BUCKET = lastBucket;
+        UPDATE_INDEX = !Objects.isNull(cli) && cli.hasOption("update-index");
+        BLOOM_FILTER = !Objects.isNull(cli) && cli.hasOption("bloom-filter");
+        int fenceInterval = 0;
+        if (!Objects.isNull(cli) && cli.hasOption("fence-interval")) {
+            try {
+                fenceInterval = Integer.parseInt(cli.getOptionValue("fence-interval"));
+                if (fenceInterval < 1) {
+                    throw new NumberFormatException();
+                }
+            } catch (NumberFormatException e) {
+                System.err.printf("Invalid fence interval: \"%s\"\n", cli.getOptionValue("fence-interval"));
+                printHelp(options);
+                System.exit(1);
+            }
+        }
+        FENCE_INTERVAL = fenceInterval;
+        boolean eliasFano = false;
+        int blockSize = 0;
+        if (!Objects.isNull(cli) && cli.hasOption("bucket-format")) {
+            String bucketFormat = cli.getOptionValue("bucket-format");
+            if (bucketFormat.equals("elias-fano")) {
+                eliasFano = true;
+            } else if (bucketFormat.equals("blocks")) {
+                blockSize = BucketIO.DEFAULT_BLOCK_SIZE;
+            } else if (!bucketFormat.equals("varint")) {
+                System.err.printf("Invalid bucket format: \"%s\"\n", bucketFormat);
+                printHelp(options);
+                System.exit(1);
+            }
+        }
+        ELIAS_FANO = eliasFano;
+        BLOCK_SIZE = blockSize;
+        DB_FILTER = !Objects.isNull(cli) && cli.hasOption("db-filter") ?
+                getFolder(cli.getOptionValue("db-filter"), true) : null;
         QUEUE_SIZE = MAX_THREADS * 2;
         DEBUG = !Objects.isNull(cli) && cli.hasOption("debug");
         COLLECT_STATS = !Objects.isNull(cli) && cli.hasOption("statistics");
         ONLY_STANDARD_RANKS = !Objects.isNull(cli) && cli.hasOption("only-standard-ranks");
 
         ALPHABET = getAlphabet(cli, "[L][A][GC][VWUBIZO*][SH][EMX][TY][RQ][DN][IF][PK]");
-        MASK = getMask(cli, "1111111111111");
+        MASKS = getMasks(cli, "1111111111111");
+        for (boolean[] mask : MASKS) {
+            if (mask.length == 0 || mask.length != MASKS[0].length) {
+                System.err.printf("Invalid masks, all masks must have the same length: \"%s\"\n", cli.getOptionValue("mask"));
+                printHelp(options);
+                System.exit(1);
+            }
+        }
+        MASK = MASKS[0];
+        FILTERING = !Objects.isNull(cli) && cli.hasOption("filtering") ?
+                String.join(" ", cli.getOptionValues("filtering")) : "c 3";
         ALGORITHMS = parseAlgorithms(cli);
         OUTPUT = output;
     }
@@ -124,8 +273,13 @@ public class GlobalSettings {
     @Override
     public String toString() {
         StringBuilder maskString = new StringBuilder();
-        for (boolean b : MASK) {
-            maskString.append(b ? "1" : "0");
+        for (boolean[] mask : MASKS) {
+            if (!maskString.isEmpty()) {
+                maskString.append(",");
+            }
+            for (boolean b : mask) {
+                maskString.append(b ? "1" : "0");
+            }
         }
         StringBuilder algorithmsString = new StringBuilder();
         for (ClassificationAlgorithm algorithm : ALGORITHMS) {
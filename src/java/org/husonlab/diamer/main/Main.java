@@ -71,6 +71,19 @@ public class Main {
                                 <output>: output path""")
                         .build()
         );
+        computationOptions.addOption(
+                Option.builder()
+                        .longOpt("classify")
+                        .desc("""
+                                Assign reads directly against a database index without indexing them first.
+                                
+                                Required options: <input> <output>
+                                
+                                <input>: database index folder and reads in fastQ format
+                                
+                                <output>: output path""")
+                        .build()
+        );
         computationOptions.addOption(
                 Option.builder()
                         .longOpt("analyze-db-index")
@@ -84,6 +97,22 @@ public class Main {
                                 <output>: output path""")
                         .build()
         );
+        computationOptions.addOption(
+                Option.builder()
+                        .longOpt("merge-index")
+                        .desc("""
+                                Merge the slices of a DB index that were built with --bucket-range.
+                                The bucket files are copied, the slices are left unchanged and can be
+                                deleted after the merge (the output needs as much disk space as all
+                                slices together).
+                                
+                                Required options: <input> [<input> ...] <output>
+                                
+                                <input>: index folders of the slices
+                                
+                                <output>: output path""")
+                        .build()
+        );
         options.addOptionGroup(computationOptions);
         options.addOption(
                 Option.builder("t")
@@ -111,6 +140,107 @@ public class Main {
                                 "(database or reads) in memory during indexing and preprocessing.")
                         .build()
         );
+        options.addOption(
+                Option.builder()
+                        .longOpt("single-pass")
+                        .desc("Read the input only once during indexing. The kmers of all buckets are written to " +
+                                "spill files and each cycle is finalized from its spill file instead of re-reading " +
+                                "the input. The spill files need up to about 10 bytes of disk space per extracted kmer " +
+                                "(see the estimated bucket sizes in the log).")
+                        .build()
+        );
+        options.addOption(
+                Option.builder()
+                        .longOpt("spill-folder")
+                        .argName("folder")
+                        .desc("Folder for the spill files of --single-pass (preferably on a fast local disk).\n" +
+                                "Default: output folder")
+                        .hasArg()
+                        .type(Path.class)
+                        .build()
+        );
+        options.addOption(
+                Option.builder()
+                        .longOpt("off-heap")
+                        .desc("Keep the buckets during indexing in native memory outside the Java heap. Allows " +
+                                "buckets with more than 2^31 entries and larger numbers of buckets per cycle " +
+                                "without long garbage collection pauses.")
+                        .build()
+        );
+        options.addOption(
+                Option.builder()
+                        .longOpt("bucket-range")
+                        .argName("first-last")
+                        .desc("Only build the buckets first to last (inclusive) of the DB index, e.g. 0-255. The " +
+                                "slices of several runs (e.g. on different machines) can be combined with " +
+                                "--merge-index.")
+                        .hasArg()
+                        .type(String.class)
+                        .build()
+        );
+        options.addOption(
+                Option.builder()
+                        .longOpt("bucket-bits")
+                        .argName("bits")
+                        .desc("Number of k-mer bits that are encoded in the bucket names (--indexdb, --indexreads), " +
+                                "the index consists of 2^bits buckets (6-16). Fewer bits give fewer but larger " +
+                                "buckets for small databases, more bits smaller buckets for large databases. The " +
+                                "database and the reads index have to use the same number of bits.\n" +
+                                "Default: 10 (1024 buckets)")
+                        .hasArg()
+                        .type(Integer.class)
+                        .build()
+        );
+        options.addOption(
+                Option.builder()
+                        .longOpt("update-index")
+                        .desc("Add the sequences of <input> to the existing database index in <output> instead of " +
+                                "building a new index (--indexdb only). The same mask, alphabet and filtering " +
+                                "options as for the existing index have to be used, they are checked against the " +
+                                "manifest of the index. The taxonomy is taken from the index, -no and -na are " +
+                                "not required.")
+                        .build()
+        );
+        options.addOption(
+                Option.builder()
+                        .longOpt("bloom-filter")
+                        .desc("Write a Bloom filter of the k-mers of each bucket to the database index (--indexdb " +
+                                "only). The filters can be used with --db-filter.")
+                        .build()
+        );
+        options.addOption(
+                Option.builder()
+                        .longOpt("fence-interval")
+                        .argName("entries")
+                        .desc("Write a fence pointer every <entries> entries of each bucket of the database index " +
+                                "(--indexdb only). The fence pointers allow to skip to a k-mer in a bucket without " +
+                                "decoding the entries before it, e.g. to skip gaps during --assignreads.")
+                        .hasArg()
+                        .type(Integer.class)
+                        .build()
+        );
+        options.addOption(
+                Option.builder()
+                        .longOpt("bucket-format")
+                        .argName("format")
+                        .desc("Format of the buckets of the database index (--indexdb only): varint (default), " +
+                                "elias-fano or blocks. Elias-Fano buckets are smaller and can always skip to a k-mer. " +
+                                "Block-structured buckets can skip whole blocks of 65536 entries and large buckets " +
+                                "are decoded in parallel by --classify. --fence-interval is ignored for both.")
+                        .hasArg()
+                        .build()
+        );
+        options.addOption(
+                Option.builder()
+                        .longOpt("db-filter")
+                        .argName("DB index")
+                        .desc("Only keep read k-mers that might be in the database index, according to its Bloom " +
+                                "filters (--indexreads only). The database index has to be built with --bloom-filter " +
+                                "and the same mask, alphabet and number of bucket bits.")
+                        .hasArg()
+                        .type(Path.class)
+                        .build()
+        );
         options.addOption(
                 Option.builder("no")
                         .longOpt("nodes")
@@ -133,7 +263,8 @@ public class Main {
                 Option.builder()
                         .longOpt("mask")
                         .argName("bitmask")
-                        .desc("Mask to use for kmer extraction.\nDefault: 1111111111111")
+                        .desc("Mask to use for kmer extraction. Several masks of the same length can be given separated by " +
+                                "commas to store the kmers of all of them in one index.\nDefault: 1111111111111")
                         .hasArg()
                         .type(String.class)
                         .build()
@@ -208,6 +339,20 @@ public class Main {
                                 
                                 -
                                 
+                                SYNCMERS
+                                
+                                keep k-mers whose s-mer with the smallest hash is in the middle
+                                (open syncmers, about 1/(k-s+1) of the k-mers)
+                                
+                                syntax: --filtering os <s>
+                                
+                                keep k-mers whose s-mer with the smallest hash is the first or last
+                                (closed syncmers, about 2/(k-s+1) of the k-mers)
+                                
+                                syntax: --filtering cs <s>
+                                
+                                -
+                                
                                 default --filtering c 3
                                 """)
                         .numberOfArgs(2)
@@ -265,9 +410,16 @@ public class Main {
             Preprocessing.preprocess(cli, globalSettings);
         } else if (cli.hasOption("indexdb")) {
             CliUtils.checkNumberOfPositionalArguments(cli, 2);
-            Path output = getFolder(cli.getArgs()[1], false);
-            GlobalSettings globalSettings = new GlobalSettings(args, cli, options, output);
-            DBIndexing.indexDB(cli, globalSettings);
+            if (cli.hasOption("update-index")) {
+                // keep the log of the existing index
+                Path output = getFolder(cli.getArgs()[1], true);
+                GlobalSettings globalSettings = new GlobalSettings(args, cli, options, output, output.resolve("update-run.log"));
+                DBIndexing.indexDB(cli, globalSettings);
+            } else {
+                Path output = getFolder(cli.getArgs()[1], false);
+                GlobalSettings globalSettings = new GlobalSettings(args, cli, options, output);
+                DBIndexing.indexDB(cli, globalSettings);
+            }
         } else if (cli.hasOption("indexreads")) {
             CliUtils.checkNumberOfPositionalArguments(cli, 2);
             Path output = getFolder(cli.getArgs()[1], false);
@@ -278,6 +430,16 @@ public class Main {
             Path output = getFolder(cli.getArgs()[2], false);
             GlobalSettings globalSettings = new GlobalSettings(args, cli, options, output);
             ReadAssigning.assignReads(cli, globalSettings);
+        } else if (cli.hasOption("classify")) {
+            CliUtils.checkNumberOfPositionalArguments(cli, 3);
+            Path output = getFolder(cli.getArgs()[2], false);
+            GlobalSettings globalSettings = new GlobalSettings(args, cli, options, output);
+            Classifying.classify(cli, globalSettings);
+        } else if (cli.hasOption("merge-index")) {
+            CliUtils.checkNumberOfPositionalArguments(cli, 2);
+            Path output = getFolder(cli.getArgs()[cli.getArgs().length - 1], false);
+            GlobalSettings globalSettings = new GlobalSettings(args, cli, options, output);
+            DBIndexMerging.mergeIndex(cli, globalSettings);
         } else if (cli.hasOption("analyze-db-index")) {
             CliUtils.checkNumberOfPositionalArguments(cli, 2);
             Path output = getFolder(cli.getArgs()[1], false);
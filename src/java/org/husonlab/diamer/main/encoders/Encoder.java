@@ -19,13 +19,22 @@ public abstract class Encoder {
      */
     protected final int k;
     /**
-     * number of spaces between the bits of the mask
+     * number of spaces between the bits of the mask (the largest number of all masks if there are several)
      */
     protected final int s;
     /**
      * bit mask to use for spaced kmer extraction
      */
     protected final boolean[] mask;
+    /**
+     * all masks (seeds) of the index, the first one is {@link #mask}
+     */
+    protected final boolean[][] masks;
+    /**
+     * position of the lowest bit of the seed ID in a kmer, the seed ID is only stored if there is more than one mask
+     */
+    private final int seedShift;
+    private final int maxWeight;
     /**
      * number of bits required to represent the ids (taxon ids or sequence ids)
      */
@@ -37,26 +46,48 @@ public abstract class Encoder {
     /**
      * number of bits that do not fit in the bucket and are stored in the bucket names.
      */
-    protected final int nrOfBitsBucketNames = 10;
+    protected final int nrOfBitsBucketNames;
     protected final int nrOfBuckets;
+    /**
+     * alternating bits the lowest bits of a kmer are XORed with to get its bucket name
+     */
+    private final int bucketNamePattern;
 
     public Encoder(GlobalSettings globalSettings) {
         this.targetAlphabet = globalSettings.ALPHABET;
         this.globalSettings = globalSettings;
-        this.mask = globalSettings.MASK;
+        this.masks = globalSettings.MASKS;
+        this.mask = masks[0];
         // calculate position of the most significant bit (length of the mask / size of the window)
         this.k = mask.length;
-        // calculate the number of spaces between the bits of the mask
+        // calculate the number of spaces between the bits of the masks
         int sTemp = 0;
-        for (boolean b : mask) {
-            if (!b) {
-                sTemp++;
+        int maxWeightTemp = 0;
+        for (boolean[] seed : masks) {
+            int spaces = 0;
+            for (boolean b : seed) {
+                if (!b) {
+                    spaces++;
+                }
             }
+            sTemp = Math.max(sTemp, spaces);
+            maxWeightTemp = Math.max(maxWeightTemp, seed.length - spaces);
         }
         this.s = sTemp;
+        this.maxWeight = maxWeightTemp;
         this.bitsForIds = globalSettings.BITS_FOR_IDS;
-        nrOfBitsRequiredForKmer = bitsRequired(this.targetAlphabet.getBase(), k - s);
-        nrOfBuckets = (int)Math.pow(2, nrOfBitsBucketNames);
+        // the seed ID is stored above the bits of the longest kmer
+        seedShift = bitsRequired(this.targetAlphabet.getBase(), maxWeight);
+        nrOfBitsRequiredForKmer = seedShift + 32 - Integer.numberOfLeadingZeros(masks.length - 1);
+        nrOfBitsBucketNames = globalSettings.BUCKET_BITS;
+        nrOfBuckets = 1 << nrOfBitsBucketNames;
+        bucketNamePattern = 0xAAAAAAAA & (nrOfBuckets - 1);
+        if (nrOfBitsRequiredForKmer - nrOfBitsBucketNames > getNrOfKmerBitsInBucketEntry()) {
+            throw new RuntimeException("The kmers require " + nrOfBitsRequiredForKmer + " bits, but only " +
+                    (getNrOfKmerBitsInBucketEntry() + nrOfBitsBucketNames) + " bits fit into an index entry with " +
+                    nrOfBitsBucketNames + " bucket bits. Use at least " +
+                    (nrOfBitsRequiredForKmer - getNrOfKmerBitsInBucketEntry()) + " bucket bits.");
+        }
     }
 
     /**
@@ -74,7 +105,7 @@ public abstract class Encoder {
     }
 
     /**
-     * @return the weight of the mask (number of non-zero bits)
+     * @return the weight of the mask (number of non-zero bits), the smallest weight of all masks if there are several
      */
     public int getW() {
         return k - s;
@@ -92,10 +123,47 @@ public abstract class Encoder {
     }
 
     /**
-     * Has to be implemented so that every thread can get its own instance.
+     * Creates a new extractor of the kmers of all masks, so that every thread can get its own instance.
+     * <p>If there are several masks, the kmers are tagged with the ID of their mask (see
+     * {@link MultiSeedKmerExtractor}).</p>
      * @return a KmerExtractor that can be used to extract kmers from sequences
      */
-    public abstract KmerExtractor getKmerExtractor();
+    public KmerExtractor getKmerExtractor() {
+        if (masks.length == 1) {
+            return getKmerExtractor(mask);
+        }
+        KmerExtractor[] seedExtractors = new KmerExtractor[masks.length];
+        for (int i = 0; i < masks.length; i++) {
+            seedExtractors[i] = getKmerExtractor(masks[i]);
+        }
+        return new MultiSeedKmerExtractor(seedExtractors, seedShift);
+    }
+
+    /**
+     * Has to be implemented so that every thread can get its own instance.
+     * @param mask the mask to extract the kmers with
+     * @return a KmerExtractor that can be used to extract the kmers of the mask from sequences
+     */
+    protected abstract KmerExtractor getKmerExtractor(boolean[] mask);
+
+    /**
+     * @return the number of masks (seeds) whose kmers are stored in the index
+     */
+    public int getNrOfSeeds() {
+        return masks.length;
+    }
+
+    /**
+     * @param kmer kmer (with bucket name)
+     * @return the ID of the mask the kmer has been extracted with
+     */
+    public int getSeedFromKmer(long kmer) {
+        return masks.length == 1 ? 0 : (int) (kmer >>> seedShift);
+    }
+    public int getBitsForIds() {
+        return bitsForIds;
+    }
+
     public int getNrOfKmerBitsInBucketEntry() {
         return 64 - bitsForIds;
     }
@@ -126,7 +194,7 @@ public abstract class Encoder {
     }
 
     public int getBucketNameFromKmer(long kmer) {
-        return (int) (kmer & 0b1111111111) ^ 0b1010101010;
+        return (int) (kmer & (nrOfBuckets - 1)) ^ bucketNamePattern;
     }
 
     private static int hashFunction(long value) {
@@ -144,11 +212,11 @@ public abstract class Encoder {
     }
 
     public long getMaxKmerValue() {
-        return (long) Math.pow(targetAlphabet.getBase(), getW()) - 1;
+        return ((long) (masks.length - 1) << seedShift) | ((long) Math.pow(targetAlphabet.getBase(), maxWeight) - 1);
     }
 
     public long getKmerFromIndexEntry(int bucketName, long kmerIndex) {
-        return ((kmerIndex >>> bitsForIds) << nrOfBitsBucketNames) | (bucketName ^ 0b1010101010);
+        return ((kmerIndex >>> bitsForIds) << nrOfBitsBucketNames) | (bucketName ^ bucketNamePattern);
     }
 
     public long getKmerFromIndexEntry(long kmerIndex) {
@@ -10,7 +10,7 @@ public class EncoderWithoutKmerExtractor extends Encoder {
     }
 
     @Override
-    public KmerExtractor getKmerExtractor() {
+    protected KmerExtractor getKmerExtractor(boolean[] mask) {
         throw new UnsupportedOperationException("Kmer extraction is not supported in this encoder.");
     }
 }
@@ -3,6 +3,7 @@ package org.husonlab.diamer.readAssignment;
 import org.husonlab.diamer.indexing.CustomThreadPoolExecutor;
 import org.husonlab.diamer.io.indexing.BucketIO;
 import org.husonlab.diamer.io.indexing.DBIndexIO;
+import org.husonlab.diamer.io.indexing.IndexIO;
 import org.husonlab.diamer.io.indexing.ReadIndexIO;
 import org.husonlab.diamer.main.GlobalSettings;
 import org.husonlab.diamer.main.encoders.Encoder;
@@ -11,9 +12,14 @@ import org.husonlab.diamer.util.logging.*;
 
 import java.util.ArrayList;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Class to handle the process of matching kmers between the index of the database and the index of the reads.
+ * <p>
+ *     If the reads index is split into read ID partitions (see {@link ReadIndexIO}), each bucket of the database is
+ *     matched against the buckets of all partitions at once, so it is decoded only once.
+ * </p>
  */
 public class ReadAssigner {
     private final Logger logger;
@@ -21,7 +27,15 @@ public class ReadAssigner {
     private final ProgressBar progressBar;
     private final DBIndexIO dbIndex;
     private final ReadIndexIO readsIndex;
+    /**
+     * Buckets of the read ID partitions of the reads index.
+     */
+    private final IndexIO[] readsPartitions;
     final ReadAssignment readAssignment;
+    /**
+     * Number of matching kmers per mask (seed) of the indexes.
+     */
+    private final AtomicLongArray seedMatches;
     private final Encoder encoder;
     private final GlobalSettings settings;
 
@@ -34,8 +48,13 @@ public class ReadAssigner {
         progressBar = new ProgressBar((long) encoder.getNrOfBuckets() * progressBarStepsPerBucket, 20);
         this.dbIndex = encoder.getDBIndexIO();
         this.readsIndex = encoder.getReadIndexIO();
+        this.readsPartitions = new IndexIO[readsIndex.getNrOfPartitions()];
+        for (int p = 0; p < readsPartitions.length; p++) {
+            readsPartitions[p] = readsIndex.getPartition(p);
+        }
         this.encoder = encoder;
         this.settings = settings;
+        this.seedMatches = new AtomicLongArray(encoder.getNrOfSeeds());
         String[] readHeaderMapping;
         if (readsIndex.readHeaderMappingExists()) {
             readHeaderMapping = this.readsIndex.getReadHeaderMapping();
@@ -48,7 +67,11 @@ public class ReadAssigner {
         } else {
             throw new RuntimeException("Taxonomic tree file is missing from the database index folder.");
         }
-        if (dbIndex.bucketMissing() || readsIndex.bucketMissing()) {
+        boolean readsBucketMissing = false;
+        for (IndexIO readsPartition : readsPartitions) {
+            readsBucketMissing |= readsPartition.bucketMissing();
+        }
+        if (dbIndex.bucketMissing() || readsBucketMissing) {
             logger.logWarning("At least one index file is missing, proceeding with available buckets.");
         }
         readAssignment = new ReadAssignment(tree, readHeaderMapping, settings);
@@ -73,7 +96,7 @@ public class ReadAssigner {
                 Integer.MAX_VALUE, logger)) {
 
             for (int i = 0; i < encoder.getNrOfBuckets(); i++) {
-                if (dbIndex.isBucketAvailable(i) && readsIndex.isBucketAvailable(i)) {
+                if (dbIndex.isBucketAvailable(i) && isReadsBucketAvailable(i)) {
                     threadPoolExecutor.submit(new BucketProcessor(i));
                 } else {
                     progressBar.incrementProgress(progressBarStepsPerBucket);
@@ -83,6 +106,20 @@ public class ReadAssigner {
         }
         progressBar.finish();
 
+        StringBuilder seedSummary = new StringBuilder();
+        if (encoder.getNrOfSeeds() > 1) {
+            for (int i = 0; i < seedMatches.length(); i++) {
+                seedSummary.append("Matching kmers of mask ").append(i).append(": ").append(seedMatches.get(i)).append("\n");
+            }
+        }
+        return "Buckets skipped: " + bucketsSkipped + "\n" + seedSummary + finishMatching(readAssignment, logger);
+    }
+
+    /**
+     * Sorts the kmer matches of all reads, adds them to the tree and normalizes them.
+     * @return summary of the kmer matches
+     */
+    static String finishMatching(ReadAssignment readAssignment, Logger logger) {
         logger.logInfo("Sorting, normalizing and saving kmer matches ...");
         long nrOfMatchingKmers = 0;
         int nrOfReadsWithMatches = 0;
@@ -90,8 +127,8 @@ public class ReadAssigner {
         for (ArrayList<ReadAssignment.KmerCount<Integer>> readAssignments: readAssignment.getKmerCounts()) {
             if (!readAssignments.isEmpty()) {
                 nrOfReadsWithMatches++;
-                for (ReadAssignment.KmerCount<Integer> readAssignment: readAssignments) {
-                    nrOfMatchingKmers += readAssignment.getCount();
+                for (ReadAssignment.KmerCount<Integer> kmerCount: readAssignments) {
+                    nrOfMatchingKmers += kmerCount.getCount();
                 }
             } else {
                 nrOfReadsWithoutMatches++;
@@ -101,8 +138,7 @@ public class ReadAssigner {
         readAssignment.addKmerCountsToTree();
         readAssignment.normalizeKmerCounts();
 
-        return "Buckets skipped: " + bucketsSkipped + "\n" +
-                "Reads with matches: " + nrOfReadsWithMatches + "\n" +
+        return "Reads with matches: " + nrOfReadsWithMatches + "\n" +
                 "Reads without matches: " + nrOfReadsWithoutMatches + "\n" +
                 "Matching kmers: " + nrOfMatchingKmers;
     }
@@ -111,6 +147,18 @@ public class ReadAssigner {
         return readAssignment;
     }
 
+    /**
+     * @return true if the bucket is available in at least one partition of the reads index
+     */
+    private boolean isReadsBucketAvailable(int bucket) {
+        for (IndexIO readsPartition : readsPartitions) {
+            if (readsPartition.isBucketAvailable(bucket)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Class to find matching kmers in two buckets.
      */
@@ -129,41 +177,93 @@ public class ReadAssigner {
         /**
          * Reads over the ascending sorted database and reads bucket simultaneously and advances only the bucket with the
          * smaller kmer. This way, all matching kmers are found and stored in the {@link ReadAssignment}.
+         * <p>
+         *     The buckets of all read ID partitions are merged on the fly: the next read kmer is always taken from the
+         *     partition with the smallest kmer, so the database bucket is only read once.
+         * </p>
+         * <p>
+         *     If the indexes contain the kmers of several masks, the entries of each mask form a sorted run in the
+         *     buckets (the mask ID is stored in the most significant kmer bits), so the buckets are joined mask by mask
+         *     and the database entries of a mask without read kmers are skipped.
+         * </p>
          */
         @Override
         public void run() {
-            try (BucketIO.BucketReader db = dbIndex.getBucketReader(bucketId);
-                 BucketIO.BucketReader reads = readsIndex.getBucketReader(bucketId)) {
-                int dbLength = db.getLength();
-                int readsLength = reads.getLength();
+            BucketIO.EntryReader[] reads = new BucketIO.EntryReader[readsPartitions.length];
+            try (BucketIO.EntryReader db = dbIndex.getSeekableBucketReader(bucketId)) {
+                long partitionSize = 1L << encoder.getBitsForIds();
+                long[] remainingReads = new long[reads.length];
+                long[] readsEntries = new long[reads.length];
+                long[] readKmers = new long[reads.length];
+                long readsLength = 0;
+                for (int p = 0; p < reads.length; p++) {
+                    if (readsPartitions[p].isBucketAvailable(bucketId)) {
+                        reads[p] = readsPartitions[p].getBucketReader(bucketId);
+                        remainingReads[p] = reads[p].getLength();
+                        readsLength += remainingReads[p];
+                        if (remainingReads[p] > 0) {
+                            readsEntries[p] = reads[p].next();
+                            readKmers[p] = encoder.getKmerFromIndexEntry(readsEntries[p]);
+                        }
+                    }
+                }
+                long dbLength = db.getLength();
                 if (dbLength == 0 || readsLength == 0) {
                     logger.logWarning("Bucket " + bucketId + " is empty.");
                     return;
                 }
                 long dbEntry = db.next();
-                int dbCount = 1;
                 long dbKmer = encoder.getKmerFromIndexEntry(dbEntry);
                 float progressUpdateInterval = (readsLength + 1) / (float) progressBarStepsPerBucket;
-                // iterate over all kmers in the reads bucket
-                for (int readsCount = 0; readsCount < readsLength; readsCount++) {
-                    long readsEntry = reads.next();
-                    long readKmer = encoder.getKmerFromIndexEntry(readsEntry);
-                    // advance the db bucket until the kmer is equal or larger than the read kmer
-                    while (Long.compareUnsigned(dbKmer, readKmer) < 0 && dbCount < dbLength) {
+                long[] matchesPerSeed = new long[encoder.getNrOfSeeds()];
+                // iterate over all kmers in the reads buckets of all partitions
+                for (long readsCount = 0; readsCount < readsLength; readsCount++) {
+                    int partition = -1;
+                    for (int p = 0; p < reads.length; p++) {
+                        if (remainingReads[p] > 0 &&
+                                (partition == -1 || Long.compareUnsigned(readKmers[p], readKmers[partition]) < 0)) {
+                            partition = p;
+                        }
+                    }
+                    long readsEntry = readsEntries[partition];
+                    long readKmer = readKmers[partition];
+                    if (--remainingReads[partition] > 0) {
+                        readsEntries[partition] = reads[partition].next();
+                        readKmers[partition] = encoder.getKmerFromIndexEntry(readsEntries[partition]);
+                    }
+                    // advance the db bucket until the kmer is equal or larger than the read kmer, large gaps are skipped
+                    // with the fence pointers of the bucket (if it has any)
+                    if (Long.compareUnsigned(dbKmer, readKmer) < 0) {
+                        db.skipTo(encoder.getIndexEntry(0, readKmer));
+                    }
+                    while (Long.compareUnsigned(dbKmer, readKmer) < 0 && db.hasNext()) {
                         dbEntry = db.next();
                         dbKmer = encoder.getKmerFromIndexEntry(dbEntry);
-                        dbCount++;
                     }
                     // check if the kmers are equal and store hits
                     if (dbKmer == readKmer) {
                         int taxId = encoder.getIdFromIndexEntry(dbEntry);
-                        int readId = encoder.getIdFromIndexEntry(readsEntry);
+                        int readId = (int) (partition * partitionSize + encoder.getIdFromIndexEntry(readsEntry));
                         readAssignment.addReadAssignment(readId, taxId);
+                        matchesPerSeed[encoder.getSeedFromKmer(encoder.getKmerFromIndexEntry(bucketId, dbEntry))]++;
                     }
                     if ((int)((readsCount + 1) % progressUpdateInterval) == 0) progressBar.incrementProgress();
                 }
+                for (int i = 0; i < matchesPerSeed.length; i++) {
+                    seedMatches.addAndGet(i, matchesPerSeed[i]);
+                }
             } catch (Exception e) {
                 throw new RuntimeException("Could not process bucket " + bucketId, e);
+            } finally {
+                for (BucketIO.EntryReader reader : reads) {
+                    if (reader != null) {
+                        try {
+                            reader.close();
+                        } catch (Exception e) {
+                            logger.logWarning("Could not close reads bucket " + bucketId + ": " + e.getMessage());
+                        }
+                    }
+                }
             }
         }
     }
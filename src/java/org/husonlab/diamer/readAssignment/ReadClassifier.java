@@ -0,0 +1,294 @@
+package org.husonlab.diamer.readAssignment;
+
+import org.husonlab.diamer.indexing.CustomThreadPoolExecutor;
+import org.husonlab.diamer.indexing.MemoryGovernor;
+import org.husonlab.diamer.indexing.kmers.KmerExtractor;
+import org.husonlab.diamer.io.indexing.BlockBucketReader;
+import org.husonlab.diamer.io.indexing.BucketIO;
+import org.husonlab.diamer.io.indexing.DBIndexIO;
+import org.husonlab.diamer.io.seq.FastqIdReader;
+import org.husonlab.diamer.io.seq.FutureSequenceRecords;
+import org.husonlab.diamer.io.seq.SequenceSupplier;
+import org.husonlab.diamer.main.GlobalSettings;
+import org.husonlab.diamer.main.encoders.Encoder;
+import org.husonlab.diamer.seq.SequenceRecord;
+import org.husonlab.diamer.taxonomy.Tree;
+import org.husonlab.diamer.util.logging.*;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Classifies reads directly against the database index, without building a reads index.
+ * <p>
+ *     The buckets of the database index are loaded into memory in ranges that fit into the available memory (planned
+ *     by the {@link MemoryGovernor}), the blocks of block-structured buckets are decoded in parallel. For each range,
+ *     the reads are streamed through translation and kmer extraction and every kmer of a loaded bucket is looked up by
+ *     a binary search in the sorted bucket. The matches are stored in a {@link ReadAssignment} exactly like the matches
+ *     of the {@link ReadAssigner}. If the database fits into memory, the reads are only read once.
+ * </p>
+ */
+public class ReadClassifier {
+    private final Logger logger;
+    private final SequenceSupplier<Integer, byte[]> sup;
+    private final FastqIdReader fastqIdReader;
+    private final Tree tree;
+    private final DBIndexIO dbIndex;
+    private final Encoder encoder;
+    private final GlobalSettings settings;
+    private final ThreadLocal<KmerExtractor> kmerExtractors;
+    private final MemoryGovernor memoryGovernor;
+    private final int[] dbBucketSizes;
+    /**
+     * Created after the first pass, when the headers of all reads are known.
+     */
+    private ReadAssignment readAssignment;
+    private final AtomicInteger skippedTranslations = new AtomicInteger(0);
+
+    /**
+     * @param sup supplier of the translated reads
+     * @param fastqIdReader reader of the supplier, collects the read headers during the first pass
+     * @param encoder encoder with the settings used for encoding the kmers of the database index
+     */
+    public ReadClassifier(SequenceSupplier<Integer, byte[]> sup, FastqIdReader fastqIdReader, Encoder encoder,
+                          GlobalSettings settings) {
+        this.logger = new Logger("ReadClassifier").addElement(new Time());
+        this.sup = sup;
+        this.fastqIdReader = fastqIdReader;
+        this.dbIndex = encoder.getDBIndexIO();
+        this.encoder = encoder;
+        this.settings = settings;
+        this.kmerExtractors = ThreadLocal.withInitial(encoder::getKmerExtractor);
+        if (dbIndex.treeExists()) {
+            tree = dbIndex.getTree();
+        } else {
+            throw new RuntimeException("Taxonomic tree file is missing from the database index folder.");
+        }
+        if (dbIndex.bucketMissing()) {
+            logger.logWarning("At least one index file is missing, proceeding with available buckets.");
+        }
+
+        dbBucketSizes = new int[encoder.getNrOfBuckets()];
+        for (int i = 0; i < dbBucketSizes.length; i++) {
+            if (dbIndex.isBucketAvailable(i)) {
+                try (BucketIO.EntryReader bucketReader = dbIndex.getBucketReader(i)) {
+                    if (bucketReader.getLength() > Integer.MAX_VALUE - 8) {
+                        throw new RuntimeException("Bucket " + i + " is too large to be loaded into memory, use an " +
+                                "index with more bucket bits.");
+                    }
+                    dbBucketSizes[i] = (int) bucketReader.getLength();
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new RuntimeException("Could not read the length of bucket " + i, e);
+                }
+            }
+        }
+        memoryGovernor = new MemoryGovernor(dbBucketSizes, false, settings.MAX_THREADS, 0);
+    }
+
+    /**
+     * Loads the buckets of the database index range by range and looks up the kmers of all reads in each range.
+     * @return summary of the kmer matches
+     */
+    public String classify() {
+        int passes = 0;
+        int rangeStart = 0;
+        while (rangeStart < encoder.getNrOfBuckets()) {
+            int rangeEnd = memoryGovernor.planRange(rangeStart, encoder.getNrOfBuckets());
+            logger.logInfo("Loading database buckets " + rangeStart + " to " + (rangeEnd - 1));
+            long[][] dbBuckets = loadBuckets(rangeStart, rangeEnd);
+            logger.logInfo("Searching kmer matches ...");
+            skippedTranslations.set(0);
+            if (readAssignment == null) {
+                // the number of reads is only known after the first pass, its matches are collected per read
+                ConcurrentHashMap<Integer, ArrayList<ReadAssignment.KmerCount<Integer>>> firstPassMatches =
+                        new ConcurrentHashMap<>();
+                streamReads(dbBuckets, rangeStart, firstPassMatches);
+                String[] readHeaderMapping = fastqIdReader.getHeaders().toArray(new String[0]);
+                ArrayList<ReadAssignment.KmerCount<Integer>>[] kmerCounts = new ArrayList[readHeaderMapping.length];
+                for (int i = 0; i < kmerCounts.length; i++) {
+                    kmerCounts[i] = firstPassMatches.getOrDefault(i, new ArrayList<>());
+                }
+                readAssignment = new ReadAssignment(tree, readHeaderMapping, kmerCounts, settings);
+            } else {
+                streamReads(dbBuckets, rangeStart, null);
+            }
+            passes++;
+            rangeStart = rangeEnd;
+        }
+
+        return "Passes over the reads: " + passes + "\n" +
+                "Skipped translations because length < " + encoder.getK() + ": " + skippedTranslations + "\n" +
+                ReadAssigner.finishMatching(readAssignment, logger);
+    }
+
+    public ReadAssignment getReadAssignment() {
+        return readAssignment;
+    }
+
+    /**
+     * @return the entries of the buckets of the range, null for missing buckets
+     */
+    private long[][] loadBuckets(int rangeStart, int rangeEnd) {
+        long[][] dbBuckets = new long[rangeEnd - rangeStart][];
+        try (CustomThreadPoolExecutor executor = new CustomThreadPoolExecutor(
+                settings.MAX_THREADS, settings.MAX_THREADS, dbBuckets.length + 1, 3600, logger)) {
+            for (int i = 0; i < dbBuckets.length; i++) {
+                int bucket = rangeStart + i;
+                int index = i;
+                if (!dbIndex.isBucketAvailable(bucket)) {
+                    continue;
+                }
+                if (BucketIO.isBlockStructured(dbIndex.getBucketIO(bucket).getFile())) {
+                    dbBuckets[index] = new long[dbBucketSizes[bucket]];
+                    submitBlocks(executor, bucket, dbBuckets[index]);
+                    continue;
+                }
+                executor.submit(() -> {
+                    try (BucketIO.EntryReader bucketReader = dbIndex.getBucketReader(bucket)) {
+                        long[] entries = new long[(int) bucketReader.getLength()];
+                        for (int j = 0; j < entries.length; j++) {
+                            entries[j] = bucketReader.next();
+                        }
+                        dbBuckets[index] = entries;
+                    } catch (Exception e) {
+                        throw new RuntimeException("Could not load bucket " + bucket, e);
+                    }
+                });
+            }
+        }
+        return dbBuckets;
+    }
+
+    /**
+     * Decodes the blocks of a block-structured bucket in parallel, one task per block.
+     * @param entries array for all entries of the bucket
+     */
+    private void submitBlocks(CustomThreadPoolExecutor executor, int bucket, long[] entries) {
+        int blockSize;
+        int nrOfBlocks;
+        try (BlockBucketReader bucketReader = new BlockBucketReader(dbIndex.getBucketIO(bucket).getFile())) {
+            blockSize = bucketReader.getBlockSize();
+            nrOfBlocks = bucketReader.getNrOfBlocks();
+        }
+        for (int block = 0; block < nrOfBlocks; block++) {
+            int finalBlock = block;
+            executor.submit(() -> {
+                try (BlockBucketReader bucketReader = new BlockBucketReader(dbIndex.getBucketIO(bucket).getFile())) {
+                    bucketReader.seekBlock(finalBlock);
+                    int end = (int) Math.min((long) (finalBlock + 1) * blockSize, entries.length);
+                    for (int j = finalBlock * blockSize; j < end; j++) {
+                        entries[j] = bucketReader.next();
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException("Could not load block " + finalBlock + " of bucket " + bucket, e);
+                }
+            });
+        }
+    }
+
+    /**
+     * Reads all reads in batches and looks up their kmers in the loaded buckets, one task per batch.
+     * @param firstPassMatches map for the matches per read ID during the first pass, null if the matches are added to
+     *                         the {@link #readAssignment}
+     */
+    private void streamReads(long[][] dbBuckets, int rangeStart,
+                             ConcurrentHashMap<Integer, ArrayList<ReadAssignment.KmerCount<Integer>>> firstPassMatches) {
+        ProgressBar progressBar = new ProgressBar(sup.getFileSize(), 20);
+        new OneLineLogger("ReadClassifier", 500).addElement(new RunningTime()).addElement(progressBar);
+        try (CustomThreadPoolExecutor executor = new CustomThreadPoolExecutor(
+                settings.MAX_THREADS, settings.MAX_THREADS, settings.MAX_THREADS * 10, 3600, logger)) {
+            sup.reset();
+            FutureSequenceRecords<Integer, byte[]>[] batch = new FutureSequenceRecords[settings.SEQUENCE_BATCH_SIZE];
+            FutureSequenceRecords<Integer, byte[]> futureSequenceRecords;
+            int batchIndex = 0;
+            while ((futureSequenceRecords = sup.next()) != null) {
+                batch[batchIndex++] = futureSequenceRecords;
+                if (batchIndex == batch.length) {
+                    FutureSequenceRecords<Integer, byte[]>[] finalBatch = batch;
+                    executor.submit(() -> processBatch(finalBatch, dbBuckets, rangeStart, firstPassMatches));
+                    batch = new FutureSequenceRecords[settings.SEQUENCE_BATCH_SIZE];
+                    batchIndex = 0;
+                    progressBar.setProgress(sup.getBytesRead());
+                }
+            }
+            FutureSequenceRecords<Integer, byte[]>[] finalBatch = batch;
+            executor.submit(() -> processBatch(finalBatch, dbBuckets, rangeStart, firstPassMatches));
+        } catch (Exception e) {
+            throw new RuntimeException("Could not classify the reads.", e);
+        }
+        progressBar.finish();
+    }
+
+    private void processBatch(FutureSequenceRecords<Integer, byte[]>[] batch, long[][] dbBuckets, int rangeStart,
+                              ConcurrentHashMap<Integer, ArrayList<ReadAssignment.KmerCount<Integer>>> firstPassMatches) {
+        KmerExtractor kmerExtractor = kmerExtractors.get();
+        for (FutureSequenceRecords<Integer, byte[]> futureSequenceRecords : batch) {
+            if (futureSequenceRecords == null) {
+                break;
+            }
+            // the translations of a read share its ID
+            int readId = -1;
+            ArrayList<ReadAssignment.KmerCount<Integer>> kmerCounts = new ArrayList<>();
+            for (SequenceRecord<Integer, byte[]> sequenceRecord : futureSequenceRecords.getSequenceRecords()) {
+                if (sequenceRecord.sequence().length < encoder.getK()) {
+                    skippedTranslations.incrementAndGet();
+                    continue;
+                }
+                readId = sequenceRecord.id();
+                for (long kmer : kmerExtractor.extractKmers(sequenceRecord.sequence())) {
+                    int bucket = encoder.getBucketNameFromKmer(kmer) - rangeStart;
+                    if (bucket < 0 || bucket >= dbBuckets.length || dbBuckets[bucket] == null) {
+                        continue;
+                    }
+                    long[] entries = dbBuckets[bucket];
+                    int index = find(entries, encoder.getKmerWithoutBucketName(kmer));
+                    if (index >= 0 && firstPassMatches == null) {
+                        readAssignment.addReadAssignment(readId, encoder.getIdFromIndexEntry(entries[index]));
+                    } else if (index >= 0) {
+                        addKmerCount(kmerCounts, encoder.getIdFromIndexEntry(entries[index]));
+                    }
+                }
+            }
+            if (!kmerCounts.isEmpty()) {
+                firstPassMatches.put(readId, kmerCounts);
+            }
+        }
+    }
+
+    /**
+     * Counts a kmer match of a read like {@link ReadAssignment#addReadAssignment(int, int)}.
+     */
+    private static void addKmerCount(ArrayList<ReadAssignment.KmerCount<Integer>> kmerCounts, int taxId) {
+        for (ReadAssignment.KmerCount<Integer> kmerCount : kmerCounts) {
+            if (kmerCount.getTaxId() == taxId) {
+                kmerCount.count++;
+                return;
+            }
+        }
+        kmerCounts.add(new ReadAssignment.KmerCount<>(taxId, 1));
+    }
+
+    /**
+     * Binary search of a kmer in a sorted bucket, each kmer is contained at most once in a database bucket.
+     * @return the index of the entry of the kmer, -1 if the bucket does not contain it
+     */
+    private int find(long[] entries, long kmer) {
+        int low = 0;
+        int high = entries.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midKmer = encoder.getKmerFromIndexEntry(entries[mid]);
+            if (midKmer < kmer) {
+                low = mid + 1;
+            } else if (midKmer > kmer) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+}
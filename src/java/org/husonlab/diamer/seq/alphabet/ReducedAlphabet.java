@@ -14,6 +14,56 @@ public abstract class ReducedAlphabet extends Alphabet<Byte> {
      */
     public abstract byte[] translateCodon(String triplet);
 
+    /**
+     * Index of the unknown codon (a codon with a character other than A, C, G and T) in the codon table.
+     */
+    public static final int UNKNOWN_CODON = 64;
+    private static final byte[] NUCLEOTIDE_CODES = new byte[128];
+    static {
+        Arrays.fill(NUCLEOTIDE_CODES, (byte) -1);
+        NUCLEOTIDE_CODES['A'] = 0;
+        NUCLEOTIDE_CODES['C'] = 1;
+        NUCLEOTIDE_CODES['G'] = 2;
+        NUCLEOTIDE_CODES['T'] = 3;
+    }
+    private volatile byte[] codonTable;
+
+    /**
+     * @param nucleotide DNA nucleotide (upper case)
+     * @return the 2-bit code of the nucleotide (A: 0, C: 1, G: 2, T: 3), -1 for all other characters
+     */
+    public static int nucleotideCode(char nucleotide) {
+        return nucleotide < 128 ? NUCLEOTIDE_CODES[nucleotide] : -1;
+    }
+
+    /**
+     * Gets the translations of all codons as computed by {@link #translateCodon(String)}.
+     * <p>The codon with the nucleotide codes (see {@link #nucleotideCode(char)}) c1, c2 and c3 has the index
+     * {@code 16 * c1 + 4 * c2 + c3}, all codons with other characters have the index {@link #UNKNOWN_CODON}. The
+     * encoded amino acid of the codon is stored at {@code 2 * index} and the encoded amino acid of its reverse
+     * complement at {@code 2 * index + 1}.</p>
+     * @return the codon table, must not be modified
+     */
+    public byte[] getCodonTable() {
+        byte[] table = codonTable;
+        if (table == null) {
+            String nucleotides = "ACGT";
+            table = new byte[2 * (UNKNOWN_CODON + 1)];
+            for (int i = 0; i < UNKNOWN_CODON; i++) {
+                String codon = "" + nucleotides.charAt(i >>> 4) + nucleotides.charAt((i >>> 2) & 3) +
+                        nucleotides.charAt(i & 3);
+                byte[] encoding = translateCodon(codon);
+                table[2 * i] = encoding[0];
+                table[2 * i + 1] = encoding[1];
+            }
+            byte[] encoding = translateCodon("NNN");
+            table[2 * UNKNOWN_CODON] = encoding[0];
+            table[2 * UNKNOWN_CODON + 1] = encoding[1];
+            codonTable = table;
+        }
+        return table;
+    }
+
     /**
      * Translates a DNA sequence into an array of arrays that represent all six reading frames and all fragments that
      * are separated by stop codons.
@@ -27,28 +77,15 @@ public abstract class ReducedAlphabet extends Alphabet<Byte> {
             return new byte[0][];
         }
 
-        StringBuilder triplet = new StringBuilder();
+        byte[] table = getCodonTable();
         // Setup byte array for each reading frame
         byte[][] translations = new byte[6][];
-        int[] sequenceLengths = new int[3];
         for (int i = 0; i < 3; i++) {
             int len = (dna.length-i)/3;
-            sequenceLengths[i] = len;
             translations[i*2] = new byte[len];
             translations[i*2+1] = new byte[len];
         }
-        triplet.append(dna[0]).append(dna[1]);
-
-        for (int i = 2; i < dna.length; i++) {
-            triplet.append(dna[i]);
-            byte[] encoding = translateCodon(triplet.toString());
-            int i2 = i*2-4;
-            // Forward reading frame
-            translations[i2%6][i2/6] = encoding[0];
-            // Reverse reading frame, gets filled in reverse order
-            translations[(i2%6)+1][sequenceLengths[(i+1)%3]-i2/6-1] = encoding[1];
-            triplet.deleteCharAt(0);
-        }
+        translateFrames(dna, table, translations);
 
         // Split translations at -1 (Unknown codons and stop codons)
         ArrayList<byte[]> splitTranslations = new ArrayList<>();
@@ -60,6 +97,41 @@ public abstract class ReducedAlphabet extends Alphabet<Byte> {
         return splitTranslations.toArray(new byte[0][]);
     }
 
+    /**
+     * Translates a DNA sequence into all six reading frames in a single pass over the sequence.
+     * <p>The forward frame {@code f} (starting at position f) is written to {@code frames[2 * f]}, the reverse
+     * frame of the same codons (in reverse order) to {@code frames[2 * f + 1]}. Both need space for
+     * {@code (dna.length - f) / 3} amino acids. Unknown codons and stop codons are translated to -1.</p>
+     * @param dna DNA sequence to translate (upper case), at least 3 nucleotides long
+     * @param table codon table of the alphabet (see {@link #getCodonTable()})
+     * @param frames arrays for the six reading frames
+     */
+    public static void translateFrames(char[] dna, byte[] table, byte[][] frames) {
+        int codon = 0;
+        // number of known nucleotides at the end of the current codon
+        int known = 0;
+        int frame = 0;
+        int[] framePositions = new int[3];
+        int[] reversePositions = {(dna.length - 3) / 3, (dna.length - 4) / 3, (dna.length - 5) / 3};
+        for (int i = 0; i < dna.length; i++) {
+            int code = nucleotideCode(dna[i]);
+            if (code < 0) {
+                known = 0;
+            } else {
+                codon = ((codon << 2) | code) & 63;
+                known = Math.min(known + 1, 3);
+            }
+            if (i < 2) {
+                continue;
+            }
+            int index = known == 3 ? 2 * codon : 2 * UNKNOWN_CODON;
+            frames[2 * frame][framePositions[frame]++] = table[index];
+            // reverse reading frame, gets filled in reverse order
+            frames[2 * frame + 1][reversePositions[frame]--] = table[index + 1];
+            frame = frame == 2 ? 0 : frame + 1;
+        }
+    }
+
     /**
      * Translates an amino acid into a number of the alphabet.
      * @param aa amino acid (upper case)
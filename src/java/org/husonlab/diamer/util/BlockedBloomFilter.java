@@ -0,0 +1,88 @@
+package org.husonlab.diamer.util;
+
+/**
+ * Blocked Bloom filter for k-mers.
+ * <p>
+ *     The bits of the filter are split into blocks of 512 bits (one cache line). All bits of a k-mer are set in one
+ *     block, so a lookup touches only one cache line. With {@link #BITS_PER_KMER} bits per k-mer, about 1% of the
+ *     k-mers that were not added are reported as possibly contained. K-mers that were added are always reported.
+ * </p>
+ */
+public class BlockedBloomFilter {
+    /**
+     * Number of filter bits per added k-mer.
+     */
+    public static final int BITS_PER_KMER = 10;
+    private static final int NR_OF_HASHES = 7;
+    private static final int WORDS_PER_BLOCK = 8;
+    private final long[] words;
+    private final long nrOfBlocks;
+
+    /**
+     * Creates an empty filter for the expected number of k-mers.
+     */
+    public BlockedBloomFilter(long expectedNrOfKmers) {
+        this(new long[Math.toIntExact(Math.max(1, Math.ceilDiv(expectedNrOfKmers * BITS_PER_KMER, 512)) * WORDS_PER_BLOCK)]);
+    }
+
+    /**
+     * Creates a filter from the words of a filter that was written with {@link #getWords()}.
+     */
+    public BlockedBloomFilter(long[] words) {
+        if (words.length == 0 || words.length % WORDS_PER_BLOCK != 0) {
+            throw new IllegalArgumentException("Invalid number of filter words: " + words.length);
+        }
+        this.words = words;
+        this.nrOfBlocks = words.length / WORDS_PER_BLOCK;
+    }
+
+    /**
+     * Adds a k-mer to the filter. Not thread-safe.
+     */
+    public void add(long kmer) {
+        int block = getBlock(kmer);
+        long bits = mix(kmer ^ 0x9E3779B97F4A7C15L);
+        for (int i = 0; i < NR_OF_HASHES; i++) {
+            int bit = (int) (bits >>> (9 * i)) & 511;
+            words[block + (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * @return false if the k-mer was not added to the filter, true if it might have been added
+     */
+    public boolean mightContain(long kmer) {
+        int block = getBlock(kmer);
+        long bits = mix(kmer ^ 0x9E3779B97F4A7C15L);
+        for (int i = 0; i < NR_OF_HASHES; i++) {
+            int bit = (int) (bits >>> (9 * i)) & 511;
+            if ((words[block + (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the index of the first word of the block of the k-mer
+     */
+    private int getBlock(long kmer) {
+        return (int) Math.unsignedMultiplyHigh(mix(kmer), nrOfBlocks) * WORDS_PER_BLOCK;
+    }
+
+    /**
+     * Finalizer of the 64-bit MurmurHash3.
+     */
+    private static long mix(long value) {
+        value = (value ^ (value >>> 33)) * 0xff51afd7ed558ccdL;
+        value = (value ^ (value >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return value ^ (value >>> 33);
+    }
+
+    /**
+     * @return the bits of the filter
+     */
+    public long[] getWords() {
+        return words;
+    }
+}
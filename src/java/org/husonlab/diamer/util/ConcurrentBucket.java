@@ -0,0 +1,153 @@
+package org.husonlab.diamer.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bucket of longs that is filled concurrently by multiple threads during indexing.
+ * <p>
+ *     Threads reserve contingents (ranges of indices) that they can fill without further synchronization. Contingents
+ *     are reserved with a CAS on the size of the bucket. If a contingent exceeds the capacity, new chunks are added
+ *     under a lock that is only taken by threads that need the new chunks, {@link #set(long, long)} and
+ *     {@link #getValue(long)} never block.
+ * </p>
+ * <p>
+ *     The first chunk has the initial capacity, all following chunks have the chunk size.
+ * </p>
+ */
+public abstract class ConcurrentBucket implements AutoCloseable {
+    protected final long INITIAL_CAPACITY;
+    protected final long CHUNK_SIZE;
+    private final int CONTINGENT_SIZE;
+    private final AtomicLong capacity;
+    private final AtomicLong size;
+    /**
+     * Lock for adding chunks and filling the bucket.
+     */
+    protected final Object growLock;
+
+    protected ConcurrentBucket(long INITIAL_CAPACITY, long CHUNK_SIZE, int CONTINGENT_SIZE) {
+        this.INITIAL_CAPACITY = INITIAL_CAPACITY;
+        this.CHUNK_SIZE = CHUNK_SIZE;
+        this.CONTINGENT_SIZE = CONTINGENT_SIZE;
+        this.capacity = new AtomicLong(INITIAL_CAPACITY);
+        this.size = new AtomicLong(0);
+        this.growLock = new Object();
+    }
+
+    /**
+     * Sets all entries of the bucket (including chunks that are added later) to the value.
+     */
+    public abstract void fill(long value);
+
+    public abstract void set(long index, long value);
+
+    public abstract long getValue(long index);
+
+    /**
+     * Copies length entries starting at the index into the array.
+     */
+    public abstract void get(long index, long[] dest, int offset, int length);
+
+    /**
+     * Copies length entries of the array into the bucket starting at the index.
+     */
+    public abstract void set(long index, long[] src, int offset, int length);
+
+    /**
+     * @return a new empty bucket with the same kind of storage and the given initial capacity
+     */
+    public abstract ConcurrentBucket newInstance(long capacity);
+
+    /**
+     * Adds a new chunk of size {@link #CHUNK_SIZE} filled with the last fill value. Is called while holding
+     * {@link #growLock}.
+     */
+    protected abstract void addChunk();
+
+    /**
+     * Makes the chunks added by {@link #addChunk()} visible to other threads. Is called while holding
+     * {@link #growLock}, before the new capacity is published.
+     */
+    protected abstract void publishChunks();
+
+    /**
+     * Reserves a contingent of the default contingent size.
+     * @return first and last (exclusive) index of the contingent
+     */
+    public Pair<Long, Long> getContingent() {
+        return getContingent(CONTINGENT_SIZE);
+    }
+
+    /**
+     * Reserves a contingent of indices that can be filled by the calling thread.
+     * <p>
+     *     If the contingent would only partially fit into the current capacity, it is shortened to the remaining
+     *     capacity, so that the bucket is only grown if it is actually full.
+     * </p>
+     * @param contingentSize requested number of indices
+     * @return first and last (exclusive) index of the contingent
+     */
+    public Pair<Long, Long> getContingent(int contingentSize) {
+        long start;
+        long end;
+        while (true) {
+            start = size.get();
+            long capacity = this.capacity.get();
+            end = start < capacity ? Math.min(start + contingentSize, capacity) : start + contingentSize;
+            if (size.compareAndSet(start, end)) {
+                break;
+            }
+        }
+        if (end > capacity.get()) {
+            grow(end);
+        }
+        return new Pair<>(start, end);
+    }
+
+    /**
+     * Adds chunks until the capacity is at least the required capacity.
+     */
+    private void grow(long requiredCapacity) {
+        synchronized (growLock) {
+            long capacity = this.capacity.get();
+            while (capacity < requiredCapacity) {
+                addChunk();
+                capacity += CHUNK_SIZE;
+            }
+            // publish the chunks before the capacity, threads that see the new capacity also see the chunks
+            publishChunks();
+            this.capacity.set(capacity);
+        }
+    }
+
+    /**
+     * Sets the capacity after chunks have been removed by an implementation.
+     */
+    protected void resetCapacity(long capacity) {
+        this.capacity.set(capacity);
+    }
+
+    /**
+     * Reserves all indices up to the size at once, for buckets that are filled by a single thread.
+     */
+    public void reserve(long size) {
+        while (this.size.get() < size) {
+            getContingent((int) Math.min(size - this.size.get(), Integer.MAX_VALUE));
+        }
+    }
+
+    public long size() {
+        return size.get();
+    }
+
+    public void clear() {
+        size.set(0);
+    }
+
+    /**
+     * Releases the memory of the bucket. The bucket must not be used afterward.
+     */
+    @Override
+    public void close() {
+    }
+}
@@ -50,22 +50,25 @@ public class DBIndexAnalyzer {
         try (CustomThreadPoolExecutor executor = new CustomThreadPoolExecutor(
                 1, settings.MAX_THREADS, settings.MAX_THREADS * 2, 5, new Logger("AnalyzeDBIndex"))) {
             for (int i = 0; i < encoder.getNrOfBuckets(); i++) {
-                final BucketIO.BucketReader bucketReader = dbIndexIO.getBucketReader(i);
                 int finalI = i;
                 executor.submit(() -> {
-                    for (int j = 0; j < bucketReader.getLength(); j++) {
-                        long kmerEnc = bucketReader.next();
-                        int taxId = encoder.getIdFromIndexEntry(kmerEnc);
-                        long kmer = encoder.getKmerFromIndexEntry(finalI, kmerEnc);
-                        Node node = tree.getNode(taxId);
-                        if (statisticsCollectors.containsKey(node.getRank())) {
-                            StatisticsCollector statisticsCollector = statisticsCollectors.get(node.getRank());
-                            statisticsCollector.addToHistogram(kmer);
-                        } else {
-                            StatisticsCollector statisticsCollector = new StatisticsCollector(encoder.getMaxKmerValue(), 1000);
-                            statisticsCollector.addToHistogram(kmer);
-                            statisticsCollectors.put(node.getRank(), statisticsCollector);
+                    try (BucketIO.EntryReader bucketReader = dbIndexIO.getBucketReader(finalI)) {
+                        for (long j = 0; j < bucketReader.getLength(); j++) {
+                            long kmerEnc = bucketReader.next();
+                            int taxId = encoder.getIdFromIndexEntry(kmerEnc);
+                            long kmer = encoder.getKmerFromIndexEntry(finalI, kmerEnc);
+                            Node node = tree.getNode(taxId);
+                            if (statisticsCollectors.containsKey(node.getRank())) {
+                                StatisticsCollector statisticsCollector = statisticsCollectors.get(node.getRank());
+                                statisticsCollector.addToHistogram(kmer);
+                            } else {
+                                StatisticsCollector statisticsCollector = new StatisticsCollector(encoder.getMaxKmerValue(), 1000);
+                                statisticsCollector.addToHistogram(kmer);
+                                statisticsCollectors.put(node.getRank(), statisticsCollector);
+                            }
                         }
+                    } catch (Exception e) {
+                        throw new RuntimeException("Could not read bucket " + finalI, e);
                     }
                     progressBar.incrementProgress();
                 });
@@ -1,26 +1,30 @@
 package org.husonlab.diamer.util;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.concurrent.atomic.AtomicInteger;
 
-public class FlexibleBucket {
-    private final int INITIAL_CAPACITY;
-    private final int CHUNK_SIZE;
-    private final int CONTINGENT_SIZE;
-    private final AtomicInteger capacity;
-    private final AtomicInteger size;
-    private final ArrayList<long[]> chunks;
+/**
+ * {@link ConcurrentBucket} that stores its entries in long arrays on the heap. Can hold at most
+ * {@link Integer#MAX_VALUE} entries.
+ */
+public class FlexibleBucket extends ConcurrentBucket {
+    private final int initialCapacity;
+    private final int chunkSize;
+    /**
+     * The array may be longer than the number of chunks.
+     */
+    private volatile long[][] chunks;
+    private long[][] newChunks;
+    private int nrOfChunks;
     private long lastFillValue;
 
     public FlexibleBucket(int INITIAL_CAPACITY, int CHUNK_SIZE, int CONTINGENT_SIZE) {
-        this.INITIAL_CAPACITY = INITIAL_CAPACITY;
-        this.CHUNK_SIZE = CHUNK_SIZE;
-        this.CONTINGENT_SIZE = CONTINGENT_SIZE;
-        this.capacity = new AtomicInteger(INITIAL_CAPACITY);
-        this.size = new AtomicInteger(0);
-        this.chunks = new ArrayList<>();
-        chunks.add(new long[INITIAL_CAPACITY]);
+        super(INITIAL_CAPACITY, CHUNK_SIZE, CONTINGENT_SIZE);
+        this.initialCapacity = INITIAL_CAPACITY;
+        this.chunkSize = CHUNK_SIZE;
+        this.chunks = new long[8][];
+        chunks[0] = new long[INITIAL_CAPACITY];
+        this.newChunks = chunks;
+        this.nrOfChunks = 1;
         this.lastFillValue = 0;
     }
 
@@ -28,56 +32,105 @@ public class FlexibleBucket {
         this(INITIAL_CAPACITY, 131_072, 4096);
     }
 
+    @Override
     public void fill(long value) {
-        lastFillValue = value;
-        for (long[] chunk : chunks) {
-            Arrays.fill(chunk, value);
+        synchronized (growLock) {
+            lastFillValue = value;
+            for (int i = 0; i < nrOfChunks; i++) {
+                Arrays.fill(newChunks[i], value);
+            }
         }
     }
 
-    public void set(int index, long value) {
+    @Override
+    public void set(long index, long value) {
         int chunkIndex = 0;
-        int chunkOffset = index;
-        if (index >= INITIAL_CAPACITY) {
-            chunkIndex = (index - INITIAL_CAPACITY + CHUNK_SIZE) / CHUNK_SIZE;
-            chunkOffset = (index - INITIAL_CAPACITY) % CHUNK_SIZE;
+        int chunkOffset = (int) index;
+        if (index >= initialCapacity) {
+            chunkIndex = (int) ((index - initialCapacity + chunkSize) / chunkSize);
+            chunkOffset = (int) ((index - initialCapacity) % chunkSize);
         }
-        chunks.get(chunkIndex)[chunkOffset] = value;
+        chunks[chunkIndex][chunkOffset] = value;
     }
 
-    public long getValue(int index) {
+    @Override
+    public long getValue(long index) {
         int chunkIndex = 0;
-        int chunkOffset = index;
-        if (index >= INITIAL_CAPACITY) {
-            chunkIndex = (index - INITIAL_CAPACITY + CHUNK_SIZE) / CHUNK_SIZE;
-            chunkOffset = (index - INITIAL_CAPACITY) % CHUNK_SIZE;
+        int chunkOffset = (int) index;
+        if (index >= initialCapacity) {
+            chunkIndex = (int) ((index - initialCapacity + chunkSize) / chunkSize);
+            chunkOffset = (int) ((index - initialCapacity) % chunkSize);
+        }
+        return chunks[chunkIndex][chunkOffset];
+    }
+
+    @Override
+    public void get(long index, long[] dest, int offset, int length) {
+        while (length > 0) {
+            long[] chunk;
+            int chunkOffset;
+            int available;
+            if (index < initialCapacity) {
+                chunk = chunks[0];
+                chunkOffset = (int) index;
+                available = initialCapacity - chunkOffset;
+            } else {
+                chunk = chunks[(int) ((index - initialCapacity) / chunkSize) + 1];
+                chunkOffset = (int) ((index - initialCapacity) % chunkSize);
+                available = chunkSize - chunkOffset;
+            }
+            int n = Math.min(length, available);
+            System.arraycopy(chunk, chunkOffset, dest, offset, n);
+            index += n;
+            offset += n;
+            length -= n;
         }
-        return chunks.get(chunkIndex)[chunkOffset];
     }
 
-    public Pair<Integer, Integer> getContingent() {
-        synchronized (size) {
-            int size = this.size.get();
-            int capacity = this.capacity.get();
-            if (size + CONTINGENT_SIZE <= capacity) {
-                this.size.addAndGet(CONTINGENT_SIZE);
-                return new Pair<>(size, size + CONTINGENT_SIZE);
+    @Override
+    public void set(long index, long[] src, int offset, int length) {
+        while (length > 0) {
+            long[] chunk;
+            int chunkOffset;
+            int available;
+            if (index < initialCapacity) {
+                chunk = chunks[0];
+                chunkOffset = (int) index;
+                available = initialCapacity - chunkOffset;
             } else {
-                long[] newLongChunk = new long[CHUNK_SIZE];
-                Arrays.fill(newLongChunk, lastFillValue);
-                chunks.add(newLongChunk);
-                this.capacity.set(capacity + CHUNK_SIZE);
-                this.size.addAndGet(CONTINGENT_SIZE);
-                return new Pair<>(size, size + CONTINGENT_SIZE);
+                chunk = chunks[(int) ((index - initialCapacity) / chunkSize) + 1];
+                chunkOffset = (int) ((index - initialCapacity) % chunkSize);
+                available = chunkSize - chunkOffset;
             }
+            int n = Math.min(length, available);
+            System.arraycopy(src, offset, chunk, chunkOffset, n);
+            index += n;
+            offset += n;
+            length -= n;
         }
     }
 
-    public int size() {
-        return size.get();
+    @Override
+    public ConcurrentBucket newInstance(long capacity) {
+        return new FlexibleBucket((int) capacity, chunkSize, 0);
+    }
+
+    @Override
+    protected void addChunk() {
+        if ((long) initialCapacity + (long) nrOfChunks * chunkSize > Integer.MAX_VALUE) {
+            throw new RuntimeException("FlexibleBucket can not hold more than " + Integer.MAX_VALUE +
+                    " entries, consider using off-heap buckets.");
+        }
+        long[] newLongChunk = new long[chunkSize];
+        Arrays.fill(newLongChunk, lastFillValue);
+        if (nrOfChunks == newChunks.length) {
+            newChunks = Arrays.copyOf(newChunks, newChunks.length * 2);
+        }
+        newChunks[nrOfChunks++] = newLongChunk;
     }
 
-    public void clear() {
-        size.set(0);
+    @Override
+    protected void publishChunks() {
+        chunks = newChunks;
     }
 }
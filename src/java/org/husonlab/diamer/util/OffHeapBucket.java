@@ -0,0 +1,174 @@
+package org.husonlab.diamer.util;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.Arrays;
+
+/**
+ * {@link ConcurrentBucket} that stores its entries in native memory outside the Java heap.
+ * <p>
+ *     The entries do not put pressure on the garbage collector and the number of entries is not limited to
+ *     {@link Integer#MAX_VALUE}. The memory has to be released explicitly with {@link #close()}. Chunks that were added
+ *     beyond the initial capacity are already released by {@link #clear()}.
+ * </p>
+ */
+public class OffHeapBucket extends ConcurrentBucket {
+    private final Arena arena;
+    private final MemorySegment initialSegment;
+    private Arena chunkArena;
+    /**
+     * Additional chunks, the array may be longer than the number of chunks.
+     */
+    private volatile MemorySegment[] chunks;
+    private MemorySegment[] newChunks;
+    private int nrOfChunks;
+    private long lastFillValue;
+
+    public OffHeapBucket(long INITIAL_CAPACITY, long CHUNK_SIZE, int CONTINGENT_SIZE) {
+        super(INITIAL_CAPACITY, CHUNK_SIZE, CONTINGENT_SIZE);
+        this.arena = Arena.ofShared();
+        this.initialSegment = arena.allocate(INITIAL_CAPACITY * Long.BYTES, Long.BYTES);
+        this.chunkArena = Arena.ofShared();
+        this.chunks = new MemorySegment[8];
+        this.newChunks = chunks;
+        this.nrOfChunks = 0;
+        this.lastFillValue = 0;
+    }
+
+    @Override
+    public void fill(long value) {
+        synchronized (growLock) {
+            lastFillValue = value;
+            fill(initialSegment, value);
+            for (int i = 0; i < nrOfChunks; i++) {
+                fill(newChunks[i], value);
+            }
+        }
+    }
+
+    /**
+     * Fills the segment by doubling the already filled part.
+     */
+    private static void fill(MemorySegment segment, long value) {
+        long length = segment.byteSize() / Long.BYTES;
+        if (length == 0) {
+            return;
+        }
+        segment.setAtIndex(ValueLayout.JAVA_LONG, 0, value);
+        for (long filled = 1; filled < length; filled *= 2) {
+            MemorySegment.copy(segment, 0, segment, filled * Long.BYTES, Math.min(filled, length - filled) * Long.BYTES);
+        }
+    }
+
+    @Override
+    public void set(long index, long value) {
+        if (index < INITIAL_CAPACITY) {
+            initialSegment.setAtIndex(ValueLayout.JAVA_LONG, index, value);
+        } else {
+            long offset = index - INITIAL_CAPACITY;
+            chunks[(int) (offset / CHUNK_SIZE)].setAtIndex(ValueLayout.JAVA_LONG, offset % CHUNK_SIZE, value);
+        }
+    }
+
+    @Override
+    public long getValue(long index) {
+        if (index < INITIAL_CAPACITY) {
+            return initialSegment.getAtIndex(ValueLayout.JAVA_LONG, index);
+        }
+        long offset = index - INITIAL_CAPACITY;
+        return chunks[(int) (offset / CHUNK_SIZE)].getAtIndex(ValueLayout.JAVA_LONG, offset % CHUNK_SIZE);
+    }
+
+    @Override
+    public void get(long index, long[] dest, int offset, int length) {
+        while (length > 0) {
+            MemorySegment segment;
+            long segmentIndex;
+            long available;
+            if (index < INITIAL_CAPACITY) {
+                segment = initialSegment;
+                segmentIndex = index;
+                available = INITIAL_CAPACITY - index;
+            } else {
+                segment = chunks[(int) ((index - INITIAL_CAPACITY) / CHUNK_SIZE)];
+                segmentIndex = (index - INITIAL_CAPACITY) % CHUNK_SIZE;
+                available = CHUNK_SIZE - segmentIndex;
+            }
+            int n = (int) Math.min(length, available);
+            MemorySegment.copy(segment, ValueLayout.JAVA_LONG, segmentIndex * Long.BYTES, dest, offset, n);
+            index += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    @Override
+    public void set(long index, long[] src, int offset, int length) {
+        while (length > 0) {
+            MemorySegment segment;
+            long segmentIndex;
+            long available;
+            if (index < INITIAL_CAPACITY) {
+                segment = initialSegment;
+                segmentIndex = index;
+                available = INITIAL_CAPACITY - index;
+            } else {
+                segment = chunks[(int) ((index - INITIAL_CAPACITY) / CHUNK_SIZE)];
+                segmentIndex = (index - INITIAL_CAPACITY) % CHUNK_SIZE;
+                available = CHUNK_SIZE - segmentIndex;
+            }
+            int n = (int) Math.min(length, available);
+            MemorySegment.copy(src, offset, segment, ValueLayout.JAVA_LONG, segmentIndex * Long.BYTES, n);
+            index += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    @Override
+    public ConcurrentBucket newInstance(long capacity) {
+        return new OffHeapBucket(capacity, CHUNK_SIZE, 0);
+    }
+
+    @Override
+    protected void addChunk() {
+        MemorySegment chunk = chunkArena.allocate(CHUNK_SIZE * Long.BYTES, Long.BYTES);
+        fill(chunk, lastFillValue);
+        if (nrOfChunks == newChunks.length) {
+            newChunks = Arrays.copyOf(newChunks, newChunks.length * 2);
+        }
+        newChunks[nrOfChunks++] = chunk;
+    }
+
+    @Override
+    protected void publishChunks() {
+        chunks = newChunks;
+    }
+
+    /**
+     * Resets the size to 0 and releases all chunks beyond the initial capacity.
+     */
+    @Override
+    public void clear() {
+        super.clear();
+        synchronized (growLock) {
+            if (nrOfChunks > 0) {
+                chunkArena.close();
+                chunkArena = Arena.ofShared();
+                Arrays.fill(newChunks, null);
+                nrOfChunks = 0;
+                publishChunks();
+                resetCapacity(INITIAL_CAPACITY);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (growLock) {
+            chunkArena.close();
+            arena.close();
+        }
+    }
+}
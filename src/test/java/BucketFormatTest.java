@@ -0,0 +1,210 @@
+import org.husonlab.diamer.io.indexing.BlockBucketReader;
+import org.husonlab.diamer.io.indexing.BlockBucketWriter;
+import org.husonlab.diamer.io.indexing.BucketIO;
+import org.husonlab.diamer.io.indexing.EliasFanoBucketReader;
+import org.husonlab.diamer.io.indexing.EliasFanoBucketWriter;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BucketFormatTest {
+    private static final int ID_BITS = 22;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testEliasFanoRoundTrip() throws IOException {
+        Random random = new Random(42);
+        Path file = folder.newFile("bucket.bin").toPath();
+        // empty buckets, also with the sizing for any entry that is used when buckets are merged
+        assertEliasFano(file, new long[0], 0, 0);
+        assertEliasFano(file, new long[0], 0, -1L);
+        assertEliasFano(file, new long[0], 10, -1L);
+        for (int n = 0; n < 60; n++) {
+            int length = n < 10 ? n + 1 : random.nextInt(n < 50 ? 5_000 : 300_000);
+            // dense buckets have more entries than distinct kmers, so no low bits are stored
+            long maxKmer = n % 3 == 0 ? Math.max(1, length / (1 + random.nextInt(4))) :
+                    random.nextLong(1L << (64 - ID_BITS));
+            long[] entries = randomEntries(random, length, maxKmer);
+            long maxEntry = length == 0 ? 0 : entries[length - 1];
+            assertEliasFano(file, entries, length, maxEntry);
+            assertEliasFano(file, entries, length + random.nextInt(100), -1L);
+        }
+    }
+
+    private void assertEliasFano(Path file, long[] entries, long maxLength, long maxEntry) {
+        try (EliasFanoBucketWriter writer = new EliasFanoBucketWriter(file, maxLength, maxEntry, ID_BITS)) {
+            for (long entry : entries) {
+                writer.write(entry);
+            }
+            assertEquals(entries.length, writer.getLength());
+        }
+        assertTrue(BucketIO.isEliasFano(file));
+        try (EliasFanoBucketReader reader = new EliasFanoBucketReader(file)) {
+            assertEquals(entries.length, reader.getLength());
+            for (long entry : entries) {
+                assertTrue(reader.hasNext());
+                assertEquals(entry, reader.next());
+            }
+            assertFalse(reader.hasNext());
+        }
+        Random random = new Random(entries.length);
+        for (int n = 0; n < 3; n++) {
+            long[] queries = randomQueries(random, entries, 1 + random.nextInt(1 + entries.length / (1 + n * 50)));
+            try (EliasFanoBucketReader reader = new EliasFanoBucketReader(file)) {
+                assertArrayEquals(referenceJoin(entries, queries), join(reader, queries));
+            }
+        }
+        try (EliasFanoBucketReader reader = new EliasFanoBucketReader(file)) {
+            for (long query : randomQueries(random, entries, 50)) {
+                long position = reader.getPosition();
+                reader.skipTo(query << ID_BITS);
+                assertTrue(reader.getPosition() >= position);
+                assertTrue(reader.getPosition() <= Math.max(position, firstIndex(entries, query << ID_BITS)));
+            }
+        }
+    }
+
+    @Test
+    public void testBlockRoundTrip() throws IOException {
+        Random random = new Random(42);
+        Path file = folder.newFile("bucket.bin").toPath();
+        for (int blockSize : new int[]{1, 2, 7, 64, 1024}) {
+            assertBlocks(file, new long[0], blockSize);
+            for (int n = 0; n < 20; n++) {
+                // full blocks only and a partial last block
+                int length = n % 2 == 0 ? (1 + random.nextInt(50)) * blockSize : random.nextInt(20_000);
+                // the largest entries are negative as signed longs
+                long maxKmer = n % 4 == 0 ? length / 2 + 1 : -1L >>> ID_BITS;
+                assertBlocks(file, randomEntries(random, length, maxKmer), blockSize);
+            }
+        }
+    }
+
+    private void assertBlocks(Path file, long[] entries, int blockSize) {
+        try (BlockBucketWriter writer = new BlockBucketWriter(file, blockSize)) {
+            for (long entry : entries) {
+                writer.write(entry);
+            }
+        }
+        assertEquals(blockSize, BucketIO.getBlockSize(file));
+        int nrOfBlocks = (int) Math.ceilDiv(entries.length, (long) blockSize);
+        try (BlockBucketReader reader = new BlockBucketReader(file)) {
+            assertEquals(entries.length, reader.getLength());
+            assertEquals(nrOfBlocks, reader.getNrOfBlocks());
+            for (long entry : entries) {
+                assertTrue(reader.hasNext());
+                assertEquals(entry, reader.next());
+            }
+            assertFalse(reader.hasNext());
+            // blocks in reverse order, each read until the end of the bucket or the next block
+            for (int block = nrOfBlocks - 1; block >= 0; block--) {
+                reader.seekBlock(block);
+                assertEquals((long) block * blockSize, reader.getPosition());
+                for (int i = block * blockSize; i < Math.min(entries.length, (block + 1) * blockSize + 1); i++) {
+                    assertEquals(entries[i], reader.next());
+                }
+            }
+        }
+        Random random = new Random(entries.length);
+        for (int n = 0; n < 3; n++) {
+            long[] queries = randomQueries(random, entries, 1 + random.nextInt(1 + entries.length / (1 + n * 50)));
+            try (BlockBucketReader reader = new BlockBucketReader(file)) {
+                assertArrayEquals(referenceJoin(entries, queries), join(reader, queries));
+            }
+        }
+        try (BlockBucketReader reader = new BlockBucketReader(file)) {
+            for (long query : randomQueries(random, entries, 50)) {
+                long position = reader.getPosition();
+                long minEntry = query << ID_BITS;
+                reader.skipTo(minEntry);
+                // the reader jumps to the last block that starts with a smaller entry if it is behind the current one
+                int block = (int) (position / blockSize);
+                int lastSmallerBlock = block;
+                while (lastSmallerBlock + 1 < nrOfBlocks &&
+                        Long.compareUnsigned(entries[(lastSmallerBlock + 1) * blockSize], minEntry) < 0) {
+                    lastSmallerBlock++;
+                }
+                assertEquals(lastSmallerBlock > block ? (long) lastSmallerBlock * blockSize : position,
+                        reader.getPosition());
+                // read a few entries, so the reader is not always at the start of a block
+                for (int i = random.nextInt(3 * blockSize); i > 0 && reader.hasNext(); i--) {
+                    reader.next();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return unsigned sorted entries with kmers up to maxKmer and random IDs
+     */
+    private static long[] randomEntries(Random random, int length, long maxKmer) {
+        long[] entries = new long[length];
+        for (int i = 0; i < length; i++) {
+            long kmer = maxKmer == -1L >>> ID_BITS ? random.nextLong() >>> ID_BITS : random.nextLong(maxKmer + 1);
+            entries[i] = kmer << ID_BITS | random.nextInt(1 << ID_BITS);
+        }
+        return Arrays.stream(entries).boxed().sorted(Long::compareUnsigned).mapToLong(Long::longValue).toArray();
+    }
+
+    /**
+     * @return sorted distinct kmers, about half of them are kmers of the entries
+     */
+    private static long[] randomQueries(Random random, long[] entries, int number) {
+        long maxKmer = entries.length == 0 ? 1_000 : entries[entries.length - 1] >>> ID_BITS;
+        long[] queries = new long[number];
+        for (int i = 0; i < number; i++) {
+            queries[i] = entries.length > 0 && random.nextBoolean() ?
+                    entries[random.nextInt(entries.length)] >>> ID_BITS : random.nextLong(maxKmer + 2);
+        }
+        return Arrays.stream(queries).sorted().distinct().toArray();
+    }
+
+    private static int firstIndex(long[] entries, long minEntry) {
+        int i = 0;
+        while (i < entries.length && Long.compareUnsigned(entries[i], minEntry) < 0) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Entries whose kmers are in the queries.
+     */
+    private static long[] referenceJoin(long[] entries, long[] queries) {
+        return Arrays.stream(entries).filter(entry -> Arrays.binarySearch(queries, entry >>> ID_BITS) >= 0).toArray();
+    }
+
+    /**
+     * Entries whose kmers are in the queries, found by skipping to each query like {@code ReadAssigner} does.
+     */
+    private static long[] join(BucketIO.EntryReader reader, long[] queries) {
+        ArrayList<Long> hits = new ArrayList<>();
+        boolean hasEntry = reader.hasNext();
+        long entry = hasEntry ? reader.next() : 0;
+        for (long query : queries) {
+            if (hasEntry && entry >>> ID_BITS < query) {
+                reader.skipTo(query << ID_BITS);
+            }
+            while (hasEntry && entry >>> ID_BITS < query) {
+                hasEntry = reader.hasNext();
+                entry = hasEntry ? reader.next() : 0;
+            }
+            while (hasEntry && entry >>> ID_BITS == query) {
+                hits.add(entry);
+                hasEntry = reader.hasNext();
+                entry = hasEntry ? reader.next() : 0;
+            }
+        }
+        return hits.stream().mapToLong(Long::longValue).toArray();
+    }
+}
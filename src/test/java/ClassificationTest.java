@@ -0,0 +1,57 @@
+import org.husonlab.diamer.main.Main;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the assignments of {@code --classify} with the assignments of {@code --indexreads} and
+ * {@code --assignreads} on the inputs of the {@link CompleteRunTest}.
+ */
+public class ClassificationTest {
+    private static final String ALPHABET = "[BDEKNOQRXZ][AST][IJLV][G][P][F][Y][CU][H][M][W]";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testClassifyMatchesAssignReads() throws IOException {
+        testClassifyMatchesAssignReads("111111111111111");
+        testClassifyMatchesAssignReads("111111011110011100011");
+    }
+
+    private void testClassifyMatchesAssignReads(String mask) throws IOException {
+        String nodesDmp = "src/test/resources/database/taxdmp/nodes.dmp";
+        String namesDmp = "src/test/resources/database/taxdmp/names.dmp";
+        String dbPreprocessed = "src/test/resources/expected_output/db_preprocessed/db_preprocessed.fsa.gz";
+        String reads = "src/test/resources/reads/reads.fq";
+        Path dbIndex = folder.newFolder().toPath();
+        Path readsIndex = folder.newFolder().toPath();
+        Path assignment = folder.newFolder().toPath();
+        Path classification = folder.newFolder().toPath();
+
+        Main.main(new String[]{
+                "--indexdb", "-t", "12", "--mask", mask, "--filtering", "c", "0", "--alphabet", ALPHABET,
+                "-no", nodesDmp, "-na", namesDmp, dbPreprocessed, dbIndex.toString()});
+        Main.main(new String[]{
+                "--indexreads", "-t", "12", "--mask", mask, "--filtering", "c", "0", "--alphabet", ALPHABET,
+                reads, readsIndex.toString()});
+        Main.main(new String[]{
+                "--assignreads", "-t", "12", "--ovo", "0.2,0.5,0.6,0.8,0.9,1.0", "--ova", "0.7",
+                "-no", nodesDmp, "-na", namesDmp, dbIndex.toString(), readsIndex.toString(), assignment.toString()});
+        Main.main(new String[]{
+                "--classify", "-t", "12", "--mask", mask, "--filtering", "c", "0", "--alphabet", ALPHABET,
+                "--ovo", "0.2,0.5,0.6,0.8,0.9,1.0", "--ova", "0.7", "-no", nodesDmp, "-na", namesDmp,
+                dbIndex.toString(), reads, classification.toString()});
+
+        for (String file : new String[]{"raw_assignments.tsv", "per_read_assignments.tsv", "per_taxon_assignments.tsv"}) {
+            assertEquals(mask + ": " + file, Files.readAllLines(assignment.resolve(file)),
+                    Files.readAllLines(classification.resolve(file)));
+        }
+    }
+}
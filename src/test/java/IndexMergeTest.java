@@ -0,0 +1,79 @@
+import org.husonlab.diamer.main.Main;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares a database index that is built in two slices ({@code --bucket-range}) and merged ({@code --merge-index})
+ * with an index that is built at once.
+ */
+public class IndexMergeTest {
+    private static final String ALPHABET = "[BDEKNOQRXZ][AST][IJLV][G][P][F][Y][CU][H][M][W]";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testMergedSlicesMatchFullBuild() throws IOException {
+        testMergedSlicesMatchFullBuild("111111111111111");
+        testMergedSlicesMatchFullBuild("111111011110011100011");
+    }
+
+    private void testMergedSlicesMatchFullBuild(String mask) throws IOException {
+        String nodesDmp = "src/test/resources/database/taxdmp/nodes.dmp";
+        String namesDmp = "src/test/resources/database/taxdmp/names.dmp";
+        String dbPreprocessed = "src/test/resources/expected_output/db_preprocessed/db_preprocessed.fsa.gz";
+        Path fullIndex = folder.newFolder().toPath();
+        Path firstSlice = folder.newFolder().toPath();
+        Path secondSlice = folder.newFolder().toPath();
+        Path mergedIndex = folder.newFolder().toPath();
+
+        // with Bloom filters and fence files, the slices split the 1024 buckets unevenly
+        List<String> options = List.of("--indexdb", "-t", "12", "--mask", mask, "--filtering", "c", "0",
+                "--alphabet", ALPHABET, "--bloom-filter", "--fence-interval", "16", "-no", nodesDmp, "-na", namesDmp);
+        Main.main(arguments(options, List.of(), dbPreprocessed, fullIndex.toString()));
+        Main.main(arguments(options, List.of("--bucket-range", "0-299"), dbPreprocessed, firstSlice.toString()));
+        Main.main(arguments(options, List.of("--bucket-range", "300-1023"), dbPreprocessed, secondSlice.toString()));
+        Main.main(new String[]{"--merge-index", firstSlice.toString(), secondSlice.toString(), mergedIndex.toString()});
+
+        List<String> files = indexFiles(fullIndex);
+        assertTrue(files.stream().anyMatch(file -> file.endsWith(".filter")));
+        assertTrue(files.stream().anyMatch(file -> file.endsWith(".fence")));
+        assertTrue(files.contains("tree.txt"));
+        assertTrue(files.contains("manifest.txt"));
+        assertEquals(mask, files, indexFiles(mergedIndex));
+        for (String file : files) {
+            assertArrayEquals(mask + ": " + file, Files.readAllBytes(fullIndex.resolve(file)),
+                    Files.readAllBytes(mergedIndex.resolve(file)));
+        }
+    }
+
+    /**
+     * @return the names of all files of the index folder and its subfolders except the logs, sorted
+     */
+    private static List<String> indexFiles(Path index) throws IOException {
+        try (Stream<Path> paths = Files.walk(index)) {
+            return paths.filter(Files::isRegularFile).map(path -> index.relativize(path).toString())
+                    .filter(file -> !file.endsWith(".log")).sorted().toList();
+        }
+    }
+
+    private static String[] arguments(List<String> options, List<String> range, String input, String output) {
+        ArrayList<String> arguments = new ArrayList<>(options);
+        arguments.addAll(range);
+        arguments.add(input);
+        arguments.add(output);
+        return arguments.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,86 @@
+import org.husonlab.diamer.main.Main;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares a database index that is built from the first part of the database and updated with the second part
+ * ({@code --update-index}) with an index that is built from the whole database.
+ */
+public class IndexUpdateTest {
+    private static final String ALPHABET = "[BDEKNOQRXZ][AST][IJLV][G][P][F][Y][CU][H][M][W]";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testUpdateMatchesFullBuild() throws IOException {
+        testUpdateMatchesFullBuild("111111111111111");
+        testUpdateMatchesFullBuild("111111011110011100011");
+    }
+
+    private void testUpdateMatchesFullBuild(String mask) throws IOException {
+        String nodesDmp = "src/test/resources/database/taxdmp/nodes.dmp";
+        String namesDmp = "src/test/resources/database/taxdmp/names.dmp";
+        Path dbPreprocessed = Path.of("src/test/resources/expected_output/db_preprocessed/db_preprocessed.fsa.gz");
+        String database;
+        try (InputStream inputStream = new GZIPInputStream(new FileInputStream(dbPreprocessed.toFile()))) {
+            database = new String(inputStream.readAllBytes(), StandardCharsets.US_ASCII);
+        }
+        // split at the start of the sequence behind the middle of the database
+        int split = database.indexOf('>', database.length() / 2);
+        Path parts = folder.newFolder().toPath();
+        Path partA = parts.resolve("part_a.fsa");
+        Path partB = parts.resolve("part_b.fsa");
+        Files.writeString(partA, database.substring(0, split));
+        Files.writeString(partB, database.substring(split));
+        Path fullIndex = folder.newFolder().toPath();
+        Path updatedIndex = folder.newFolder().toPath();
+
+        List<String> options = List.of("-t", "12", "--mask", mask, "--filtering", "c", "0", "--alphabet", ALPHABET);
+        Main.main(arguments(List.of("--indexdb", "-no", nodesDmp, "-na", namesDmp), options,
+                dbPreprocessed.toString(), fullIndex.toString()));
+        Main.main(arguments(List.of("--indexdb", "-no", nodesDmp, "-na", namesDmp), options,
+                partA.toString(), updatedIndex.toString()));
+        Main.main(arguments(List.of("--indexdb", "--update-index"), options,
+                partB.toString(), updatedIndex.toString()));
+
+        List<String> buckets;
+        try (Stream<Path> paths = Files.list(fullIndex)) {
+            buckets = paths.map(path -> path.getFileName().toString()).filter(file -> file.endsWith(".bin"))
+                    .sorted().toList();
+        }
+        try (Stream<Path> paths = Files.list(updatedIndex)) {
+            assertEquals(buckets, paths.map(path -> path.getFileName().toString())
+                    .filter(file -> file.endsWith(".bin")).sorted().toList());
+        }
+        for (String file : buckets) {
+            assertArrayEquals(mask + ": " + file, Files.readAllBytes(fullIndex.resolve(file)),
+                    Files.readAllBytes(updatedIndex.resolve(file)));
+        }
+        assertEquals(mask + ": tree.txt", Files.readAllLines(fullIndex.resolve("tree.txt")),
+                Files.readAllLines(updatedIndex.resolve("tree.txt")));
+    }
+
+    private static String[] arguments(List<String> command, List<String> options, String input, String output) {
+        ArrayList<String> arguments = new ArrayList<>(command);
+        arguments.addAll(options);
+        arguments.add(input);
+        arguments.add(output);
+        return arguments.toArray(new String[0]);
+    }
+}
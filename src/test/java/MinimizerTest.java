@@ -1,7 +1,11 @@
 import org.husonlab.diamer.indexing.kmers.*;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
 
 public class MinimizerTest {
     @Test
@@ -25,6 +29,156 @@ public class MinimizerTest {
         System.out.println(Arrays.toString(kmerExtractor4.extractKmers(sequence)));
         System.out.println(Arrays.toString(kmerExtractor5.extractKmers(sequence)));
     }
+
+    /**
+     * The window extractors have to return the same kmers as the previous implementations that shifted the window
+     * arrays and rescanned the window when the selected kmer left it.
+     */
+    @Test
+    public void testWindowExtractorsMatchReference() {
+        Random random = new Random(42);
+        boolean[][] masks = {{true, true}, {true, false, true}, {true, true, false, true, true}, {true, true, true, true}};
+        double[] letterLikelihoods = new double[11];
+        for (int i = 0; i < letterLikelihoods.length; i++) {
+            letterLikelihoods[i] = random.nextDouble();
+        }
+        for (boolean[] mask : masks) {
+            for (int windowSize = mask.length + 1; windowSize < mask.length + 40; windowSize += 3) {
+                KmerExtractor minimizer = new KmerExtractorMinimizer(new KmerEncoder(11, mask), windowSize);
+                KmerExtractor probabilityMinimizer = new KmerExtractorProbabilityMinimizer(
+                        new KmerEncoder(11, mask, letterLikelihoods), windowSize);
+                KmerExtractor complexityMaximizer = new KmerExtractorComplexityMaximizer(new KmerEncoder(11, mask), windowSize);
+                KmerEncoder referenceEncoder = new KmerEncoder(11, mask, letterLikelihoods);
+                for (int n = 0; n < 200; n++) {
+                    // small alphabets produce many ties
+                    byte[] sequence = new byte[random.nextInt(120)];
+                    int letters = 1 + random.nextInt(11);
+                    for (int i = 0; i < sequence.length; i++) {
+                        sequence[i] = (byte) random.nextInt(letters);
+                    }
+                    assertArrayEquals(referenceWindowExtraction(referenceEncoder, windowSize, sequence, 0),
+                            minimizer.extractKmers(sequence));
+                    assertArrayEquals(referenceWindowExtraction(referenceEncoder, windowSize, sequence, 1),
+                            probabilityMinimizer.extractKmers(sequence));
+                    assertArrayEquals(referenceWindowExtraction(referenceEncoder, windowSize, sequence, 2),
+                            complexityMaximizer.extractKmers(sequence));
+                }
+            }
+        }
+    }
+
+    /**
+     * Open and closed syncmers have to be the kmers whose s-mer with the smallest hash (the last one for ties) is in
+     * the middle or at one of the ends of the kmer.
+     */
+    @Test
+    public void testSyncmerExtractorMatchesReference() {
+        Random random = new Random(42);
+        boolean[][] masks = {{true, true}, {true, false, true}, {true, true, false, true, true},
+                {true, true, true, true, true, true, true, true, true, true, true, true, true}};
+        for (boolean[] mask : masks) {
+            for (int smerLength = 1; smerLength < mask.length; smerLength++) {
+                for (boolean closed : new boolean[]{false, true}) {
+                    KmerEncoder kmerEncoder = new KmerEncoder(11, mask);
+                    KmerExtractor syncmerExtractor = new KmerExtractorSyncmer(kmerEncoder, smerLength, closed);
+                    KmerExtractor kmerExtractor = new KmerExtractor(new KmerEncoder(11, mask));
+                    for (int n = 0; n < 200; n++) {
+                        // small alphabets produce many ties, short sequences have no kmers
+                        byte[] sequence = new byte[random.nextInt(n % 4 == 0 ? mask.length : 120)];
+                        int letters = 1 + random.nextInt(11);
+                        for (int i = 0; i < sequence.length; i++) {
+                            sequence[i] = (byte) random.nextInt(letters);
+                        }
+                        assertArrayEquals(referenceSyncmers(kmerExtractor.extractKmers(sequence), sequence,
+                                mask.length, smerLength, closed), syncmerExtractor.extractKmers(sequence));
+                    }
+                }
+            }
+        }
+    }
+
+    private static long[] referenceSyncmers(long[] kmers, byte[] sequence, int k, int smerLength, boolean closed) {
+        ArrayList<Long> syncmers = new ArrayList<>();
+        for (int i = 0; i < kmers.length; i++) {
+            int minimalSmer = -1;
+            int minimalHash = 0;
+            for (int j = 0; j <= k - smerLength; j++) {
+                long smer = 0;
+                for (int l = 0; l < smerLength; l++) {
+                    smer = smer * 11 + sequence[i + j + l];
+                }
+                int hash = (int) referenceValue(null, smer, 0);
+                if (minimalSmer < 0 || hash <= minimalHash) {
+                    minimalSmer = j;
+                    minimalHash = hash;
+                }
+            }
+            if (closed ? minimalSmer == 0 || minimalSmer == k - smerLength : minimalSmer == (k - smerLength) / 2) {
+                syncmers.add(kmers[i]);
+            }
+        }
+        return syncmers.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    /**
+     * Previous window selection of the minimizer (type 0), the probability minimizer (type 1) and the complexity
+     * maximizer (type 2), including their initial values.
+     */
+    private static long[] referenceWindowExtraction(KmerEncoder kmerEncoder, int windowSize, byte[] sequence, int type) {
+        int k = kmerEncoder.getK();
+        if (sequence.length < windowSize) {
+            return new long[0];
+        }
+        long[] windowKmers = new long[windowSize - k + 1];
+        double[] windowValues = new double[windowSize - k + 1];
+        int selectedIndex = 0;
+        double selectedValue = type == 0 ? Long.MAX_VALUE : type == 1 ? 0 : Integer.MAX_VALUE;
+        kmerEncoder.reset();
+        for (int i = 0; i < k - 1; i++) {
+            kmerEncoder.add(sequence[i]);
+        }
+        for (int i = k - 1; i < windowSize - 1; i++) {
+            long kmer = kmerEncoder.add(sequence[i]);
+            windowKmers[i - k + 2] = kmer;
+            windowValues[i - k + 2] = referenceValue(kmerEncoder, kmer, type);
+        }
+        ArrayList<Long> kmers = new ArrayList<>();
+        for (int i = windowSize - 1; i < sequence.length; i++) {
+            long kmer = kmerEncoder.add(sequence[i]);
+            double value = referenceValue(kmerEncoder, kmer, type);
+            System.arraycopy(windowKmers, 1, windowKmers, 0, windowKmers.length - 1);
+            windowKmers[windowKmers.length - 1] = kmer;
+            System.arraycopy(windowValues, 1, windowValues, 0, windowValues.length - 1);
+            windowValues[windowValues.length - 1] = value;
+            selectedIndex--;
+            if (type == 2 ? value > selectedValue : value < selectedValue) {
+                selectedValue = value;
+                selectedIndex = windowKmers.length - 1;
+            }
+            if (selectedIndex < 0) {
+                selectedValue = type == 2 ? 0 : Double.MAX_VALUE;
+                for (int j = 0; j < windowValues.length; j++) {
+                    if (type == 2 ? windowValues[j] >= selectedValue : windowValues[j] <= selectedValue) {
+                        selectedValue = windowValues[j];
+                        selectedIndex = j;
+                    }
+                }
+            }
+            if (kmers.isEmpty() || windowKmers[selectedIndex] != kmers.getLast()) {
+                kmers.add(windowKmers[selectedIndex]);
+            }
+        }
+        return kmers.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    private static double referenceValue(KmerEncoder kmerEncoder, long kmer, int type) {
+        if (type == 0) {
+            kmer = (kmer ^ (kmer >>> 33)) * 0xff51afd7ed558ccdL;
+            kmer = (kmer ^ (kmer >>> 33)) * 0xc4ceb9fe1a85ec53L;
+            return (int) (kmer ^ (kmer >>> 33));
+        }
+        return type == 1 ? kmerEncoder.getProbability() : kmerEncoder.getComplexity();
+    }
 }
 
 //[85, 90, 23, 20, 102, 33, 4, 49, 61, 76, 110, 6, 76, 117, 85, 93, 59, 47, 35, 31, 100]
@@ -0,0 +1,286 @@
+import org.husonlab.diamer.io.gzip.ParallelGZIPInputStream;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.zip.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the output of {@link ParallelGZIPInputStream} with the output of {@link GZIPInputStream}.
+ */
+public class ParallelGZIPInputStreamTest {
+    /**
+     * Number of compressed bytes per chunk of {@link ParallelGZIPInputStream}.
+     */
+    private static final int CHUNK_SIZE = 1 << 20;
+    private static final int[] THREADS = {1, 4, 16};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSingleMember() throws IOException {
+        Random random = new Random(42);
+        byte[] reads = fastq(random, 6_000_000);
+        for (int level : new int[]{1, 6, 9}) {
+            assertDecompression(gzip(reads, level));
+        }
+        assertDecompression(gzip(new byte[0], 6));
+        assertDecompression(gzip(fastq(random, 1_000), 6));
+    }
+
+    @Test
+    public void testGnuGzip() throws IOException, InterruptedException {
+        Assume.assumeTrue(new File("/usr/bin/gzip").canExecute() || new File("/bin/gzip").canExecute());
+        byte[] reads = fastq(new Random(42), 6_000_000);
+        Path input = folder.newFile().toPath();
+        Files.write(input, reads);
+        for (int level : new int[]{1, 6, 9}) {
+            Path output = folder.newFile().toPath();
+            Process process = new ProcessBuilder("gzip", "-" + level, "-c", input.toString())
+                    .redirectOutput(output.toFile()).start();
+            assertEquals(0, process.waitFor());
+            assertDecompression(output);
+        }
+    }
+
+    @Test
+    public void testMultipleMembers() throws IOException {
+        Random random = new Random(42);
+        ByteArrayOutputStream members = new ByteArrayOutputStream();
+        // several members end close to the chunk boundaries, some members are empty
+        for (int i = 0; i < 40; i++) {
+            members.write(gzipBytes(fastq(random, i % 7 == 0 ? 0 : random.nextInt(1_000_000)), 1 + random.nextInt(9)));
+        }
+        assertDecompression(write(members.toByteArray()));
+    }
+
+    @Test
+    public void testStoredBlocks() throws IOException {
+        byte[] random = new byte[3 * CHUNK_SIZE];
+        new Random(42).nextBytes(random);
+        assertDecompression(gzip(random, 0));
+        // incompressible data is partly stored by the default level
+        assertDecompression(gzip(random, 6));
+    }
+
+    @Test
+    public void testLowEntropy() throws IOException {
+        Random random = new Random(42);
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        // long matches that reach back into the previous chunk
+        data.write(fastq(random, 2_500_000));
+        byte[] line = "ACGTACGTTTGACCA".repeat(8).getBytes();
+        for (int i = 0; i < 200_000; i++) {
+            data.write(line, 0, random.nextInt(line.length));
+            data.write('\n');
+        }
+        data.write(new byte[5_000_000]);
+        data.write(fastq(random, 2_500_000));
+        for (int level : new int[]{1, 9}) {
+            assertDecompression(gzip(data.toByteArray(), level));
+        }
+    }
+
+    /**
+     * A dynamic Huffman block that starts just before, at and just after a chunk boundary (behind a gzip member with
+     * stored blocks that is sized to the byte) and files that end just before, at and just after a chunk boundary.
+     */
+    @Test
+    public void testChunkBoundaries() throws IOException {
+        Random random = new Random(42);
+        byte[] incompressible = new byte[2 * CHUNK_SIZE];
+        random.nextBytes(incompressible);
+        byte[] first = gzipBytes(fastq(random, 500_000), 6);
+        byte[] last = gzipBytes(fastq(random, 3_000_000), 6);
+        for (int shift = -3; shift <= 3; shift++) {
+            // the first block of the last member starts behind its 10 byte header
+            byte[] stored = storedMember(incompressible, CHUNK_SIZE + shift - first.length - 10);
+            assertEquals(CHUNK_SIZE + shift, first.length + stored.length + 10);
+            ByteArrayOutputStream members = new ByteArrayOutputStream();
+            members.write(first);
+            members.write(stored);
+            members.write(last);
+            assertDecompression(write(members.toByteArray()));
+        }
+        for (int shift = -1; shift <= 1; shift++) {
+            ByteArrayOutputStream members = new ByteArrayOutputStream();
+            members.write(first);
+            members.write(storedMember(incompressible, 2 * CHUNK_SIZE + shift - first.length));
+            assertDecompression(write(members.toByteArray()));
+        }
+    }
+
+    /**
+     * @return a gzip member of stored blocks that is as large as possible, but not larger than the given size
+     */
+    private static byte[] storedMember(byte[] data, int size) throws IOException {
+        int length = Math.min(data.length, size);
+        byte[] member = gzipBytes(data, 0, length, 0);
+        // stored blocks grow by one compressed byte per uncompressed byte
+        while (member.length > size) {
+            length -= member.length - size;
+            member = gzipBytes(data, 0, length, 0);
+        }
+        return member;
+    }
+
+    @Test
+    public void testBgzf() throws IOException {
+        Random random = new Random(42);
+        assertDecompression(write(bgzf(fastq(random, 6_000_000), 6)));
+        assertDecompression(write(bgzf(fastq(random, 1_000), 1)));
+        byte[] incompressible = new byte[2 * CHUNK_SIZE];
+        random.nextBytes(incompressible);
+        assertDecompression(write(bgzf(incompressible, 0)));
+    }
+
+    @Test
+    public void testCorruptedTrailer() throws IOException {
+        Random random = new Random(42);
+        byte[] reads = fastq(random, 5_000_000);
+        byte[][] files = {gzipBytes(reads, 6), gzipBytes(fastq(random, 1_000), 6), bgzf(reads, 6)};
+        for (byte[] file : files) {
+            for (int offset : new int[]{8, 4, 1}) {
+                byte[] corrupted = file.clone();
+                // the CRC32 and the size of the last member (BGZF: of the last block before the empty EOF block)
+                int position = corrupted.length - offset - (file == files[2] ? BGZF_EOF.length : 0);
+                corrupted[position] ^= 1;
+                Path path = write(corrupted);
+                for (int threads : THREADS) {
+                    try (InputStream inputStream = new ParallelGZIPInputStream(path, threads)) {
+                        inputStream.readAllBytes();
+                        fail("Corrupted trailer was not detected");
+                    } catch (ZipException expected) {
+                        // expected
+                    }
+                }
+            }
+        }
+    }
+
+    private void assertDecompression(Path file) throws IOException {
+        byte[] expected;
+        try (InputStream inputStream = new GZIPInputStream(new FileInputStream(file.toFile()))) {
+            expected = inputStream.readAllBytes();
+        }
+        for (int threads : THREADS) {
+            try (ParallelGZIPInputStream inputStream = new ParallelGZIPInputStream(file, threads)) {
+                ByteArrayOutputStream output = new ByteArrayOutputStream(expected.length);
+                // single bytes and buffers of different sizes
+                for (int i = 0; i < 10; i++) {
+                    int b = inputStream.read();
+                    if (b < 0) {
+                        break;
+                    }
+                    output.write(b);
+                }
+                byte[] buffer = new byte[100_003];
+                int n;
+                while ((n = inputStream.read(buffer, 0, 1 + output.size() % buffer.length)) >= 0) {
+                    output.write(buffer, 0, n);
+                }
+                assertEquals(-1, inputStream.read());
+                assertEquals(file + " (" + threads + " threads)", expected.length, output.size());
+                assertArrayEquals(file + " (" + threads + " threads)", expected, output.toByteArray());
+                if (expected.length > 0) {
+                    assertEquals(Files.size(file), inputStream.getCompressedBytesRead());
+                }
+            }
+        }
+    }
+
+    private Path gzip(byte[] data, int level) throws IOException {
+        return write(gzipBytes(data, level));
+    }
+
+    private Path write(byte[] bytes) throws IOException {
+        Path file = folder.newFile().toPath();
+        Files.write(file, bytes);
+        return file;
+    }
+
+    private static byte[] gzipBytes(byte[] data, int level) throws IOException {
+        return gzipBytes(data, 0, data.length, level);
+    }
+
+    private static byte[] gzipBytes(byte[] data, int offset, int length, int level) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(length / 2);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(bytes, 65_536) {
+            {
+                def.setLevel(level);
+            }
+        }) {
+            gzip.write(data, offset, length);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static final byte[] BGZF_EOF = {31, -117, 8, 4, 0, 0, 0, 0, 0, -1, 6, 0, 66, 67, 2, 0, 27, 0, 3, 0, 0, 0,
+            0, 0, 0, 0, 0, 0};
+
+    /**
+     * Compresses the data into BGZF blocks of at most 65,280 uncompressed bytes, followed by the empty EOF block.
+     */
+    private static byte[] bgzf(byte[] data, int level) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 2);
+        Deflater deflater = new Deflater(level, true);
+        byte[] compressed = new byte[70_000];
+        CRC32 crc = new CRC32();
+        for (int offset = 0; offset < data.length; offset += 65_280) {
+            int length = Math.min(65_280, data.length - offset);
+            deflater.reset();
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            int compressedLength = 0;
+            while (!deflater.finished()) {
+                compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+            }
+            crc.reset();
+            crc.update(data, offset, length);
+            int blockSize = 18 + compressedLength + 8;
+            bytes.writeBytes(new byte[]{31, -117, 8, 4, 0, 0, 0, 0, 0, -1, 6, 0, 66, 67, 2, 0,
+                    (byte) (blockSize - 1), (byte) ((blockSize - 1) >>> 8)});
+            bytes.write(compressed, 0, compressedLength);
+            writeIntLE(bytes, (int) crc.getValue());
+            writeIntLE(bytes, length);
+        }
+        deflater.end();
+        bytes.writeBytes(BGZF_EOF);
+        return bytes.toByteArray();
+    }
+
+    private static void writeIntLE(ByteArrayOutputStream bytes, int value) {
+        for (int i = 0; i < 4; i++) {
+            bytes.write(value >>> (8 * i));
+        }
+    }
+
+    /**
+     * @return FASTQ records with random reads of about the given total size
+     */
+    private static byte[] fastq(Random random, int size) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(size + 1_000);
+        byte[] nucleotides = "ACGT".getBytes();
+        for (int i = 0; bytes.size() < size; i++) {
+            int length = 50 + random.nextInt(200);
+            bytes.writeBytes(("@read" + i + "\n").getBytes());
+            for (int j = 0; j < length; j++) {
+                bytes.write(nucleotides[random.nextInt(4)]);
+            }
+            bytes.writeBytes("\n+\n".getBytes());
+            for (int j = 0; j < length; j++) {
+                bytes.write('5' + random.nextInt(10));
+            }
+            bytes.write('\n');
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,110 @@
+import org.husonlab.diamer.io.seq.FastaIdReader;
+import org.husonlab.diamer.io.seq.FastqIdReader;
+import org.husonlab.diamer.io.seq.SequenceReader;
+import org.husonlab.diamer.seq.SequenceRecord;
+import org.husonlab.diamer.util.Pair;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the sequences that {@link SequenceReader#sample(long)} finds at byte positions with the sequences that
+ * {@link SequenceReader#next()} reads at these positions.
+ */
+public class SequenceSamplingTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testFasta() throws IOException {
+        Random random = new Random(42);
+        StringBuilder file = new StringBuilder();
+        ArrayList<Long> starts = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            starts.add((long) file.length());
+            file.append('>').append(i).append('\n');
+            // one sequence is longer than the first search window
+            int length = i == 150 ? 200_000 : 1 + random.nextInt(3_000);
+            for (int j = 0; j < length; j++) {
+                file.append("ACDEFGHIKLMNPQRSTVWY".charAt(random.nextInt(20)));
+                if (j % 60 == 59 || j == length - 1) {
+                    file.append('\n');
+                }
+            }
+        }
+        Path fasta = folder.newFile("sequences.fsa").toPath();
+        Files.writeString(fasta, file);
+        try (FastaIdReader reader = new FastaIdReader(fasta)) {
+            assertSamples(reader, starts, file.length(), random);
+        }
+    }
+
+    @Test
+    public void testFastq() throws IOException {
+        Random random = new Random(42);
+        StringBuilder file = new StringBuilder();
+        ArrayList<Long> starts = new ArrayList<>();
+        for (int i = 0; i < 2_000; i++) {
+            starts.add((long) file.length());
+            int length = 1 + random.nextInt(300);
+            file.append("@read").append(i).append('\n');
+            for (int j = 0; j < length; j++) {
+                file.append("ACGT".charAt(random.nextInt(4)));
+            }
+            file.append("\n+\n");
+            // quality lines that start with '@' look like headers
+            for (int j = 0; j < length; j++) {
+                file.append((char) ('@' + random.nextInt(j == 0 ? 2 : 30)));
+            }
+            file.append('\n');
+        }
+        Path fastq = folder.newFile("reads.fq").toPath();
+        Files.writeString(fastq, file);
+        try (FastqIdReader reader = new FastqIdReader(fastq)) {
+            assertSamples(reader, starts, file.length(), random);
+        }
+    }
+
+    private static void assertSamples(SequenceReader<Integer, char[]> reader, ArrayList<Long> starts, long fileSize,
+                                      Random random) throws IOException {
+        assertTrue(reader.isSeekable());
+        ArrayList<SequenceRecord<Integer, char[]>> sequences = new ArrayList<>();
+        SequenceRecord<Integer, char[]> sequence;
+        while ((sequence = reader.next()) != null) {
+            sequences.add(sequence);
+        }
+        assertEquals(starts.size(), sequences.size());
+        starts.add(fileSize);
+        ArrayList<Long> positions = new ArrayList<>();
+        for (int i = 0; i < sequences.size(); i++) {
+            // the first and last byte of each sequence and a random byte in between
+            positions.add(starts.get(i));
+            positions.add(starts.get(i + 1) - 1);
+            positions.add(starts.get(i) + random.nextLong(starts.get(i + 1) - starts.get(i)));
+        }
+        int i = 0;
+        for (long position : positions) {
+            while (starts.get(i + 1) <= position) {
+                i++;
+            }
+            if (position < starts.get(i)) {
+                i = 0;
+            }
+            Pair<SequenceRecord<Integer, char[]>, Long> sample = reader.sample(position);
+            assertNotNull(sample);
+            assertEquals("position " + position, starts.get(i + 1) - starts.get(i), (long) sample.last());
+            assertArrayEquals("position " + position, sequences.get(i).sequence(), sample.first().sequence());
+            if (reader instanceof FastaIdReader) {
+                assertEquals(sequences.get(i).id(), sample.first().id());
+            }
+        }
+    }
+}
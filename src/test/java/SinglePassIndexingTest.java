@@ -0,0 +1,88 @@
+import org.husonlab.diamer.main.Main;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the indexes that are built with {@code --single-pass} with the indexes that are built in cycles on the
+ * inputs of the {@link CompleteRunTest}.
+ */
+public class SinglePassIndexingTest {
+    private static final String ALPHABET = "[BDEKNOQRXZ][AST][IJLV][G][P][F][Y][CU][H][M][W]";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSinglePassMatchesCycles() throws IOException {
+        testSinglePassMatchesCycles("111111111111111");
+        testSinglePassMatchesCycles("111111011110011100011");
+    }
+
+    private void testSinglePassMatchesCycles(String mask) throws IOException {
+        String nodesDmp = "src/test/resources/database/taxdmp/nodes.dmp";
+        String namesDmp = "src/test/resources/database/taxdmp/names.dmp";
+        String dbPreprocessed = "src/test/resources/expected_output/db_preprocessed/db_preprocessed.fsa.gz";
+        String reads = "src/test/resources/reads/reads.fq";
+        Path dbIndex = folder.newFolder().toPath();
+        Path dbIndexSinglePass = folder.newFolder().toPath();
+        Path readsIndex = folder.newFolder().toPath();
+        Path readsIndexSinglePass = folder.newFolder().toPath();
+        Path spillFolder = folder.newFolder().toPath();
+
+        // several cycles and several ranges of spilled buckets
+        for (Path output : new Path[]{dbIndex, dbIndexSinglePass}) {
+            ArrayList<String> args = new ArrayList<>(List.of("--indexdb", "-t", "12", "-b", "256", "--mask", mask,
+                    "--filtering", "c", "0", "--alphabet", ALPHABET, "-no", nodesDmp, "-na", namesDmp));
+            if (output == dbIndexSinglePass) {
+                args.addAll(List.of("--single-pass", "--spill-folder", spillFolder.toString()));
+            }
+            args.addAll(List.of(dbPreprocessed, output.toString()));
+            Main.main(args.toArray(new String[0]));
+        }
+        for (Path output : new Path[]{readsIndex, readsIndexSinglePass}) {
+            ArrayList<String> args = new ArrayList<>(List.of("--indexreads", "-t", "12", "-b", "256", "--mask", mask,
+                    "--filtering", "c", "0", "--alphabet", ALPHABET));
+            if (output == readsIndexSinglePass) {
+                args.addAll(List.of("--single-pass", "--spill-folder", spillFolder.toString()));
+            }
+            args.addAll(List.of(reads, output.toString()));
+            Main.main(args.toArray(new String[0]));
+        }
+
+        assertSameIndex(dbIndex, dbIndexSinglePass);
+        assertSameIndex(readsIndex, readsIndexSinglePass);
+        // the spill files are removed
+        try (Stream<Path> spillFiles = Files.list(spillFolder)) {
+            assertEquals(0, spillFiles.count());
+        }
+    }
+
+    /**
+     * Asserts that both index folders contain the same files with the same content, except the log.
+     */
+    private static void assertSameIndex(Path expected, Path actual) throws IOException {
+        List<String> files;
+        try (Stream<Path> paths = Files.list(expected)) {
+            files = paths.map(path -> path.getFileName().toString()).filter(file -> !file.equals("run.log"))
+                    .sorted().toList();
+        }
+        try (Stream<Path> paths = Files.list(actual)) {
+            assertEquals(files, paths.map(path -> path.getFileName().toString())
+                    .filter(file -> !file.equals("run.log")).sorted().toList());
+        }
+        for (String file : files) {
+            assertArrayEquals(file, Files.readAllBytes(expected.resolve(file)), Files.readAllBytes(actual.resolve(file)));
+        }
+    }
+}
@@ -0,0 +1,93 @@
+import org.husonlab.diamer.io.indexing.SpillIO;
+import org.husonlab.diamer.util.ConcurrentBucket;
+import org.husonlab.diamer.util.Pair;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class SpillIOTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Ranges with more than 32768 buckets need the unsigned bucket offsets, ranges with more than
+     * {@link SpillIO#MAX_BUCKETS_PER_RANGE} buckets are split.
+     */
+    @Test
+    public void testRoundTripWithLargeRanges() {
+        testRoundTrip(0, 70_000, 40_000, false, -1L);
+        testRoundTrip(10, 140_010, 100_000, false, -1L);
+        testRoundTrip(5, 80_005, SpillIO.MAX_BUCKETS_PER_RANGE, true, -1L);
+    }
+
+    /**
+     * Few buckets with entries that are close together are spilled as varint differences, partly mixed with groups
+     * of longs.
+     */
+    @Test
+    public void testRoundTripWithDenseBuckets() {
+        testRoundTrip(0, 4, 4, false, 1_000);
+        testRoundTrip(3, 60, 16, true, 1L << 40);
+        testRoundTrip(0, 3, 1, false, 0);
+    }
+
+    /**
+     * @param maxEntry largest entry (unsigned), -1 for random longs
+     */
+    private void testRoundTrip(int firstBucket, int lastBucket, int bucketsPerRange, boolean offHeap, long maxEntry) {
+        Random random = new Random(firstBucket);
+        int nrOfBuckets = lastBucket - firstBucket;
+        ArrayList<ArrayList<Long>> expected = new ArrayList<>(nrOfBuckets);
+        for (int i = 0; i < nrOfBuckets; i++) {
+            expected.add(new ArrayList<>());
+        }
+        try (SpillIO spillIO = new SpillIO(folder.getRoot().toPath(), firstBucket, lastBucket, bucketsPerRange, offHeap)) {
+            try (SpillIO.SpillWriter writer = spillIO.getSpillWriter()) {
+                for (int i = 0; i < 300_000; i++) {
+                    // the last buckets of every range are always used
+                    int bucket = i % 10 == 0 ? lastBucket - 1 - random.nextInt(3) : firstBucket + random.nextInt(nrOfBuckets);
+                    long entry = maxEntry == -1L ? random.nextLong() : random.nextLong(maxEntry + 1);
+                    if (i % 1_000 == 0) {
+                        // entries that are negative as signed longs
+                        entry = -1L - random.nextInt(10);
+                    }
+                    writer.write(bucket, entry);
+                    expected.get(bucket - firstBucket).add(entry);
+                }
+            }
+            spillIO.finishWriting();
+            assertEquals(Math.ceilDiv(nrOfBuckets, Math.min(bucketsPerRange, SpillIO.MAX_BUCKETS_PER_RANGE)),
+                    spillIO.getNrOfRanges());
+            int nextBucket = firstBucket;
+            for (int range = 0; range < spillIO.getNrOfRanges(); range++) {
+                Pair<Integer, Integer> bucketRange = spillIO.getRange(range);
+                assertEquals(nextBucket, (int) bucketRange.first());
+                nextBucket = bucketRange.last();
+                ConcurrentBucket[] buckets = spillIO.readRange(range);
+                assertEquals(bucketRange.last() - bucketRange.first(), buckets.length);
+                for (int i = 0; i < buckets.length; i++) {
+                    int bucket = bucketRange.first() + i;
+                    ArrayList<Long> expectedEntries = expected.get(bucket - firstBucket);
+                    assertEquals(expectedEntries.size(), spillIO.getBucketSize(bucket));
+                    // the order of the entries of a bucket is not kept, the buckets are sorted after reading them
+                    long[] entries = new long[expectedEntries.size()];
+                    for (int j = 0; j < entries.length; j++) {
+                        entries[j] = buckets[i].getValue(j);
+                    }
+                    Arrays.sort(entries);
+                    assertArrayEquals(expectedEntries.stream().sorted().mapToLong(Long::longValue).toArray(), entries);
+                    buckets[i].close();
+                }
+                spillIO.deleteRange(range);
+            }
+            assertEquals(lastBucket, nextBucket);
+        }
+    }
+}